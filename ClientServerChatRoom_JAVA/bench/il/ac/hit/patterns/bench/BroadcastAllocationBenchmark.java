@@ -0,0 +1,168 @@
+package il.ac.hit.patterns.bench;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ModifiedUtf8;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+import il.ac.hit.patterns.server.MessageBoard;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The BroadcastAllocationBenchmark class measures the bytes allocated by one broadcast through the
+ * {@link MessageBoard}, against the number of clients in the room.
+ * <p>
+ * It runs in one JVM without sockets: every client is a stub connection whose outbound path ends where the real
+ * engines hand the bytes to their queue (a {@link ByteBuffer} view, as the NIO engine queues). Three variants are
+ * compared:
+ * <ul>
+ *     <li>{@code per-recipient}: every recipient encodes the text itself, as {@code writeUTF} did per proxy;</li>
+ *     <li>{@code shared-text}: text clients share the single encoding of the message;</li>
+ *     <li>{@code shared-frames}: frame clients share the single encoding of the message frame.</li>
+ * </ul>
+ * All clients negotiate the roster feature, so the numbers show the cost of encoding the message itself and not of
+ * the roster in front of it. Allocations are read from {@link com.sun.management.ThreadMXBean} for the broadcasting
+ * thread. Example:
+ * <p>
+ * {@code java -cp out:bench-out il.ac.hit.patterns.bench.BroadcastAllocationBenchmark --sizes=1,10,100,1000,10000}
+ */
+public class BroadcastAllocationBenchmark {
+
+    private List<Integer> sizes = List.of(1, 10, 100, 1000, 10_000); // Room sizes to measure.
+    private int broadcasts = 2_000; // Measured broadcasts per room size and variant.
+    private int messageLength = 100; // Characters in the broadcast message.
+
+    /**
+     * The main method runs the benchmark and prints one result row per room size.
+     *
+     * @param args Options in the form {@code --name=value}: sizes, broadcasts, message-length.
+     * @throws Exception If the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        BroadcastAllocationBenchmark benchmark = new BroadcastAllocationBenchmark();
+        for (String arg : args) {
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "sizes" -> benchmark.sizes = Arrays.stream(value.split(",")).map(Integer::valueOf).toList();
+                case "broadcasts" -> benchmark.broadcasts = Integer.parseInt(value);
+                case "message-length" -> benchmark.messageLength = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        System.out.printf("%8s %18s %18s %18s%n", "clients", "per-recipient-B", "shared-text-B", "shared-frames-B");
+        for (int size : benchmark.sizes) {
+            System.out.printf("%8d %18d %18d %18d%n", size,
+                    benchmark.measure(size, false, true),
+                    benchmark.measure(size, false, false),
+                    benchmark.measure(size, true, false));
+        }
+    }
+
+    /**
+     * Measures the average bytes allocated by one broadcast.
+     *
+     * @param size         The number of clients in the room.
+     * @param framed       Whether the clients use binary frames.
+     * @param perRecipient Whether every recipient encodes the text itself.
+     * @return The bytes allocated per broadcast.
+     * @throws ChatException If the broadcast fails.
+     */
+    private long measure(int size, boolean framed, boolean perRecipient) throws ChatException {
+        MessageBoard board = new MessageBoard();
+        Set<String> features = framed ? Set.of(Handshake.FEATURE_ROSTER, Handshake.FEATURE_FRAMES) : Set.of(Handshake.FEATURE_ROSTER);
+        for (int i = 0; i < size; i++) {
+            board.register(new StubConnection("c" + i, features, framed, perRecipient));
+        }
+        String text = "c0 ##$$$### All #$$$# c0 -> " + "x".repeat(messageLength);
+
+        /* Warm up, so the allocations of class loading and compilation are not counted. */
+        int warmup = Math.max(50, broadcasts / 10);
+        for (int i = 0; i < warmup; i++) {
+            board.consume(text);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < broadcasts; i++) {
+            board.consume(text);
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / broadcasts;
+    }
+
+    /**
+     * The StubConnection class is a connection without a socket. It encodes what it is sent the way its variant
+     * does and keeps the last buffer, as a queue would.
+     */
+    private static final class StubConnection implements ClientConnection {
+        private final String name; // The client name.
+        private final Set<String> features; // The negotiated features.
+        private final boolean framed; // Whether the client uses binary frames.
+        private final boolean perRecipient; // Whether the client encodes every message itself.
+        private ByteBuffer last; // The last buffer handed to the outbound path.
+
+        private StubConnection(String name, Set<String> features, boolean framed, boolean perRecipient) {
+            this.name = name;
+            this.features = features;
+            this.framed = framed;
+            this.perRecipient = perRecipient;
+        }
+
+        @Override
+        public void send(OutboundMessage message) throws ChatException {
+            try {
+                byte[] bytes = perRecipient ? ModifiedUtf8.encode(message.getText()) : message.encoded(framed);
+                last = ByteBuffer.wrap(bytes);
+            } catch (IOException e) {
+                throw new ChatException("Problem encoding a message for " + name, e);
+            }
+        }
+
+        @Override
+        public void consume(String text) throws ChatException {
+            send(OutboundMessage.of(text));
+        }
+
+        @Override
+        public void consumeFrame(Frame frame) throws ChatException {
+            send(OutboundMessage.of(frame));
+        }
+
+        @Override
+        public String getClientName() {
+            return name;
+        }
+
+        @Override
+        public Set<String> getFeatures() {
+            return features;
+        }
+
+        @Override
+        public void acknowledgeFeatures() {
+        }
+
+        @Override
+        public void closeConnection() {
+            last = null;
+        }
+
+        @Override
+        public void addConsumer(StringConsumer consumer) {
+        }
+
+        @Override
+        public void removeConsumer(StringConsumer consumer) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package il.ac.hit.patterns.bench;
+
+import il.ac.hit.patterns.protocol.CompressionStats;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameCompression;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * The CompressionBenchmark class measures what {@link FrameCompression} saves on chat messages of different lengths,
+ * and what it costs.
+ * <p>
+ * Messages are built from random words of a small chat vocabulary, in the {@code name -> text} form the client sends.
+ * For every length it reports the compressed size without a dictionary, the compressed size with the preset
+ * dictionary, and the CPU time of one compression and one decompression, read from the counters of
+ * {@link FrameCompression#getStats()}. Example:
+ * <p>
+ * {@code java -cp out:bench-out il.ac.hit.patterns.bench.CompressionBenchmark --lengths=64,128,256,1024,4096}
+ */
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = ("hi hello hey thanks you the and is are what when how I we they see later "
+            + "today tomorrow meeting lunch project please could would think really good great ok yes no lol :) "
+            + "everyone all about this that with for from").split(" ");
+
+    private List<Integer> lengths = List.of(64, 128, 256, 1024, 4096); // Message lengths to measure, in characters.
+    private int messages = 20_000; // Measured messages per length.
+
+    /**
+     * The main method runs the benchmark and prints one result row per message length.
+     *
+     * @param args Options in the form {@code --name=value}: lengths, messages.
+     */
+    public static void main(String[] args) {
+        CompressionBenchmark benchmark = new CompressionBenchmark();
+        for (String arg : args) {
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "lengths" -> benchmark.lengths = Arrays.stream(value.split(",")).map(Integer::valueOf).toList();
+                case "messages" -> benchmark.messages = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        System.out.printf("%8s %10s %12s %12s %12s %12s%n", "length", "raw-B", "plain-B", "dictionary-B", "deflate-us", "inflate-us");
+        for (int length : benchmark.lengths) {
+            benchmark.measure(length);
+        }
+    }
+
+    /**
+     * Measures messages of one length and prints the averages.
+     *
+     * @param length The message length, in characters.
+     */
+    private void measure(int length) {
+        List<Frame> frames = new ArrayList<>();
+        Random random = new Random(length);
+        for (int i = 0; i < 256; i++) {
+            frames.add(Frame.message("alice", "", "", message(random, length)));
+        }
+
+        /* Warm up, so compilation is not counted. */
+        for (int i = 0; i < Math.max(1_000, messages / 10); i++) {
+            roundTrip(frames.get(i % frames.size()));
+        }
+
+        CompressionStats stats = FrameCompression.getStats();
+        long deflateNanos = stats.getDeflateNanos();
+        long inflateNanos = stats.getInflateNanos();
+        long deflated = stats.getDeflatedFrames();
+        long inflated = stats.getInflatedFrames();
+        long raw = 0;
+        long withDictionary = 0;
+        long plain = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] buffer = new byte[length * 4 + 64];
+        for (int i = 0; i < messages; i++) {
+            Frame frame = frames.get(i % frames.size());
+            raw += frame.getPayload().length;
+            withDictionary += roundTrip(frame);
+            deflater.setInput(frame.getPayload());
+            deflater.finish();
+            while (!deflater.finished()) {
+                plain += deflater.deflate(buffer);
+            }
+            deflater.reset();
+        }
+        deflater.end();
+
+        deflated = Math.max(1, stats.getDeflatedFrames() - deflated);
+        inflated = Math.max(1, stats.getInflatedFrames() - inflated);
+        System.out.printf("%8d %10d %12d %12d %12.2f %12.2f%n", length, raw / messages, plain / messages,
+                withDictionary / messages, (stats.getDeflateNanos() - deflateNanos) / 1000.0 / deflated,
+                (stats.getInflateNanos() - inflateNanos) / 1000.0 / inflated);
+    }
+
+    /**
+     * Compresses a frame and restores it.
+     *
+     * @param frame The frame.
+     * @return The payload length sent, compressed or not.
+     */
+    private static int roundTrip(Frame frame) {
+        Frame sent = FrameCompression.deflate(frame);
+        try {
+            FrameCompression.inflate(sent);
+        } catch (ProtocolException e) {
+            throw new IllegalStateException(e);
+        }
+        return sent.getPayload().length;
+    }
+
+    /**
+     * Builds a chat message from random words.
+     *
+     * @param random The word source.
+     * @param length The message length, in characters.
+     * @return The message.
+     */
+    private static String message(Random random, int length) {
+        StringBuilder text = new StringBuilder("alice -> ");
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+}
@@ -0,0 +1,354 @@
+package il.ac.hit.patterns.bench;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The ConnectionModeBenchmark class compares the server connection engines under many idle-but-connected clients.
+ * <p>
+ * For every engine it starts a fresh server JVM, connects the simulated clients, and then broadcasts timestamped
+ * messages from one of them. It reports the server thread count and resident set size (read from
+ * {@code /proc/<pid>/status}, so Linux only) and the send-to-receive latency percentiles over every delivery.
+ * <p>
+ * All simulated clients are multiplexed on a single selector in this JVM, so the client side does not distort the
+ * measurement. Example (the {@code virtual} engine needs the server JVM to be Java 21 or later):
+ * <p>
+ * {@code java -cp out:bench-out il.ac.hit.patterns.bench.ConnectionModeBenchmark --clients=10000 --modes=thread,virtual}
+ * <p>
+ * 10k clients need about 20k file descriptors ({@code ulimit -n}) on the machine running both sides, and a longer
+ * {@code --settle-ms} where admitting them all takes more than the default two seconds.
+ */
+public class ConnectionModeBenchmark {
+
+    private int clients = 10_000; // Number of simulated clients.
+    private int messages = 20; // Number of broadcasts sent by the first client.
+    private long intervalMillis = 500; // Pause between two broadcasts.
+    private long settleMillis = 2_000; // Pause after the join storm, so every client is admitted before the broadcasts.
+    private int port = 1390; // Port the benchmarked server listens on.
+    private List<String> modes = List.of("thread", "virtual"); // Engines to benchmark, in order.
+    private String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString(); // JVM for the server.
+
+    /**
+     * The main method runs the benchmark and prints one result row per engine.
+     *
+     * @param args Options in the form {@code --name=value}: clients, messages, interval-ms, settle-ms, port, modes,
+     *             java.
+     * @throws Exception If the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        ConnectionModeBenchmark benchmark = new ConnectionModeBenchmark();
+        for (String arg : args) {
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "clients" -> benchmark.clients = Integer.parseInt(value);
+                case "messages" -> benchmark.messages = Integer.parseInt(value);
+                case "interval-ms" -> benchmark.intervalMillis = Long.parseLong(value);
+                case "settle-ms" -> benchmark.settleMillis = Long.parseLong(value);
+                case "port" -> benchmark.port = Integer.parseInt(value);
+                case "modes" -> benchmark.modes = Arrays.asList(value.split(","));
+                case "java" -> benchmark.java = value;
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        System.out.printf("%-8s %8s %8s %10s %10s %10s %10s %12s%n",
+                "engine", "clients", "threads", "rss-MB", "p50-ms", "p99-ms", "max-ms", "delivered");
+        for (String mode : benchmark.modes) {
+            benchmark.run(mode);
+        }
+    }
+
+    /**
+     * Benchmarks one engine in a fresh server JVM.
+     *
+     * @param mode The value of the server {@code --engine} option.
+     * @throws Exception If the server or the clients fail.
+     */
+    private void run(String mode) throws Exception {
+        /* Shedding is off: the benchmark measures the engines, and a shed broadcast would just be missing. */
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "il.ac.hit.patterns.server.ServerApplication", "--engine=" + mode, "--port=" + port, "--backlog=4096",
+                "--shed-queue-depth=0", "--shed-fanout-ms=0")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (SimulatedClients simulated = new SimulatedClients(clients * (long) messages)) {
+            simulated.connectAll("127.0.0.1", port, clients);
+            simulated.poll(settleMillis); // Let the server admit everyone; a client admitted late misses broadcasts.
+            long[] peak = processStats(server.pid());
+
+            for (int i = 0; i < messages; i++) {
+                simulated.send(0, "c0 ##$$$### All #$$$# ping " + System.nanoTime());
+                simulated.poll(intervalMillis);
+                long[] sample = processStats(server.pid());
+                peak[0] = Math.max(peak[0], sample[0]);
+                peak[1] = Math.max(peak[1], sample[1]);
+            }
+            simulated.drain(30_000);
+
+            long[] latencies = simulated.latencies();
+            Arrays.sort(latencies);
+            System.out.printf("%-8s %8d %8d %10.1f %10.2f %10.2f %10.2f %12d%n",
+                    mode, clients, peak[0], peak[1] / 1024.0,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    (latencies.length == 0 ? 0 : latencies[latencies.length - 1]) / 1e6, latencies.length);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Reads the thread count and the resident set size (in kB) of a process.
+     *
+     * @param pid The process id.
+     * @return A two element array: threads, RSS in kB.
+     * @throws IOException If the proc file cannot be read.
+     */
+    private static long[] processStats(long pid) throws IOException {
+        long[] stats = new long[2];
+        for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+            if (line.startsWith("Threads:")) {
+                stats[0] = Long.parseLong(line.substring(8).trim());
+            } else if (line.startsWith("VmRSS:")) {
+                stats[1] = Long.parseLong(line.substring(6).replace("kB", "").trim());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Retrieves a percentile of a sorted array.
+     *
+     * @param sorted   The sorted values.
+     * @param fraction The percentile as a fraction, e.g. 0.99.
+     * @return The value at the percentile, or 0 for an empty array.
+     */
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * The SimulatedClients class drives many protocol clients from one selector thread.
+     * <p>
+     * Incoming frames are not materialized: only their last bytes are kept, which is where the send timestamp of
+     * a benchmark message is, so 10k clients receiving 60KB roster-prefixed frames cost almost no memory.
+     */
+    static class SimulatedClients implements AutoCloseable {
+
+        private static final int TAIL = 24; // Bytes kept from the end of every frame.
+
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(256 * 1024);
+        private SocketChannel[] channels = new SocketChannel[0];
+        private long[] latencies;
+        private int received;
+
+        /**
+         * Constructs a SimulatedClients object.
+         *
+         * @param expectedDeliveries The number of deliveries to reserve latency slots for.
+         * @throws IOException If the selector cannot be opened.
+         */
+        SimulatedClients(long expectedDeliveries) throws IOException {
+            this.selector = Selector.open();
+            this.latencies = new long[(int) Math.min(expectedDeliveries, Integer.MAX_VALUE - 8)];
+        }
+
+        /**
+         * Connects the clients named {@code c0..c<count-1>} and sends their handshake.
+         *
+         * @param host  The server host.
+         * @param port  The server port.
+         * @param count The number of clients.
+         * @throws Exception If a client cannot connect.
+         */
+        void connectAll(String host, int port, int count) throws Exception {
+            channels = new SocketChannel[count];
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = connect(new InetSocketAddress(host, port), i == 0 ? 50 : 1);
+                channels[i] = channel;
+                write(channel, "c" + i);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new FrameState());
+                if (i % 500 == 0) {
+                    poll(0);
+                }
+            }
+        }
+
+        /**
+         * Connects to the server, retrying while it is still starting up.
+         *
+         * @param address  The server address.
+         * @param attempts The number of attempts, 100ms apart.
+         * @return The connected channel, in blocking mode.
+         * @throws Exception If every attempt failed.
+         */
+        private static SocketChannel connect(InetSocketAddress address, int attempts) throws Exception {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return SocketChannel.open(address);
+                } catch (ConnectException e) {
+                    if (attempt >= attempts) {
+                        throw e;
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        }
+
+        /**
+         * Sends a text frame from one client.
+         *
+         * @param client The index of the sending client.
+         * @param text   The text to send.
+         * @throws IOException If writing fails.
+         */
+        void send(int client, String text) throws IOException {
+            write(channels[client], text);
+        }
+
+        /**
+         * Writes a writeUTF frame of ASCII text, spinning until the channel took all of it.
+         */
+        private static void write(SocketChannel channel, String text) throws IOException {
+            byte[] body = text.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer frame = ByteBuffer.allocate(2 + body.length);
+            frame.putShort((short) body.length).put(body).flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        /**
+         * Reads incoming frames for the given time.
+         *
+         * @param millis How long to poll, 0 to only process what is ready now.
+         * @throws IOException If reading fails.
+         */
+        void poll(long millis) throws IOException {
+            long deadline = System.nanoTime() + millis * 1_000_000;
+            do {
+                long left = Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+                if ((millis == 0 ? selector.selectNow() : selector.select(left)) == 0) {
+                    continue;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    readFrom(key);
+                }
+            } while (System.nanoTime() < deadline);
+        }
+
+        /**
+         * Polls until every expected delivery arrived or the timeout passed.
+         *
+         * @param timeoutMillis The maximum time to wait.
+         * @throws IOException If reading fails.
+         */
+        void drain(long timeoutMillis) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (received < latencies.length && System.currentTimeMillis() < deadline) {
+                poll(100);
+            }
+        }
+
+        /**
+         * Retrieves the recorded send-to-receive latencies in nanoseconds.
+         *
+         * @return A copy of the recorded latencies.
+         */
+        long[] latencies() {
+            return Arrays.copyOf(latencies, received);
+        }
+
+        private void readFrom(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            FrameState state = (FrameState) key.attachment();
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (state.headerBytes < 2) {
+                    state.remaining = (state.remaining << 8) | (readBuffer.get() & 0xFF);
+                    if (++state.headerBytes == 2 && state.remaining == 0) {
+                        state.reset();
+                    }
+                    continue;
+                }
+                int chunk = Math.min(state.remaining, readBuffer.remaining());
+                for (int k = Math.max(0, state.remaining - TAIL); k < chunk; k++) {
+                    state.tail[TAIL - (state.remaining - k)] = readBuffer.get(readBuffer.position() + k);
+                }
+                readBuffer.position(readBuffer.position() + chunk);
+                state.remaining -= chunk;
+                if (state.remaining == 0) {
+                    onFrame(state.tail);
+                    state.reset();
+                }
+            }
+        }
+
+        private void onFrame(byte[] tail) {
+            long now = System.nanoTime();
+            long sent = 0;
+            int i = TAIL - 1;
+            for (long multiplier = 1; i >= 0 && tail[i] >= '0' && tail[i] <= '9'; i--, multiplier *= 10) {
+                sent += (tail[i] - '0') * multiplier;
+            }
+            // Only benchmark broadcasts end with "ping <nanoTime>"
+            if (i >= 0 && tail[i] == ' ' && i < TAIL - 1 && received < latencies.length) {
+                latencies[received++] = now - sent;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            selector.close();
+        }
+
+        /**
+         * Parse state of the frame currently being received by one client.
+         */
+        private static final class FrameState {
+            private int headerBytes;
+            private int remaining;
+            private final byte[] tail = new byte[TAIL];
+
+            private void reset() {
+                headerBytes = 0;
+                remaining = 0;
+                Arrays.fill(tail, (byte) 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package il.ac.hit.patterns.bench;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+import il.ac.hit.patterns.server.MessageBoard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The HotPathBenchmark class measures the time and the allocations of the paths every chat message goes through:
+ * <ul>
+ *     <li>{@code command}: {@link MessageBoard#command} separating sender, recipient and message of a text line;</li>
+ *     <li>{@code consume}: {@link MessageBoard#consume} routing a broadcast to stub clients, for each room size;</li>
+ *     <li>{@code writeUTF}: encoding a line with {@link DataOutputStream#writeUTF}, as the proxies once did for every
+ *     recipient, against {@code encode}: the shared encoding a connection now writes;</li>
+ *     <li>{@code client-split}: the {@code split("\\$\\$\\$")} parsing of a roster line in
+ *     {@code SimpleClientGUI.consume}, without the Swing updates around it.</li>
+ * </ul>
+ * Every benchmark is warmed up, then run for a number of rounds of a fixed duration. For each round it records the
+ * time per operation, the bytes allocated per operation by the benchmark thread (read from
+ * {@link com.sun.management.ThreadMXBean}) and the garbage collections that ran; the row printed holds the median
+ * round. Results are written to a volatile sink so the JIT cannot drop the work. Example:
+ * <p>
+ * {@code java -cp out:bench-out il.ac.hit.patterns.bench.HotPathBenchmark --sizes=1,100,10000 --round-ms=500}
+ */
+public class HotPathBenchmark {
+
+    private List<Integer> sizes = List.of(1, 100, 10_000); // Room sizes of the fan-out benchmark.
+    private int messageLength = 100; // Characters in the message text.
+    private int rosterSize = 20; // Names in the roster line the client parses.
+    private int rounds = 5; // Measured rounds per benchmark.
+    private long roundMillis = 500; // Duration of one round, and of the warm-up.
+
+    private volatile Object sink; // Receives every result, so the work cannot be optimized away.
+
+    /**
+     * The main method runs every benchmark and prints one result row each.
+     *
+     * @param args Options in the form {@code --name=value}: sizes, message-length, roster-size, rounds, round-ms.
+     * @throws Exception If a benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        HotPathBenchmark benchmark = new HotPathBenchmark();
+        for (String arg : args) {
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "sizes" -> benchmark.sizes = Arrays.stream(value.split(",")).map(Integer::valueOf).toList();
+                case "message-length" -> benchmark.messageLength = Integer.parseInt(value);
+                case "roster-size" -> benchmark.rosterSize = Integer.parseInt(value);
+                case "rounds" -> benchmark.rounds = Integer.parseInt(value);
+                case "round-ms" -> benchmark.roundMillis = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        benchmark.run();
+    }
+
+    /**
+     * Runs every benchmark.
+     *
+     * @throws Exception If a benchmark cannot run.
+     */
+    private void run() throws Exception {
+        String body = "alice -> " + "x".repeat(messageLength);
+        String privateLine = "alice ##$$$### bob #$$$# " + body;
+        String broadcastLine = "alice ##$$$### All #$$$# " + body;
+
+        System.out.printf("%-14s %8s %14s %12s %8s %8s%n", "benchmark", "param", "ns/op", "B/op", "gc", "gc-ms");
+
+        MessageBoard parser = new MessageBoard();
+        measure("command", "private", () -> sink = parser.command(privateLine));
+        measure("command", "all", () -> sink = parser.command(broadcastLine));
+        measure("command", "plain", () -> sink = parser.command(body));
+
+        for (int size : sizes) {
+            MessageBoard board = new MessageBoard();
+            for (int i = 0; i < size; i++) {
+                board.register(new StubConnection("c" + i));
+            }
+            String line = "c0 ##$$$### All #$$$# c0 -> " + "x".repeat(messageLength);
+            measure("consume", String.valueOf(size), () -> board.consume(line));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(messageLength * 3 + 2);
+        DataOutputStream out = new DataOutputStream(buffer);
+        measure("writeUTF", "per-copy", () -> {
+            buffer.reset();
+            out.writeUTF(body);
+            sink = buffer.toByteArray();
+        });
+        measure("encode", "shared", () -> sink = OutboundMessage.of(body).encoded(false));
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < rosterSize; i++) {
+            names.add("user" + i);
+        }
+        String rosterLine = String.join(" ", names) + " $$$ " + body;
+        measure("client-split", String.valueOf(rosterSize), () -> sink = parseRosterLine(rosterLine));
+    }
+
+    /**
+     * Parses a roster line the way {@code SimpleClientGUI.consume} does: the names before {@code $$$}, split on
+     * spaces, and the trimmed message after it.
+     *
+     * @param text The roster line.
+     * @return The message, the names are kept in the sink.
+     */
+    private String parseRosterLine(String text) {
+        List<String> allClientNames = new ArrayList<>();
+        String message = "";
+        String[] parts = text.split("\\$\\$\\$");
+        String namesText = parts[0].trim();
+        if (!namesText.isEmpty()) {
+            String[] nameArr = namesText.split(" ");
+            allClientNames.addAll(Arrays.asList(nameArr));
+        }
+        if (parts.length > 1) {
+            message = parts[1].trim();
+        }
+        sink = allClientNames;
+        return message;
+    }
+
+    /**
+     * Warms one benchmark up, runs its rounds and prints the median round.
+     *
+     * @param name      The benchmark name.
+     * @param parameter The parameter of this run.
+     * @param operation The measured operation.
+     * @throws Exception If the operation fails.
+     */
+    private void measure(String name, String parameter, Operation operation) throws Exception {
+        runFor(operation, roundMillis);
+        Round[] results = new Round[rounds];
+        for (int i = 0; i < rounds; i++) {
+            results[i] = runFor(operation, roundMillis);
+        }
+        Arrays.sort(results, (a, b) -> Double.compare(a.nanosPerOperation, b.nanosPerOperation));
+        Round median = results[rounds / 2];
+        System.out.printf("%-14s %8s %14.1f %12d %8d %8d%n", name, parameter, median.nanosPerOperation,
+                median.bytesPerOperation, median.collections, median.collectionMillis);
+    }
+
+    /**
+     * Runs an operation in batches until the duration passed, and measures the round.
+     *
+     * @param operation The operation.
+     * @param millis    The duration of the round.
+     * @return The measurements of the round.
+     * @throws Exception If the operation fails.
+     */
+    private Round runFor(Operation operation, long millis) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long collections = collectionCount();
+        long collectionMillis = collectionMillis();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long operations = 0;
+        long now;
+        do {
+            for (int i = 0; i < 16; i++) {
+                operation.run();
+            }
+            operations += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        Round round = new Round();
+        round.nanosPerOperation = (double) (now - start) / operations;
+        round.bytesPerOperation = (threads.getThreadAllocatedBytes(thread) - allocated) / operations;
+        round.collections = collectionCount() - collections;
+        round.collectionMillis = collectionMillis() - collectionMillis;
+        return round;
+    }
+
+    /**
+     * Retrieves the number of collections run by every garbage collector so far.
+     *
+     * @return The collection count.
+     */
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves the time spent by every garbage collector so far.
+     *
+     * @return The collection time in milliseconds.
+     */
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * An operation under measurement.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The measurements of one round.
+     */
+    private static final class Round {
+        private double nanosPerOperation; // Wall-clock time per operation.
+        private long bytesPerOperation; // Bytes allocated by the benchmark thread per operation.
+        private long collections; // Garbage collections during the round.
+        private long collectionMillis; // Time spent in garbage collection during the round.
+    }
+
+    /**
+     * The StubConnection class is a legacy text client without a socket. It takes the shared encoding of what it is
+     * sent, as the outbound queue of a real connection would, and keeps the last one.
+     */
+    private static final class StubConnection implements ClientConnection {
+        private final String name; // The client name.
+        private byte[] last; // The last encoding handed to the outbound path.
+
+        private StubConnection(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void send(OutboundMessage message) throws ChatException {
+            try {
+                last = message.encoded(false);
+            } catch (IOException e) {
+                throw new ChatException("Problem encoding a message for " + name, e);
+            }
+        }
+
+        @Override
+        public void consume(String text) throws ChatException {
+            send(OutboundMessage.of(text));
+        }
+
+        @Override
+        public void consumeFrame(Frame frame) throws ChatException {
+            send(OutboundMessage.of(frame));
+        }
+
+        @Override
+        public String getClientName() {
+            return name;
+        }
+
+        @Override
+        public Set<String> getFeatures() {
+            return Set.of();
+        }
+
+        @Override
+        public void acknowledgeFeatures() {
+        }
+
+        @Override
+        public void closeConnection() {
+            last = null;
+        }
+
+        @Override
+        public void addConsumer(StringConsumer consumer) {
+        }
+
+        @Override
+        public void removeConsumer(StringConsumer consumer) {
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package il.ac.hit.patterns.bench;
+
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.LatencyHistogram;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.server.ConnectionThreads;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * The LoadGenerator class opens thousands of simulated clients against a running server and measures what they see,
+ * to size the hardware a server needs. Nothing of Swing is involved.
+ * <p>
+ * Every simulated client is a {@link ConnectionProxy} that connects with the same handshake the chat client uses, and
+ * asks for the roster feature by default, so a delivery carries the message alone and not the whole roster in front
+ * of it. The run has three phases:
+ * <ol>
+ *     <li>the join storm: the clients connect, all at once from {@code --join-threads} threads, or paced at
+ *     {@code --join-rate} clients per second; the connect time is measured up to the server's ACK;</li>
+ *     <li>the load: for {@code --duration-s} seconds, random clients broadcast at {@code --broadcast-rate} and send
+ *     private messages to random clients at {@code --private-rate} messages per second, each message padded to one
+ *     of the {@code --payloads} sizes;</li>
+ *     <li>the drain: the generator waits until deliveries stop.</li>
+ * </ol>
+ * A message carries the time it was sent, so every client that receives another client's message records the
+ * send-to-receive latency; clients and sender share this JVM and its clock. The report gives the latency and connect
+ * time percentiles, the send and delivery throughput, and the deliveries that never arrived. It is printed, and written
+ * as CSV ({@code --csv}) and JSON ({@code --json}) if asked. Example, against a server on this machine:
+ * <p>
+ * {@code java -cp out:bench-out il.ac.hit.patterns.bench.LoadGenerator --clients=2000 --broadcast-rate=20
+ * --private-rate=500 --payloads=32,256,2048 --duration-s=30 --csv=load.csv}
+ * <p>
+ * Percentiles come from a {@link LatencyHistogram}, so they are the upper bound of a bucket, at most a quarter too high.
+ * A join storm needs the server started with a {@code --backlog} large enough for the join threads.
+ */
+public class LoadGenerator {
+
+    private static final String STAMP = " -> @"; // Separates the sender name from the send time in a message.
+
+    private String host = "127.0.0.1"; // The server host.
+    private int port = 1300; // The server port.
+    private int clients = 1_000; // Number of simulated clients.
+    private String namePrefix = "load"; // Prefix of the client names.
+    private Set<String> features = Set.of("roster"); // Protocol features the clients ask for.
+    private int joinThreads = 16; // Threads that connect clients in the join storm.
+    private double joinRate; // Clients connected per second, 0 for a storm.
+    private double broadcastRate = 10; // Broadcasts sent per second.
+    private double privateRate = 100; // Private messages sent per second.
+    private List<Integer> payloads = List.of(100); // Message sizes, in characters, one picked at random per message.
+    private long durationSeconds = 30; // Duration of the load phase.
+    private String csv; // Where the results are written as CSV, null for nowhere.
+    private String json; // Where the results are written as JSON, null for nowhere.
+
+    private final List<SimulatedClient> connected = new ArrayList<>(); // The clients that got their ACK (guarded by itself).
+    private final LatencyHistogram latencies = new LatencyHistogram(); // Send-to-receive times of every delivery.
+    private final LatencyHistogram connectTimes = new LatencyHistogram(); // Connect-to-ACK times.
+    private final LongAdder deliveries = new LongAdder(); // Messages received from other clients.
+    private final LongAdder broadcastsSent = new LongAdder(); // Broadcasts sent.
+    private final LongAdder privatesSent = new LongAdder(); // Private messages sent.
+    private final LongAdder expected = new LongAdder(); // Deliveries the sent messages should cause.
+    private final AtomicInteger connectFailures = new AtomicInteger(); // Clients that could not connect.
+    private final AtomicInteger disconnects = new AtomicInteger(); // Clients the server closed.
+    private volatile boolean stopping; // Whether the generator closes the clients itself.
+
+    /**
+     * The main method runs the load and reports the results.
+     *
+     * @param args Options in the form {@code --name=value}: host, port, clients, name-prefix, features, join-threads,
+     *             join-rate, broadcast-rate, private-rate, payloads, duration-s, csv, json.
+     * @throws Exception If the load cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host" -> generator.host = value;
+                case "port" -> generator.port = Integer.parseInt(value);
+                case "clients" -> generator.clients = Integer.parseInt(value);
+                case "name-prefix" -> generator.namePrefix = value;
+                case "features" -> generator.features = value.isEmpty() ? Set.of() : Set.of(value.split(","));
+                case "join-threads" -> generator.joinThreads = Integer.parseInt(value);
+                case "join-rate" -> generator.joinRate = Double.parseDouble(value);
+                case "broadcast-rate" -> generator.broadcastRate = Double.parseDouble(value);
+                case "private-rate" -> generator.privateRate = Double.parseDouble(value);
+                case "payloads" -> generator.payloads = Arrays.stream(value.split(",")).map(Integer::valueOf).toList();
+                case "duration-s" -> generator.durationSeconds = Long.parseLong(value);
+                case "csv" -> generator.csv = value;
+                case "json" -> generator.json = value;
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        generator.run();
+    }
+
+    /**
+     * Runs the three phases and reports.
+     *
+     * @throws Exception If the load cannot run.
+     */
+    private void run() throws Exception {
+        ThreadFactory readers = readerThreads();
+        long joinStart = System.nanoTime();
+        join(readers);
+        double joinSeconds = (System.nanoTime() - joinStart) / 1e9;
+        System.out.printf("joined %d clients in %.1f s (%d failed)%n", connected.size(), joinSeconds, connectFailures.get());
+        if (connected.size() < 2) {
+            throw new IllegalStateException("At least two clients must connect, " + connected.size() + " did");
+        }
+        Thread.sleep(1_000); // Let the roster updates of the storm settle.
+
+        long loadStart = System.nanoTime();
+        Thread broadcasts = pace("broadcaster", broadcastRate, loadStart, this::sendBroadcast);
+        Thread privates = pace("private-sender", privateRate, loadStart, this::sendPrivate);
+        broadcasts.join();
+        privates.join();
+        double loadSeconds = (System.nanoTime() - loadStart) / 1e9;
+        drain();
+
+        Map<String, Object> results = results(joinSeconds, loadSeconds);
+        stopping = true;
+        for (SimulatedClient client : connected) {
+            client.proxy.closeConnection();
+        }
+        report(results);
+    }
+
+    /**
+     * Creates the threads the read loops of the clients run on: virtual threads if the JVM has them, otherwise
+     * daemon platform threads.
+     *
+     * @return The thread factory.
+     */
+    private static ThreadFactory readerThreads() {
+        try {
+            return ConnectionThreads.virtual();
+        } catch (ChatException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return task -> {
+                Thread thread = new Thread(task, "load-reader-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * Connects every client, in a storm or at the join rate, and waits until each got its ACK or failed.
+     *
+     * @param readers The threads the read loops run on.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void join(ThreadFactory readers) throws InterruptedException {
+        ExecutorService joiners = Executors.newFixedThreadPool(joinRate > 0 ? 1 : joinThreads);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            String name = namePrefix + i;
+            long due = joinRate > 0 ? start + (long) (i * 1e9 / joinRate) : start;
+            joiners.execute(() -> {
+                waitUntil(due);
+                connect(name, readers);
+            });
+        }
+        joiners.shutdown();
+        joiners.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Connects one client and waits for its ACK; without features the connect time ends with the handshake sent.
+     *
+     * @param name    The client name.
+     * @param readers The threads the read loops run on.
+     */
+    private void connect(String name, ThreadFactory readers) {
+        long start = System.nanoTime();
+        try {
+            SimulatedClient client = new SimulatedClient(name, start);
+            client.proxy = new ConnectionProxy(host, port, name, features);
+            client.proxy.addConsumer(client);
+            client.proxy.setCloseListener(() -> {
+                if (!stopping) {
+                    disconnects.incrementAndGet();
+                }
+            });
+            client.proxy.start(readers);
+            if (features.isEmpty()) {
+                client.acknowledged(System.nanoTime());
+            }
+            if (!client.awaitAcknowledgement(10_000)) {
+                client.proxy.closeConnection();
+                connectFailures.incrementAndGet();
+                return;
+            }
+            synchronized (connected) {
+                connected.add(client);
+            }
+        } catch (ChatException | InterruptedException e) {
+            connectFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts a thread that calls an action at a fixed rate for the duration of the load phase. The times are fixed
+     * in advance, so a slow send is caught up with rather than lowering the rate.
+     *
+     * @param name   The thread name.
+     * @param rate   Calls per second, 0 for none.
+     * @param start  When the load phase started.
+     * @param action The action.
+     * @return The started thread.
+     */
+    private Thread pace(String name, double rate, long start, Runnable action) {
+        Thread thread = new Thread(() -> {
+            if (rate <= 0) {
+                return;
+            }
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            for (long i = 0; ; i++) {
+                long due = start + (long) (i * 1e9 / rate);
+                if (due >= end) {
+                    break;
+                }
+                waitUntil(due);
+                action.run();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Sends a broadcast from a random client.
+     */
+    private void sendBroadcast() {
+        SimulatedClient sender = randomClient(null);
+        if (sender.send("All")) {
+            broadcastsSent.increment();
+            expected.add(connected.size() - 1);
+        }
+    }
+
+    /**
+     * Sends a private message from a random client to another random client.
+     */
+    private void sendPrivate() {
+        SimulatedClient sender = randomClient(null);
+        SimulatedClient recipient = randomClient(sender);
+        if (sender.send(recipient.name)) {
+            privatesSent.increment();
+            expected.increment();
+        }
+    }
+
+    /**
+     * Picks a random connected client.
+     *
+     * @param other A client not to pick, may be {@code null}.
+     * @return The client.
+     */
+    private SimulatedClient randomClient(SimulatedClient other) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SimulatedClient client;
+        do {
+            client = connected.get(random.nextInt(connected.size()));
+        } while (client == other);
+        return client;
+    }
+
+    /**
+     * Waits until every expected delivery arrived, or until none arrived for two seconds, at most a minute.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        long last = -1;
+        long quietSince = System.nanoTime();
+        while (deliveries.sum() < expected.sum() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            long now = deliveries.sum();
+            if (now != last) {
+                last = now;
+                quietSince = System.nanoTime();
+            } else if (System.nanoTime() - quietSince > TimeUnit.SECONDS.toNanos(2)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Busy-sleeps until a point in time.
+     *
+     * @param due The time, in {@link System#nanoTime()} units.
+     */
+    private static void waitUntil(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            if (wait > 2_000_000) {
+                try {
+                    Thread.sleep(wait / 2_000_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Gathers the results, in the order they are reported.
+     *
+     * @param joinSeconds How long the join storm took.
+     * @param loadSeconds How long the load phase took.
+     * @return The results by name.
+     */
+    private Map<String, Object> results(double joinSeconds, double loadSeconds) {
+        Map<String, Object> results = new LinkedHashMap<>();
+        long sent = broadcastsSent.sum() + privatesSent.sum();
+        results.put("clients", connected.size());
+        results.put("connect_failures", connectFailures.get());
+        results.put("disconnects", disconnects.get());
+        results.put("join_s", round(joinSeconds));
+        results.put("connect_p50_ms", round(connectTimes.getPercentileNanos(0.5) / 1e6));
+        results.put("connect_p99_ms", round(connectTimes.getPercentileNanos(0.99) / 1e6));
+        results.put("connect_max_ms", round(connectTimes.getMaxMicros() / 1e3));
+        results.put("broadcasts", broadcastsSent.sum());
+        results.put("privates", privatesSent.sum());
+        results.put("sent_per_s", round(sent / loadSeconds));
+        results.put("deliveries", deliveries.sum());
+        results.put("expected", expected.sum());
+        results.put("delivered_per_s", round(deliveries.sum() / loadSeconds));
+        results.put("latency_p50_ms", round(latencies.getPercentileNanos(0.5) / 1e6));
+        results.put("latency_p99_ms", round(latencies.getPercentileNanos(0.99) / 1e6));
+        results.put("latency_p999_ms", round(latencies.getPercentileNanos(0.999) / 1e6));
+        results.put("latency_max_ms", round(latencies.getMaxMicros() / 1e3));
+        return results;
+    }
+
+    /**
+     * Rounds a figure to three decimals for the report.
+     *
+     * @param value The figure.
+     * @return The rounded figure.
+     */
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * Prints the results and writes them as CSV and JSON if asked.
+     *
+     * @param results The results by name.
+     * @throws IOException If a file cannot be written.
+     */
+    private void report(Map<String, Object> results) throws IOException {
+        results.forEach((name, value) -> System.out.printf("%-18s %s%n", name, value));
+        if (csv != null) {
+            String header = String.join(",", results.keySet());
+            String row = results.values().stream().map(String::valueOf).collect(Collectors.joining(","));
+            Files.writeString(Paths.get(csv), header + "\n" + row + "\n");
+        }
+        if (json != null) {
+            String fields = results.entrySet().stream()
+                    .map(entry -> "  \"" + entry.getKey() + "\": " + entry.getValue())
+                    .collect(Collectors.joining(",\n"));
+            Files.writeString(Paths.get(json), "{\n" + fields + "\n}\n");
+        }
+    }
+
+    /**
+     * The SimulatedClient class is one client of the load: its connection, and the consumer of what it receives.
+     */
+    private final class SimulatedClient implements StringConsumer {
+        private final String name; // The client name.
+        private final long connectStart; // When the client started connecting.
+        private final Object ackLock = new Object(); // Signalled when the ACK arrived.
+        private boolean acknowledged; // Whether the ACK arrived (guarded by ackLock).
+        private ConnectionProxy proxy; // The connection, set once connected.
+
+        private SimulatedClient(String name, long connectStart) {
+            this.name = name;
+            this.connectStart = connectStart;
+        }
+
+        /**
+         * Sends a message stamped with the current time.
+         *
+         * @param recipient The recipient, {@code All} for a broadcast.
+         * @return {@code true} if the message was written.
+         */
+        private boolean send(String recipient) {
+            int payload = payloads.get(ThreadLocalRandom.current().nextInt(payloads.size()));
+            StringBuilder text = new StringBuilder(payload + 40).append(name).append(STAMP).append(System.nanoTime()).append(' ');
+            while (text.length() < payload) {
+                text.append('x');
+            }
+            try {
+                proxy.sendMessage(recipient, text.toString());
+                return true;
+            } catch (ChatException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Records the connect time when the ACK arrived.
+         *
+         * @param now The time it arrived.
+         */
+        private void acknowledged(long now) {
+            synchronized (ackLock) {
+                if (!acknowledged) {
+                    acknowledged = true;
+                    connectTimes.record(now - connectStart);
+                    ackLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the ACK.
+         *
+         * @param millis The most time to wait.
+         * @return {@code true} if it arrived.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private boolean awaitAcknowledgement(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            synchronized (ackLock) {
+                while (!acknowledged && System.currentTimeMillis() < deadline) {
+                    ackLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+                return acknowledged;
+            }
+        }
+
+        /**
+         * Records the latency of a message from another client, and the ACK.
+         *
+         * @param text The received text.
+         */
+        @Override
+        public void consume(String text) {
+            long now = System.nanoTime();
+            if (ControlMessage.isControl(text)) {
+                if (ControlMessage.ACK.equals(ControlMessage.typeOf(text))) {
+                    acknowledged(now);
+                }
+                return;
+            }
+            int roster = text.indexOf(" $$$ ");
+            if (roster >= 0) {
+                text = text.substring(roster + 5); // A client without the roster feature gets the roster in front.
+            }
+            int stamp = text.indexOf(STAMP);
+            if (stamp <= 0 || text.regionMatches(0, name, 0, stamp) && stamp == name.length()) {
+                return; // Not a load message, or the echo of this client's own message.
+            }
+            int start = stamp + STAMP.length();
+            int end = text.indexOf(' ', start);
+            try {
+                latencies.record(now - Long.parseLong(text, start, end < 0 ? text.length() : end, 10));
+                deliveries.increment();
+            } catch (NumberFormatException e) {
+                /* A message of a real client that happens to look like a load message. */
+            }
+        }
+    }
+}
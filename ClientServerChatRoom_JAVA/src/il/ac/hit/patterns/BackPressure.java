@@ -0,0 +1,196 @@
+package il.ac.hit.patterns;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The BackPressure class holds back reading from one client while messages it sent wait in full queues of other
+ * clients, which is what the {@link SlowConsumerPolicy#BLOCK} policy does to a sender.
+ * <p>
+ * Messages are fanned out on threads shared by many clients, such as room shards, which must never wait for a slow
+ * reader. So instead of the thread waiting, an {@link OutboundQueue} that a message filled holds back the client that
+ * sent it, and releases it once the queue is back down to its high-water mark. Every full queue holds the client once.
+ * As a message is only fanned out some time after it was read, the client is also held back while
+ * {@link #MAX_IN_FLIGHT} of its messages wait to be routed, so it cannot read far ahead of its fan-out.
+ * <p>
+ * The client's read loop waits with {@link #await()} before it reads its next message; an event loop, which may not
+ * wait, stops reading the channel and resumes when {@link #whenReleased} tells it to.
+ */
+public class BackPressure {
+
+    /** The most messages of one client waiting to be routed before reading from the client is held back. */
+    public static final int MAX_IN_FLIGHT = 16;
+
+    private final ReentrantLock lock; // Guards every field below.
+    private final Condition released; // Signalled when the client may be read from again or is closed.
+    private int holds; // The number of full queues holding the client back.
+    private int inFlight; // The number of the client's messages waiting to be routed.
+    private Runnable listener; // Told once when the client may be read from again, may be null.
+    private boolean closed; // Whether the client is closed, so nothing holds it back any more.
+
+    /**
+     * Constructs a BackPressure object that holds nothing back.
+     */
+    public BackPressure() {
+        this.lock = new ReentrantLock();
+        this.released = lock.newCondition();
+    }
+
+    /**
+     * Holds the client back, for a queue that its message filled. Ignored once the client is closed.
+     */
+    public void hold() {
+        lock.lock();
+        try {
+            if (!closed) {
+                holds++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases one hold, for a queue that has room again.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            if (holds == 0) {
+                return;
+            }
+            holds--;
+        } finally {
+            lock.unlock();
+        }
+        wakeIfFree();
+    }
+
+    /**
+     * Counts a message of the client that was handed on to be routed. Ignored once the client is closed.
+     */
+    public void sending() {
+        lock.lock();
+        try {
+            if (!closed) {
+                inFlight++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a message of the client as routed, or as dropped on the way.
+     */
+    public void routed() {
+        lock.lock();
+        try {
+            if (inFlight == 0) {
+                return;
+            }
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+        wakeIfFree();
+    }
+
+    /**
+     * Wakes the read loop and tells the listener, if the client may be read from again.
+     */
+    private void wakeIfFree() {
+        Runnable current;
+        lock.lock();
+        try {
+            if (isHeldLocked()) {
+                return;
+            }
+            released.signalAll();
+            current = listener;
+            listener = null;
+        } finally {
+            lock.unlock();
+        }
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    /**
+     * Checks whether the client is held back. Called with the lock held.
+     *
+     * @return {@code true} if the client should not be read from.
+     */
+    private boolean isHeldLocked() {
+        return !closed && (holds > 0 || inFlight >= MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Checks whether the client is held back, by a full queue or by its messages waiting to be routed.
+     *
+     * @return {@code true} if the client should not be read from.
+     */
+    public boolean isHeld() {
+        lock.lock();
+        try {
+            return isHeldLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the client is no longer held back, or is closed. Called by the client's read loop before it reads
+     * the next message.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isHeldLocked()) {
+                released.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks to be told when the client is no longer held back, for a reader that may not wait. Only the last listener
+     * asked for is told, once.
+     *
+     * @param listener Told on the thread that lets the client go; must not block.
+     * @return {@code true} if the client is held back and the listener will be told, {@code false} if the client may
+     * be read from now, in which case the listener is not kept.
+     */
+    public boolean whenReleased(Runnable listener) {
+        lock.lock();
+        try {
+            if (!isHeldLocked()) {
+                return false;
+            }
+            this.listener = listener;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops holding the client back for good, because its connection is closed, and wakes a waiting read loop.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            holds = 0;
+            inFlight = 0;
+            listener = null;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
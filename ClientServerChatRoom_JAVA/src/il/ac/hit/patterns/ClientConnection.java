@@ -0,0 +1,121 @@
+package il.ac.hit.patterns;
+
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import java.util.Set;
+
+/**
+ * The ClientConnection interface represents a single connected client as seen by the server.
+ * <p>
+ * It is implemented by every server engine connection (the blocking {@link ConnectionProxy} and the
+ * non-blocking selector based connection), so the MessageBoard can route messages without knowing which engine
+ * accepted the client.
+ * <p>
+ * Text passed to {@link #consume(String)} and frames passed to {@link #consumeFrame(il.ac.hit.patterns.protocol.Frame)}
+ * are written in whichever wire format the client negotiated: a frame sent to a text client is reduced to its text,
+ * and a text sent to a frames client is wrapped in a frame.
+ */
+public interface ClientConnection extends StringConsumer, StringProducer, FrameConsumer {
+
+    /**
+     * Retrieves the name the client sent during the handshake.
+     *
+     * @return The client name.
+     */
+    public String getClientName();
+
+    /**
+     * Retrieves the protocol features negotiated in the handshake (see {@link il.ac.hit.patterns.protocol.Handshake}).
+     *
+     * @return The negotiated features, empty for a legacy client.
+     */
+    public Set<String> getFeatures();
+
+    /**
+     * Sends the ACK control message for the negotiated features, then switches the outgoing wire format to the one
+     * they select. Called once, right after the handshake and before anything else is sent.
+     *
+     * @throws ChatException If the acknowledgement cannot be sent.
+     */
+    public void acknowledgeFeatures() throws ChatException;
+
+    /**
+     * Sends a message that may be shared with other recipients. The message is encoded in the wire format of this
+     * client once for all recipients in that format, and the encoded bytes are queued by reference.
+     *
+     * @param message The message.
+     * @throws ChatException If the message cannot be sent to this client.
+     */
+    public void send(OutboundMessage message) throws ChatException;
+
+    /**
+     * Sends a message that another client sent, like {@link #send(OutboundMessage)} does. Under the
+     * {@link SlowConsumerPolicy#BLOCK} policy a message that fills this client's queue holds the sender back, see
+     * {@link BackPressure}.
+     *
+     * @param message The message.
+     * @param sender  The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If the message cannot be sent to this client.
+     */
+    public default void send(OutboundMessage message, BackPressure sender) throws ChatException {
+        send(message);
+    }
+
+    /**
+     * Closes the connection and releases its resources.
+     */
+    public void closeConnection();
+
+    /**
+     * Marks the client as gone, so that its departure is announced once however many threads notice it: its own
+     * leave message, the end of its read loop, a failed delivery or an idle timeout.
+     *
+     * @return {@code true} the first time, {@code false} once the client was marked. A connection that keeps no mark
+     * always returns {@code true}.
+     */
+    public default boolean markDeparted() {
+        return true;
+    }
+
+    /**
+     * Checks whether the client is connected to another node of the cluster. A board keeps such a client in its roster
+     * but never sends to it: the node the client is connected to delivers its messages.
+     *
+     * @return {@code true} for a client of another node.
+     */
+    public default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * Retrieves the traffic counters of the connection.
+     *
+     * @return The counters, {@code null} if the connection is not counted.
+     */
+    public default ConnectionTraffic getTraffic() {
+        return null;
+    }
+
+    /**
+     * Retrieves the number of messages waiting to be written to the client.
+     *
+     * @return The outbound queue depth, 0 if messages are written directly.
+     */
+    public default int getQueueDepth() {
+        return 0;
+    }
+
+    /**
+     * Retrieves what holds back reading from the client while its messages wait in full queues of other clients, or
+     * wait to be routed.
+     *
+     * @return The back-pressure of the client, {@code null} unless the server holds senders back (the
+     * {@link SlowConsumerPolicy#BLOCK} policy).
+     */
+    public default BackPressure getBackPressure() {
+        return null;
+    }
+
+}
@@ -1,23 +1,75 @@
 package il.ac.hit.patterns;
 
 import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ChunkAssembler;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameCodec;
+import il.ac.hit.patterns.protocol.FrameCompression;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+import il.ac.hit.patterns.protocol.ReassemblyBudget;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * This class represents a connection proxy that acts as a thread and implements the StringConsumer and StringProducer interfaces.
+ * This class represents a connection proxy whose read loop runs on its own thread and implements the StringConsumer and StringProducer interfaces.
+ * <p>
+ * The read loop is started with {@link #start()} on a platform thread, or with {@link #start(ThreadFactory)} on a thread
+ * of the caller's choice (for example a virtual thread).
+ * <p>
+ * When an {@link OutboundQueue} is attached (as the server does), {@link #consume(String)} only enqueues the text and a
+ * writer thread of the connection drains the queue to the socket, so a slow client never stalls the sender.
+ * <p>
+ * Both directions start in the writeUTF text format. When the {@link Handshake#FEATURE_FRAMES} feature is negotiated,
+ * the server side switches its output to binary frames after its ACK and the client side switches its output after it
+ * sent {@link ControlMessage#FRAMES}; each side switches its input when it reads that message.
+ * <p>
+ * In the frame format a large message travels as chunks (see {@link il.ac.hit.patterns.protocol.ChunkCodec}). They
+ * are written one frame at a time, so other messages get in between, and put back together by the read loop up to
+ * the size cap of the connection.
+ * <p>
+ * When {@link Handshake#FEATURE_DEFLATE} is negotiated as well, message frames are sent compressed (see
+ * {@link FrameCompression}); compressed frames are restored by the read loop.
  */
-public class ConnectionProxy extends Thread implements StringConsumer, StringProducer {
+public class ConnectionProxy implements Runnable, ClientConnection {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(); // Used to number the read loop threads.
 
     private StringConsumer consumer = null;
     private Socket socket;
-    private final InputStream is;
+    private final CountingInputStream is;
     private final OutputStream os;
     private final DataInputStream dis;
     private final DataOutputStream dos;
     private String clientName;
+    private final boolean serverSide; // Whether this is the server side of the connection.
+    private volatile Set<String> features; // The negotiated protocol features (the requested ones until the client got the ACK).
+    private OutboundQueue<byte[]> outboundQueue; // Encoded messages waiting for the writer thread, null to write directly.
+    private volatile boolean writerStarted; // Whether the writer thread drains the outbound queue.
+    private volatile boolean framedInput; // Whether the peer sends binary frames, only changed by the read loop.
+    private volatile boolean framedOutput; // Whether this side sends binary frames (guarded by writeLock when writing directly).
+    private volatile boolean deflateOutput; // Whether this side compresses the frames it sends, switched with framedOutput.
+    private final ChunkAssembler chunkAssembler = new ChunkAssembler(ChunkAssembler.DEFAULT_MAX_MESSAGE_BYTES); // Reassembles large messages, read loop only.
+    private volatile Runnable closeListener; // Told when the read loop ended, may be null.
+    private volatile ConnectionTraffic traffic; // Counts the traffic of the connection, null if it is not counted.
+    private final AtomicBoolean departed = new AtomicBoolean(); // Whether the client was marked as gone.
+    private final BackPressure backPressure = new BackPressure(); // Holds back the read loop while the client's messages wait to be routed or in full queues.
+    /* Locks rather than monitors: a virtual thread blocked in a socket write while holding a monitor pins its carrier
+       thread, so a few slow peers could take every carrier of the virtual engine. */
+    private final ReentrantLock writeLock = new ReentrantLock(); // Keeps the bytes of each message together on the stream.
+    private final ReentrantLock closeLock = new ReentrantLock(); // Makes closing the connection happen once at a time.
 
     /**
      * Constructs a ConnectionProxy object for an incoming connection from a client.
@@ -27,13 +79,17 @@ public class ConnectionProxy extends Thread implements StringConsumer, StringPro
     public ConnectionProxy(Socket socket) throws IOException {
         try {
             this.socket = socket;
-            is = socket.getInputStream();
+            this.serverSide = true;
+            is = new CountingInputStream(socket.getInputStream());
             os = socket.getOutputStream();
             dis = new DataInputStream(is);
             dos = new DataOutputStream(os);
-            setClientName(dis.readUTF()); // Here we read the client name arrived from the new connection of the client
+            // Here we read the client name (and the features it supports) arrived from the new connection of the client
+            Handshake handshake = Handshake.parse(dis.readUTF());
+            setClientName(handshake.getClientName());
+            this.features = handshake.getAcceptedFeatures();
         } catch (IOException e) {
-            throw new IOException("Cant create server Socket.");
+            throw new IOException("Cant create server Socket.", e);
         }
 
     }
@@ -46,20 +102,190 @@ public class ConnectionProxy extends Thread implements StringConsumer, StringPro
      * @throws ChatException If an error occurs while establishing the connection.
      */
     public ConnectionProxy(String computer, int port, String clientName) throws ChatException {
+        this(computer, port, clientName, Set.of());
+    }
+
+    /**
+     * Constructs a ConnectionProxy object for an outgoing connection to a server, asking for protocol features.
+     * The server answers with the features it accepted, see {@link Handshake}.
+     * @param computer The server's IP address or hostname.
+     * @param port The server's port number.
+     * @param clientName The name of the client.
+     * @param features The protocol features the client supports.
+     * @throws ChatException If an error occurs while establishing the connection.
+     */
+    public ConnectionProxy(String computer, int port, String clientName, Set<String> features) throws ChatException {
         try {
             this.socket = new Socket();
+            this.serverSide = false;
             this.clientName = clientName;
+            this.features = Set.copyOf(features);
             socket.connect(new InetSocketAddress(computer, port), 500); // If connection wasn't established in 1 second then throw exception.
-            is = socket.getInputStream();
+            is = new CountingInputStream(socket.getInputStream());
             os = socket.getOutputStream();
             dis = new DataInputStream(is);
             dos = new DataOutputStream(os);
-            dos.writeUTF(getClientName()); // Sending the name of the client to the server.
+            dos.writeUTF(Handshake.encode(getClientName(), getFeatures())); // Sending the name of the client to the server.
         } catch (IOException e) {
             throw new ChatException(e.getMessage(), e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Checks whether this side sends binary frames.
+     *
+     * @return {@code true} once the frames feature was negotiated and the output switched.
+     */
+    public boolean isFramed() {
+        return framedOutput;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acknowledgeFeatures() throws ChatException {
+        writeLock.lock();
+        try {
+            consume(Handshake.acknowledge(getFeatures()));
+            framedOutput = getFeatures().contains(Handshake.FEATURE_FRAMES);
+            deflateOutput = getFeatures().contains(Handshake.FEATURE_DEFLATE);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts the read loop of this connection on a new platform thread.
+     */
+    public void start() {
+        start(task -> new Thread(task, "ConnectionProxy-" + THREAD_COUNTER.incrementAndGet()));
+    }
+
+    /**
+     * Starts the read loop of this connection on a thread created by the given factory, and the writer thread if it
+     * is not running yet.
+     *
+     * @param threadFactory The factory that creates the thread running {@link #run()}.
+     */
+    public void start(ThreadFactory threadFactory) {
+        startWriter(threadFactory);
+        threadFactory.newThread(this).start();
+    }
+
+    /**
+     * Starts the writer thread that drains the outbound queue, if a queue is attached and the writer is not running
+     * yet. From then on messages are only queued, never written by the thread that sends them, so the server starts
+     * it before the client is registered and any room can send to it.
+     *
+     * @param threadFactory The factory that creates the writer thread.
+     */
+    public void startWriter(ThreadFactory threadFactory) {
+        if (getOutboundQueue() != null && !writerStarted) {
+            threadFactory.newThread(this::drainOutboundQueue).start();
+            writerStarted = true;
+        }
+    }
+
+    /**
+     * Attaches a bounded outbound queue to this connection. Must be called before {@link #startWriter(ThreadFactory)}
+     * or {@link #start(ThreadFactory)}, which then start a writer thread that drains it.
+     *
+     * @param outboundQueue The queue of messages waiting to be written to the client.
+     */
+    public void setOutboundQueue(OutboundQueue<byte[]> outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    /**
+     * Retrieves the outbound queue of this connection.
+     *
+     * @return The outbound queue, or {@code null} if messages are written directly.
+     */
+    public OutboundQueue<byte[]> getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Sets the largest message the peer may send as chunks, and the most bytes held for unfinished ones.
+     *
+     * @param maxMessageBytes The size cap.
+     */
+    public void setMaxMessageBytes(int maxMessageBytes) {
+        chunkAssembler.setMaxMessageBytes(maxMessageBytes);
+    }
+
+    /**
+     * Sets the budget for unfinished messages that this connection shares with the other connections of the server.
+     * Called before {@link #start(ThreadFactory)}.
+     *
+     * @param budget The shared budget.
+     */
+    public void setReassemblyBudget(ReassemblyBudget budget) {
+        chunkAssembler.setBudget(budget);
+    }
+
+    /**
+     * Sets the counters the traffic of this connection is recorded in. Called before {@link #start(ThreadFactory)}.
+     *
+     * @param traffic The counters, or {@code null} to count nothing.
+     */
+    public void setTraffic(ConnectionTraffic traffic) {
+        this.traffic = traffic;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConnectionTraffic getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean markDeparted() {
+        return departed.compareAndSet(false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueueDepth() {
+        OutboundQueue<byte[]> queue = getOutboundQueue();
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BackPressure getBackPressure() {
+        OutboundQueue<byte[]> queue = getOutboundQueue();
+        return queue != null && queue.getPolicy() == SlowConsumerPolicy.BLOCK ? backPressure : null;
+    }
+
+    /**
+     * Sets who is told when the read loop ends, because the peer closed the connection, the connection was closed on
+     * this side, or the peer broke the protocol.
+     *
+     * @param closeListener The listener, or {@code null} for none. Runs on the read loop thread.
+     */
+    public void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
     /**
      * Sets the client name.
      * @param clientName The client name to be set.
@@ -80,23 +306,235 @@ public class ConnectionProxy extends Thread implements StringConsumer, StringPro
     /**
      * {@inheritDoc}
      *
-     * This method consumes the given text by writing it to the output stream of the ConnectionProxy object.
-     * It also prints debug information about the process.
+     * This method consumes the given text by writing it to the output stream of the ConnectionProxy object, or, once
+     * the writer thread runs, by adding it to the outbound queue.
      *
      * @param text The text to be consumed.
-     * @throws ChatException If an error occurs while writing the text to the data output stream.
+     * @throws ChatException If an error occurs while writing the text to the data output stream, or the slow-consumer
+     *                       policy of the outbound queue disconnected the client.
      */
     @Override
     public void consume(String text) throws ChatException {
+        send(OutboundMessage.of(text));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sends the frame like {@link #consume(String)} sends text. A connection that does not use frames sends only the
+     * text of the frame.
+     *
+     * @param frame The frame to send.
+     * @throws ChatException If an error occurs while writing the frame, or the slow-consumer policy of the outbound
+     *                       queue disconnected the client.
+     */
+    @Override
+    public void consumeFrame(Frame frame) throws ChatException {
+        send(OutboundMessage.of(frame));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The encoded bytes are written directly, or queued by reference once the writer thread runs. The chunks of a
+     * large message are written one at a time, or queued as a stream.
+     *
+     * @param message The message to send.
+     * @throws ChatException If an error occurs while writing the message, or the slow-consumer policy of the outbound
+     *                       queue disconnected the client.
+     */
+    @Override
+    public void send(OutboundMessage message) throws ChatException {
+        send(message, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sends the message like {@link #send(OutboundMessage)} does; only a queued message can hold the sender back.
+     *
+     * @param message The message to send.
+     * @param sender  The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If an error occurs while writing the message, or the slow-consumer policy of the outbound
+     *                       queue disconnected the client.
+     */
+    @Override
+    public void send(OutboundMessage message, BackPressure sender) throws ChatException {
+        if (message.isChunked(framedOutput)) {
+            sendChunks(message, sender);
+            return;
+        }
+        if (!writerStarted) {
+            writeLock.lock();
+            try {
+                write(encode(message));
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        enqueue(encode(message), sender);
+    }
+
+    /**
+     * Sends a chat message from this client, as a MESSAGE frame or in the {@code ##$$$###} text format.
+     *
+     * @param recipient The name of the recipient, or {@code All}.
+     * @param message   The message text.
+     * @throws ChatException If an error occurs while writing the message.
+     */
+    public void sendMessage(String recipient, String message) throws ChatException {
+        sendMessage("", recipient, message);
+    }
+
+    /**
+     * Sends a chat message from this client in a room. The text format has no rooms, so there the message always goes
+     * to the default room.
+     *
+     * @param room      The room, empty for the default room; needs the {@link Handshake#FEATURE_ROOMS} feature.
+     * @param recipient The name of the recipient, or {@code All} for every member of the room.
+     * @param message   The message text.
+     * @throws ChatException If an error occurs while writing the message.
+     */
+    public void sendMessage(String room, String recipient, String message) throws ChatException {
+        writeLock.lock();
         try {
-            System.out.println("inside consume invoked on a ConnectionProxy object  thread=" + Thread.currentThread().getName());
-            dos.writeUTF(text);
-            System.out.println("'" + text + "' was sent through dos.writeUTF  thread=" + Thread.currentThread().getName());
+            if (isFramed()) {
+                consumeFrame(Frame.message(getClientName(), "All".equals(recipient) ? "" : recipient, room, message));
+            } else {
+                consume(getClientName() + " ##$$$### " + recipient + " #$$$# " + message);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the chunks of a large message. Without a writer thread every chunk takes the stream lock on its own, so
+     * messages sent by other threads are written between them.
+     *
+     * @param message The large message.
+     * @param sender  The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If a chunk cannot be encoded or written.
+     */
+    private void sendChunks(OutboundMessage message, BackPressure sender) throws ChatException {
+        List<byte[]> chunks;
+        try {
+            chunks = message.encodedChunks();
+        } catch (IOException e) {
+            throw new ChatException("Problem encoding a message for " + getClientName(), e);
+        }
+        if (writerStarted) {
+            boolean queued;
+            try {
+                queued = getOutboundQueue().offerStream(chunks, getOutboundQueue().mayBlockHere(), sender);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ChatException("Interrupted while queueing a message for " + getClientName(), e);
+            }
+            if (!queued) {
+                closeConnection();
+                throw new ChatException("Client " + getClientName() + " is too slow and was disconnected");
+            }
+            return;
+        }
+        for (byte[] chunk : chunks) {
+            write(chunk);
+        }
+    }
+
+    /**
+     * Retrieves the encoding of a message in the current output format.
+     *
+     * @param message The message.
+     * @return The encoded bytes, shared with the other recipients of the message.
+     * @throws ChatException If the message is too long for the format.
+     */
+    private byte[] encode(OutboundMessage message) throws ChatException {
+        try {
+            return message.encoded(framedOutput, deflateOutput);
+        } catch (IOException e) {
+            throw new ChatException("Problem encoding a message for " + getClientName(), e);
+        }
+    }
+
+    /**
+     * Adds encoded bytes to the outbound queue, applying its slow-consumer policy.
+     *
+     * @param bytes  The encoded message.
+     * @param sender The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If the policy disconnected the client or the connection is closed.
+     */
+    private void enqueue(byte[] bytes, BackPressure sender) throws ChatException {
+        boolean queued;
+        try {
+            queued = getOutboundQueue().offer(bytes, getOutboundQueue().mayBlockHere(), sender);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChatException("Interrupted while queueing text for " + getClientName(), e);
+        }
+        if (!queued) {
+            boolean alreadyClosed = getOutboundQueue().isClosed();
+            closeConnection();
+            throw new ChatException(alreadyClosed ? "Connection of " + getClientName() + " is closed"
+                    : "Client " + getClientName() + " is too slow and was disconnected");
+        }
+    }
+
+    /**
+     * Writes encoded bytes to the data output stream, and counts the write if the traffic is counted.
+     *
+     * @param bytes The encoded message to write.
+     * @throws ChatException If an error occurs while writing to the data output stream.
+     */
+    private void write(byte[] bytes) throws ChatException {
+        try {
+            writeLock.lock();
+            try {
+                long start = System.nanoTime();
+                /* Straight to the socket stream: DataOutputStream.write holds its monitor while the socket blocks,
+                   which would pin a virtual writer's carrier for as long as its client does not read. */
+                os.write(bytes);
+                ConnectionTraffic current = traffic;
+                if (current != null) {
+                    current.sent(1, bytes.length, System.nanoTime() - start);
+                }
+            } finally {
+                writeLock.unlock();
+            }
         } catch (IOException e) {
             throw new ChatException("Problem writing text through the data output stream", e);
         }
     }
 
+    /**
+     * Runs on the writer thread and writes every queued message to the client until the queue is closed, then closes
+     * the connection if nothing closed it yet (see {@link #closeWhenWritten()}).
+     */
+    private void drainOutboundQueue() {
+        try {
+            byte[] bytes;
+            while ((bytes = getOutboundQueue().take()) != null) {
+                write(bytes);
+            }
+        } catch (InterruptedException | ChatException e) {
+            /* The connection failed or the writer was stopped: closed below. */
+        }
+        closeConnection();
+    }
+
+    /**
+     * Refuses any further message and closes the connection once the writer thread wrote the messages already queued,
+     * such as the one telling a client why it was turned away. Without a writer the connection is closed at once.
+     */
+    public void closeWhenWritten() {
+        if (writerStarted) {
+            getOutboundQueue().close();
+        } else {
+            closeConnection();
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -125,6 +563,27 @@ public class ConnectionProxy extends Thread implements StringConsumer, StringPro
      * Closes the connection and releases resources.
      */
     public void closeConnection() {
+        closeLock.lock();
+        try {
+            closeStreams();
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the outbound queue, the streams and the socket. Called with the close lock held.
+     */
+    private void closeStreams() {
+        ConnectionTraffic current = traffic;
+        if (current != null) {
+            current.closed();
+        }
+        if (getOutboundQueue() != null) {
+            getOutboundQueue().close();
+            getOutboundQueue().clear();
+        }
+        backPressure.close(); // A read loop held back wakes up and finds the socket closed.
         if (socket != null) {
             //System.out.println("in closeConnection");
             try {
@@ -144,22 +603,157 @@ public class ConnectionProxy extends Thread implements StringConsumer, StringPro
     /**
      * {@inheritDoc}
      *
-     * Runs the thread and continuously reads incoming messages from the input stream of the ConnectionProxy object.
-     * If an exception occurs, the loop is terminated.
+     * Runs the read loop and continuously reads incoming messages from the input stream of the ConnectionProxy object.
+     * While messages the client sent wait in full queues under the BLOCK policy, the loop waits before it reads the
+     * next one. If an exception occurs, the loop is terminated.
      */
     @Override
     public void run() {
+        if (getOutboundQueue() != null) {
+            getOutboundQueue().markReaderThread(); // Only this client's own queue may make this thread wait for room.
+        }
+        long counted = is.getCount(); // The bytes read up to the end of the last counted message.
+        if (traffic != null) {
+            /* The handshake was read before the loop started, and counts as the first message. */
+            traffic.received(counted);
+        }
         while (true) {
             try {
-                consumer.consume(dis.readUTF());
+                backPressure.await();
+                if (framedInput) {
+                    deliver(FrameCodec.read(dis));
+                } else {
+                    String text = dis.readUTF();
+                    if (!switchFormat(text)) {
+                        consumer.consume(text);
+                    }
+                }
+                ConnectionTraffic current = traffic;
+                if (current != null) {
+                    current.received(is.getCount() - counted);
+                }
+                counted = is.getCount();
                 if (socket != null) {
                     if (socket.isClosed()) {
                         System.out.println("Socket closed!");
                     }
                 }
+            } catch (ProtocolException e) {
+                System.out.println("Protocol error from " + getClientName() + ": " + e.getMessage());
+                closeConnection();
+                break;
             } catch (IOException | ChatException e) {
                 break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeConnection();
+                break;
             }
         }
+        chunkAssembler.close(); // The bytes of unfinished messages go back to the budget.
+        Runnable listener = closeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Passes a received frame to the consumer, or only its text if the consumer takes text only. Chunks are passed on
+     * as one message once the last one arrived, and compressed frames are passed on restored.
+     *
+     * @param frame The received frame.
+     * @throws ChatException     If the consumer fails.
+     * @throws ProtocolException If a chunk or a compressed frame is malformed, or a chunk breaks the size cap.
+     */
+    private void deliver(Frame frame) throws ChatException, ProtocolException {
+        if (frame.getType() == FrameType.CHUNK) {
+            frame = chunkAssembler.accept(frame);
+            if (frame == null) {
+                return;
+            }
+        }
+        frame = FrameCompression.inflate(frame);
+        StringConsumer current = consumer;
+        if (current instanceof FrameConsumer) {
+            ((FrameConsumer) current).consumeFrame(frame);
+        } else {
+            current.consume(frame.getText());
+        }
+    }
+
+    /**
+     * Switches the wire format when the text is the message that announces the switch: {@link ControlMessage#FRAMES}
+     * on the server side, the ACK on the client side. The client answers an ACK that accepted frames with
+     * {@link ControlMessage#FRAMES} and sends frames from then on.
+     *
+     * @param text The text read from the peer.
+     * @return {@code true} if the text was a protocol message for the connection itself, not for the consumer.
+     * @throws ChatException If the client cannot announce its switch.
+     */
+    private boolean switchFormat(String text) throws ChatException {
+        if (!ControlMessage.isControl(text)) {
+            return false;
+        }
+        String type = ControlMessage.typeOf(text);
+        if (serverSide && ControlMessage.FRAMES.equals(type) && getFeatures().contains(Handshake.FEATURE_FRAMES)) {
+            framedInput = true;
+            return true;
+        }
+        if (!serverSide && ControlMessage.ACK.equals(type)) {
+            features = Set.copyOf(Handshake.parseAcknowledgement(text));
+            if (features.contains(Handshake.FEATURE_FRAMES)) {
+                framedInput = true;
+                writeLock.lock();
+                try {
+                    consume(ControlMessage.of(ControlMessage.FRAMES, ""));
+                    framedOutput = true;
+                    deflateOutput = features.contains(Handshake.FEATURE_DEFLATE);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An input stream that counts the bytes read through it, so the read loop can tell the size of each message.
+     * Only the read loop reads from it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count; // The bytes read so far.
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        private long getCount() {
+            return count;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package il.ac.hit.patterns;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The ConnectionTraffic class counts the traffic of one connection, and adds it to the {@link TrafficMetrics} of the
+ * server.
+ * <p>
+ * Only one thread at a time reads from a connection, and only one writes to it, so the counters of each direction
+ * are plain volatile fields; recording never allocates.
+ */
+public final class ConnectionTraffic {
+
+    private final TrafficMetrics totals; // The counters of the whole server.
+    private final AtomicBoolean closed; // Whether the close was counted.
+    private volatile boolean admitted; // Whether the connection got past its handshake.
+    private volatile long messagesIn; // Messages read, written by the reading thread only.
+    private volatile long bytesIn; // Bytes read, written by the reading thread only.
+    private volatile long messagesOut; // Messages written, written by the writing thread only.
+    private volatile long bytesOut; // Bytes written, written by the writing thread only.
+
+    /**
+     * Constructs a ConnectionTraffic object. Use {@link TrafficMetrics#open()}.
+     *
+     * @param totals The counters of the whole server.
+     */
+    ConnectionTraffic(TrafficMetrics totals) {
+        this.totals = totals;
+        this.closed = new AtomicBoolean();
+    }
+
+    /**
+     * Counts a message read from the client.
+     *
+     * @param bytes Its size on the wire.
+     */
+    public void received(long bytes) {
+        messagesIn++;
+        bytesIn += bytes;
+        totals.recordIn(1, bytes);
+    }
+
+    /**
+     * Counts messages written to the client with one write.
+     *
+     * @param messages The number of messages.
+     * @param bytes    Their size on the wire.
+     * @param nanos    How long the write took.
+     */
+    public void sent(int messages, long bytes, long nanos) {
+        messagesOut += messages;
+        bytesOut += bytes;
+        totals.recordOut(messages, bytes, nanos);
+    }
+
+    /**
+     * Marks the connection as past its handshake: the server admitted the client.
+     */
+    public void admitted() {
+        admitted = true;
+    }
+
+    /**
+     * Counts the close of the connection; a connection that was never admitted counts as a failed handshake. Only the
+     * first call counts.
+     */
+    public void closed() {
+        if (closed.compareAndSet(false, true)) {
+            totals.recordClosed(admitted);
+        }
+    }
+
+    /**
+     * Checks whether the close of the connection was counted.
+     *
+     * @return {@code true} once the connection is closed.
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Retrieves the number of messages read from the client.
+     *
+     * @return The inbound message count.
+     */
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * Retrieves the number of bytes read from the client.
+     *
+     * @return The inbound byte count.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Retrieves the number of messages written to the client.
+     *
+     * @return The outbound message count.
+     */
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    /**
+     * Retrieves the number of bytes written to the client.
+     *
+     * @return The outbound byte count.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+}
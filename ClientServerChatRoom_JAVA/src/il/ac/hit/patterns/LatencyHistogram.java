@@ -0,0 +1,265 @@
+package il.ac.hit.patterns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class counts durations in fixed buckets, so recording a time never allocates and never takes a
+ * lock.
+ * <p>
+ * Each power of two of nanoseconds is split into four buckets, so a bucket is at most a quarter as wide as the times
+ * it holds; times from about 18 minutes up all fall in the last bucket. The bucket counters are striped: every thread
+ * updates the copy picked by its identity, so threads that record at the same moment rarely touch the same counter.
+ * The copies are only added up when the histogram is read.
+ */
+public final class LatencyHistogram implements LatencyHistogramMBean {
+
+    /** The number of buckets. */
+    public static final int BUCKETS = 160;
+
+    private static final int SUB_BUCKET_BITS = 2; // Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int STRIDE = BUCKETS + 1; // The counters of one stripe: the buckets, then the sum of the times.
+    private static final int STRIPES = stripeCount(); // The number of copies of the counters, a power of two.
+
+    private final AtomicLongArray counters; // The bucket counts and time sum of every stripe, one stripe after the other.
+    private final AtomicLong max; // The longest time recorded.
+
+    /**
+     * Constructs an empty LatencyHistogram object.
+     */
+    public LatencyHistogram() {
+        this.counters = new AtomicLongArray(STRIPES * STRIDE);
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Picks the number of stripes: the power of two at or above the number of processors, at most 64.
+     *
+     * @return The stripe count.
+     */
+    private static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        return Integer.highestOneBit(processors) == processors ? processors : Integer.highestOneBit(processors) << 1;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds; negative durations count as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int hash = System.identityHashCode(Thread.currentThread());
+        int base = ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * STRIDE;
+        counters.incrementAndGet(base + bucketOf(nanos));
+        counters.addAndGet(base + BUCKETS, nanos);
+        long longest = max.get();
+        while (nanos > longest && !max.compareAndSet(longest, nanos)) {
+            longest = max.get();
+        }
+    }
+
+    /**
+     * Finds the bucket a duration falls in.
+     *
+     * @param nanos The duration in nanoseconds, not negative.
+     * @return The bucket index.
+     */
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    /**
+     * Retrieves the longest duration that falls in a bucket.
+     *
+     * @param bucket The bucket index.
+     * @return The upper bound in nanoseconds.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Adds the stripes of every bucket up.
+     *
+     * @return The count of each bucket.
+     */
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] += counters.get(stripe * STRIDE + bucket);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Retrieves a percentile of the recorded durations.
+     *
+     * @param fraction The percentile as a fraction, for example 0.99.
+     * @return The upper bound of the bucket the percentile falls in, at most the longest duration; 0 if nothing was
+     * recorded.
+     */
+    public long getPercentileNanos(double fraction) {
+        return percentileOf(snapshot(), fraction, max.get());
+    }
+
+    /**
+     * Creates a window over this histogram: the counts recorded so far, from which
+     * {@link #getPercentileNanosSince} reads the durations recorded later.
+     *
+     * @return The window, to be kept by the caller.
+     */
+    public long[] newWindow() {
+        return snapshot();
+    }
+
+    /**
+     * Retrieves a percentile of the durations recorded since a window was created or last read, and moves the window
+     * up to now. Lets a watcher react to recent durations rather than to everything since the start.
+     *
+     * @param window   The window made by {@link #newWindow()}, updated in place.
+     * @param fraction The percentile as a fraction, for example 0.99.
+     * @return The upper bound of the bucket the percentile falls in; 0 if nothing was recorded since.
+     */
+    public long getPercentileNanosSince(long[] window, double fraction) {
+        long[] counts = snapshot();
+        long[] recent = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            recent[bucket] = counts[bucket] - window[bucket];
+            window[bucket] = counts[bucket];
+        }
+        return percentileOf(recent, fraction, max.get());
+    }
+
+    /**
+     * Finds the bucket a percentile of some counts falls in.
+     *
+     * @param counts   The count of each bucket.
+     * @param fraction The percentile as a fraction.
+     * @param longest  The longest duration recorded, which bounds the answer.
+     * @return The upper bound of the bucket, at most the longest duration; 0 if the counts are all 0.
+     */
+    private static long percentileOf(long[] counts, double fraction, long longest) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), longest);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCount() {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                total += counters.get(stripe * STRIDE + bucket);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Retrieves the sum of the recorded durations.
+     *
+     * @return The sum in nanoseconds.
+     */
+    public long getTotalNanos() {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += counters.get(stripe * STRIDE + BUCKETS);
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / 1000.0 / count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP50Micros() {
+        return getPercentileNanos(0.5) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP90Micros() {
+        return getPercentileNanos(0.9) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP99Micros() {
+        return getPercentileNanos(0.99) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP999Micros() {
+        return getPercentileNanos(0.999) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * Builds a short summary of the percentiles.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.0fus p99=%.0fus max=%.0fus", getCount(), getP50Micros(), getP99Micros(),
+                getMaxMicros());
+    }
+}
@@ -0,0 +1,57 @@
+package il.ac.hit.patterns;
+
+/**
+ * The LatencyHistogramMBean interface is the JMX view of a {@link LatencyHistogram}. Times are reported in
+ * microseconds; a percentile is the upper bound of the bucket it falls in, so it is at most a quarter too high.
+ */
+public interface LatencyHistogramMBean {
+
+    /**
+     * Retrieves the number of recorded times.
+     *
+     * @return The sample count.
+     */
+    public long getCount();
+
+    /**
+     * Retrieves the mean of the recorded times.
+     *
+     * @return The mean in microseconds, 0 if nothing was recorded.
+     */
+    public double getMeanMicros();
+
+    /**
+     * Retrieves the median of the recorded times.
+     *
+     * @return The 50th percentile in microseconds.
+     */
+    public double getP50Micros();
+
+    /**
+     * Retrieves the 90th percentile of the recorded times.
+     *
+     * @return The 90th percentile in microseconds.
+     */
+    public double getP90Micros();
+
+    /**
+     * Retrieves the 99th percentile of the recorded times.
+     *
+     * @return The 99th percentile in microseconds.
+     */
+    public double getP99Micros();
+
+    /**
+     * Retrieves the 99.9th percentile of the recorded times.
+     *
+     * @return The 99.9th percentile in microseconds.
+     */
+    public double getP999Micros();
+
+    /**
+     * Retrieves the longest recorded time.
+     *
+     * @return The maximum in microseconds.
+     */
+    public double getMaxMicros();
+}
@@ -0,0 +1,129 @@
+package il.ac.hit.patterns;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * The ModifiedUtf8 class encodes and decodes strings in the exact wire format of
+ * {@link java.io.DataOutputStream#writeUTF(String)} and {@link java.io.DataInputStream#readUTF()}:
+ * an unsigned 16-bit big-endian length followed by the modified UTF-8 bytes.
+ * <p>
+ * It lets code that works on raw byte buffers (such as the non-blocking server engine) speak the same protocol as
+ * the stream based {@link ConnectionProxy}.
+ */
+public final class ModifiedUtf8 {
+
+    /** The number of bytes used by the length prefix. */
+    public static final int LENGTH_PREFIX_SIZE = 2;
+
+    /** The largest encoded string body that fits behind the 16-bit length prefix. */
+    public static final int MAX_ENCODED_LENGTH = 65535;
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Calculates the number of bytes the modified UTF-8 body of the given text takes (without the length prefix).
+     *
+     * @param text The text to measure.
+     * @return The encoded body length.
+     */
+    public static int encodedLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the given text into a new array holding the length prefix followed by the modified UTF-8 body.
+     *
+     * @param text The text to encode.
+     * @return The encoded frame, ready to be written to the wire.
+     * @throws UTFDataFormatException If the encoded body is longer than {@link #MAX_ENCODED_LENGTH} bytes.
+     */
+    public static byte[] encode(String text) throws UTFDataFormatException {
+        int length = encodedLength(text);
+        if (length > MAX_ENCODED_LENGTH) {
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        }
+        byte[] bytes = new byte[LENGTH_PREFIX_SIZE + length];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        int position = LENGTH_PREFIX_SIZE;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes a modified UTF-8 body (without the length prefix).
+     *
+     * @param bytes  The array holding the body.
+     * @param offset The index of the first body byte.
+     * @param length The number of body bytes.
+     * @return The decoded text.
+     * @throws UTFDataFormatException If the bytes are not valid modified UTF-8.
+     */
+    public static String decode(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            int c = bytes[position] & 0xFF;
+            switch (c >> 4) {
+                case 0, 1, 2, 3, 4, 5, 6, 7 -> {
+                    /* 0xxxxxxx */
+                    position++;
+                    chars[count++] = (char) c;
+                }
+                case 12, 13 -> {
+                    /* 110x xxxx   10xx xxxx */
+                    if (position + 2 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int c2 = bytes[position + 1];
+                    if ((c2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + (position - offset));
+                    }
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                    position += 2;
+                }
+                case 14 -> {
+                    /* 1110 xxxx  10xx xxxx  10xx xxxx */
+                    if (position + 3 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int c2 = bytes[position + 1];
+                    int c3 = bytes[position + 2];
+                    if (((c2 & 0xC0) != 0x80) || ((c3 & 0xC0) != 0x80)) {
+                        throw new UTFDataFormatException("malformed input around byte " + (position - offset));
+                    }
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    position += 3;
+                }
+                default -> throw new UTFDataFormatException("malformed input around byte " + (position - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
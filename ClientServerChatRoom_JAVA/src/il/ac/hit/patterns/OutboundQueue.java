@@ -0,0 +1,418 @@
+package il.ac.hit.patterns;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The OutboundQueue class is a bounded queue of messages waiting to be written to one client.
+ * <p>
+ * Producers (the threads fanning a message out) only enqueue; a writer owned by the connection drains the queue.
+ * When the client reads too slowly the configured {@link SlowConsumerPolicy} decides whether the producer waits,
+ * the oldest message is dropped, or the client is disconnected.
+ * <p>
+ * Under the BLOCK policy a producer that may not wait, such as a room shard, queues the message past the capacity
+ * instead, up to twice the capacity, and the queue holds back the client that sent it (see {@link BackPressure})
+ * until the queue is back down to the high-water mark. Only past twice the capacity is the client disconnected.
+ * <p>
+ * A large message can be queued as a stream of parts ({@link #offerStream}). A stream counts as one message, and its
+ * parts are handed out only while no ordinary message is waiting, so a large message never holds back small ones by
+ * more than the one part being written. Streams are never dropped; only ordinary messages are.
+ *
+ * @param <E> The type of the queued messages.
+ */
+public class OutboundQueue<E> {
+
+    private static final ThreadLocal<OutboundQueue<?>> READER_THREAD = new ThreadLocal<>(); // The queue of the client whose read loop runs on the thread.
+
+    private final ArrayDeque<E> items; // The queued messages, oldest first.
+    private final ArrayDeque<Iterator<E>> streams; // The parts still to be written of the queued streams, oldest first.
+    private final int capacity; // The maximum number of queued messages.
+    private final int highWaterMark; // The queue size above which the client counts as slow.
+    private final SlowConsumerPolicy policy; // What to do with a slow client.
+    private final long disconnectAfterNanos; // How long a client may stay above the high-water mark (DISCONNECT).
+    private final List<BackPressure> holding; // The senders held back until the queue is down to the high-water mark.
+    private final ReentrantLock lock; // Guards every field below and the items.
+    private final Condition notEmpty; // Signalled when a message is added or the queue is closed.
+    private final Condition notFull; // Signalled when a message is removed or the queue is closed.
+    private long overHighWaterSince; // When the queue went above the high-water mark, 0 if it is below.
+    private long droppedCount; // The number of messages dropped by the DROP_OLDEST policy.
+    private boolean closed; // Whether the queue was closed.
+
+    /**
+     * Constructs an OutboundQueue object.
+     *
+     * @param capacity              The maximum number of queued messages.
+     * @param highWaterMark         The queue size above which the client counts as slow.
+     * @param policy                What to do with a slow client.
+     * @param disconnectAfterMillis How long a client may stay above the high-water mark before the DISCONNECT
+     *                              policy disconnects it.
+     */
+    public OutboundQueue(int capacity, int highWaterMark, SlowConsumerPolicy policy, long disconnectAfterMillis) {
+        if (capacity < 1 || highWaterMark < 1 || highWaterMark > capacity) {
+            throw new IllegalArgumentException("Need 1 <= highWaterMark <= capacity");
+        }
+        this.items = new ArrayDeque<>(Math.min(capacity, 64));
+        this.streams = new ArrayDeque<>();
+        this.capacity = capacity;
+        this.highWaterMark = highWaterMark;
+        this.policy = policy;
+        this.disconnectAfterNanos = TimeUnit.MILLISECONDS.toNanos(disconnectAfterMillis);
+        this.holding = new ArrayList<>(0);
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+    }
+
+    /**
+     * Marks the calling thread as the read loop thread of the client this queue belongs to. Only such a thread may wait
+     * for room, and only in this queue: waiting then holds up the one client that is too slow to read its own answers,
+     * and nobody else.
+     */
+    public void markReaderThread() {
+        READER_THREAD.set(this);
+    }
+
+    /**
+     * Tells whether the calling thread may wait for room in this queue, that is whether it is the read loop thread of
+     * the client the queue belongs to. Shard threads, event loops, timers and every other thread shared by many
+     * clients may not, as one slow reader would stall all of them; neither may the read loop of another client, which
+     * could be holding a room's roster lock while it announces a departure.
+     *
+     * @return {@code true} on the read loop thread of this queue's client.
+     */
+    public boolean mayBlockHere() {
+        return READER_THREAD.get() == this;
+    }
+
+    /**
+     * Enqueues a message, applying the slow-consumer policy if the client is behind.
+     *
+     * @param item     The message to enqueue.
+     * @param mayBlock Whether the calling thread is allowed to wait for room. Threads that serve other clients
+     *                 (such as event loops and room shards) must pass {@code false}; the BLOCK policy then queues past
+     *                 the capacity instead. {@link #mayBlockHere()} tells which is which.
+     * @return {@code true} if the message was queued (or an older one dropped for it), {@code false} if the
+     * queue is closed or the client should be disconnected.
+     * @throws InterruptedException If the thread is interrupted while waiting for room.
+     */
+    public boolean offer(E item, boolean mayBlock) throws InterruptedException {
+        return offer(item, mayBlock, null);
+    }
+
+    /**
+     * Enqueues a message that a client sent, applying the slow-consumer policy like {@link #offer(Object, boolean)}
+     * does. Under the BLOCK policy a message that fills the queue holds the sender back.
+     *
+     * @param item     The message to enqueue.
+     * @param mayBlock Whether the calling thread is allowed to wait for room.
+     * @param sender   The back-pressure of the client that sent the message, {@code null} if no client did.
+     * @return {@code true} if the message was queued (or an older one dropped for it), {@code false} if the
+     * queue is closed or the client should be disconnected.
+     * @throws InterruptedException If the thread is interrupted while waiting for room.
+     */
+    public boolean offer(E item, boolean mayBlock, BackPressure sender) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!makeRoom(mayBlock)) {
+                return false;
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            holdBack(sender);
+            return !isStalled();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enqueues a large message as a stream of parts, applying the slow-consumer policy like {@link #offer} does.
+     *
+     * @param parts    The parts of the message, in order. The list is shared, not copied.
+     * @param mayBlock Whether the calling thread is allowed to wait for room.
+     * @return {@code true} if the stream was queued, {@code false} if the queue is closed or the client should be
+     * disconnected.
+     * @throws InterruptedException If the thread is interrupted while waiting for room.
+     */
+    public boolean offerStream(List<E> parts, boolean mayBlock) throws InterruptedException {
+        return offerStream(parts, mayBlock, null);
+    }
+
+    /**
+     * Enqueues a large message that a client sent as a stream of parts, applying the slow-consumer policy like
+     * {@link #offer(Object, boolean, BackPressure)} does.
+     *
+     * @param parts    The parts of the message, in order. The list is shared, not copied.
+     * @param mayBlock Whether the calling thread is allowed to wait for room.
+     * @param sender   The back-pressure of the client that sent the message, {@code null} if no client did.
+     * @return {@code true} if the stream was queued, {@code false} if the queue is closed or the client should be
+     * disconnected.
+     * @throws InterruptedException If the thread is interrupted while waiting for room.
+     */
+    public boolean offerStream(List<E> parts, boolean mayBlock, BackPressure sender) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!makeRoom(mayBlock)) {
+                return false;
+            }
+            if (!parts.isEmpty()) {
+                streams.addLast(parts.iterator());
+                notEmpty.signal();
+            }
+            holdBack(sender);
+            return !isStalled();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room for one more message according to the slow-consumer policy. Called with the lock held.
+     *
+     * @param mayBlock Whether the calling thread is allowed to wait for room.
+     * @return {@code true} if there is room, {@code false} if the queue is closed or the client should be disconnected.
+     * @throws InterruptedException If the thread is interrupted while waiting for room.
+     */
+    private boolean makeRoom(boolean mayBlock) throws InterruptedException {
+        if (closed) {
+            return false;
+        }
+        if (depth() < capacity) {
+            return true;
+        }
+        if (policy == SlowConsumerPolicy.DROP_OLDEST && !items.isEmpty()) {
+            items.pollFirst();
+            droppedCount++;
+            return true;
+        }
+        if (policy == SlowConsumerPolicy.BLOCK && mayBlock) {
+            while (depth() >= capacity && !closed) {
+                notFull.await();
+            }
+            return !closed;
+        }
+        /* Senders are held back once the queue is full, so what comes past the capacity was already on its way. */
+        return policy == SlowConsumerPolicy.BLOCK && depth() < 2 * capacity;
+    }
+
+    /**
+     * Holds back the sender of a message that left the queue full, under the BLOCK policy. A sender is held by a queue
+     * at most once. Called with the lock held.
+     *
+     * @param sender The back-pressure of the sender, may be {@code null}.
+     */
+    private void holdBack(BackPressure sender) {
+        if (sender != null && policy == SlowConsumerPolicy.BLOCK && depth() >= capacity && !holding.contains(sender)) {
+            holding.add(sender);
+            sender.hold();
+        }
+    }
+
+    /**
+     * Releases every sender the queue holds back. Called with the lock held, once the queue is down to the high-water
+     * mark or is closed or cleared.
+     */
+    private void releaseSenders() {
+        for (BackPressure sender : holding) {
+            sender.release();
+        }
+        holding.clear();
+    }
+
+    /**
+     * Counts the queued messages, a stream counting as one. Called with the lock held.
+     *
+     * @return The queue depth.
+     */
+    private int depth() {
+        return items.size() + streams.size();
+    }
+
+    /**
+     * Tracks how long the queue has been above the high-water mark. Called with the lock held after every change.
+     *
+     * @return {@code true} if the DISCONNECT policy should disconnect the client now.
+     */
+    private boolean isStalled() {
+        if (depth() <= highWaterMark) {
+            overHighWaterSince = 0;
+            return false;
+        }
+        long now = System.nanoTime();
+        if (overHighWaterSince == 0) {
+            overHighWaterSince = now;
+        }
+        return policy == SlowConsumerPolicy.DISCONNECT && now - overHighWaterSince >= disconnectAfterNanos;
+    }
+
+    /**
+     * Removes the oldest message, waiting until one is available.
+     *
+     * @return The oldest message, or {@code null} once the queue is closed and empty.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public E take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (depth() == 0 && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message without waiting.
+     *
+     * @return The oldest message, or {@code null} if the queue is empty.
+     */
+    public E poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes as many of the oldest messages as fit into the array, starting at the given index, without waiting.
+     * At most one stream part is removed, and only after every ordinary message.
+     *
+     * @param into   The array that receives the messages.
+     * @param offset The index of the first free slot in the array.
+     * @return The number of messages removed.
+     */
+    public int drainTo(E[] into, int offset) {
+        lock.lock();
+        try {
+            int count = 0;
+            while (offset + count < into.length && !items.isEmpty()) {
+                into[offset + count++] = removeFirst();
+            }
+            if (offset + count < into.length && !streams.isEmpty()) {
+                into[offset + count++] = removeFirst();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the head of the queue and wakes up a blocked producer. Called with the lock held.
+     * <p>
+     * Ordinary messages come first; while none is waiting, the next part of the oldest stream is the head.
+     *
+     * @return The removed message or stream part, or {@code null} if the queue is empty.
+     */
+    private E removeFirst() {
+        E item = items.pollFirst();
+        if (item == null && !streams.isEmpty()) {
+            Iterator<E> stream = streams.peekFirst();
+            item = stream.next();
+            if (stream.hasNext()) {
+                return item;
+            }
+            streams.pollFirst();
+        }
+        if (item != null) {
+            isStalled();
+            notFull.signal();
+            if (!holding.isEmpty() && depth() <= highWaterMark) {
+                releaseSenders();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Closes the queue: new messages are refused and every waiting thread is woken up. Messages already queued can
+     * still be taken.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            releaseSenders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every queued message.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+            streams.clear();
+            overHighWaterSince = 0;
+            notFull.signalAll();
+            releaseSenders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of queued messages.
+     *
+     * @return The queue depth.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return depth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of messages dropped by the DROP_OLDEST policy.
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the queue was closed.
+     *
+     * @return {@code true} if the queue refuses new messages.
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the slow-consumer policy of the queue.
+     *
+     * @return The slow-consumer policy.
+     */
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
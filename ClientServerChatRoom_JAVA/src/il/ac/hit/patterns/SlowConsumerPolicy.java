@@ -0,0 +1,23 @@
+package il.ac.hit.patterns;
+
+/**
+ * The SlowConsumerPolicy enum defines what an {@link OutboundQueue} does when a client reads slower than messages
+ * are produced for it.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Back-pressure on the sender: the client whose message filled the queue is not read from again until the queue is
+     * back down to the high-water mark (see {@link BackPressure}). The threads that fan messages out never wait; the
+     * queue takes their messages past the capacity, up to twice the capacity, and only then disconnects the client.
+     * A client's own read loop thread waits for room in its own queue instead.
+     */
+    BLOCK,
+
+    /** The oldest queued message is discarded to make room for the new one. */
+    DROP_OLDEST,
+
+    /** The client is disconnected once it stayed above the high-water mark for too long, or the queue is full. */
+    DISCONNECT
+
+}
@@ -0,0 +1,142 @@
+package il.ac.hit.patterns;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TrafficMetrics class counts the traffic of every connection of a server: connections accepted and closed,
+ * failed handshakes, messages and bytes in both directions, and how long writes to the clients take.
+ * <p>
+ * Each connection records through its own {@link ConnectionTraffic}, which adds to these totals. The counters are
+ * {@link LongAdder}s, so connection threads update them without locking and without allocating, and they are read
+ * as a consistent-enough snapshot for reporting.
+ */
+public final class TrafficMetrics {
+
+    private final LongAdder accepted = new LongAdder(); // Connections accepted.
+    private final LongAdder closed = new LongAdder(); // Connections closed, failed handshakes included.
+    private final LongAdder handshakeFailures = new LongAdder(); // Connections closed before they were admitted.
+    private final LongAdder messagesIn = new LongAdder(); // Messages read from clients.
+    private final LongAdder messagesOut = new LongAdder(); // Messages written to clients.
+    private final LongAdder bytesIn = new LongAdder(); // Bytes read from clients, length prefixes included.
+    private final LongAdder bytesOut = new LongAdder(); // Bytes written to clients, length prefixes included.
+    private final LatencyHistogram writeTimes = new LatencyHistogram(); // How long each write to a client took.
+
+    /**
+     * Counts an accepted connection and creates the counters it records through.
+     *
+     * @return The counters of the connection.
+     */
+    public ConnectionTraffic open() {
+        accepted.increment();
+        return new ConnectionTraffic(this);
+    }
+
+    /**
+     * Counts messages read from a client.
+     *
+     * @param messages The number of messages.
+     * @param bytes    Their size on the wire.
+     */
+    void recordIn(int messages, long bytes) {
+        messagesIn.add(messages);
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts messages written to a client.
+     *
+     * @param messages The number of messages.
+     * @param bytes    Their size on the wire.
+     * @param nanos    How long the write took.
+     */
+    void recordOut(int messages, long bytes, long nanos) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+        writeTimes.record(nanos);
+    }
+
+    /**
+     * Counts a closed connection.
+     *
+     * @param admitted Whether the connection got past its handshake.
+     */
+    void recordClosed(boolean admitted) {
+        closed.increment();
+        if (!admitted) {
+            handshakeFailures.increment();
+        }
+    }
+
+    /**
+     * Retrieves the number of connections accepted.
+     *
+     * @return The accepted connection count.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Retrieves the number of connections closed, including the ones whose handshake failed.
+     *
+     * @return The closed connection count.
+     */
+    public long getClosed() {
+        return closed.sum();
+    }
+
+    /**
+     * Retrieves the number of connections closed before they were admitted: the handshake was malformed or cut off,
+     * or the client name was taken.
+     *
+     * @return The failed handshake count.
+     */
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    /**
+     * Retrieves the number of messages read from clients.
+     *
+     * @return The inbound message count.
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Retrieves the number of messages written to clients. Every chunk of a large message counts.
+     *
+     * @return The outbound message count.
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes read from clients.
+     *
+     * @return The inbound byte count.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes written to clients.
+     *
+     * @return The outbound byte count.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Retrieves the histogram of how long writes to a client took.
+     *
+     * @return The write time histogram.
+     */
+    public LatencyHistogram getWriteTimes() {
+        return writeTimes;
+    }
+}
@@ -0,0 +1,390 @@
+package il.ac.hit.patterns.client;
+
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.RosterUpdate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ChatClient class is a chat client without a user interface, for bots and automated clients.
+ * <p>
+ * It speaks the same protocol as {@link SimpleTCPIPClient} over a {@link ConnectionProxy}: it enters the lobby with
+ * the usual entered message, keeps the rosters of the lobby and the joined rooms, and reports messages, roster
+ * changes, receipts and the state of the connection to a {@link ChatClientListener}. It never touches AWT or Swing
+ * and keeps no static state, so many clients run side by side in one JVM.
+ * <p>
+ * A client holds little more than its connection: one read loop thread, which can be a virtual thread (see
+ * {@link #connect(ThreadFactory)}), no writer thread (messages are written by the calling thread), and by default
+ * neither compression, which runs zlib on every long message, nor history, which sends a backlog on every join.
+ * For example:
+ * <p>
+ * {@code ChatClient bot = new ChatClient("127.0.0.1", 1300, "bot1", listener); bot.connect(); bot.send("hello");}
+ */
+public class ChatClient {
+
+    /** The protocol features a client asks for unless told otherwise. */
+    public static final Set<String> DEFAULT_FEATURES = Set.of(Handshake.FEATURE_ROSTER, Handshake.FEATURE_FRAMES,
+            Handshake.FEATURE_ROOMS, Handshake.FEATURE_RECEIPTS, Handshake.FEATURE_HEARTBEAT);
+
+    private final String host; // The server host.
+    private final int port; // The server port.
+    private final String name; // The client name.
+    private final Set<String> features; // The protocol features asked for.
+    private final ChatClientListener listener; // Told what happens to the client.
+    private final RosterTracker lobbyRoster; // The roster of the lobby, when the server sends roster updates.
+    private final Map<String, RosterTracker> roomRosters; // The rosters of the joined rooms, by room name.
+    private volatile ConnectionProxy proxy; // The connection, null before connect().
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED; // The state of the connection.
+    private volatile boolean rosterUpdates; // Whether the server acknowledged the roster feature.
+    private volatile List<String> legacyRoster = List.of(); // The roster in front of the last text message.
+
+    /**
+     * Constructs a ChatClient object that asks for the {@link #DEFAULT_FEATURES}.
+     *
+     * @param host     The server host.
+     * @param port     The server port.
+     * @param name     The client name, without spaces.
+     * @param listener Told what happens to the client.
+     */
+    public ChatClient(String host, int port, String name, ChatClientListener listener) {
+        this(host, port, name, DEFAULT_FEATURES, listener);
+    }
+
+    /**
+     * Constructs a ChatClient object.
+     *
+     * @param host     The server host.
+     * @param port     The server port.
+     * @param name     The client name, without spaces.
+     * @param features The protocol features to ask for, empty for the legacy text protocol.
+     * @param listener Told what happens to the client.
+     */
+    public ChatClient(String host, int port, String name, Set<String> features, ChatClientListener listener) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.features = Set.copyOf(features);
+        this.listener = listener;
+        this.lobbyRoster = new RosterTracker();
+        this.roomRosters = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Connects to the server and enters the lobby, running the read loop on a new platform thread.
+     *
+     * @throws ChatException If the connection cannot be made.
+     */
+    public void connect() throws ChatException {
+        connect(task -> new Thread(task, "chat-client-" + getName()));
+    }
+
+    /**
+     * Connects to the server and enters the lobby. The state is {@link ConnectionState#CONNECTING} until the server
+     * echoes the entered message ({@link ConnectionState#CONNECTED}) or turns the name down
+     * ({@link ConnectionState#REJECTED}).
+     *
+     * @param threadFactory The factory of the thread that runs the read loop, and so the listener.
+     * @throws ChatException If the connection cannot be made, unless the name was turned down.
+     */
+    public void connect(ThreadFactory threadFactory) throws ChatException {
+        setState(ConnectionState.CONNECTING);
+        ConnectionProxy connection;
+        try {
+            connection = new ConnectionProxy(host, port, getName(), features);
+        } catch (ChatException e) {
+            setState(ConnectionState.DISCONNECTED);
+            throw e;
+        }
+        connection.addConsumer(new Receiver());
+        connection.setCloseListener(() -> {
+            if (getState() != ConnectionState.REJECTED) {
+                setState(ConnectionState.DISCONNECTED);
+            }
+        });
+        this.proxy = connection;
+        connection.start(threadFactory);
+        try {
+            connection.consume(getName() + " -> has entered the chat room!");
+        } catch (ChatException e) {
+            /* A server may turn the name down right after the handshake and the connection is closed by then. */
+            if (getState() != ConnectionState.REJECTED) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Leaves the chat room and closes the connection.
+     */
+    public void disconnect() {
+        ConnectionProxy connection = proxy;
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.consume(getName() + " -> has left the chat room!");
+        } catch (ChatException e) {
+            /* The connection is closed anyway. */
+        }
+        connection.closeConnection();
+        setState(ConnectionState.DISCONNECTED);
+    }
+
+    /**
+     * Sends a message to everyone in the lobby.
+     *
+     * @param text The message, sent as {@code "name -> text"}.
+     * @throws ChatException If the client is not connected or the message cannot be written.
+     */
+    public void send(String text) throws ChatException {
+        connection().sendMessage("All", getName() + " -> " + text);
+    }
+
+    /**
+     * Sends a private message.
+     *
+     * @param recipient The name of the recipient.
+     * @param text      The message, sent as {@code "name -> text"}.
+     * @throws ChatException If the client is not connected or the message cannot be written.
+     */
+    public void sendTo(String recipient, String text) throws ChatException {
+        connection().sendMessage(recipient, getName() + " -> " + text);
+    }
+
+    /**
+     * Sends a message to everyone in a joined room; needs the rooms feature.
+     *
+     * @param room The room.
+     * @param text The message, sent as {@code "name -> text"}.
+     * @throws ChatException If the client is not connected or the message cannot be written.
+     */
+    public void sendToRoom(String room, String text) throws ChatException {
+        connection().sendMessage(room, "All", getName() + " -> " + text);
+    }
+
+    /**
+     * Joins a room, opening it if it is not open; needs the rooms feature.
+     *
+     * @param room The room.
+     * @throws ChatException If the client is not connected or the request cannot be written.
+     */
+    public void join(String room) throws ChatException {
+        connection().consume(ControlMessage.of(ControlMessage.JOIN, room));
+    }
+
+    /**
+     * Leaves a room; needs the rooms feature.
+     *
+     * @param room The room.
+     * @throws ChatException If the client is not connected or the request cannot be written.
+     */
+    public void part(String room) throws ChatException {
+        roomRosters.remove(room);
+        connection().consume(ControlMessage.of(ControlMessage.PART, room));
+    }
+
+    /**
+     * Retrieves the connection, failing if there is none.
+     *
+     * @return The connection.
+     * @throws ChatException If the client never connected.
+     */
+    private ConnectionProxy connection() throws ChatException {
+        ConnectionProxy connection = proxy;
+        if (connection == null) {
+            throw new ChatException("Client " + getName() + " is not connected");
+        }
+        return connection;
+    }
+
+    /**
+     * Retrieves the client name.
+     *
+     * @return The client name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves the state of the connection.
+     *
+     * @return The state.
+     */
+    public ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * Retrieves the roster of the lobby.
+     *
+     * @return The connected client names, in join order.
+     */
+    public List<String> getRoster() {
+        return rosterUpdates ? lobbyRoster.getNames() : legacyRoster;
+    }
+
+    /**
+     * Retrieves the roster of a joined room.
+     *
+     * @param room The room, empty for the lobby.
+     * @return The names of the room's members, empty if the room was not joined.
+     */
+    public List<String> getRoster(String room) {
+        if (room.isEmpty()) {
+            return getRoster();
+        }
+        RosterTracker tracker = roomRosters.get(room);
+        return tracker == null ? List.of() : tracker.getNames();
+    }
+
+    /**
+     * Changes the state and tells the listener, if the state is new.
+     *
+     * @param newState The new state.
+     */
+    private void setState(ConnectionState newState) {
+        synchronized (this) {
+            if (state == newState) {
+                return;
+            }
+            state = newState;
+        }
+        listener.stateChanged(newState);
+    }
+
+    /**
+     * Handles a chat message of the lobby or a room: the entered message that admits the client, the rejection of
+     * its name, or a message for the listener.
+     *
+     * @param room      The room, empty for the lobby.
+     * @param sender    The sender, empty if unknown.
+     * @param recipient The recipient of a private message, empty otherwise.
+     * @param text      The message.
+     */
+    private void message(String room, String sender, String recipient, String text) {
+        if (room.isEmpty() && getState() == ConnectionState.CONNECTING) {
+            if (text.equals("Client name " + getName() + " is already in the system, try a different user name.")) {
+                setState(ConnectionState.REJECTED);
+                proxy.closeConnection();
+                return;
+            }
+            if (text.equals(getName() + " -> has entered the chat room!")) {
+                setState(ConnectionState.CONNECTED);
+            }
+        }
+        listener.messageReceived(room, sender, recipient, text);
+    }
+
+    /**
+     * Handles a control message: the feature acknowledgement, roster updates, receipts, requests to slow down and
+     * heartbeats. A roster update that reveals a missing version is answered with a request for a new snapshot of that
+     * room, and a PING with a PONG.
+     *
+     * @param room The room the message is about, empty for the lobby.
+     * @param text The control message.
+     */
+    private void control(String room, String text) {
+        String type = ControlMessage.typeOf(text);
+        if (ControlMessage.ACK.equals(type)) {
+            rosterUpdates = Handshake.parseAcknowledgement(text).contains(Handshake.FEATURE_ROSTER);
+        } else if (ControlMessage.ROSTER.equals(type)) {
+            RosterTracker tracker = room.isEmpty() ? lobbyRoster : roomRosters.computeIfAbsent(room, key -> new RosterTracker());
+            if (!tracker.apply(RosterUpdate.parse(text))) {
+                try {
+                    connection().consume(ControlMessage.of(ControlMessage.RESYNC, room));
+                } catch (ChatException e) {
+                    /* The connection is closing, the roster no longer matters. */
+                }
+            } else if (tracker.isSynced()) {
+                listener.rosterChanged(room, tracker.getNames());
+            }
+        } else if (ControlMessage.STATUS.equals(type)) {
+            String[] parts = ControlMessage.bodyOf(text).split(" ", 3);
+            if (parts.length == 3) {
+                try {
+                    listener.receiptReceived(Long.parseLong(parts[0]), parts[1], parts[2]);
+                } catch (NumberFormatException e) {
+                    /* A malformed receipt is ignored. */
+                }
+            }
+        } else if (ControlMessage.SLOW_DOWN.equals(type)) {
+            String[] parts = ControlMessage.bodyOf(text).split(" ", 3);
+            if (parts.length == 3) {
+                try {
+                    listener.slowDownRequested(room, Long.parseLong(parts[0]), parts[1], parts[2]);
+                } catch (NumberFormatException e) {
+                    /* A malformed request is ignored. */
+                }
+            }
+        } else if (ControlMessage.PING.equals(type)) {
+            try {
+                connection().consume(ControlMessage.of(ControlMessage.PONG, ""));
+            } catch (ChatException e) {
+                /* The connection is closing, there is no one to answer. */
+            }
+        }
+    }
+
+    /**
+     * The Receiver class consumes what the server sends on the connection and hands it to the client.
+     */
+    private final class Receiver implements StringConsumer, FrameConsumer {
+
+        /**
+         * Consumes a text message: a control message, or a chat message of the lobby, with the roster in front of it
+         * unless the server sends roster updates.
+         *
+         * @param text The received text.
+         */
+        @Override
+        public void consume(String text) {
+            if (ControlMessage.isControl(text)) {
+                control("", text);
+                return;
+            }
+            if (rosterUpdates) {
+                message("", "", "", text);
+                return;
+            }
+            int separator = text.indexOf("$$$");
+            if (separator < 0) {
+                message("", "", "", text.trim());
+                return;
+            }
+            String names = text.substring(0, separator).trim();
+            List<String> roster = names.isEmpty() ? List.of() : Arrays.asList(names.split(" "));
+            if (!roster.equals(legacyRoster)) {
+                legacyRoster = roster;
+                listener.rosterChanged("", roster);
+            }
+            message("", "", "", text.substring(separator + 3).trim());
+        }
+
+        /**
+         * Consumes a frame: chat messages and control messages of the lobby and the rooms. History frames are not
+         * asked for by default and are ignored.
+         *
+         * @param frame The received frame.
+         */
+        @Override
+        public void consumeFrame(Frame frame) {
+            if (frame.getType() == FrameType.CONTROL) {
+                control(frame.getRoom(), frame.getText());
+            } else if (frame.getType() == FrameType.MESSAGE) {
+                message(frame.getRoom(), frame.getSender(), frame.getRecipient(), frame.getText());
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package il.ac.hit.patterns.client;
+
+import java.util.List;
+
+/**
+ * The ChatClientListener interface is told what happens to a {@link ChatClient}. Every method does nothing by
+ * default, so a bot implements only what it needs.
+ * <p>
+ * The callbacks run on the read loop thread of the client's connection, one at a time and in the order the server
+ * sent them. A callback that blocks holds up everything the client receives after it.
+ */
+public interface ChatClientListener {
+
+    /**
+     * Called for every chat message the client receives, its own included.
+     *
+     * @param room      The room of the message, empty for the lobby.
+     * @param sender    The sender, empty if the server sends text, which does not carry it apart from the message.
+     * @param recipient The recipient of a private message, empty for a message to everyone in the room or if the
+     *                  server sends text.
+     * @param text      The message, in the {@code "sender -> text"} form clients send.
+     */
+    public default void messageReceived(String room, String sender, String recipient, String text) {
+    }
+
+    /**
+     * Called when the roster of the lobby or of a joined room changed.
+     *
+     * @param room  The room, empty for the lobby.
+     * @param names The connected client names, in join order.
+     */
+    public default void rosterChanged(String room, List<String> names) {
+    }
+
+    /**
+     * Called when the connection changed state.
+     *
+     * @param state The new state.
+     */
+    public default void stateChanged(ConnectionState state) {
+    }
+
+    /**
+     * Called when the server reports what became of a private message the client sent.
+     *
+     * @param sequence  The sequence number of the message.
+     * @param status    {@code delivered}, {@code queued} or {@code undelivered}, see
+     *                  {@link il.ac.hit.patterns.protocol.ControlMessage#STATUS}.
+     * @param recipient The recipient of the message.
+     */
+    public default void receiptReceived(long sequence, String status, String recipient) {
+    }
+
+    /**
+     * Called when the server dropped a message the client sent and asks it to slow down. Sent once per run of
+     * dropped messages, see {@link il.ac.hit.patterns.protocol.ControlMessage#SLOW_DOWN}.
+     *
+     * @param room             The room the message was for, empty for the lobby.
+     * @param retryAfterMillis How long to wait before sending again.
+     * @param kind             {@code broadcast}, {@code private} or {@code control}.
+     * @param reason           {@code rate} if the client sends too fast, {@code overload} if the server is busy.
+     */
+    public default void slowDownRequested(String room, long retryAfterMillis, String kind, String reason) {
+    }
+}
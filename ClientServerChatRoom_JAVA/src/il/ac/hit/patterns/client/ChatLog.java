@@ -0,0 +1,317 @@
+package il.ac.hit.patterns.client;
+
+import javax.swing.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ChatLog class holds the lines of the chat pane of the {@link SimpleClientGUI}, as the model of its list view.
+ * <p>
+ * Only the newest {@link #WINDOW_LINES} lines are kept in memory. Older lines spill to a temporary file on disk: the
+ * lines themselves in one file, length-prefixed UTF-8, and the position of every line in another, so a line is found
+ * with two reads and nothing grows in memory with the length of the session. Earlier messages shown at the top, such
+ * as older history, go straight to a second pair of files. The list view asks only for the rows it paints, so lines
+ * are read back from disk lazily as the user scrolls up; the last {@link #CACHE_LINES} lines read back from each
+ * file are kept, so scrolling through them again does not read the disk again.
+ * <p>
+ * If a file cannot be written or read, the lines it holds are shown as {@link #UNAVAILABLE} and the chat carries on.
+ * The files are deleted when the log is closed or the client exits. A ChatLog is only used on the EDT.
+ */
+public class ChatLog extends AbstractListModel<String> {
+
+    /** The number of newest lines kept in memory. */
+    public static final int WINDOW_LINES = 2000;
+
+    /** The number of lines read back from disk that each file keeps in memory. */
+    public static final int CACHE_LINES = 256;
+
+    /** Shown in place of a line that could not be kept on disk. */
+    public static final String UNAVAILABLE = "(message no longer available)";
+
+    private static final long serialVersionUID = 1L; // The list models of Swing are serializable; this one is never serialized.
+
+    private final String[] window; // The newest lines, a ring starting at 'first'.
+    private int first; // The index of the oldest line of the window.
+    private int count; // The number of lines in the window.
+    private final SpillFile spilled; // The lines pushed out of the window, oldest first.
+    private final SpillFile prepended; // The lines added at the top, the one nearest the rest of the log first.
+
+    /**
+     * Constructs an empty ChatLog object. No file is created until a line spills.
+     */
+    public ChatLog() {
+        this.window = new String[WINDOW_LINES];
+        this.first = 0;
+        this.count = 0;
+        this.spilled = new SpillFile();
+        this.prepended = new SpillFile();
+    }
+
+    /**
+     * Retrieves the number of lines in the log, in memory and on disk.
+     *
+     * @return The line count.
+     */
+    @Override
+    public int getSize() {
+        return prepended.getSize() + spilled.getSize() + count;
+    }
+
+    /**
+     * Retrieves a line of the log, reading it back from disk if it spilled.
+     *
+     * @param index The row of the line, 0 for the top one.
+     * @return The line.
+     */
+    @Override
+    public String getElementAt(int index) {
+        int top = prepended.getSize();
+        if (index < top) {
+            return prepended.read(top - 1 - index);
+        }
+        index -= top;
+        if (index < spilled.getSize()) {
+            return spilled.read(index);
+        }
+        index -= spilled.getSize();
+        return index < count ? window[(first + index) % window.length] : "";
+    }
+
+    /**
+     * Adds lines at the bottom of the log, spilling the oldest lines of the window to disk to make room for them. The
+     * list view is told about all of them at once.
+     *
+     * @param lines The lines, oldest first.
+     */
+    public void append(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        int start = getSize();
+        List<String> out = new ArrayList<>();
+        for (String line : lines) {
+            if (count == window.length) {
+                out.add(window[first]);
+                window[first] = null;
+                first = (first + 1) % window.length;
+                count--;
+            }
+            window[(first + count) % window.length] = line;
+            count++;
+        }
+        /* Spilling moves lines from memory to disk without moving any row, so only the new rows are announced. */
+        spilled.write(out);
+        fireIntervalAdded(this, start, getSize() - 1);
+    }
+
+    /**
+     * Adds lines at the top of the log, such as older history. They go to disk straight away.
+     *
+     * @param lines The lines, oldest first.
+     */
+    public void prepend(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        List<String> nearestFirst = new ArrayList<>(lines);
+        Collections.reverse(nearestFirst);
+        prepended.write(nearestFirst);
+        fireIntervalAdded(this, 0, lines.size() - 1);
+    }
+
+    /**
+     * Removes every line of the log, emptying the files but keeping them for the next lines.
+     */
+    public void clear() {
+        int size = getSize();
+        Arrays.fill(window, null);
+        first = 0;
+        count = 0;
+        spilled.clear();
+        prepended.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Removes every line of the log and deletes its files.
+     */
+    public void close() {
+        clear();
+        spilled.close();
+        prepended.close();
+    }
+
+    /**
+     * The SpillFile class is a list of lines kept on disk, in a data file and an index file. Lines can only be added
+     * at the end. The files are created with the first line written.
+     */
+    private static final class SpillFile {
+
+        private File dataFile; // The lines, each an int length followed by its UTF-8 bytes; null until the first write.
+        private File indexFile; // The position of every line in the data file, a long each.
+        private RandomAccessFile data; // The open data file.
+        private RandomAccessFile index; // The open index file.
+        private long end; // The length of the data file.
+        private int size; // The number of lines written, including the ones lost to a failure.
+        private boolean failed; // Whether a file failed; no line is written or read after this.
+        private final Map<Integer, String> cache; // The lines read back or written last, by position, in access order.
+
+        /**
+         * Constructs an empty SpillFile object.
+         */
+        private SpillFile() {
+            this.cache = new LinkedHashMap<>(CACHE_LINES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                    return size() > CACHE_LINES;
+                }
+            };
+        }
+
+        /**
+         * Retrieves the number of lines written.
+         *
+         * @return The line count.
+         */
+        private int getSize() {
+            return size;
+        }
+
+        /**
+         * Adds lines at the end, with one write to each file.
+         *
+         * @param lines The lines.
+         */
+        private void write(List<String> lines) {
+            if (lines.isEmpty()) {
+                return;
+            }
+            if (!failed) {
+                try {
+                    open();
+                    ByteArrayOutputStream text = new ByteArrayOutputStream();
+                    DataOutputStream textOut = new DataOutputStream(text);
+                    ByteArrayOutputStream positions = new ByteArrayOutputStream(lines.size() * Long.BYTES);
+                    DataOutputStream positionsOut = new DataOutputStream(positions);
+                    for (String line : lines) {
+                        positionsOut.writeLong(end + text.size());
+                        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                        textOut.writeInt(bytes.length);
+                        textOut.write(bytes);
+                    }
+                    data.seek(end);
+                    data.write(text.toByteArray());
+                    index.seek((long) size * Long.BYTES);
+                    index.write(positions.toByteArray());
+                    end += text.size();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            for (String line : lines) {
+                cache.put(size++, line);
+            }
+        }
+
+        /**
+         * Retrieves a line, from the cache or from disk.
+         *
+         * @param position The position of the line, 0 for the first one written.
+         * @return The line, or {@link #UNAVAILABLE} if it could not be kept.
+         */
+        private String read(int position) {
+            String line = cache.get(position);
+            if (line != null) {
+                return line;
+            }
+            if (failed || data == null) {
+                return UNAVAILABLE;
+            }
+            try {
+                index.seek((long) position * Long.BYTES);
+                data.seek(index.readLong());
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                line = new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                fail(e);
+                return UNAVAILABLE;
+            }
+            cache.put(position, line);
+            return line;
+        }
+
+        /**
+         * Removes every line, keeping the files.
+         */
+        private void clear() {
+            size = 0;
+            end = 0;
+            cache.clear();
+            if (data != null && !failed) {
+                try {
+                    data.setLength(0);
+                    index.setLength(0);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Closes and deletes the files.
+         */
+        private void close() {
+            if (data != null) {
+                try {
+                    data.close();
+                    index.close();
+                } catch (IOException e) {
+                    /* Closing anyway, the files are deleted below. */
+                }
+                dataFile.delete();
+                indexFile.delete();
+                data = null;
+            }
+        }
+
+        /**
+         * Creates the files, if they were not created yet. They are deleted when the client exits.
+         *
+         * @throws IOException If the files cannot be created.
+         */
+        private void open() throws IOException {
+            if (data != null) {
+                return;
+            }
+            dataFile = File.createTempFile("chat-log-", ".dat");
+            dataFile.deleteOnExit();
+            indexFile = File.createTempFile("chat-log-", ".idx");
+            indexFile.deleteOnExit();
+            data = new RandomAccessFile(dataFile, "rw");
+            index = new RandomAccessFile(indexFile, "rw");
+        }
+
+        /**
+         * Stops using the files after a failure; the lines still cached are shown, the rest as {@link #UNAVAILABLE}.
+         *
+         * @param e The failure.
+         */
+        private void fail(IOException e) {
+            failed = true;
+            System.out.println("Problem with the chat log file, older messages are no longer kept: " + e.getMessage());
+        }
+    }
+}
@@ -27,6 +27,9 @@ public class ConnectedStateSimpleClientGUI extends AbstractState {
         // Enable the disconnect button
         gui.setBtDisconnectEnabled(true, null);
 
+        // Enable the room selector and the room buttons
+        gui.setRoomControlsEnabled(true, null);
+
         // Disable the client name field and set its color to gray
         gui.setTfClientNameEnabled(false, Color.GRAY);
 
@@ -0,0 +1,15 @@
+package il.ac.hit.patterns.client;
+
+/**
+ * The states of the connection of a {@link ChatClient}, reported to its {@link ChatClientListener}.
+ */
+public enum ConnectionState {
+    /** The client is connecting and waits for its own entered message. */
+    CONNECTING,
+    /** The server admitted the client to the lobby. */
+    CONNECTED,
+    /** The server turned the client down because its name is taken; the connection was closed. */
+    REJECTED,
+    /** The connection was closed, by either side. */
+    DISCONNECTED
+}
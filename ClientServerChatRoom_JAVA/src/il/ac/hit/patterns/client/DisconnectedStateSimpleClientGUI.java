@@ -27,6 +27,9 @@ public class DisconnectedStateSimpleClientGUI extends AbstractState {
         // Disable the disconnect button and set its color to gray
         gui.setBtDisconnectEnabled(false, Color.GRAY);
 
+        // Disable the room selector and the room buttons and set their color to gray
+        gui.setRoomControlsEnabled(false, Color.GRAY);
+
         // Enable the client name field
         gui.setTfClientNameEnabled(true, null);
 
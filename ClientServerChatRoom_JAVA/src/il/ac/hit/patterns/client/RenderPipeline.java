@@ -0,0 +1,142 @@
+package il.ac.hit.patterns.client;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The RenderPipeline class carries what the connection's reader thread has for the {@link SimpleClientGUI} over to the
+ * Event Dispatch Thread, and shows it in batches.
+ * <p>
+ * The reader thread only adds to a queue and never touches a Swing component. A {@link Timer} on the EDT drains the
+ * queue at most {@link #MAX_DRAINS_PER_SECOND} times a second, and only while there is something to drain. Each drain
+ * appends the lines that arrived since the last one to the chat area with a single append, and applies the
+ * newest roster of every room that changed with a single refresh of the user list; a roster replaced before it was
+ * shown is never shown. Other updates, such as showing history or switching the connection state, are queued as tasks
+ * and run in order with the lines around them.
+ */
+public class RenderPipeline {
+
+    /** The most times a second the queue is drained. */
+    public static final int MAX_DRAINS_PER_SECOND = 60;
+
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / MAX_DRAINS_PER_SECOND; // The shortest time between drains.
+
+    private final SimpleClientGUI gui; // The GUI the updates are shown in.
+    private final Queue<Object> pending; // Lines to append (String) and other updates (Runnable), in arrival order.
+    private final Map<String, List<String>> rosters; // The newest roster of every room not shown yet, by room name.
+    private final AtomicBoolean scheduled; // Whether a drain is scheduled and has not started yet.
+    private final Timer timer; // Runs the drains on the EDT.
+    private long lastDrain; // When the last drain started, in System.nanoTime() units, EDT only.
+
+    /**
+     * Constructs a RenderPipeline object.
+     *
+     * @param gui The GUI the updates are shown in.
+     */
+    public RenderPipeline(SimpleClientGUI gui) {
+        this.gui = gui;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.rosters = new ConcurrentHashMap<>();
+        this.scheduled = new AtomicBoolean();
+        this.timer = new Timer(0, e -> drain());
+        this.timer.setRepeats(false);
+        this.lastDrain = System.nanoTime() - DRAIN_INTERVAL_NANOS;
+    }
+
+    /**
+     * Adds a line to the end of the chat area. Safe to call from any thread.
+     *
+     * @param line The line, without the line break.
+     */
+    public void append(String line) {
+        pending.add(line);
+        schedule();
+    }
+
+    /**
+     * Replaces the roster of a room. Only the newest roster of each room is shown. Safe to call from any thread.
+     *
+     * @param room  The room name, empty for the lobby.
+     * @param names The members of the room, in join order.
+     */
+    public void updateRoster(String room, List<String> names) {
+        rosters.put(room, List.copyOf(names));
+        schedule();
+    }
+
+    /**
+     * Runs an update on the EDT, after the lines and tasks queued before it. Safe to call from any thread.
+     *
+     * @param task The update.
+     */
+    public void execute(Runnable task) {
+        pending.add(task);
+        schedule();
+    }
+
+    /**
+     * Schedules a drain unless one is scheduled already. The drain starts when the last one is at least one drain
+     * interval old.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                long wait = lastDrain + DRAIN_INTERVAL_NANOS - System.nanoTime();
+                timer.setInitialDelay((int) Math.max(0, TimeUnit.NANOSECONDS.toMillis(wait)));
+                timer.restart();
+            });
+        }
+    }
+
+    /**
+     * Shows everything queued: the lines with one append per run of lines, the tasks in between, and then the newest
+     * rosters with one refresh of the user list. Runs on the EDT.
+     */
+    private void drain() {
+        /* Cleared first, so whatever arrives while draining schedules the next drain. */
+        scheduled.set(false);
+        lastDrain = System.nanoTime();
+        List<String> lines = new ArrayList<>();
+        Object item;
+        while ((item = pending.poll()) != null) {
+            if (item instanceof String) {
+                lines.add((String) item);
+            } else {
+                flush(lines);
+                ((Runnable) item).run();
+            }
+        }
+        flush(lines);
+
+        if (!rosters.isEmpty()) {
+            Map<String, List<String>> changed = new LinkedHashMap<>();
+            for (String room : new ArrayList<>(rosters.keySet())) {
+                List<String> names = rosters.remove(room);
+                if (names != null) {
+                    changed.put(room, names);
+                }
+            }
+            gui.applyRosters(changed);
+        }
+    }
+
+    /**
+     * Appends the collected lines to the chat area, if there are any, and starts a new collection.
+     *
+     * @param lines The collected lines.
+     */
+    private void flush(List<String> lines) {
+        if (!lines.isEmpty()) {
+            gui.appendChatLines(new ArrayList<>(lines));
+            lines.clear();
+        }
+    }
+}
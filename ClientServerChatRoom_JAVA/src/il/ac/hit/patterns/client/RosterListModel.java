@@ -0,0 +1,347 @@
+package il.ac.hit.patterns.client;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The RosterListModel class is the model of the connected client names JList of the {@link SimpleClientGUI}: the
+ * {@link #ALL} row on top, then the members of the shown room that match the type-ahead filter.
+ * <p>
+ * The model is kept up to date by difference: a new roster only adds the names that joined and removes the ones that
+ * left, each with one list event for its own row, so a roster update of a large room repaints a row or two instead of
+ * rebuilding the whole list. Every name's row is kept in a map, so adding and removing a name are O(1): a removed
+ * name's row is taken by the last row, and the rows of the others do not move. The rows are therefore in join order
+ * only until someone leaves. When most of the names change at once, as when another room is shown, the rows are
+ * replaced with a single event instead.
+ * <p>
+ * A filter hides the members whose name does not contain it, ignoring case. The full roster is kept apart from the
+ * rows shown, so changing the filter rebuilds the rows from it in one pass, and roster updates while a filter is set
+ * only touch the rows of matching names. A RosterListModel is only used on the EDT.
+ */
+public class RosterListModel extends AbstractListModel<String> {
+
+    /** The top row, selected to send a message to everyone. */
+    public static final String ALL = "All";
+
+    private static final long serialVersionUID = 1L; // The list models of Swing are serializable; this one is never serialized.
+
+    private final Rows members; // Every member of the shown room.
+    private final Rows rows; // The members shown, the ones matching the filter.
+    private String filter; // The filter in lower case, empty to show every member.
+
+    /**
+     * Constructs an empty RosterListModel object, showing the {@link #ALL} row only.
+     */
+    public RosterListModel() {
+        this.members = new Rows();
+        this.rows = new Rows();
+        this.filter = "";
+    }
+
+    /**
+     * Retrieves the number of rows, the {@link #ALL} row included.
+     *
+     * @return The row count.
+     */
+    @Override
+    public int getSize() {
+        return rows.size() + 1;
+    }
+
+    /**
+     * Retrieves the name shown in a row.
+     *
+     * @param index The row, 0 for the {@link #ALL} row.
+     * @return The name.
+     */
+    @Override
+    public String getElementAt(int index) {
+        return index == 0 ? ALL : rows.get(index - 1);
+    }
+
+    /**
+     * Retrieves the row a name is shown in.
+     *
+     * @param name The name.
+     * @return The row, 0 for {@link #ALL}, or -1 if the name is not shown.
+     */
+    public int indexOf(String name) {
+        if (ALL.equals(name)) {
+            return 0;
+        }
+        int index = rows.indexOf(name);
+        return index == -1 ? -1 : index + 1;
+    }
+
+    /**
+     * Replaces the members with a new roster, adding the names that joined and removing the ones that left.
+     *
+     * @param names The members, in join order.
+     */
+    public void setMembers(List<String> names) {
+        Set<String> current = new LinkedHashSet<>(names);
+        List<String> left = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            if (!current.contains(members.get(i))) {
+                left.add(members.get(i));
+            }
+        }
+        List<String> joined = new ArrayList<>();
+        for (String name : current) {
+            if (members.indexOf(name) == -1) {
+                joined.add(name);
+            }
+        }
+        /* One event per row is cheap for a few changes; past half of the rows, a single event for all of them is. */
+        if (left.size() + joined.size() > Math.max(16, members.size() / 2)) {
+            int before = getSize();
+            members.clear();
+            for (String name : current) {
+                members.add(name);
+            }
+            rebuildRows(before);
+            return;
+        }
+        for (String name : left) {
+            remove(name);
+        }
+        for (String name : joined) {
+            add(name);
+        }
+    }
+
+    /**
+     * Adds a member at the end, if it is not a member already.
+     *
+     * @param name The name.
+     */
+    public void add(String name) {
+        if (members.indexOf(name) != -1) {
+            return;
+        }
+        members.add(name);
+        if (matches(name)) {
+            rows.add(name);
+            fireIntervalAdded(this, rows.size(), rows.size());
+        }
+    }
+
+    /**
+     * Removes a member, if it is one. The last row takes its row.
+     *
+     * @param name The name.
+     */
+    public void remove(String name) {
+        if (members.indexOf(name) == -1) {
+            return;
+        }
+        members.remove(name);
+        hide(name);
+    }
+
+    /**
+     * Renames a member in place, keeping its row.
+     *
+     * @param oldName The current name.
+     * @param newName The new name.
+     */
+    public void rename(String oldName, String newName) {
+        if (members.indexOf(oldName) == -1 || members.indexOf(newName) != -1) {
+            return;
+        }
+        members.set(oldName, newName);
+        int index = rows.indexOf(oldName);
+        if (index != -1 && matches(newName)) {
+            rows.set(oldName, newName);
+            fireContentsChanged(this, index + 1, index + 1);
+        } else if (index != -1) {
+            hide(oldName);
+        } else if (matches(newName)) {
+            rows.add(newName);
+            fireIntervalAdded(this, rows.size(), rows.size());
+        }
+    }
+
+    /**
+     * Removes every member, leaving the {@link #ALL} row alone.
+     */
+    public void clear() {
+        int before = getSize();
+        members.clear();
+        rebuildRows(before);
+    }
+
+    /**
+     * Shows only the members whose name contains a text, ignoring case.
+     *
+     * @param text The text, empty to show every member.
+     */
+    public void setFilter(String text) {
+        String lower = text.trim().toLowerCase(Locale.ROOT);
+        if (lower.equals(filter)) {
+            return;
+        }
+        filter = lower;
+        rebuildRows(getSize());
+    }
+
+    /**
+     * Retrieves the filter.
+     *
+     * @return The filter in lower case, empty when every member is shown.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Tells whether a name passes the filter.
+     *
+     * @param name The name.
+     * @return Whether the name is shown.
+     */
+    private boolean matches(String name) {
+        return filter.isEmpty() || name.toLowerCase(Locale.ROOT).contains(filter);
+    }
+
+    /**
+     * Takes a name off the rows, if it is shown. The last row takes its row.
+     *
+     * @param name The name.
+     */
+    private void hide(String name) {
+        int index = rows.indexOf(name);
+        if (index == -1) {
+            return;
+        }
+        int last = rows.size() - 1;
+        rows.remove(name);
+        fireIntervalRemoved(this, last + 1, last + 1);
+        if (index != last) {
+            fireContentsChanged(this, index + 1, index + 1);
+        }
+    }
+
+    /**
+     * Rebuilds the rows from the members, and tells the list with one event for the rows that went and one for the
+     * rows that changed or came.
+     *
+     * @param before The number of rows before, the {@link #ALL} row included.
+     */
+    private void rebuildRows(int before) {
+        rows.clear();
+        for (int i = 0; i < members.size(); i++) {
+            if (matches(members.get(i))) {
+                rows.add(members.get(i));
+            }
+        }
+        int after = getSize();
+        if (after < before) {
+            fireIntervalRemoved(this, after, before - 1);
+        }
+        if (Math.min(before, after) > 1) {
+            fireContentsChanged(this, 1, Math.min(before, after) - 1);
+        }
+        if (after > before) {
+            fireIntervalAdded(this, before, after - 1);
+        }
+    }
+
+    /**
+     * The Rows class is a list of distinct names with the position of every name kept in a map, so finding, adding
+     * and removing a name are O(1). Removing a name moves the last name into its position.
+     */
+    private static final class Rows {
+
+        private final List<String> names; // The names, by position.
+        private final Map<String, Integer> positions; // The position of every name.
+
+        /**
+         * Constructs an empty Rows object.
+         */
+        private Rows() {
+            this.names = new ArrayList<>();
+            this.positions = new HashMap<>();
+        }
+
+        /**
+         * Retrieves the number of names.
+         *
+         * @return The name count.
+         */
+        private int size() {
+            return names.size();
+        }
+
+        /**
+         * Retrieves the name at a position.
+         *
+         * @param position The position.
+         * @return The name.
+         */
+        private String get(int position) {
+            return names.get(position);
+        }
+
+        /**
+         * Retrieves the position of a name.
+         *
+         * @param name The name.
+         * @return The position, or -1 if the name is not in the list.
+         */
+        private int indexOf(String name) {
+            Integer position = positions.get(name);
+            return position == null ? -1 : position;
+        }
+
+        /**
+         * Adds a name at the end. The name must not be in the list.
+         *
+         * @param name The name.
+         */
+        private void add(String name) {
+            positions.put(name, names.size());
+            names.add(name);
+        }
+
+        /**
+         * Removes a name, moving the last name into its position. The name must be in the list.
+         *
+         * @param name The name.
+         */
+        private void remove(String name) {
+            int position = positions.remove(name);
+            String last = names.remove(names.size() - 1);
+            if (position < names.size()) {
+                names.set(position, last);
+                positions.put(last, position);
+            }
+        }
+
+        /**
+         * Replaces a name in its position. The old name must be in the list and the new one must not.
+         *
+         * @param oldName The name to replace.
+         * @param newName The name replacing it.
+         */
+        private void set(String oldName, String newName) {
+            int position = positions.remove(oldName);
+            names.set(position, newName);
+            positions.put(newName, position);
+        }
+
+        /**
+         * Removes every name.
+         */
+        private void clear() {
+            names.clear();
+            positions.clear();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package il.ac.hit.patterns.client;
+
+import il.ac.hit.patterns.protocol.RosterUpdate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The RosterTracker class keeps the client's copy of the roster when the server sends roster snapshots and deltas.
+ * <p>
+ * Deltas are applied only in version order. When a version is missing the tracker drops its copy and ignores every
+ * delta until the next snapshot arrives, the caller asks the server for that snapshot.
+ */
+public class RosterTracker {
+
+    private final List<String> names; // The connected client names, in join order.
+    private long version; // The version of the roster copy.
+    private boolean synced; // Whether the copy is complete, false until the first snapshot and after a gap.
+
+    /**
+     * Constructs a RosterTracker object with an empty roster, waiting for its first snapshot.
+     */
+    public RosterTracker() {
+        this.names = new ArrayList<>();
+    }
+
+    /**
+     * Applies a roster update received from the server.
+     *
+     * @param update The roster update.
+     * @return {@code false} if the update revealed a missing version and a new snapshot is needed, {@code true} otherwise.
+     */
+    public synchronized boolean apply(RosterUpdate update) {
+        if (update.getKind() == RosterUpdate.Kind.SNAPSHOT) {
+            names.clear();
+            names.addAll(update.getNames());
+            version = update.getVersion();
+            synced = true;
+            return true;
+        }
+
+        /* Still waiting for a snapshot, the delta is already part of it. */
+        if (!synced) {
+            return true;
+        }
+
+        if (update.getVersion() != version + 1) {
+            synced = false;
+            return false;
+        }
+
+        version = update.getVersion();
+        if (update.getKind() == RosterUpdate.Kind.JOIN) {
+            names.addAll(update.getNames());
+        } else {
+            names.removeAll(update.getNames());
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves a copy of the connected client names.
+     *
+     * @return The connected client names, in join order.
+     */
+    public synchronized List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(names));
+    }
+
+    /**
+     * Retrieves the version of the roster copy.
+     *
+     * @return The roster version.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks whether the roster copy is complete.
+     *
+     * @return {@code true} if the copy is up-to-date with the last update received.
+     */
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+}
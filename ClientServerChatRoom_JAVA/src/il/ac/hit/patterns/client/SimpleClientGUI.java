@@ -3,21 +3,41 @@ package il.ac.hit.patterns.client;
 import il.ac.hit.patterns.ConnectionProxy;
 import il.ac.hit.patterns.StringConsumer;
 import il.ac.hit.patterns.StringProducer;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.HistoryEntry;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SimpleClientGUI implements StringConsumer, StringProducer {
 
+    /** The entry of the default room in the room selector. */
+    public static final String LOBBY = "(lobby)";
+
+    /** The number of older messages asked for when the 'Older' button is pressed. */
+    public static final int HISTORY_PAGE = 50;
+
+    /** The number of search results asked for when the 'Search' button is pressed. */
+    public static final int SEARCH_PAGE = 20;
+
     private static ConnectionProxy proxy; // Represents the connection proxy object.
     private StringConsumer consumer; // Represents the consumer object for handling string inputs.
     private final JFrame frame; // Represents the main frame of the GUI.
@@ -28,11 +48,14 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     private final JTextArea taIp; // Represents the text area for displaying the label "IP Address:".
     private final JTextArea taPort; // Represents the text area for displaying the label "Port:".
     private final JTextArea taClientName; // Represents the text area for displaying the label "Enter Client Name:".
-    private static JTextArea taChat; // Represents the text area for displaying the chat messages.
+    private final ChatLog chatLog; // Represents the chat messages, the newest in memory and the older ones on disk.
+    private final JList<String> chatList; // Represents the list view for displaying the chat messages, one row each.
     private final JButton btSend; // Represents the button for sending messages.
     private final JPanel panelSouth; // Represents the panel in the south sections of the GUI.
     private final JPanel panelNorth; // Represents the panel in the north sections of the GUI.
-    private final JScrollPane centerScrollPane; // Represents the scroll pane for the chat text area.
+    private final JPanel panelEast; // Represents the panel in the east section of the GUI, the user filter above the user list.
+    private final JTextField tfFilter; // Represents the text field that filters the connected user list as the user types.
+    private final JScrollPane centerScrollPane; // Represents the scroll pane for the chat list.
     private final JScrollPane eastScrollPane; // Represents the scroll pane for the connected user list.
     private final JButton btConnect; // Represents the button for connecting.
     private final JButton btDisconnect; // Represents the button for disconnecting.
@@ -41,9 +64,20 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     private IStateSimpleClientGUI state; // Represents the state of the GUI (e.g., connected or disconnected).
     private final IStateSimpleClientGUI disconnectedState; // Represent the disconnectedState of the gui.
     private final IStateSimpleClientGUI connectedState; // Represent the connectedState of the gui.
-    private static List<String> allClientNames; // Represents the list of all connected client names.
     private static JList<String> usernameConnectedList; // Represents the list component for displaying connected usernames.
-    private static DefaultListModel<String> listModel; // Represents the model for the connected user list.
+    private static RosterListModel listModel; // Represents the model for the connected user list, updated by difference.
+    private final JComboBox<String> cbRoom; // Represents the room selector: the lobby and the joined rooms.
+    private final JTextField tfRoom; // Represents the text field for the name of a room to join.
+    private final JButton btJoin; // Represents the button for joining a room.
+    private final JButton btPart; // Represents the button for leaving the selected room.
+    private final Map<String, List<String>> roomRosters; // Represents the members of the lobby and the joined rooms, by room name.
+    private final JButton btOlder; // Represents the button for showing older messages of the selected room.
+    private final Map<String, Long> oldestShown; // Represents the sequence number of the oldest message shown, by room name.
+    private final Set<String> historyRequested; // Represents the rooms whose older messages were asked for and not yet shown.
+    private final JButton btSearch; // Represents the button for searching the selected room for the words in tfUserInput.
+    private volatile String lastSearch; // Represents the last search sent, as room and words, null before the first.
+    private volatile long searchOldest; // Represents the sequence number of the oldest result of the last search, 0 if none is older.
+    private final RenderPipeline renderPipeline; // Represents the queue that carries what the reader thread shows to the EDT, in batches.
 
 
 
@@ -63,11 +97,12 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
      * The GUI components created in this constructor include:
      * <p>
      * JTextField: tfUserInput, tfIp, tfPort, tfClientName
-     * JTextArea: taIp, taPort, taClientName, taChat
+     * JTextArea: taIp, taPort, taClientName
+     * JList: chatList (backed by a bounded ChatLog), usernameConnectedList
      * JButton: btSend, btConnect, btDisconnect
-     * JPanel: panelSouth, panelNorth
-     * JScrollPane: centerScrollPane (for taChat), eastScrollPane (for usernameConnectedList)
-     * The GUI elements are configured with appropriate settings, such as setting the taChat to be uneditable,
+     * JPanel: panelSouth, panelNorth, panelEast
+     * JScrollPane: centerScrollPane (for chatList), eastScrollPane (for usernameConnectedList)
+     * The GUI elements are configured with appropriate settings, such as giving the chatList fixed row heights,
      * <p>
      * setting the selection mode for usernameConnectedList, and creating the listModel for usernameConnectedList.
      * <p>
@@ -109,12 +144,20 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         taClientName = new JTextArea("Enter Client Name:");
 
 
-        /* Creating a new JTextarea for 'taChat' that will store all the messages from the client. */
-        taChat = new JTextArea();
+        /* Creating the 'chatList' that shows all the messages, one row each. Only the rows on screen are asked for, so
+           rows have a fixed height and the width of the widest line seen, and never need measuring all together. HTML
+           is turned off, a message is shown as it was written. */
+        chatLog = new ChatLog();
+        chatList = new JList<>(getChatLog());
+        getChatList().setFont(UIManager.getFont("TextArea.font"));
+        DefaultListCellRenderer chatRenderer = new DefaultListCellRenderer();
+        chatRenderer.putClientProperty("html.disable", Boolean.TRUE);
+        getChatList().setCellRenderer(chatRenderer);
+        getChatList().setPrototypeCellValue("Xg");
+        getChatList().setFixedCellWidth(1);
 
 
-        /* We are setting the 'chat', 'toPort', 'taIp', 'taClientName' textAreas to be un-editable. */
-        getTaChat().setEditable(false);
+        /* We are setting the 'toPort', 'taIp', 'taClientName' textAreas to be un-editable. */
         getTaPort().setEditable(false);
         getTaIp().setEditable(false);
         getTaClientName().setEditable(false);
@@ -125,18 +168,34 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         btDisconnect = new JButton("Disconnect");
         panelSouth = new JPanel();
         panelNorth = new JPanel();
-        centerScrollPane = new JScrollPane(getTaChat()); // Adding a scroll option to the 'taChat'
+        centerScrollPane = new JScrollPane(getChatList()); // Adding a scroll option to the 'chatList'
 
 
         /* Creating and adding all the components for the 'usernameConnectedList'. */
-        listModel = new DefaultListModel<>();
+        listModel = new RosterListModel();
         usernameConnectedList = new JList<>(getListModel()); // Connecting the listModel to the 'usernameConnectedList'.
         getUsernameConnectedList().setSelectionMode(ListSelectionModel.SINGLE_SELECTION); // Allowing only one list item to be selected at a time.
+        getUsernameConnectedList().setPrototypeCellValue("XXXXXXXXXXXXXXXX"); // Fixed row sizes, so a large room is never measured row by row.
         eastScrollPane = new JScrollPane(getUsernameConnectedList()); // Adding a scroll option to the 'eastScrollPane' that holds the 'usernameConnectedList'.
 
-
-        /* Creating the ArrayList that will hold all the connected usernames of the clients. */
-        allClientNames = new ArrayList<>();
+        /* Creating the type-ahead filter above the 'usernameConnectedList', every key typed narrows the list. */
+        tfFilter = new JTextField();
+        tfFilter.setToolTipText("Type to filter the connected users");
+        panelEast = new JPanel(new BorderLayout());
+
+        /* Creating the room controls, the room selector starts with the lobby only. */
+        cbRoom = new JComboBox<>(new String[]{LOBBY});
+        tfRoom = new JTextField(8);
+        btJoin = new JButton("Join");
+        btPart = new JButton("Leave room");
+        roomRosters = new ConcurrentHashMap<>();
+        btOlder = new JButton("Older");
+        oldestShown = new ConcurrentHashMap<>();
+        historyRequested = ConcurrentHashMap.newKeySet();
+        btSearch = new JButton("Search");
+
+        /* Creating the render pipeline: messages and rosters from the server are shown on the EDT in batches. */
+        renderPipeline = new RenderPipeline(this);
     }
 
     /**
@@ -175,6 +234,12 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
 
 
         /* Adding all the elements for the south JFrame panel on the south panel */
+        getPanelSouth().add(getCbRoom());
+        getPanelSouth().add(getTfRoom());
+        getPanelSouth().add(getBtJoin());
+        getPanelSouth().add(getBtPart());
+        getPanelSouth().add(getBtOlder());
+        getPanelSouth().add(getBtSearch());
         getPanelSouth().add(getTfUserInput());
         getPanelSouth().add(getBtSend());
 
@@ -191,7 +256,9 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         getFrame().add(getPanelNorth(), BorderLayout.NORTH);
         getFrame().add(getPanelSouth(), BorderLayout.SOUTH);
         getFrame().add(getCenterScrollPane(), BorderLayout.CENTER);
-        getFrame().add(getEastScrollPane(), BorderLayout.EAST);
+        getPanelEast().add(getTfFilter(), BorderLayout.NORTH);
+        getPanelEast().add(getEastScrollPane(), BorderLayout.CENTER);
+        getFrame().add(getPanelEast(), BorderLayout.EAST);
 
 
         getFrame().setSize(800, 500); // Setting the size of our main frame.
@@ -202,6 +269,18 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         getBtSend().addActionListener(new ButtonsObserver());
         getBtConnect().addActionListener(new ButtonsObserver());
         getBtDisconnect().addActionListener(new ButtonsObserver());
+        getBtJoin().addActionListener(new ButtonsObserver());
+        getBtPart().addActionListener(new ButtonsObserver());
+        getBtOlder().addActionListener(new ButtonsObserver());
+        getBtSearch().addActionListener(new ButtonsObserver());
+        getCbRoom().addActionListener(e -> showRoster(getSelectedRoom())); // The list shows the members of the selected room.
+        getTfFilter().getDocument().addDocumentListener(new FilterListener()); // The list shows the members matching the filter.
+        getFrame().addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                getChatLog().close(); // The spilled chat lines are deleted with the window, not only when the JVM exits.
+            }
+        });
         getUsernameConnectedList().addMouseListener(new UsernameConnectedListMouseListener());
 
         try {
@@ -221,6 +300,24 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         return frame;
     }
 
+    /**
+     * Returns the JPanel instance for the east panel.
+     *
+     * @return The JPanel instance for the east panel.
+     */
+    public JPanel getPanelEast() {
+        return panelEast;
+    }
+
+    /**
+     * Returns the JTextField instance for the user list filter.
+     *
+     * @return The JTextField instance for the user list filter.
+     */
+    public JTextField getTfFilter() {
+        return tfFilter;
+    }
+
     /**
      * Returns the JPanel instance for the south panel.
      *
@@ -357,21 +454,138 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     }
 
     /**
-     * Returns the JTextArea instance for the chat area.
+     * Returns the JComboBox instance for the room selector.
+     *
+     * @return The JComboBox instance for the room selector.
+     */
+    public JComboBox<String> getCbRoom() {
+        return cbRoom;
+    }
+
+    /**
+     * Returns the JTextField instance for the name of a room to join.
+     *
+     * @return The JTextField instance for the room name.
+     */
+    public JTextField getTfRoom() {
+        return tfRoom;
+    }
+
+    /**
+     * Returns the JButton instance for the 'Join' button.
+     *
+     * @return The JButton instance for the 'Join' button.
+     */
+    public JButton getBtJoin() {
+        return btJoin;
+    }
+
+    /**
+     * Returns the JButton instance for the 'Leave room' button.
+     *
+     * @return The JButton instance for the 'Leave room' button.
+     */
+    public JButton getBtPart() {
+        return btPart;
+    }
+
+    /**
+     * Returns the JButton instance for the 'Older' button.
+     *
+     * @return The JButton instance for the 'Older' button.
+     */
+    public JButton getBtOlder() {
+        return btOlder;
+    }
+
+    /**
+     * Returns the JButton instance for the 'Search' button.
+     *
+     * @return The JButton instance for the 'Search' button.
+     */
+    public JButton getBtSearch() {
+        return btSearch;
+    }
+
+    /**
+     * Retrieves the room selected in the room selector, where messages are sent.
+     *
+     * @return The room name, empty for the lobby.
+     */
+    public String getSelectedRoom() {
+        Object selected = getCbRoom().getSelectedItem();
+        return selected == null || LOBBY.equals(selected) ? "" : selected.toString();
+    }
+
+    /**
+     * Returns the JList instance for the chat area.
+     *
+     * @return The JList instance for the chat area.
+     */
+    public JList<String> getChatList() {
+        return chatList;
+    }
+
+    /**
+     * Returns the chat log, the model of the chat list.
+     *
+     * @return The chat log.
+     */
+    public ChatLog getChatLog() {
+        return chatLog;
+    }
+
+    /**
+     * Removes every message from the chat area. Runs on the EDT.
+     */
+    public void clearChat() {
+        getChatLog().clear();
+        getChatList().setFixedCellWidth(1);
+    }
+
+    /**
+     * Adds lines at the bottom of the chat area, and keeps the newest line in sight if the user was looking at the
+     * bottom; a user reading older messages is left where they are. Runs on the EDT.
      *
-     * @return The JTextArea instance for the chat area.
+     * @param lines The lines, oldest first.
      */
-    public JTextArea getTaChat() {
-        return taChat;
+    public void appendChatLines(List<String> lines) {
+        JScrollBar bar = getCenterScrollPane().getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - getChatList().getFixedCellHeight();
+        fitChatWidth(lines);
+        getChatLog().append(lines);
+        if (atBottom) {
+            getCenterScrollPane().validate(); // The list grows now, so the scroll reaches the new last row.
+            getChatList().ensureIndexIsVisible(getChatLog().getSize() - 1);
+        }
     }
 
     /**
-     * Sets the text for the chat area.
+     * Adds lines at the top of the chat area, such as older history. Runs on the EDT.
      *
-     * @param text The text to be set.
+     * @param lines The lines, oldest first.
      */
-    public void setTaChatText(String text) {
-        getTaChat().setText(text);
+    public void prependChatLines(List<String> lines) {
+        fitChatWidth(lines);
+        getChatLog().prepend(lines);
+    }
+
+    /**
+     * Widens the rows of the chat list to the widest of the given lines, if it is wider than every line seen so far,
+     * so a long line can be scrolled to instead of cut off.
+     *
+     * @param lines The lines about to be added.
+     */
+    private void fitChatWidth(List<String> lines) {
+        FontMetrics metrics = getChatList().getFontMetrics(getChatList().getFont());
+        Insets insets = ((JComponent) getChatList().getCellRenderer()).getInsets();
+        int widest = getChatList().getFixedCellWidth();
+        for (String line : lines) {
+            widest = Math.max(widest, metrics.stringWidth(line) + insets.left + insets.right);
+        }
+        if (widest != getChatList().getFixedCellWidth()) {
+            getChatList().setFixedCellWidth(widest);
+        }
     }
 
     /**
@@ -384,11 +598,11 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     }
 
     /**
-     * Returns the DefaultListModel instance for the list.
+     * Returns the RosterListModel instance for the list.
      *
-     * @return The DefaultListModel instance for the list.
+     * @return The RosterListModel instance for the list.
      */
-    public static DefaultListModel<String> getListModel() {
+    public static RosterListModel getListModel() {
         return listModel;
     }
 
@@ -411,34 +625,23 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     }
 
     /**
-     * Returns the list of all client names.
+     * Selects a client in the connected user list, or 'All' if the client is not shown, and makes it the selected
+     * client.
      *
-     * @return The list of all client names.
+     * @param clientName The client name.
      */
-    public static List<String> getAllClientNames() {
-        return allClientNames;
+    public static void selectClient(String clientName) {
+        int index = Math.max(0, getListModel().indexOf(clientName));
+        getUsernameConnectedList().setSelectedIndex(index);
+        setSelectedClient(getListModel().getElementAt(index));
     }
 
     /**
-     * Adds items to the list model and performs additional operations.
-     *
-     * @param items The list of items to add.
-     */
-    public void addItemsToList(List<String> items) {
-        getListModel().addElement("All"); // Adding to the first index of the list model an element called 'All'
-        for (String clientName : items) {
-            getListModel().addElement(clientName); // Adding all the client names to the listModel.
-        }
-        getUsernameConnectedList().setSelectionInterval(0, 0); // Selecting the first element of the 'usernameConnectedList' -> 'All'.
-        setSelectedClient(getUsernameConnectedList().getSelectedValue()); // Setting the 'selectedClient' to be 'All'
-        System.out.println("client selected is: " + getSelectedClient());
-    }
-
-    /**
-     * Removes all item from the list model.
+     * Removes all item from the list model, except for 'All'.
      */
     public static void removeAllItemFromList() {
         getListModel().clear();
+        selectClient(RosterListModel.ALL);
     }
 
     /**
@@ -447,7 +650,9 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
      * @param item The item to remove.
      */
     public static void removeItemFromList(String item) {
-        getListModel().removeElement(item);
+        String selected = getSelectedClient();
+        getListModel().remove(item);
+        selectClient(selected);
     }
 
     /**
@@ -458,10 +663,9 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
      */
 
     public void modifyItemInList(String oldItem, String newItem) {
-        int index = getListModel().indexOf(oldItem);
-        if (index != -1) {
-            getListModel().set(index, newItem);
-        }
+        String selected = getSelectedClient();
+        getListModel().rename(oldItem, newItem);
+        selectClient(oldItem.equals(selected) ? newItem : selected);
     }
 
     /**
@@ -562,6 +766,25 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         getBtDisconnect().setForeground(foregroundColor);
     }
 
+    /**
+     * Sets enable state and foreground color of the room selector, the room name field and the room buttons.
+     *
+     * @param bool            The boolean value indicating enable state of the room controls.
+     * @param foregroundColor The foreground color to be set for the room controls.
+     */
+    public void setRoomControlsEnabled(Boolean bool, Color foregroundColor) {
+        getCbRoom().setEnabled(bool);
+        getTfRoom().setEnabled(bool);
+        getBtJoin().setEnabled(bool);
+        getBtJoin().setForeground(foregroundColor);
+        getBtPart().setEnabled(bool);
+        getBtPart().setForeground(foregroundColor);
+        getBtOlder().setEnabled(bool);
+        getBtOlder().setForeground(foregroundColor);
+        getBtSearch().setEnabled(bool);
+        getBtSearch().setForeground(foregroundColor);
+    }
+
     /**
      * Sets enable state and foreground color of the 'tfClientName' button.
      *
@@ -596,12 +819,22 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     }
 
     /**
-     * Consumes the provided text and updates the GUI text area, this is used to print utility messages to the client.
+     * Consumes the provided text and updates the GUI chat area, this is used to print utility messages to the client.
+     * Safe to call from any thread, the text is shown with the next batch of the render pipeline.
      *
      * @param text The text to consume.
      */
     public void consumeToGuiTextArea(@NotNull String text) {
-        getTaChat().append(text + "\n");
+        getRenderPipeline().append(text);
+    }
+
+    /**
+     * Returns the render pipeline that shows messages and rosters on the EDT.
+     *
+     * @return The render pipeline.
+     */
+    public RenderPipeline getRenderPipeline() {
+        return renderPipeline;
     }
 
     /**
@@ -615,26 +848,23 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
 
     /**
 
-     Consumes the incoming text message received from the server.
+     Consumes the incoming text message received from the server, a legacy message with the roster in front of it.
+     The text is taken apart on the calling thread; the message and the roster are shown by the render pipeline.
 
      @param text The text message received from the server.
      */
     @Override
     public void consume(String text) {
-        int selectedClient = getUsernameConnectedList().getSelectedIndex();
-
+        List<String> names = new ArrayList<>();
         String message = "";
 
-        getAllClientNames().clear();
-
         // Split the text by "$$$" and capture the first part
         String[] parts = text.split("\\$\\$\\$");
         String namesText = parts[0].trim();
 
         // Extract the names
         if (!namesText.isEmpty()) {
-            String[] nameArr = namesText.split(" ");
-            getAllClientNames().addAll(Arrays.asList(nameArr));
+            names.addAll(Arrays.asList(namesText.split(" ")));
         }
 
         // Extract the message
@@ -642,23 +872,219 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
             message = parts[1].trim();
         }
 
-        // Append the message to the text area
-        getTaChat().append(message + "\n");
+        // Append the message to the chat area and refresh the connected client names JList, in the next batch
+        getRenderPipeline().append(message);
+        updateRoster("", names);
+    }
+
+    /**
+     * Appends a chat message, without a roster in front of it, to the chat area. Safe to call from any thread.
+     *
+     * @param message The chat message.
+     */
+    public void appendMessage(String message) {
+        getRenderPipeline().append(message);
+    }
 
-        // Print the names to the console
-        System.out.println("Names arrived from the server to the gui:");
-        for (String name : getAllClientNames()) {
-            System.out.println(name);
+    /**
+     * Appends a chat message sent in a room, marked with the room name, to the chat area. Messages of a room the
+     * client already left are ignored. Safe to call from any thread.
+     *
+     * @param room    The room name.
+     * @param message The chat message.
+     */
+    public void appendRoomMessage(String room, String message) {
+        if (roomRosters.containsKey(room)) {
+            getRenderPipeline().append("[" + room + "] " + message);
         }
+    }
 
-        // Refreshing the connected client names JList.
-        removeAllItemFromList();
-        addItemsToList(getAllClientNames()); //TODO IF THE MODELLIST CONTAINS THE NAME LEAVE IT ELSE ADD IT TO THE MODELLIST
-        if(selectedClient != -1) {
-            /* Selecting the last element of the 'usernameConnectedList' that was selected. */
-            getUsernameConnectedList().setSelectionInterval(selectedClient, selectedClient);
-            /* Setting the 'selectedClient' to be the last selected client. */
-            setSelectedClient(getUsernameConnectedList().getSelectedValue());
+    /**
+     * Shows earlier messages of the lobby or of a joined room. Older messages that were asked for with the 'Older'
+     * button, and the history of the lobby that follows the client's entered message, go above everything shown;
+     * the history of a room the client just joined follows what is shown. Messages of a room the client already left
+     * are ignored. Safe to call from any thread, the messages are shown in order with the ones around them.
+     *
+     * @param room    The room name, empty for the lobby.
+     * @param entries The messages, oldest first.
+     * @param end     Whether the server has no older messages.
+     */
+    public void showHistory(String room, List<HistoryEntry> entries, boolean end) {
+        getRenderPipeline().execute(() -> renderHistory(room, entries, end));
+    }
+
+    /**
+     * Shows earlier messages of the lobby or of a joined room, see {@link #showHistory}. Runs on the EDT.
+     *
+     * @param room    The room name, empty for the lobby.
+     * @param entries The messages, oldest first.
+     * @param end     Whether the server has no older messages.
+     */
+    private void renderHistory(String room, List<HistoryEntry> entries, boolean end) {
+        if (!room.isEmpty() && !roomRosters.containsKey(room)) {
+            return;
+        }
+        boolean older = historyRequested.remove(room);
+        if (end) {
+            oldestShown.put(room, 0L);
+        } else if (!entries.isEmpty()) {
+            oldestShown.put(room, entries.get(0).getSequence());
+        }
+        if (older && entries.isEmpty()) {
+            consumeToGuiTextArea("System message -> No older messages.");
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (HistoryEntry entry : entries) {
+            lines.add((room.isEmpty() ? "" : "[" + room + "] ") + entry.getText());
+        }
+        if (older || room.isEmpty()) {
+            prependChatLines(lines);
+        } else {
+            appendChatLines(lines);
+        }
+    }
+
+    /**
+     * Shows the private messages sent to the client while it was offline, after everything shown. Safe to call from
+     * any thread.
+     *
+     * @param entries The messages, oldest first.
+     */
+    public void showMail(List<HistoryEntry> entries) {
+        for (HistoryEntry entry : entries) {
+            getRenderPipeline().append("(offline) " + entry.getText());
+        }
+    }
+
+    /**
+     * Shows the results of a search, newest last, after everything shown. If older messages match, pressing 'Search'
+     * again with the same words shows them. Safe to call from any thread.
+     *
+     * @param room    The room searched, empty for the lobby.
+     * @param entries The matching messages, oldest first.
+     * @param end     Whether no older message matches.
+     */
+    public void showSearchResults(String room, List<HistoryEntry> entries, boolean end) {
+        searchOldest = end || entries.isEmpty() ? 0 : entries.get(0).getSequence();
+        if (entries.isEmpty()) {
+            consumeToGuiTextArea("System message -> No messages found.");
+            return;
+        }
+        for (HistoryEntry entry : entries) {
+            getRenderPipeline().append("[search" + (room.isEmpty() ? "" : " " + room) + "] " + entry.getText());
+        }
+        if (!end) {
+            consumeToGuiTextArea("System message -> Press 'Search' again for older results.");
+        }
+    }
+
+    /**
+     * Asks the server for the messages of the selected room that hold the words in the input field. The same words
+     * in the same room again ask for the next page of older results.
+     *
+     * @throws ChatException If the request cannot be sent.
+     */
+    private void search() throws ChatException {
+        String room = getSelectedRoom();
+        String words = getTfUserInput().getText().trim();
+        if (!getProxy().getFeatures().contains(Handshake.FEATURE_SEARCH)) {
+            consumeToGuiTextArea("System message -> This server has no search.");
+            return;
+        }
+        String search = room + " " + words;
+        long before = Long.MAX_VALUE;
+        if (search.equals(lastSearch)) {
+            if (searchOldest == 0) {
+                consumeToGuiTextArea("System message -> No older results.");
+                return;
+            }
+            before = searchOldest;
+        }
+        lastSearch = search;
+        getProxy().consume(ControlMessage.of(ControlMessage.SEARCH, before + " " + SEARCH_PAGE
+                + (room.isEmpty() ? "" : " room=" + room) + " " + words));
+    }
+
+    /**
+     * Asks the server for the messages of the selected room older than the oldest one shown.
+     *
+     * @throws ChatException If the request cannot be sent.
+     */
+    private void requestOlderMessages() throws ChatException {
+        String room = getSelectedRoom();
+        if (!getProxy().getFeatures().contains(Handshake.FEATURE_HISTORY)) {
+            consumeToGuiTextArea("System message -> This server keeps no history.");
+            return;
+        }
+        long before = oldestShown.getOrDefault(room, Long.MAX_VALUE);
+        if (before == 0) {
+            consumeToGuiTextArea("System message -> No older messages.");
+            return;
+        }
+        historyRequested.add(room);
+        getProxy().consume(ControlMessage.of(ControlMessage.HISTORY, before + " " + HISTORY_PAGE + (room.isEmpty() ? "" : " " + room)));
+    }
+
+    /**
+     * Stores the members of the lobby or of a joined room, and shows them if the room is the selected one. Updates for
+     * a room the client already left are ignored. Safe to call from any thread; the members are stored at once, so
+     * the room's history and messages that follow the roster find the room, and only the newest members of a room are
+     * shown with the next batch of the render pipeline.
+     *
+     * @param room  The room name, empty for the lobby.
+     * @param names The members of the room, in join order.
+     */
+    public void updateRoster(String room, List<String> names) {
+        List<String> members = List.copyOf(names);
+        if (room.isEmpty()) {
+            roomRosters.put(room, members);
+        } else if (roomRosters.replace(room, members) == null) {
+            return; // a room the client left, or never joined.
+        }
+        getRenderPipeline().updateRoster(room, members);
+    }
+
+    /**
+     * Refreshes the connected client names JList once if the selected room is one of the rooms whose roster changed.
+     * Runs on the EDT, called by the render pipeline.
+     *
+     * @param rosters The newest members of every room that changed, by room name.
+     */
+    void applyRosters(Map<String, List<String>> rosters) {
+        boolean selectedChanged = false;
+        for (String room : rosters.keySet()) {
+            selectedChanged |= room.equals(getSelectedRoom()) && roomRosters.containsKey(room);
+        }
+        if (selectedChanged) {
+            showRoster(getSelectedRoom());
+        }
+    }
+
+    /**
+     * Shows the members of a room in the connected client names JList. Only the names that joined or left since the
+     * last roster shown change rows, and the selected client stays selected, by name, as long as it is still a member
+     * that matches the filter; otherwise 'All' is selected.
+     *
+     * @param room The room name, empty for the lobby.
+     */
+    public void showRoster(String room) {
+        String selected = getSelectedClient();
+        getListModel().setMembers(roomRosters.getOrDefault(room, List.of()));
+        selectClient(selected);
+    }
+
+    /**
+     * Forgets every joined room, leaving the lobby alone in the room selector, and the last search.
+     */
+    public void resetRooms() {
+        roomRosters.clear();
+        oldestShown.clear();
+        historyRequested.clear();
+        lastSearch = null;
+        getCbRoom().setSelectedItem(LOBBY);
+        for (int i = getCbRoom().getItemCount() - 1; i > 0; i--) {
+            getCbRoom().removeItemAt(i);
         }
     }
 
@@ -716,8 +1142,9 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
         System.out.println("inside changeConsumer");
         try {
 
-            var proxy = new ConnectionProxy(serverIpAddress, Integer.parseInt(serverListeningPort), getTfClientName().getText());
-            SimpleTCPIPClient.SimpleConsumer simpleConsumer = new SimpleTCPIPClient.SimpleConsumer();
+            var proxy = new ConnectionProxy(serverIpAddress, Integer.parseInt(serverListeningPort), getTfClientName().getText(),
+                    SimpleTCPIPClient.CLIENT_FEATURES);
+            SimpleTCPIPClient.SimpleConsumer simpleConsumer = new SimpleTCPIPClient.SimpleConsumer(proxy);
             proxy.addConsumer(simpleConsumer);
             proxy.start();
             addConsumer(proxy);
@@ -791,8 +1218,9 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
                             replaceAll("\\s", "") + " ->" + " has left the chat room!");
 
                     removeAllItemFromList(); // removes the client from the list of connected users after he disconnects.
+                    resetRooms(); // the rooms are left together with the server.
 
-                    setTaChatText("");
+                    clearChat();
                     getProxy().closeConnection();
                 }
                 /* If btSend was pressed do the following */
@@ -802,25 +1230,67 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
                         System.out.println("inside actionPerformed... thread=" + Thread.currentThread().getName() + " tf.getText()=" + getTfUserInput().getText());
 
                         /* If a user is trying to attack the system using the special pattern we use to split the message
-                        to different meanings, this line of code will prevent him from succeeding. */
-                        if (getTfUserInput().getText().contains("##$$$###") || getTfUserInput().getText().contains("#$$$#")) {
+                        to different meanings, this line of code will prevent him from succeeding. Binary frames carry
+                        the recipient in its own field, so there any text is allowed. */
+                        if (!getProxy().isFramed() && (getTfUserInput().getText().contains("##$$$###") || getTfUserInput().getText().contains("#$$$#"))) {
                             consumeToGuiTextArea("Message Pattern not allowed - try sending a different message.");
                             return;
                         }
 
-                        /* Sending to the server the client name with no spaces along with, client name to send the message to, and his message. */
-                        getConsumer().consume(getProxy().getClientName() + " ##$$$### " + getSelectedClient() + " #$$$# " + getTfClientName().getText().
+                        /* Sending to the server the client name with no spaces along with, client name to send the message to, and his message,
+                        in the selected room. */
+                        getProxy().sendMessage(getSelectedRoom(), getSelectedClient(), getTfClientName().getText().
                                 replaceAll("\\s", "") + " -> " + getTfUserInput().getText());
 
-                        System.out.println(getProxy().getClientName() + " ##$$$### " + getSelectedClient() + " #$$$# " + getTfClientName().getText().
-                                replaceAll("\\s", "") + " -> " + getTfUserInput().getText() +
-                                " was sent to the server by calling the consumer.consume() method thread=" + Thread.currentThread().getName());
+                        System.out.println(getProxy().getClientName() + " -> " + getSelectedClient() + ": " + getTfUserInput().getText() +
+                                " was sent to the server by calling the proxy.sendMessage() method thread=" + Thread.currentThread().getName());
                         setTfUserInputText(""); // Clearing the tfUserInput field after every message he sends.
                     }
                     else {
                         System.out.println("Client tried to send an empty message.");
                     }
                 }
+                /* If btJoin was pressed, join the room named in tfRoom and select it. */
+
+                else if (actionEvent.getSource() == getBtJoin()) {
+                    String room = getTfRoom().getText().trim();
+                    if (!getProxy().getFeatures().contains(Handshake.FEATURE_ROOMS)) {
+                        consumeToGuiTextArea("System message -> This server has no rooms.");
+                    } else if (!ControlMessage.isRoomName(room)) {
+                        consumeToGuiTextArea("System message -> A room name has 1 to 32 letters, digits, '-' or '_'.");
+                    } else {
+                        if (((DefaultComboBoxModel<String>) getCbRoom().getModel()).getIndexOf(room) == -1) {
+                            getCbRoom().addItem(room);
+                        }
+                        roomRosters.putIfAbsent(room, List.of()); // joined from now on, the members follow.
+                        getProxy().consume(ControlMessage.of(ControlMessage.JOIN, room));
+                        getCbRoom().setSelectedItem(room);
+                        getTfRoom().setText("");
+                    }
+                }
+                /* If btOlder was pressed, ask for the messages of the selected room before the oldest one shown. */
+
+                else if (actionEvent.getSource() == getBtOlder()) {
+                    requestOlderMessages();
+                }
+                /* If btSearch was pressed, search the selected room for the words in tfUserInput. */
+
+                else if (actionEvent.getSource() == getBtSearch()) {
+                    search();
+                }
+                /* If btPart was pressed, leave the selected room and go back to the lobby. */
+
+                else if (actionEvent.getSource() == getBtPart()) {
+                    String room = getSelectedRoom();
+                    if (!room.isEmpty()) {
+                        getProxy().consume(ControlMessage.of(ControlMessage.PART, room));
+                        roomRosters.remove(room);
+                        oldestShown.remove(room);
+                        historyRequested.remove(room);
+                        getCbRoom().setSelectedItem(LOBBY);
+                        getCbRoom().removeItem(room);
+                    }
+                }
             } catch (ChatException e) {
                 throw new RuntimeException(e);
             }
@@ -828,6 +1298,57 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
     }
 
 
+    /**
+     * DocumentListener implementation that filters the username connected list as the user types in the filter field.
+     * The selected client stays selected while it matches the filter.
+     */
+    public static class FilterListener implements DocumentListener {
+
+        /**
+         * Invoked when text is typed into the filter field.
+         *
+         * @param e The DocumentEvent object representing the change.
+         */
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            filter(e);
+        }
+
+        /**
+         * Invoked when text is removed from the filter field.
+         *
+         * @param e The DocumentEvent object representing the change.
+         */
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            filter(e);
+        }
+
+        /**
+         * Invoked when an attribute of the filter field changes; the text is unchanged.
+         *
+         * @param e The DocumentEvent object representing the change.
+         */
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        /**
+         * Applies the text of the filter field to the username connected list.
+         *
+         * @param e The DocumentEvent object representing the change.
+         */
+        private void filter(DocumentEvent e) {
+            try {
+                String selected = getSelectedClient();
+                getListModel().setFilter(e.getDocument().getText(0, e.getDocument().getLength()));
+                selectClient(selected);
+            } catch (BadLocationException ex) {
+                /* The whole text of the document is always there. */
+            }
+        }
+    }
+
     /**
      * MouseAdapter implementation that listens for mouse clicks on the username connected list in the GUI.
      * This class handles the selection of a username from the list to send a message to.
@@ -854,9 +1375,8 @@ public class SimpleClientGUI implements StringConsumer, StringProducer {
          * @param index The index of the item to toggle.
          */
         private void toggleItem(int index) {
-            if (index >= 0 && index < getListModel().size()) {
+            if (index >= 0 && index < getListModel().getSize()) {
                 setSelectedClient(getListModel().getElementAt(index));
-                getListModel().setElementAt(getSelectedClient(), index);
                 System.out.println("Element that was chosen is: " + getSelectedClient() + " at index: " + index);
             }
         }
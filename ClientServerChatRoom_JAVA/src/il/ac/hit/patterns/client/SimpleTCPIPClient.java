@@ -2,8 +2,19 @@ package il.ac.hit.patterns.client;
 
 import il.ac.hit.patterns.ConnectionProxy;
 import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.HistoryCodec;
+import il.ac.hit.patterns.protocol.RosterUpdate;
 
 import javax.swing.*;
+import java.net.ProtocolException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -24,56 +35,255 @@ public class SimpleTCPIPClient {
         return gui;
     }
 
+    /** The protocol features this client asks the server for. */
+    static final Set<String> CLIENT_FEATURES = Set.of(Handshake.FEATURE_ROSTER, Handshake.FEATURE_FRAMES,
+            Handshake.FEATURE_DEFLATE, Handshake.FEATURE_ROOMS, Handshake.FEATURE_HISTORY, Handshake.FEATURE_RECEIPTS,
+            Handshake.FEATURE_SEARCH, Handshake.FEATURE_HEARTBEAT);
+
     /**
      * The SimpleConsumer class implements the StringConsumer interface.
      * It consumes messages received from the server.
+     * <p>
+     * One consumer serves one connection. If the server acknowledges the roster feature, messages arrive without the
+     * roster in front of them and the roster is kept by a {@link RosterTracker} instead.
+     * <p>
+     * Frames are taken as they are, so the messages and roster updates of the rooms the client joined are told apart
+     * by the room in their header. Every room has its own roster copy; the lobby's is the one of the default room.
+     * <p>
+     * The receipts of private messages are shown when a message was kept for an offline recipient or dropped, and
+     * again when a kept message is delivered.
+     * <p>
+     * The consumer runs on the connection's reader thread and never touches a Swing component itself: whatever it
+     * shows goes through the GUI's {@link RenderPipeline}, which shows it on the EDT in batches.
      */
-    static class SimpleConsumer implements StringConsumer {
+    static class SimpleConsumer implements StringConsumer, FrameConsumer {
+
+        private final ConnectionProxy proxy; // The connection this consumer reads from.
+        private final RosterTracker rosterTracker; // The roster copy of the lobby, used when the server sends roster updates.
+        private final Map<String, RosterTracker> roomRosters; // The roster copies of the joined rooms, by room name.
+        private volatile boolean rosterUpdates; // Whether the server acknowledged the roster feature.
+        private final Set<Long> queued; // The sequence numbers of sent private messages kept for offline recipients.
+
+        /**
+         * Constructs a SimpleConsumer object for a connection.
+         *
+         * @param proxy The connection this consumer reads from.
+         */
+        SimpleConsumer(ConnectionProxy proxy) {
+            this.proxy = proxy;
+            this.rosterTracker = new RosterTracker();
+            this.roomRosters = new ConcurrentHashMap<>();
+            this.queued = ConcurrentHashMap.newKeySet();
+        }
 
         /**
          * The consume method processes the received message.
          * It checks if the server approved the connection and handles different scenarios accordingly.
          * If the connection is not approved, it closes the connection and sets the GUI state to disconnected.
          * If the connection is approved, it clears the chat text field, sets the GUI state to connected,
-         * and prints the new client message into the chat text area.
-         * If the message is a regular text from a client to other clients, it simply prints the message in the chat text area.
+         * and prints the new client message into the chat area.
+         * If the message is a regular text from a client to other clients, it simply prints the message in the chat area.
+         * The state changes are queued on the render pipeline, so they happen in order with the messages around them.
          *
          * @param text The received message from the server.
          */
         @Override
         public void consume(String text) {
             System.out.println("'" + text + "' has just arrived from the server   thread=" + Thread.currentThread().getName());
+
+            /* Control messages are handled here and never shown in the chat. */
+            if (ControlMessage.isControl(text)) {
+                consumeControl(text);
+                return;
+            }
+
             String message = ExtractMessage(text);
 
             /* Do if server didn't approve the connection. */
             if (text.equals("Client name " + getGui().getTfClientName().getText() + " is already in the system, try a different user name.")) {
                 getGui().consumeToGuiTextArea(text);
                 getGui().getProxy().closeConnection();
-                getGui().setState(getGui().getDisconnectedState());
-                getGui().getState().setConnected(getGui());
+                getGui().getRenderPipeline().execute(() -> {
+                    getGui().setState(getGui().getDisconnectedState());
+                    getGui().getState().setConnected(getGui());
+                });
 
             /* Do if the server accepted the connection. */
             } else if (message.equals(gui.getTfClientName().getText().
                     replaceAll("\\s", "") + " ->" + getGui().getTfUserInput().getText() + " has entered the chat room!")) {
-                getGui().setTaChatText("");
-                getGui().setState(getGui().getConnectedState());
-                getGui().getState().setConnected(getGui());
-                getGui().consume(text);
+                getGui().getRenderPipeline().execute(() -> {
+                    getGui().clearChat();
+                    getGui().setState(getGui().getConnectedState());
+                    getGui().getState().setConnected(getGui());
+                });
+                showMessage(text, message);
 
             /* Do if the message received was a regular message between clients. */
+            } else {
+                showMessage(text, message);
+            }
+        }
+
+        /**
+         * Consumes a frame received from the server. Messages and control messages of the lobby are handled like
+         * text; those of a room go to the room. Earlier messages of the lobby or a room are shown as history.
+         *
+         * @param frame The received frame.
+         */
+        @Override
+        public void consumeFrame(Frame frame) {
+            if (frame.getType() == FrameType.HISTORY) {
+                try {
+                    if (HistoryCodec.isMail(frame)) {
+                        getGui().showMail(HistoryCodec.entries(frame));
+                    } else if (HistoryCodec.isSearch(frame)) {
+                        getGui().showSearchResults(frame.getRoom(), HistoryCodec.entries(frame), HistoryCodec.isEnd(frame));
+                    } else {
+                        getGui().showHistory(frame.getRoom(), HistoryCodec.entries(frame), HistoryCodec.isEnd(frame));
+                    }
+                } catch (ProtocolException e) {
+                    System.out.println("Malformed history from the server: " + e.getMessage());
+                }
+            } else if (frame.getRoom().isEmpty()) {
+                consume(frame.getText());
+            } else if (frame.getType() == FrameType.CONTROL) {
+                consumeControl(frame.getRoom(), frame.getText());
+            } else if (frame.getType() == FrameType.MESSAGE) {
+                getGui().appendRoomMessage(frame.getRoom(), frame.getText());
+            }
+        }
+
+        /**
+         * Shows a chat message in the GUI. A legacy message also carries the roster, which the GUI refreshes.
+         *
+         * @param text    The received text.
+         * @param message The message part of the text.
+         */
+        private void showMessage(String text, String message) {
+            if (isRosterUpdates()) {
+                getGui().appendMessage(message);
             } else {
                 getGui().consume(text);
             }
         }
 
+        /**
+         * Handles a control message received from the server about the lobby.
+         *
+         * @param text The control message.
+         */
+        private void consumeControl(String text) {
+            consumeControl("", text);
+        }
+
+        /**
+         * Handles a control message received from the server: the feature acknowledgement, the roster updates of
+         * the lobby and the joined rooms, the receipts of private messages, the requests to slow down and the
+         * heartbeats. A roster update that reveals a missing version is answered with a request for a new snapshot of
+         * that room, and a PING with a PONG.
+         *
+         * @param room The room the message is about, empty for the lobby.
+         * @param text The control message.
+         */
+        private void consumeControl(String room, String text) {
+            String type = ControlMessage.typeOf(text);
+            if (ControlMessage.ACK.equals(type)) {
+                rosterUpdates = Handshake.parseAcknowledgement(text).contains(Handshake.FEATURE_ROSTER);
+            } else if (ControlMessage.ROSTER.equals(type)) {
+                RosterTracker tracker = room.isEmpty() ? getRosterTracker() : roomRosters.computeIfAbsent(room, key -> new RosterTracker());
+                if (tracker.apply(RosterUpdate.parse(text))) {
+                    if (tracker.isSynced()) {
+                        getGui().updateRoster(room, tracker.getNames());
+                    }
+                } else {
+                    try {
+                        getProxy().consume(ControlMessage.of(ControlMessage.RESYNC, room));
+                    } catch (ChatException e) {
+                        System.out.println("Could not ask the server for the roster: " + e.getMessage());
+                    }
+                }
+            } else if (ControlMessage.STATUS.equals(type)) {
+                showReceipt(ControlMessage.bodyOf(text));
+            } else if (ControlMessage.SLOW_DOWN.equals(type)) {
+                if (ControlMessage.bodyOf(text).endsWith(" " + ControlMessage.OVERLOAD)) {
+                    getGui().consumeToGuiTextArea("System message -> The server is busy, your message was not sent.");
+                } else {
+                    getGui().consumeToGuiTextArea("System message -> You are sending too fast, your messages are not sent for now.");
+                }
+            } else if (ControlMessage.PING.equals(type)) {
+                try {
+                    getProxy().consume(ControlMessage.of(ControlMessage.PONG, ""));
+                } catch (ChatException e) {
+                    System.out.println("Could not answer the server's heartbeat: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Shows the receipt of a private message: {@code <sequence> <status> <recipient>}. A message delivered right
+         * away is not shown again, only one that was kept first.
+         *
+         * @param body The body of the STATUS message.
+         */
+        private void showReceipt(String body) {
+            String[] parts = body.split(" ", 3);
+            if (parts.length < 3) {
+                return;
+            }
+            long sequence;
+            try {
+                sequence = Long.parseLong(parts[0]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (ControlMessage.QUEUED.equals(parts[1])) {
+                queued.add(sequence);
+                getGui().consumeToGuiTextArea("System message -> " + parts[2] + " is offline, your message will be delivered when " + parts[2] + " connects.");
+            } else if (ControlMessage.UNDELIVERED.equals(parts[1])) {
+                getGui().consumeToGuiTextArea("System message -> Your message to " + parts[2] + " could not be delivered.");
+            } else if (ControlMessage.DELIVERED.equals(parts[1]) && queued.remove(sequence)) {
+                getGui().consumeToGuiTextArea("System message -> Your message to " + parts[2] + " was delivered.");
+            }
+        }
+
+        /**
+         * Retrieves the connection this consumer reads from.
+         *
+         * @return The connection proxy.
+         */
+        public ConnectionProxy getProxy() {
+            return proxy;
+        }
+
+        /**
+         * Retrieves the roster copy of the lobby.
+         *
+         * @return The roster tracker.
+         */
+        public RosterTracker getRosterTracker() {
+            return rosterTracker;
+        }
+
+        /**
+         * Checks whether the server sends roster updates instead of the roster in front of every message.
+         *
+         * @return {@code true} if the server acknowledged the roster feature.
+         */
+        public boolean isRosterUpdates() {
+            return rosterUpdates;
+        }
+
         /**
          * Extracts the message from the received text.
-         * The message is the part after the "$$$" separator.
+         * The message is the part after the "$$$" separator, or the whole text when the server sends roster updates.
          *
          * @param text The received text.
          * @return The extracted message.
          */
         public String ExtractMessage(String text) {
+            if (isRosterUpdates()) {
+                return text.trim();
+            }
             String message = "";
             // Split the text by "$$$" and capture the first part
             String[] parts = text.split("\\$\\$\\$");
@@ -106,7 +316,7 @@ public class SimpleTCPIPClient {
         String userName = usernameGenerator.generateUsername();
 
         /* Creating a new proxy connection. */
-        var proxy = new ConnectionProxy(serverIpAddress, serverListeningPort, userName);
+        var proxy = new ConnectionProxy(serverIpAddress, serverListeningPort, userName, CLIENT_FEATURES);
         System.out.println("we now have a ConnectionProxy object   thread=" + Thread.currentThread().getName());
 
         /*
@@ -129,7 +339,7 @@ public class SimpleTCPIPClient {
                     System.out.println("inside the run() of the GUIGenerator class thread=" + Thread.currentThread().getName());
                     System.out.println("The SimpleClientGUI class was instantiated thread=" + Thread.currentThread().getName());
 
-                    SimpleConsumer simpleConsumer = new SimpleConsumer();
+                    SimpleConsumer simpleConsumer = new SimpleConsumer(proxy);
                     System.out.println("consumer was added to the ConnectionProxy object   thread=" + Thread.currentThread().getName());
                     proxy.addConsumer(simpleConsumer);
                     getGui().setProxy(proxy);
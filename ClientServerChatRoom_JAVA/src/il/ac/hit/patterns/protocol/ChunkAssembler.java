@@ -0,0 +1,173 @@
+package il.ac.hit.patterns.protocol;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ChunkAssembler class puts large messages back together from their {@link FrameType#CHUNK} frames, see
+ * {@link ChunkCodec}. Each connection has its own assembler and feeds it from its read loop only.
+ * <p>
+ * The size cap bounds both a single message and the bytes held for all unfinished messages together, so a peer can
+ * never make the receiver buffer more than the cap. A message's buffer starts small and grows as its chunks arrive,
+ * so the bytes held are the bytes received, not the length the peer claims. On a server every assembler also draws
+ * on a shared {@link ReassemblyBudget}, which caps the bytes held for all connections together. Breaking any of the
+ * limits is a protocol error.
+ */
+public class ChunkAssembler {
+
+    /** The default cap, large enough for a 50MB paste. */
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 64 * 1024 * 1024;
+
+    /** The first buffer of a message, unless the message or its first chunk is of another size. */
+    public static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+    private final Map<Integer, Partial> partials; // The unfinished messages, by stream id.
+    private int maxMessageBytes; // The size cap.
+    private long bufferedBytes; // The bytes reserved for all unfinished messages.
+    private ReassemblyBudget budget; // The budget shared with the other connections, null for none.
+
+    /**
+     * Constructs a ChunkAssembler object.
+     *
+     * @param maxMessageBytes The size cap.
+     */
+    public ChunkAssembler(int maxMessageBytes) {
+        this.partials = new HashMap<>();
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Adds a chunk to its message.
+     *
+     * @param chunk The chunk frame.
+     * @return The whole MESSAGE frame if this was its last chunk, {@code null} otherwise.
+     * @throws ProtocolException If the chunk is malformed, out of order, or breaks the size cap.
+     */
+    public Frame accept(Frame chunk) throws ProtocolException {
+        int streamId = ChunkCodec.streamId(chunk);
+        int totalLength = ChunkCodec.totalLength(chunk);
+        int length = chunk.getPayload().length - ChunkCodec.HEADER_SIZE;
+        Partial partial = partials.get(streamId);
+        if (partial == null) {
+            if (totalLength < 0 || totalLength > maxMessageBytes) {
+                throw new ProtocolException("Message of " + totalLength + " bytes is over the size cap of "
+                        + maxMessageBytes + " bytes");
+            }
+            partial = new Partial(totalLength);
+            partials.put(streamId, partial);
+            grow(partial, Math.min(totalLength, Math.max(INITIAL_BUFFER_BYTES, length)));
+        } else if (partial.totalLength != totalLength) {
+            throw new ProtocolException("Chunk of stream " + streamId + " changed the message length");
+        }
+
+        if (length > partial.totalLength - partial.filled) {
+            throw new ProtocolException("Chunks of stream " + streamId + " are longer than the message");
+        }
+        if (length > partial.data.length - partial.filled) {
+            grow(partial, Math.min(partial.totalLength, Math.max(partial.filled + length, partial.data.length * 2)));
+        }
+        System.arraycopy(chunk.getPayload(), ChunkCodec.HEADER_SIZE, partial.data, partial.filled, length);
+        partial.filled += length;
+
+        if (!ChunkCodec.isLast(chunk)) {
+            return null;
+        }
+        discard(streamId);
+        if (partial.filled != partial.totalLength) {
+            throw new ProtocolException("Stream " + streamId + " ended before the whole message arrived");
+        }
+        /* The buffer only grows up to the message length, so a complete message fills it exactly. */
+        return new Frame(FrameType.MESSAGE, 0, chunk.getSender(), chunk.getRecipient(), chunk.getRoom(), partial.data);
+    }
+
+    /**
+     * Drops every unfinished message and gives its bytes back to the budget. Called when the connection closes, from
+     * the thread that feeds the assembler.
+     */
+    public void close() {
+        for (Integer streamId : partials.keySet().toArray(new Integer[0])) {
+            discard(streamId);
+        }
+    }
+
+    /**
+     * Sets the budget shared with the other connections. Called before the first chunk arrives.
+     *
+     * @param budget The budget, null for none.
+     */
+    public void setBudget(ReassemblyBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Enlarges the buffer of a message, reserving the extra bytes against the size cap and the budget. If they do not
+     * fit, every unfinished message is dropped, as the connection is closed for the protocol error.
+     *
+     * @param partial  The message.
+     * @param capacity The new buffer size, at most the message length.
+     * @throws ProtocolException If the extra bytes would break the size cap or the budget.
+     */
+    private void grow(Partial partial, int capacity) throws ProtocolException {
+        int extra = capacity - partial.data.length;
+        if (bufferedBytes + extra > maxMessageBytes) {
+            close();
+            throw new ProtocolException("Unfinished messages are over the size cap of " + maxMessageBytes + " bytes");
+        }
+        if (budget != null && !budget.reserve(extra)) {
+            close();
+            throw new ProtocolException("The server is reassembling too many large messages to take more");
+        }
+        bufferedBytes += extra;
+        partial.data = Arrays.copyOf(partial.data, capacity);
+    }
+
+    /**
+     * Forgets an unfinished message and gives its bytes back.
+     *
+     * @param streamId The stream id of the message.
+     */
+    private void discard(int streamId) {
+        Partial partial = partials.remove(streamId);
+        if (partial == null) {
+            return;
+        }
+        bufferedBytes -= partial.data.length;
+        if (budget != null) {
+            budget.release(partial.data.length);
+        }
+    }
+
+    /**
+     * Retrieves the size cap.
+     *
+     * @return The largest message, and the most bytes held for unfinished messages.
+     */
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Sets the size cap. Messages already being assembled keep the room they reserved.
+     *
+     * @param maxMessageBytes The largest message, and the most bytes held for unfinished messages.
+     */
+    public void setMaxMessageBytes(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * The Partial class is one message whose chunks are still arriving.
+     */
+    private static final class Partial {
+        private final int totalLength; // The length of the whole message, as the peer claims it.
+        private byte[] data; // The bytes received so far, and room for more; never longer than the message.
+        private int filled; // The bytes received so far.
+
+        private Partial(int totalLength) {
+            this.totalLength = totalLength;
+            this.data = new byte[0];
+        }
+    }
+}
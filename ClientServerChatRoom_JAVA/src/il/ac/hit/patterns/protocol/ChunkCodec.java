@@ -0,0 +1,116 @@
+package il.ac.hit.patterns.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ChunkCodec class splits a large MESSAGE frame into {@link FrameType#CHUNK} frames and reads their headers.
+ * <p>
+ * A message whose payload is longer than {@link #CHUNK_SIZE} is sent as a stream of chunks. Every chunk keeps the
+ * sender, recipient and room of the message, and its payload starts with a header:
+ * <pre>
+ * u32 stream id       the same for every chunk of one message, unique per sending side
+ * u32 total length    the payload length of the whole message
+ * bytes               the next part of the message payload
+ * </pre>
+ * The last chunk carries {@link #FLAG_LAST}. Chunks of one message arrive in order, but other frames (and chunks of
+ * other messages) may come between them, so a large message never holds back small ones by more than one chunk. The
+ * receiving side puts the message back together with a {@link ChunkAssembler}.
+ */
+public final class ChunkCodec {
+
+    /** The most message payload bytes carried by one chunk, and the payload size above which a message is chunked. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /** Flag of the last chunk of a message. */
+    public static final int FLAG_LAST = 0x01;
+
+    /** The size of the header in front of the data of every chunk. */
+    public static final int HEADER_SIZE = 8;
+
+    private static final AtomicInteger STREAM_IDS = new AtomicInteger(); // Numbers the streams sent by this JVM.
+
+    private ChunkCodec() {
+    }
+
+    /**
+     * Checks whether a message frame is sent as chunks.
+     *
+     * @param frame The frame.
+     * @return {@code true} if the payload is longer than {@link #CHUNK_SIZE}.
+     */
+    public static boolean needsChunks(Frame frame) {
+        return frame.getType() == FrameType.MESSAGE && frame.getPayload().length > CHUNK_SIZE;
+    }
+
+    /**
+     * Splits a message frame into chunks under a new stream id.
+     *
+     * @param frame The message frame.
+     * @return The chunks, in order.
+     */
+    public static List<Frame> split(Frame frame) {
+        int streamId = STREAM_IDS.incrementAndGet();
+        byte[] payload = frame.getPayload();
+        List<Frame> chunks = new ArrayList<>(payload.length / CHUNK_SIZE + 1);
+        for (int offset = 0; offset < payload.length || chunks.isEmpty(); offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, payload.length - offset);
+            boolean last = offset + length >= payload.length;
+            ByteBuffer chunk = ByteBuffer.allocate(HEADER_SIZE + length);
+            chunk.putInt(streamId).putInt(payload.length).put(payload, offset, length);
+            chunks.add(new Frame(FrameType.CHUNK, last ? FLAG_LAST : 0, frame.getSender(), frame.getRecipient(),
+                    frame.getRoom(), chunk.array()));
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Reads the stream id of a chunk.
+     *
+     * @param chunk The chunk frame.
+     * @return The stream id.
+     * @throws ProtocolException If the chunk has no header.
+     */
+    public static int streamId(Frame chunk) throws ProtocolException {
+        return header(chunk).getInt(0);
+    }
+
+    /**
+     * Reads the length of the whole message a chunk belongs to.
+     *
+     * @param chunk The chunk frame.
+     * @return The total payload length.
+     * @throws ProtocolException If the chunk has no header.
+     */
+    public static int totalLength(Frame chunk) throws ProtocolException {
+        return header(chunk).getInt(4);
+    }
+
+    /**
+     * Checks whether a chunk is the last one of its message.
+     *
+     * @param chunk The chunk frame.
+     * @return {@code true} if the chunk carries {@link #FLAG_LAST}.
+     */
+    public static boolean isLast(Frame chunk) {
+        return (chunk.getFlags() & FLAG_LAST) != 0;
+    }
+
+    /**
+     * Wraps the payload of a chunk after checking that it holds a header.
+     *
+     * @param chunk The chunk frame.
+     * @return The payload.
+     * @throws ProtocolException If the payload is shorter than the header.
+     */
+    private static ByteBuffer header(Frame chunk) throws ProtocolException {
+        if (chunk.getPayload().length < HEADER_SIZE) {
+            throw new ProtocolException("Chunk without header");
+        }
+        return ByteBuffer.wrap(chunk.getPayload());
+    }
+}
@@ -0,0 +1,163 @@
+package il.ac.hit.patterns.protocol;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CompressionStats class counts the work of {@link FrameCompression}: how many frames were compressed, how much
+ * smaller they got, and the CPU time spent on both sides. The counters are updated by every connection thread without
+ * locking and read as a consistent-enough snapshot for reporting.
+ */
+public final class CompressionStats {
+
+    private final LongAdder deflatedFrames = new LongAdder(); // Frames sent compressed.
+    private final LongAdder skippedFrames = new LongAdder(); // Frames sent uncompressed: too short or not smaller.
+    private final LongAdder deflateInputBytes = new LongAdder(); // Payload bytes before compression.
+    private final LongAdder deflateOutputBytes = new LongAdder(); // Payload bytes after compression.
+    private final LongAdder deflateNanos = new LongAdder(); // CPU time spent compressing.
+    private final LongAdder inflatedFrames = new LongAdder(); // Compressed frames received.
+    private final LongAdder inflateInputBytes = new LongAdder(); // Compressed payload bytes received.
+    private final LongAdder inflateOutputBytes = new LongAdder(); // Payload bytes after decompression.
+    private final LongAdder inflateNanos = new LongAdder(); // CPU time spent decompressing.
+
+    /**
+     * Counts a frame that was compressed.
+     *
+     * @param inputBytes  The payload length before compression.
+     * @param outputBytes The payload length after compression.
+     * @param nanos       The CPU time spent.
+     */
+    void recordDeflated(int inputBytes, int outputBytes, long nanos) {
+        deflatedFrames.increment();
+        deflateInputBytes.add(inputBytes);
+        deflateOutputBytes.add(outputBytes);
+        deflateNanos.add(nanos);
+    }
+
+    /**
+     * Counts a frame that was sent uncompressed.
+     */
+    void recordSkipped() {
+        skippedFrames.increment();
+    }
+
+    /**
+     * Counts a frame that was decompressed.
+     *
+     * @param inputBytes  The compressed payload length.
+     * @param outputBytes The payload length after decompression.
+     * @param nanos       The CPU time spent.
+     */
+    void recordInflated(int inputBytes, int outputBytes, long nanos) {
+        inflatedFrames.increment();
+        inflateInputBytes.add(inputBytes);
+        inflateOutputBytes.add(outputBytes);
+        inflateNanos.add(nanos);
+    }
+
+    /**
+     * Retrieves the number of frames sent compressed.
+     *
+     * @return The compressed frame count.
+     */
+    public long getDeflatedFrames() {
+        return deflatedFrames.sum();
+    }
+
+    /**
+     * Retrieves the number of frames considered for compression but sent uncompressed.
+     *
+     * @return The skipped frame count.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames.sum();
+    }
+
+    /**
+     * Retrieves the payload bytes of the compressed frames, before compression.
+     *
+     * @return The input bytes.
+     */
+    public long getDeflateInputBytes() {
+        return deflateInputBytes.sum();
+    }
+
+    /**
+     * Retrieves the payload bytes of the compressed frames, after compression.
+     *
+     * @return The output bytes.
+     */
+    public long getDeflateOutputBytes() {
+        return deflateOutputBytes.sum();
+    }
+
+    /**
+     * Retrieves the CPU time spent compressing.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getDeflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    /**
+     * Retrieves the number of compressed frames received.
+     *
+     * @return The decompressed frame count.
+     */
+    public long getInflatedFrames() {
+        return inflatedFrames.sum();
+    }
+
+    /**
+     * Retrieves the compressed payload bytes received.
+     *
+     * @return The input bytes.
+     */
+    public long getInflateInputBytes() {
+        return inflateInputBytes.sum();
+    }
+
+    /**
+     * Retrieves the payload bytes of the received compressed frames, after decompression.
+     *
+     * @return The output bytes.
+     */
+    public long getInflateOutputBytes() {
+        return inflateOutputBytes.sum();
+    }
+
+    /**
+     * Retrieves the CPU time spent decompressing.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /**
+     * Retrieves the compression ratio of the compressed frames, their original size over their compressed size.
+     *
+     * @return The ratio, 1 if nothing was compressed yet.
+     */
+    public double getCompressionRatio() {
+        long output = getDeflateOutputBytes();
+        return output == 0 ? 1 : (double) getDeflateInputBytes() / output;
+    }
+
+    /**
+     * Builds a one-line summary of the counters.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        long deflated = getDeflatedFrames();
+        long inflated = getInflatedFrames();
+        return String.format("compression: %d frames deflated (%d skipped), %d -> %d bytes, ratio %.2f, %.1f us cpu/frame; "
+                        + "%d frames inflated, %.1f us cpu/frame",
+                deflated, getSkippedFrames(), getDeflateInputBytes(), getDeflateOutputBytes(), getCompressionRatio(),
+                deflated == 0 ? 0.0 : getDeflateNanos() / 1000.0 / deflated,
+                inflated, inflated == 0 ? 0.0 : getInflateNanos() / 1000.0 / inflated);
+    }
+}
@@ -0,0 +1,171 @@
+package il.ac.hit.patterns.protocol;
+
+import java.util.regex.Pattern;
+
+/**
+ * The ControlMessage class builds and reads the control messages of the text protocol.
+ * <p>
+ * A control message starts with the {@link #PREFIX} character (which a user cannot type), followed by its type and an
+ * optional body separated by a space, e.g. {@code \u0001ROSTER 7 + Alice}. Control messages are only exchanged with
+ * clients that negotiated a feature which needs them, so legacy clients never see one, and between the nodes of a
+ * cluster. A connection that uses binary frames carries them in {@link FrameType#CONTROL} frames.
+ */
+public final class ControlMessage {
+
+    /** The first character of every control message. */
+    public static final char PREFIX = '\u0001';
+
+    /** Sent by the server right after the handshake, lists the features it accepted. */
+    public static final String ACK = "ACK";
+
+    /** A roster snapshot or delta, see {@link RosterUpdate}. */
+    public static final String ROSTER = "ROSTER";
+
+    /** Sent by a client that missed a roster version, asks the server for a new snapshot. */
+    public static final String RESYNC = "RESYNC";
+
+    /**
+     * Sent as text by a client that received an ACK for {@link Handshake#FEATURE_FRAMES}; everything the client sends
+     * after it is a binary {@link Frame}.
+     */
+    public static final String FRAMES = "FRAMES";
+
+    /** Sent by a client that negotiated {@link Handshake#FEATURE_ROOMS} to join the room named in the body. */
+    public static final String JOIN = "JOIN";
+
+    /** Sent by a client that negotiated {@link Handshake#FEATURE_ROOMS} to leave the room named in the body. */
+    public static final String PART = "PART";
+
+    /**
+     * Sent by a client that negotiated {@link Handshake#FEATURE_HISTORY} for messages older than the ones it has:
+     * {@code <before sequence> <count> <room>}, the room left out for the lobby. Answered with a
+     * {@link FrameType#HISTORY} frame.
+     */
+    public static final String HISTORY = "HISTORY";
+
+    /**
+     * Sent to a client that negotiated {@link Handshake#FEATURE_RECEIPTS} about a private message it sent:
+     * {@code <sequence> <status> <recipient>}, the status one of {@link #DELIVERED}, {@link #QUEUED} and
+     * {@link #UNDELIVERED}. A queued message gets a second receipt once it is delivered.
+     */
+    public static final String STATUS = "STATUS";
+
+    /** The {@link #STATUS} of a message handed to its recipient. */
+    public static final String DELIVERED = "delivered";
+
+    /** The {@link #STATUS} of a message kept until its recipient connects again. */
+    public static final String QUEUED = "queued";
+
+    /** The {@link #STATUS} of a message that has no recipient and was not kept. */
+    public static final String UNDELIVERED = "undelivered";
+
+    /**
+     * Sent by a client that negotiated {@link Handshake#FEATURE_SEARCH} to search the messages of a room:
+     * {@code <before sequence> <count> [room=<room>] [sender=<name>] [since=<ms>] [until=<ms>] <words>}, the room
+     * left out for the lobby. Answered with a {@link FrameType#HISTORY} frame marked with
+     * {@link HistoryCodec#FLAG_SEARCH} that holds the newest matching messages.
+     */
+    public static final String SEARCH = "SEARCH";
+
+    /**
+     * Sent to a client that negotiated any feature when a message it sent was not routed, because it sends faster
+     * than its rate allows or because the server is overloaded: {@code <retry after ms> <kind> <reason>}, the kind
+     * one of {@code broadcast}, {@code private} and {@code control}, the reason {@link #RATE} or {@link #OVERLOAD}.
+     * Sent once per run of refused messages.
+     */
+    public static final String SLOW_DOWN = "SLOW_DOWN";
+
+    /** The reason of a {@link #SLOW_DOWN} for a client that used up its rate. */
+    public static final String RATE = "rate";
+
+    /** The reason of a {@link #SLOW_DOWN} for a message shed while the server is overloaded. */
+    public static final String OVERLOAD = "overload";
+
+    /**
+     * Sent to a client that negotiated {@link Handshake#FEATURE_HEARTBEAT} when nothing arrived from it for
+     * {@code --heartbeat-interval-ms}. The client answers with {@link #PONG}.
+     */
+    public static final String PING = "PING";
+
+    /** The answer of a client to a {@link #PING}. */
+    public static final String PONG = "PONG";
+
+    /** Sent by a cluster node on a peer link right after its ACK, the body is its node id. */
+    public static final String NODE = "NODE";
+
+    /**
+     * Sent by a cluster node when one of its clients joined ({@code + name}) or left ({@code - name}) the room named
+     * in the frame.
+     */
+    public static final String MEMBER = "MEMBER";
+
+    /** Sent by a cluster node to the node that owns a client name, asks to reserve it: {@code <request id> <name>}. */
+    public static final String CLAIM = "CLAIM";
+
+    /** The answer to a {@link #CLAIM} that reserved the name, the body is the request id. */
+    public static final String GRANT = "GRANT";
+
+    /** The answer to a {@link #CLAIM} for a name that is taken, the body is the request id. */
+    public static final String DENY = "DENY";
+
+    /** Sent by a cluster node that got a name reserved but did not use it, the body is the name. */
+    public static final String RELEASE = "RELEASE";
+
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}"); // The names a room may have.
+
+    private ControlMessage() {
+    }
+
+    /**
+     * Checks whether the text is a control message.
+     *
+     * @param text The received text.
+     * @return {@code true} if the text is a control message.
+     */
+    public static boolean isControl(String text) {
+        return !text.isEmpty() && text.charAt(0) == PREFIX;
+    }
+
+    /**
+     * Builds a control message.
+     *
+     * @param type The type of the message.
+     * @param body The body of the message, may be empty.
+     * @return The control message text.
+     */
+    public static String of(String type, String body) {
+        return body.isEmpty() ? PREFIX + type : PREFIX + type + " " + body;
+    }
+
+    /**
+     * Retrieves the type of a control message.
+     *
+     * @param text The control message text.
+     * @return The type of the message.
+     */
+    public static String typeOf(String text) {
+        int space = text.indexOf(' ');
+        return text.substring(1, space == -1 ? text.length() : space);
+    }
+
+    /**
+     * Retrieves the body of a control message.
+     *
+     * @param text The control message text.
+     * @return The body of the message, empty if it has none.
+     */
+    public static String bodyOf(String text) {
+        int space = text.indexOf(' ');
+        return space == -1 ? "" : text.substring(space + 1);
+    }
+
+    /**
+     * Checks whether a name may be used for a room. The default room has the empty name and cannot be joined or left.
+     *
+     * @param name The room name.
+     * @return {@code true} if the name has 1 to 32 letters, digits, dashes or underscores.
+     */
+    public static boolean isRoomName(String name) {
+        return ROOM_NAME.matcher(name).matches();
+    }
+}
@@ -0,0 +1,143 @@
+package il.ac.hit.patterns.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Frame class is one message of the binary protocol, negotiated with the {@link Handshake#FEATURE_FRAMES}
+ * feature.
+ * <p>
+ * Instead of the {@code ##$$$###} and {@code #$$$#} delimiters of the text format, a frame carries its routing in typed
+ * fields, so a message may contain any text and nothing has to be parsed with a regular expression. Clients are
+ * identified by their unique names. An empty recipient is a message to every client, and an empty room is the default
+ * room. See {@link FrameCodec} for the layout on the wire.
+ */
+public final class Frame {
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final FrameType type; // The type of the frame.
+    private final int flags; // Flags of the frame, one byte on the wire.
+    private final String sender; // The name of the sender, empty if not known or not relevant.
+    private final String recipient; // The name of the recipient, empty for every client.
+    private final String room; // The room of the message, empty for the default room.
+    private final byte[] payload; // The body of the frame.
+
+    /**
+     * Constructs a Frame object.
+     *
+     * @param type      The type of the frame.
+     * @param flags     The flags of the frame, 0 to 255.
+     * @param sender    The name of the sender, empty if not known.
+     * @param recipient The name of the recipient, empty for every client.
+     * @param room      The room of the message, empty for the default room.
+     * @param payload   The body of the frame, not copied.
+     */
+    public Frame(FrameType type, int flags, String sender, String recipient, String room, byte[] payload) {
+        if (flags < 0 || flags > 0xFF) {
+            throw new IllegalArgumentException("Frame flags out of range: " + flags);
+        }
+        this.type = type;
+        this.flags = flags;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.payload = payload == null ? NO_PAYLOAD : payload;
+    }
+
+    /**
+     * Builds a chat message frame.
+     *
+     * @param sender    The name of the sender.
+     * @param recipient The name of the recipient, empty for every client.
+     * @param room      The room of the message, empty for the default room.
+     * @param text      The message text.
+     * @return The frame.
+     */
+    public static Frame message(String sender, String recipient, String room, String text) {
+        return new Frame(FrameType.MESSAGE, 0, sender, recipient, room, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds a control message frame.
+     *
+     * @param text The control message text, see {@link ControlMessage}.
+     * @return The frame.
+     */
+    public static Frame control(String text) {
+        return control("", text);
+    }
+
+    /**
+     * Builds a control message frame about a room, such as the roster update of the room.
+     *
+     * @param room The room, empty for the default room.
+     * @param text The control message text, see {@link ControlMessage}.
+     * @return The frame.
+     */
+    public static Frame control(String room, String text) {
+        return new Frame(FrameType.CONTROL, 0, "", "", room, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Retrieves the type of the frame.
+     *
+     * @return The frame type.
+     */
+    public FrameType getType() {
+        return type;
+    }
+
+    /**
+     * Retrieves the flags of the frame.
+     *
+     * @return The flags, 0 to 255.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Retrieves the name of the sender.
+     *
+     * @return The sender, empty if not known.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Retrieves the name of the recipient.
+     *
+     * @return The recipient, empty for every client.
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Retrieves the room of the message.
+     *
+     * @return The room, empty for the default room.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Retrieves the body of the frame. The array is shared, callers must not change it.
+     *
+     * @return The payload.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Decodes the payload as UTF-8 text, the body of the MESSAGE and CONTROL frames.
+     *
+     * @return The payload text.
+     */
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+package il.ac.hit.patterns.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The FrameCodec class writes and reads {@link Frame}s in the binary wire format.
+ * <p>
+ * Layout, all numbers big-endian:
+ * <pre>
+ * u32 length                  bytes that follow
+ * u8  version                 {@link #VERSION}
+ * u8  type                    {@link FrameType#getCode()}
+ * u8  flags
+ * u16 length + UTF-8 bytes    sender
+ * u16 length + UTF-8 bytes    recipient
+ * u16 length + UTF-8 bytes    room
+ * u32 length + bytes          payload
+ * </pre>
+ * A frame whose version is not {@link #VERSION} is rejected, so the layout can change in a later version.
+ */
+public final class FrameCodec {
+
+    /** The version of the frame layout. */
+    public static final int VERSION = 1;
+
+    /** The size of the length prefix in front of every frame. */
+    public static final int LENGTH_PREFIX_SIZE = 4;
+
+    /** The largest frame body accepted, a larger length is treated as a broken stream. */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private static final int MAX_FIELD_LENGTH = 0xFFFF; // Longest encoded sender, recipient or room.
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a frame, length prefix included.
+     *
+     * @param frame The frame.
+     * @return The encoded frame.
+     * @throws ProtocolException If a field or the whole frame is too long.
+     */
+    public static byte[] encode(Frame frame) throws ProtocolException {
+        byte[] sender = field(frame.getSender());
+        byte[] recipient = field(frame.getRecipient());
+        byte[] room = field(frame.getRoom());
+        byte[] payload = frame.getPayload();
+
+        int length = 3 + 2 + sender.length + 2 + recipient.length + 2 + room.length + 4 + payload.length;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Frame too long: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + length);
+        buffer.putInt(length);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) frame.getType().getCode());
+        buffer.put((byte) frame.getFlags());
+        buffer.putShort((short) sender.length).put(sender);
+        buffer.putShort((short) recipient.length).put(recipient);
+        buffer.putShort((short) room.length).put(room);
+        buffer.putInt(payload.length).put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Reads one frame from a stream, blocking until it arrived.
+     *
+     * @param in The stream.
+     * @return The frame.
+     * @throws IOException If the stream fails, ends, or carries a malformed frame.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Checks the length read from a frame prefix.
+     *
+     * @param length The length of the frame body.
+     * @throws ProtocolException If the length is negative or larger than {@link #MAX_FRAME_LENGTH}.
+     */
+    public static void checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Illegal frame length " + length);
+        }
+    }
+
+    /**
+     * Decodes the body of a frame, the bytes after the length prefix.
+     *
+     * @param body The frame body, from its position to its limit.
+     * @return The frame.
+     * @throws ProtocolException If the body is not a valid frame.
+     */
+    public static Frame decode(ByteBuffer body) throws ProtocolException {
+        try {
+            int version = body.get() & 0xFF;
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version);
+            }
+            FrameType type = FrameType.of(body.get() & 0xFF);
+            int flags = body.get() & 0xFF;
+            String sender = readField(body);
+            String recipient = readField(body);
+            String room = readField(body);
+            int payloadLength = body.getInt();
+            if (payloadLength != body.remaining()) {
+                throw new ProtocolException("Frame payload length " + payloadLength + " does not match the frame");
+            }
+            byte[] payload = new byte[payloadLength];
+            body.get(payload);
+            return new Frame(type, flags, sender, recipient, room, payload);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new ProtocolException("Malformed frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a string field.
+     *
+     * @param value The field value.
+     * @return The UTF-8 bytes of the value.
+     * @throws ProtocolException If the value is too long for its u16 length.
+     */
+    private static byte[] field(String value) throws ProtocolException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_FIELD_LENGTH) {
+            throw new ProtocolException("Frame field too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes a string field.
+     *
+     * @param body The frame body, positioned at the field.
+     * @return The field value.
+     */
+    private static String readField(ByteBuffer body) {
+        int length = body.getShort() & 0xFFFF;
+        if (length > body.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+}
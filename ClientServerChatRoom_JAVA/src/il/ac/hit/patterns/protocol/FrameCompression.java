@@ -0,0 +1,236 @@
+package il.ac.hit.patterns.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The FrameCompression class compresses the payload of MESSAGE frames for connections that negotiated the
+ * {@link Handshake#FEATURE_DEFLATE} feature.
+ * <p>
+ * A compressed frame carries {@link #FLAG_DEFLATED} and a raw deflate stream as its payload. Every frame is compressed
+ * on its own, with no state kept between frames, so a broadcast is compressed once and the same bytes go to every
+ * recipient (see {@link OutboundMessage}). Short chat lines gain little from deflate alone, so both sides preset the
+ * same dictionary: common chat and protocol tokens followed by the names of the sender and the recipient, which the
+ * receiver reads from the uncompressed frame header.
+ * <p>
+ * Payloads shorter than {@link #MIN_LENGTH}, payloads that do not get smaller, and large messages sent as chunks are
+ * sent uncompressed. The work done is counted in {@link #getStats()}.
+ */
+public final class FrameCompression {
+
+    /** Flag of a MESSAGE frame whose payload is compressed. */
+    public static final int FLAG_DEFLATED = 0x02;
+
+    /** The shortest payload worth compressing, in bytes. */
+    public static final int MIN_LENGTH = 128;
+
+    /* Tokens chat messages are made of. Deflate finds matches near the end of the dictionary cheapest, so the most
+    frequent tokens come last. */
+    private static final byte[] BASE_DICTIONARY = (
+            "https://www. .com .org .net http:// @gmail.com "
+                    + "please could would should there their about think thanks thank you really because "
+                    + "what when where which how why who yes no ok okay lol :) :( :D haha sure good great "
+                    + "morning night today tomorrow see you later bye hello hi hey everyone all "
+                    + "is are was were be been have has had do does did will can not it's I'm don't "
+                    + "the and that this with for from to of in on at a an I you we they he she it "
+                    + "Guest All $$$ ##$$$### #$$$# has entered the chat room! -> has left the chat room! "
+                    + " -> ").getBytes(StandardCharsets.UTF_8);
+
+    private static final CompressionStats STATS = new CompressionStats(); // Counts the work of every connection.
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported(); // Otherwise wall time is counted.
+
+    /** The most idle deflaters, and the most idle inflaters, kept for reuse. */
+    public static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /* Deflater and Inflater hold native zlib memory, which the garbage collector does not see, and are costly to create.
+       They are borrowed from small pools instead of kept per thread, so 10k reader threads do not hold 10k of each;
+       one that does not fit back into its pool is ended straight away. */
+    private static final Pool<Deflater> DEFLATERS = new Pool<>(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+            Deflater::reset, Deflater::end);
+    private static final Pool<Inflater> INFLATERS = new Pool<>(() -> new Inflater(true), Inflater::reset, Inflater::end);
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Compresses the payload of a MESSAGE frame.
+     *
+     * @param frame The frame.
+     * @return The compressed frame, or the same frame if it is not a MESSAGE, is too short, or would not get smaller.
+     */
+    public static Frame deflate(Frame frame) {
+        byte[] payload = frame.getPayload();
+        if (frame.getType() != FrameType.MESSAGE || (frame.getFlags() & FLAG_DEFLATED) != 0) {
+            return frame;
+        }
+        if (payload.length < MIN_LENGTH) {
+            STATS.recordSkipped();
+            return frame;
+        }
+
+        long start = cpuTime();
+        Deflater deflater = DEFLATERS.borrow();
+        byte[] compressed;
+        int length;
+        try {
+            deflater.setDictionary(dictionary(frame));
+            deflater.setInput(payload);
+            deflater.finish();
+            /* Stop as soon as the output is not smaller than the input, the frame is then sent as it is. */
+            compressed = new byte[payload.length];
+            length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) {
+                length = payload.length;
+            }
+        } finally {
+            DEFLATERS.release(deflater);
+        }
+        long cpu = cpuTime() - start;
+
+        if (length >= payload.length) {
+            STATS.recordSkipped();
+            return frame;
+        }
+        STATS.recordDeflated(payload.length, length, cpu);
+        return new Frame(FrameType.MESSAGE, frame.getFlags() | FLAG_DEFLATED, frame.getSender(), frame.getRecipient(),
+                frame.getRoom(), Arrays.copyOf(compressed, length));
+    }
+
+    /**
+     * Restores the payload of a compressed MESSAGE frame.
+     *
+     * @param frame The frame as received.
+     * @return The frame with its original payload, or the same frame if it is not compressed.
+     * @throws ProtocolException If the payload is not a valid deflate stream or expands past
+     *                           {@link FrameCodec#MAX_FRAME_LENGTH}.
+     */
+    public static Frame inflate(Frame frame) throws ProtocolException {
+        if (frame.getType() != FrameType.MESSAGE || (frame.getFlags() & FLAG_DEFLATED) == 0) {
+            return frame;
+        }
+
+        long start = cpuTime();
+        Inflater inflater = INFLATERS.borrow();
+        byte[] payload = new byte[Math.min(FrameCodec.MAX_FRAME_LENGTH, Math.max(MIN_LENGTH, frame.getPayload().length * 4))];
+        int length = 0;
+        try {
+            inflater.setInput(frame.getPayload());
+            inflater.setDictionary(dictionary(frame));
+            while (!inflater.finished()) {
+                if (length == payload.length) {
+                    if (payload.length == FrameCodec.MAX_FRAME_LENGTH) {
+                        throw new ProtocolException("Compressed frame expands past " + FrameCodec.MAX_FRAME_LENGTH + " bytes");
+                    }
+                    payload = Arrays.copyOf(payload, Math.min(FrameCodec.MAX_FRAME_LENGTH, payload.length * 2));
+                }
+                int inflated = inflater.inflate(payload, length, payload.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Compressed frame ends before its deflate stream");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Malformed compressed frame: " + e.getMessage());
+        } finally {
+            INFLATERS.release(inflater);
+        }
+        STATS.recordInflated(frame.getPayload().length, length, cpuTime() - start);
+        return new Frame(FrameType.MESSAGE, frame.getFlags() & ~FLAG_DEFLATED, frame.getSender(), frame.getRecipient(),
+                frame.getRoom(), Arrays.copyOf(payload, length));
+    }
+
+    /**
+     * Builds the preset dictionary of a frame: the common tokens followed by the recipient and sender names.
+     *
+     * @param frame The frame.
+     * @return The dictionary.
+     */
+    private static byte[] dictionary(Frame frame) {
+        byte[] names = (" " + frame.getRecipient() + " " + frame.getSender() + " -> ").getBytes(StandardCharsets.UTF_8);
+        byte[] dictionary = Arrays.copyOf(BASE_DICTIONARY, BASE_DICTIONARY.length + names.length);
+        System.arraycopy(names, 0, dictionary, BASE_DICTIONARY.length, names.length);
+        return dictionary;
+    }
+
+    /**
+     * Reads the CPU time of the calling thread, or the wall time if the JVM cannot measure CPU time.
+     *
+     * @return A time in nanoseconds, only meaningful as a difference.
+     */
+    private static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Retrieves the compression counters of this JVM.
+     *
+     * @return The counters.
+     */
+    public static CompressionStats getStats() {
+        return STATS;
+    }
+
+    /**
+     * The Pool class keeps up to {@link #POOL_SIZE} idle coders of one kind for reuse.
+     *
+     * @param <T> The type of the coders.
+     */
+    private static final class Pool<T> {
+
+        private final BlockingQueue<T> idle; // The coders not in use, reset.
+        private final Supplier<T> factory; // Creates a coder when none is idle.
+        private final Consumer<T> reset; // Makes a used coder ready for the next stream.
+        private final Consumer<T> end; // Frees the native memory of a coder that is not kept.
+
+        /**
+         * Constructs an empty Pool object.
+         *
+         * @param factory Creates a coder when none is idle.
+         * @param reset   Makes a used coder ready for the next stream.
+         * @param end     Frees the native memory of a coder that is not kept.
+         */
+        private Pool(Supplier<T> factory, Consumer<T> reset, Consumer<T> end) {
+            this.idle = new ArrayBlockingQueue<>(POOL_SIZE);
+            this.factory = factory;
+            this.reset = reset;
+            this.end = end;
+        }
+
+        /**
+         * Takes an idle coder, or creates one if none is idle.
+         *
+         * @return The coder, to be given back with {@link #release}.
+         */
+        private T borrow() {
+            T coder = idle.poll();
+            return coder != null ? coder : factory.get();
+        }
+
+        /**
+         * Gives a coder back: it is reset and kept if the pool has room, and ended otherwise.
+         *
+         * @param coder The coder.
+         */
+        private void release(T coder) {
+            reset.accept(coder);
+            if (!idle.offer(coder)) {
+                end.accept(coder);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package il.ac.hit.patterns.protocol;
+
+import il.ac.hit.patterns.client.ChatException;
+
+/**
+ * The FrameConsumer interface is implemented by the consumers that take binary {@link Frame}s as they are, instead of
+ * their text only.
+ */
+public interface FrameConsumer {
+
+    /**
+     * Consumes a frame.
+     *
+     * @param frame The frame.
+     * @throws ChatException If an error occurs while consuming the frame.
+     */
+    public void consumeFrame(Frame frame) throws ChatException;
+}
@@ -0,0 +1,47 @@
+package il.ac.hit.patterns.protocol;
+
+/**
+ * The FrameType enum lists the types of binary {@link Frame}s and their codes on the wire.
+ */
+public enum FrameType {
+
+    /** A chat message, the payload is its UTF-8 text. */
+    MESSAGE(1),
+    /** A control message ({@link ControlMessage}), the payload is its UTF-8 text. */
+    CONTROL(2),
+    /** One piece of a large MESSAGE, see {@link ChunkCodec}. */
+    CHUNK(3),
+    /** Earlier messages of a room, sent in one batch, see {@link HistoryCodec}. */
+    HISTORY(4);
+
+    private final int code; // The code of the type on the wire.
+
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Retrieves the code of the type on the wire.
+     *
+     * @return The type code.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Finds the type with the given code.
+     *
+     * @param code The type code read from the wire.
+     * @return The frame type.
+     * @throws IllegalArgumentException If no type has the code.
+     */
+    public static FrameType of(int code) {
+        for (FrameType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown frame type " + code);
+    }
+}
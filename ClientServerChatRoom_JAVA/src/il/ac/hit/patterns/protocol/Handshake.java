@@ -0,0 +1,177 @@
+package il.ac.hit.patterns.protocol;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The Handshake class represents the first message a client sends: its name, optionally followed by the protocol
+ * features it supports.
+ * <p>
+ * A legacy client sends only its name. A newer client appends {@link ControlMessage#PREFIX} and a comma separated
+ * feature list ({@code Alice\u0001roster}). A server that understands the list answers with an {@code ACK} control
+ * message naming the features it accepted; every feature not acknowledged is off, so both sides fall back to the
+ * legacy text format whenever the other side is older.
+ */
+public final class Handshake {
+
+    /** Roster snapshots and join/leave deltas instead of the full roster in front of every message. */
+    public static final String FEATURE_ROSTER = "roster";
+
+    /**
+     * Binary {@link Frame}s instead of writeUTF text. The server switches to frames right after its ACK, the client
+     * right after it sent {@link ControlMessage#FRAMES}.
+     */
+    public static final String FEATURE_FRAMES = "frames";
+
+    /**
+     * Compressed MESSAGE frames, see {@link FrameCompression}. Only accepted together with {@link #FEATURE_FRAMES}, the
+     * text format cannot carry compressed bytes.
+     */
+    public static final String FEATURE_DEFLATE = "deflate";
+
+    /**
+     * Named rooms besides the default one: the client joins and leaves them with {@link ControlMessage#JOIN} and
+     * {@link ControlMessage#PART}, and their messages and roster updates carry the room in the frame header. Only
+     * accepted together with {@link #FEATURE_FRAMES}.
+     */
+    public static final String FEATURE_ROOMS = "rooms";
+
+    /**
+     * The recent messages of the lobby and of every joined room in a {@link FrameType#HISTORY} frame, and older ones on
+     * request with {@link ControlMessage#HISTORY}. Only accepted together with {@link #FEATURE_FRAMES}.
+     */
+    public static final String FEATURE_HISTORY = "history";
+
+    /**
+     * A {@link ControlMessage#STATUS} receipt for every private message the client sends, telling whether it was
+     * delivered, kept in the recipient's offline mailbox or dropped. Works with text and with frames.
+     */
+    public static final String FEATURE_RECEIPTS = "receipts";
+
+    /**
+     * Full-text search of the messages of a room with {@link ControlMessage#SEARCH}, answered with a
+     * {@link FrameType#HISTORY} frame. Only accepted together with {@link #FEATURE_FRAMES}.
+     */
+    public static final String FEATURE_SEARCH = "search";
+
+    /**
+     * A {@link ControlMessage#PING} from the server when the client has been quiet for a while, which the client
+     * answers with {@link ControlMessage#PONG}; a client that stays silent is disconnected. Works with text and with
+     * frames.
+     */
+    public static final String FEATURE_HEARTBEAT = "heartbeat";
+
+    /** The features this version of the server implements. */
+    public static final Set<String> SERVER_FEATURES = Set.of(FEATURE_ROSTER, FEATURE_FRAMES, FEATURE_DEFLATE, FEATURE_ROOMS,
+            FEATURE_HISTORY, FEATURE_RECEIPTS, FEATURE_SEARCH, FEATURE_HEARTBEAT);
+
+    private final String clientName; // The name of the client.
+    private final Set<String> features; // The features the client asked for.
+
+    /**
+     * Constructs a Handshake object.
+     *
+     * @param clientName The name of the client.
+     * @param features   The features the client asked for.
+     */
+    public Handshake(String clientName, Set<String> features) {
+        this.clientName = clientName;
+        this.features = Collections.unmodifiableSet(new LinkedHashSet<>(features));
+    }
+
+    /**
+     * Builds the handshake text a client sends.
+     *
+     * @param clientName The name of the client.
+     * @param features   The features the client supports, empty for a legacy handshake.
+     * @return The handshake text.
+     */
+    public static String encode(String clientName, Collection<String> features) {
+        return features.isEmpty() ? clientName : clientName + ControlMessage.PREFIX + String.join(",", features);
+    }
+
+    /**
+     * Parses the handshake text received by the server.
+     *
+     * @param text The handshake text.
+     * @return The parsed handshake.
+     */
+    public static Handshake parse(String text) {
+        int separator = text.indexOf(ControlMessage.PREFIX);
+        if (separator == -1) {
+            return new Handshake(text, Set.of());
+        }
+        return new Handshake(text.substring(0, separator), parseFeatures(text.substring(separator + 1)));
+    }
+
+    /**
+     * Builds the acknowledgement the server sends back.
+     *
+     * @param accepted The features the server accepted.
+     * @return The ACK control message.
+     */
+    public static String acknowledge(Collection<String> accepted) {
+        return ControlMessage.of(ControlMessage.ACK, String.join(",", accepted));
+    }
+
+    /**
+     * Reads the accepted features from an ACK control message.
+     *
+     * @param text The ACK control message.
+     * @return The features the server accepted.
+     */
+    public static Set<String> parseAcknowledgement(String text) {
+        return parseFeatures(ControlMessage.bodyOf(text));
+    }
+
+    /**
+     * Splits a comma separated feature list.
+     *
+     * @param list The feature list.
+     * @return The features in the list.
+     */
+    private static Set<String> parseFeatures(String list) {
+        Set<String> features = new LinkedHashSet<>(Arrays.asList(list.split(",")));
+        features.remove("");
+        return features;
+    }
+
+    /**
+     * Retrieves the name of the client.
+     *
+     * @return The client name.
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Retrieves the features the client asked for.
+     *
+     * @return The requested features.
+     */
+    public Set<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Retrieves the requested features this server implements, the ones it acknowledges. Compression, rooms, history
+     * and search are only acknowledged together with frames.
+     *
+     * @return The accepted features.
+     */
+    public Set<String> getAcceptedFeatures() {
+        Set<String> accepted = new LinkedHashSet<>(features);
+        accepted.retainAll(SERVER_FEATURES);
+        if (!accepted.contains(FEATURE_FRAMES)) {
+            accepted.remove(FEATURE_DEFLATE);
+            accepted.remove(FEATURE_ROOMS);
+            accepted.remove(FEATURE_HISTORY);
+            accepted.remove(FEATURE_SEARCH);
+        }
+        return Collections.unmodifiableSet(accepted);
+    }
+}
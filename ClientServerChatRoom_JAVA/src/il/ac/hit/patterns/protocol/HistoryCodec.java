@@ -0,0 +1,221 @@
+package il.ac.hit.patterns.protocol;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The HistoryCodec class packs earlier messages of a room into one {@link FrameType#HISTORY} frame and reads them back.
+ * <p>
+ * The frame names the room, and its payload holds the messages, oldest first:
+ * <pre>
+ * u32 count
+ * count times:
+ *   u64 sequence
+ *   u64 timestamp
+ *   u32 length + UTF-8 bytes    sender
+ *   u32 length + UTF-8 bytes    recipient, empty for every member of the room
+ *   u32 length + UTF-8 bytes    text
+ * </pre>
+ * A frame carries at most {@link #MAX_PAYLOAD} bytes; when the messages do not fit, the oldest ones are left out and
+ * the client can ask for them with {@link ControlMessage#HISTORY}. {@link #FLAG_END} marks a frame after which the
+ * server has nothing older.
+ * <p>
+ * The same frame, marked with {@link #FLAG_MAIL}, carries the private messages kept for a client while it was offline
+ * (see {@link #mail}), and, marked with {@link #FLAG_SEARCH}, the messages that match a {@link ControlMessage#SEARCH}.
+ */
+public final class HistoryCodec {
+
+    /** The most payload bytes of one history frame, well below {@link FrameCodec#MAX_FRAME_LENGTH}. */
+    public static final int MAX_PAYLOAD = 512 * 1024;
+
+    /** Flag of a history frame that reaches back to the oldest message the server keeps. */
+    public static final int FLAG_END = 0x01;
+
+    /** Flag of a history frame that holds private messages sent to the client while it was offline. */
+    public static final int FLAG_MAIL = 0x02;
+
+    /** Flag of a history frame that holds the messages matching a search, with {@link #FLAG_END} after the last page. */
+    public static final int FLAG_SEARCH = 0x04;
+
+    private static final int ENTRY_OVERHEAD = 8 + 8 + 4 + 4 + 4; // The bytes of an entry besides its strings.
+
+    private HistoryCodec() {
+    }
+
+    /**
+     * Builds the history frame of a room. Messages that do not fit in {@link #MAX_PAYLOAD} are left out, oldest first,
+     * and the frame is then not marked with {@link #FLAG_END}.
+     *
+     * @param room    The room, empty for the default room.
+     * @param entries The messages, oldest first.
+     * @param end     Whether the server has no message older than the first one.
+     * @return The frame.
+     */
+    public static Frame frame(String room, List<HistoryEntry> entries, boolean end) {
+        return frame(room, entries, end ? FLAG_END : 0);
+    }
+
+    /**
+     * Builds the frame that answers a search in a room.
+     *
+     * @param room    The room searched, empty for the default room.
+     * @param entries The matching messages, oldest first.
+     * @param end     Whether no older message matches.
+     * @return The frame.
+     */
+    public static Frame results(String room, List<HistoryEntry> entries, boolean end) {
+        return frame(room, entries, FLAG_SEARCH | (end ? FLAG_END : 0));
+    }
+
+    /**
+     * Builds the frames that hand a client the messages kept while it was offline: as few frames as hold them all, each
+     * marked with {@link #FLAG_MAIL}. None of the messages is left out.
+     *
+     * @param entries The messages, oldest first.
+     * @return The frames, oldest messages first.
+     */
+    public static List<Frame> mail(List<HistoryEntry> entries) {
+        List<Frame> frames = new ArrayList<>(1);
+        int from = 0;
+        int length = 4;
+        for (int i = 0; i < entries.size(); i++) {
+            int size = size(entries.get(i));
+            if (i > from && length + size > MAX_PAYLOAD) {
+                frames.add(frame("", entries.subList(from, i), FLAG_MAIL));
+                from = i;
+                length = 4;
+            }
+            length += size;
+        }
+        frames.add(frame("", entries.subList(from, entries.size()), FLAG_MAIL));
+        return frames;
+    }
+
+    /**
+     * Builds a history frame, leaving out the oldest messages that do not fit. {@link #FLAG_END} is cleared if any is
+     * left out.
+     *
+     * @param room    The room, empty for the default room.
+     * @param entries The messages, oldest first.
+     * @param flags   The flags of the frame.
+     * @return The frame.
+     */
+    private static Frame frame(String room, List<HistoryEntry> entries, int flags) {
+        List<byte[][]> encoded = new ArrayList<>(entries.size());
+        int length = 4;
+        /* Newest first, so the most recent messages are the ones that fit. */
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            HistoryEntry entry = entries.get(i);
+            byte[][] fields = {entry.getSender().getBytes(StandardCharsets.UTF_8),
+                    entry.getRecipient().getBytes(StandardCharsets.UTF_8), entry.getText().getBytes(StandardCharsets.UTF_8)};
+            int size = ENTRY_OVERHEAD + fields[0].length + fields[1].length + fields[2].length;
+            if (length + size > MAX_PAYLOAD) {
+                flags &= ~FLAG_END;
+                break;
+            }
+            length += size;
+            encoded.add(fields);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putInt(encoded.size());
+        int first = entries.size() - encoded.size();
+        for (int i = 0; i < encoded.size(); i++) {
+            HistoryEntry entry = entries.get(first + i);
+            payload.putLong(entry.getSequence()).putLong(entry.getTimestamp());
+            for (byte[] field : encoded.get(encoded.size() - 1 - i)) {
+                payload.putInt(field.length).put(field);
+            }
+        }
+        return new Frame(FrameType.HISTORY, flags, "", "", room, payload.array());
+    }
+
+    /**
+     * Computes the payload bytes of one entry.
+     *
+     * @param entry The entry.
+     * @return The size of the entry in a history frame.
+     */
+    private static int size(HistoryEntry entry) {
+        return ENTRY_OVERHEAD + entry.getSender().getBytes(StandardCharsets.UTF_8).length
+                + entry.getRecipient().getBytes(StandardCharsets.UTF_8).length
+                + entry.getText().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Reads the messages of a history frame.
+     *
+     * @param frame The history frame.
+     * @return The messages, oldest first.
+     * @throws ProtocolException If the payload is malformed.
+     */
+    public static List<HistoryEntry> entries(Frame frame) throws ProtocolException {
+        ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+        try {
+            int count = payload.getInt();
+            if (count < 0 || count > payload.remaining() / ENTRY_OVERHEAD) {
+                throw new ProtocolException("Illegal history count " + count);
+            }
+            List<HistoryEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long sequence = payload.getLong();
+                long timestamp = payload.getLong();
+                entries.add(new HistoryEntry(sequence, timestamp, readString(payload), readString(payload),
+                        readString(payload)));
+            }
+            return Collections.unmodifiableList(entries);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Malformed history frame");
+        }
+    }
+
+    /**
+     * Checks whether the server has nothing older than the messages of a history frame.
+     *
+     * @param frame The history frame.
+     * @return {@code true} if the frame carries {@link #FLAG_END}.
+     */
+    public static boolean isEnd(Frame frame) {
+        return (frame.getFlags() & FLAG_END) != 0;
+    }
+
+    /**
+     * Checks whether a history frame holds the messages kept for the client while it was offline.
+     *
+     * @param frame The history frame.
+     * @return {@code true} if the frame carries {@link #FLAG_MAIL}.
+     */
+    public static boolean isMail(Frame frame) {
+        return (frame.getFlags() & FLAG_MAIL) != 0;
+    }
+
+    /**
+     * Checks whether a history frame holds the messages matching a search.
+     *
+     * @param frame The history frame.
+     * @return {@code true} if the frame carries {@link #FLAG_SEARCH}.
+     */
+    public static boolean isSearch(Frame frame) {
+        return (frame.getFlags() & FLAG_SEARCH) != 0;
+    }
+
+    /**
+     * Reads a string written as a {@code u32} length followed by UTF-8.
+     *
+     * @param payload The payload, positioned at the string.
+     * @return The string.
+     */
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(payload.array(), payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,78 @@
+package il.ac.hit.patterns.protocol;
+
+/**
+ * The HistoryEntry class is one earlier message of a room, as a {@link FrameType#HISTORY} frame carries it.
+ * <p>
+ * It is immutable.
+ */
+public final class HistoryEntry {
+
+    private final long sequence; // The position of the message among all the messages of the server.
+    private final long timestamp; // When the message was routed, in milliseconds since the epoch.
+    private final String sender; // The name of the sender, empty if the message did not name one.
+    private final String recipient; // The name of the recipient, empty for every member of the room.
+    private final String text; // The message text.
+
+    /**
+     * Constructs a HistoryEntry object.
+     *
+     * @param sequence  The position of the message among all the messages of the server.
+     * @param timestamp When the message was routed, in milliseconds since the epoch.
+     * @param sender    The name of the sender, empty if unknown.
+     * @param recipient The name of the recipient, empty for every member of the room.
+     * @param text      The message text.
+     */
+    public HistoryEntry(long sequence, long timestamp, String sender, String recipient, String text) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.text = text;
+    }
+
+    /**
+     * Retrieves the position of the message among all the messages of the server. Older messages have lower numbers;
+     * a client asks for the messages before its oldest one with {@link ControlMessage#HISTORY}.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Retrieves when the message was routed.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Retrieves the name of the sender.
+     *
+     * @return The sender, empty if the message did not name one.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Retrieves the name of the recipient.
+     *
+     * @return The recipient, empty for every member of the room.
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Retrieves the message text.
+     *
+     * @return The text.
+     */
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,197 @@
+package il.ac.hit.patterns.protocol;
+
+import il.ac.hit.patterns.ModifiedUtf8;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The OutboundMessage class is one message on its way to one or more clients, together with its encodings.
+ * <p>
+ * A message is encoded at most once per wire format (writeUTF text or binary {@link Frame}), the first time a
+ * recipient in that format needs it, and every other recipient gets the same byte array by reference. A broadcast
+ * therefore costs a fixed number of encodings whatever the size of the room. The arrays are never changed after they
+ * are built, so they can be shared across the outbound queues and writer threads of all recipients.
+ * <p>
+ * A message too large for one frame is encoded as a list of chunk frames instead (see {@link ChunkCodec}), shared the
+ * same way. A text client cannot receive more than {@link ModifiedUtf8#MAX_ENCODED_LENGTH} bytes, so it gets the
+ * beginning of such a message, marked as truncated.
+ * <p>
+ * Recipients that negotiated compression share a third encoding, the frame compressed once with
+ * {@link FrameCompression}, so a broadcast is compressed once and not once per recipient.
+ */
+public final class OutboundMessage {
+
+    /** Appended to the text of a message that was cut to fit the text format. */
+    public static final String TRUNCATED_SUFFIX = " [truncated]";
+
+    private final String text; // The text of the message, what a text client receives.
+    private volatile Frame frame; // The frame of the message, built from the text on first use if not given.
+    private volatile byte[] textEncoding; // The writeUTF encoding, built on first use.
+    private volatile byte[] frameEncoding; // The binary frame encoding, built on first use.
+    private volatile byte[] deflatedEncoding; // The compressed binary frame encoding, built on first use.
+    private volatile List<byte[]> chunkEncodings; // The chunk frame encodings of a large message, built on first use.
+
+    /**
+     * Constructs an OutboundMessage object.
+     *
+     * @param text  The text of the message.
+     * @param frame The frame of the message, or {@code null} to build it from the text.
+     */
+    private OutboundMessage(String text, Frame frame) {
+        this.text = text;
+        this.frame = frame;
+    }
+
+    /**
+     * Creates a message from text. In the frame format a control message becomes a CONTROL frame and any other text a
+     * MESSAGE frame with no sender and recipient.
+     *
+     * @param text The text.
+     * @return The message.
+     */
+    public static OutboundMessage of(String text) {
+        return new OutboundMessage(text, null);
+    }
+
+    /**
+     * Creates a message from a frame. In the text format only the text of the frame is sent.
+     *
+     * @param frame The frame.
+     * @return The message.
+     */
+    public static OutboundMessage of(Frame frame) {
+        return new OutboundMessage(frame.getText(), frame);
+    }
+
+    /**
+     * Retrieves the text of the message.
+     *
+     * @return The text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Checks whether the message is sent as a stream of chunks in a wire format.
+     *
+     * @param framed Whether the recipient uses binary frames.
+     * @return {@code true} if {@link #encodedChunks()} must be sent instead of {@link #encoded(boolean)}.
+     */
+    public boolean isChunked(boolean framed) {
+        return framed && ChunkCodec.needsChunks(frame());
+    }
+
+    /**
+     * Retrieves the encoding of the message in a wire format, length prefix included. The array is shared by every
+     * recipient and must not be changed.
+     *
+     * @param framed Whether the recipient uses binary frames.
+     * @return The encoded message.
+     * @throws IOException If the message is too long for one frame, see {@link #isChunked(boolean)}.
+     */
+    public byte[] encoded(boolean framed) throws IOException {
+        return encoded(framed, false);
+    }
+
+    /**
+     * Retrieves the encoding of the message in a wire format, length prefix included, compressed if the recipient
+     * negotiated compression. The array is shared by every recipient and must not be changed.
+     *
+     * @param framed  Whether the recipient uses binary frames.
+     * @param deflate Whether the recipient accepts compressed frames, ignored without frames.
+     * @return The encoded message.
+     * @throws IOException If the message is too long for one frame, see {@link #isChunked(boolean)}.
+     */
+    public byte[] encoded(boolean framed, boolean deflate) throws IOException {
+        /* Two threads may both encode the first time; the arrays are equal, so either one may win. */
+        if (framed && deflate) {
+            byte[] bytes = deflatedEncoding;
+            if (bytes == null) {
+                Frame deflated = FrameCompression.deflate(frame());
+                deflatedEncoding = bytes = deflated == frame() ? encoded(true, false) : FrameCodec.encode(deflated);
+            }
+            return bytes;
+        }
+        if (framed) {
+            byte[] bytes = frameEncoding;
+            if (bytes == null) {
+                frameEncoding = bytes = FrameCodec.encode(frame());
+            }
+            return bytes;
+        }
+        byte[] bytes = textEncoding;
+        if (bytes == null) {
+            textEncoding = bytes = ModifiedUtf8.encode(fitText());
+        }
+        return bytes;
+    }
+
+    /**
+     * Retrieves the encodings of the chunk frames of a large message, in order. The list and its arrays are shared by
+     * every recipient.
+     *
+     * @return The encoded chunks.
+     * @throws IOException If a chunk cannot be encoded.
+     */
+    public List<byte[]> encodedChunks() throws IOException {
+        List<byte[]> chunks = chunkEncodings;
+        if (chunks == null) {
+            synchronized (this) {
+                /* Encoded once under the lock: every recipient must get the same stream id. */
+                chunks = chunkEncodings;
+                if (chunks == null) {
+                    List<byte[]> encoded = new ArrayList<>();
+                    for (Frame chunk : ChunkCodec.split(frame())) {
+                        encoded.add(FrameCodec.encode(chunk));
+                    }
+                    chunkEncodings = chunks = Collections.unmodifiableList(encoded);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Retrieves the frame of the message, building it from the text the first time.
+     *
+     * @return The frame.
+     */
+    private Frame frame() {
+        Frame current = frame;
+        if (current == null) {
+            frame = current = ControlMessage.isControl(text) ? Frame.control(text) : Frame.message("", "", "", text);
+        }
+        return current;
+    }
+
+    /**
+     * Cuts the text to what the text format can carry.
+     *
+     * @return The text, or its beginning followed by {@link #TRUNCATED_SUFFIX}.
+     */
+    private String fitText() {
+        if (ModifiedUtf8.encodedLength(text) <= ModifiedUtf8.MAX_ENCODED_LENGTH) {
+            return text;
+        }
+        int budget = ModifiedUtf8.MAX_ENCODED_LENGTH - TRUNCATED_SUFFIX.length();
+        int length = 0;
+        int bytes = 0;
+        while (true) {
+            char c = text.charAt(length);
+            int next = c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+            if (bytes + next > budget) {
+                break;
+            }
+            bytes += next;
+            length++;
+        }
+        if (Character.isHighSurrogate(text.charAt(length - 1))) {
+            length--;
+        }
+        return text.substring(0, length) + TRUNCATED_SUFFIX;
+    }
+}
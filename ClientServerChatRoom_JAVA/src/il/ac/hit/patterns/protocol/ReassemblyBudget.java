@@ -0,0 +1,71 @@
+package il.ac.hit.patterns.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ReassemblyBudget class caps the bytes that every {@link ChunkAssembler} of a server holds together for
+ * unfinished messages. The per-connection cap alone lets a few hundred connections that each start a large message
+ * hold the whole heap; with a shared budget, a chunk that would take the server past it is refused instead.
+ * <p>
+ * Assemblers reserve bytes as their buffers grow and release them when a message is finished or the connection
+ * closes. Safe to use from any thread.
+ */
+public class ReassemblyBudget {
+
+    private final long limit; // The most bytes held at once.
+    private final AtomicLong used; // The bytes held now.
+
+    /**
+     * Constructs a ReassemblyBudget object with nothing reserved.
+     *
+     * @param limit The most bytes held at once.
+     */
+    public ReassemblyBudget(long limit) {
+        this.limit = limit;
+        this.used = new AtomicLong();
+    }
+
+    /**
+     * Reserves bytes, unless that would take the budget past its limit.
+     *
+     * @param bytes The bytes to reserve.
+     * @return {@code true} if the bytes were reserved, {@code false} if the budget has no room for them.
+     */
+    public boolean reserve(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Gives reserved bytes back.
+     *
+     * @param bytes The bytes to release.
+     */
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Retrieves the most bytes held at once.
+     *
+     * @return The limit in bytes.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Retrieves the bytes held now.
+     *
+     * @return The reserved bytes.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+}
@@ -0,0 +1,122 @@
+package il.ac.hit.patterns.protocol;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The RosterUpdate class is one versioned change of the list of connected clients.
+ * <p>
+ * A client that negotiated the {@link Handshake#FEATURE_ROSTER} feature receives one {@link Kind#SNAPSHOT} when it
+ * joins and then a {@link Kind#JOIN} or {@link Kind#LEAVE} delta per membership change, each carrying the next version
+ * number. A client that sees a version gap asks for a new snapshot with a {@link ControlMessage#RESYNC} message.
+ * <p>
+ * Text form: {@code \u0001ROSTER <version> <=|+|-> name...}
+ */
+public final class RosterUpdate {
+
+    /**
+     * The kinds of roster updates.
+     */
+    public enum Kind {
+        /** The complete roster, replaces whatever the client knew. */
+        SNAPSHOT('='),
+        /** One client joined. */
+        JOIN('+'),
+        /** One client left. */
+        LEAVE('-');
+
+        private final char symbol;
+
+        Kind(char symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Finds the kind with the given symbol.
+         *
+         * @param symbol The symbol used in the text form.
+         * @return The kind.
+         */
+        static Kind of(char symbol) {
+            for (Kind kind : values()) {
+                if (kind.symbol == symbol) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("Unknown roster update kind " + symbol);
+        }
+    }
+
+    private final long version; // The roster version after this update.
+    private final Kind kind; // Whether this is a snapshot or a delta.
+    private final List<String> names; // The names in the snapshot, or the one name that joined or left.
+
+    /**
+     * Constructs a RosterUpdate object.
+     *
+     * @param version The roster version after this update.
+     * @param kind    The kind of the update.
+     * @param names   The names in the snapshot, or the name that joined or left.
+     */
+    public RosterUpdate(long version, Kind kind, List<String> names) {
+        this.version = version;
+        this.kind = kind;
+        this.names = List.copyOf(names);
+    }
+
+    /**
+     * Parses the text form of a roster update.
+     *
+     * @param text The ROSTER control message.
+     * @return The parsed update.
+     * @throws IllegalArgumentException If the text is not a valid roster update.
+     */
+    public static RosterUpdate parse(String text) {
+        String[] parts = ControlMessage.bodyOf(text).split(" ");
+        if (parts.length < 2 || parts[1].length() != 1) {
+            throw new IllegalArgumentException("Malformed roster update: " + text);
+        }
+        List<String> names = Arrays.asList(parts).subList(2, parts.length);
+        return new RosterUpdate(Long.parseLong(parts[0]), Kind.of(parts[1].charAt(0)), names);
+    }
+
+    /**
+     * Builds the text form of this update.
+     *
+     * @return The ROSTER control message.
+     */
+    public String toText() {
+        StringBuilder body = new StringBuilder().append(version).append(' ').append(kind.symbol);
+        for (String name : names) {
+            body.append(' ').append(name);
+        }
+        return ControlMessage.of(ControlMessage.ROSTER, body.toString());
+    }
+
+    /**
+     * Retrieves the roster version after this update.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Retrieves the kind of this update.
+     *
+     * @return The kind.
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Retrieves the names carried by this update.
+     *
+     * @return The names in the snapshot, or the one name that joined or left.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+}
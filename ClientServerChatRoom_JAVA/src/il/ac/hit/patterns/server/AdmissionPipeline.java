@@ -0,0 +1,176 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.ConnectionTraffic;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AdmissionPipeline class takes the connections accepted by the blocking engines through the stages that turn
+ * them into chat clients, so that the accept loop never waits on a client:
+ * <ol>
+ *     <li>accept: the accept loop takes a handshake slot, accepts the next connection and hands it over;</li>
+ *     <li>handshake: a handshake thread reads the client name and features, giving up after
+ *     {@code --handshake-timeout-ms};</li>
+ *     <li>admission: the name is checked and the client registered in the lobby in one step
+ *     (see {@link ServerApplication#admit}), then its read loop is started.</li>
+ * </ol>
+ * At most {@code --max-handshakes} connections are between accept and admission at once. When all slots are taken
+ * the accept loop waits for one to free up and new connections wait in the listen backlog of {@code --backlog}; a
+ * slot is held for at most the handshake timeout, so a connect storm is worked through at the rate handshakes
+ * complete and a client that never sends its name only delays the others by that timeout.
+ * <p>
+ * The time each connection spends waiting for a handshake thread, sending its name and being admitted is recorded
+ * in the {@link ServerMetrics}.
+ */
+public class AdmissionPipeline {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(); // Used to number the handshake threads.
+
+    private final ServerOptions options; // The startup configuration.
+    private final RoomDirectory rooms; // The rooms every admitted connection feeds into.
+    private final ServerMetrics metrics; // Records the traffic and the time spent in every stage.
+    private final ThreadFactory connectionThreads; // The factory of the threads that run the admitted connections.
+    private final Semaphore slots; // One permit per connection that may be between accept and admission.
+    private final ThreadPoolExecutor handshakes; // Reads the client names, one thread per slot at most.
+
+    /**
+     * Constructs an AdmissionPipeline object.
+     *
+     * @param options           The startup configuration: handshake timeout and limit, outbound queues, size cap.
+     * @param rooms             The rooms of the server.
+     * @param metrics           The metrics of the server.
+     * @param connectionThreads The factory of the threads that run the read loops of admitted connections.
+     */
+    public AdmissionPipeline(ServerOptions options, RoomDirectory rooms, ServerMetrics metrics,
+                             ThreadFactory connectionThreads) {
+        this.options = options;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.connectionThreads = connectionThreads;
+        this.slots = new Semaphore(options.getMaxHandshakes());
+        this.handshakes = new ThreadPoolExecutor(options.getMaxHandshakes(), options.getMaxHandshakes(), 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "handshake-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        /* Idle handshake threads go away, so a quiet server keeps none of them. */
+        this.handshakes.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Waits until a connection may be accepted, that is until fewer than {@code --max-handshakes} connections are
+     * being admitted. Called by the accept loop before every accept.
+     *
+     * @throws InterruptedException If the accept loop is interrupted while waiting.
+     */
+    public void awaitSlot() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Gives back a slot taken with {@link #awaitSlot()} that was not used, because the accept failed.
+     */
+    public void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Hands a connection accepted in a slot taken with {@link #awaitSlot()} to a handshake thread. Returns at once.
+     *
+     * @param socket The accepted connection.
+     */
+    public void submit(Socket socket) {
+        long accepted = System.nanoTime();
+        ConnectionTraffic traffic = metrics.getTraffic().open();
+        metrics.handshakeStarted();
+        handshakes.execute(() -> {
+            try {
+                admit(socket, traffic, accepted);
+            } finally {
+                metrics.handshakeEnded();
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * Runs the handshake and admission stages of one connection on a handshake thread.
+     *
+     * @param socket   The accepted connection.
+     * @param traffic  The counters of the connection.
+     * @param accepted When the connection was accepted, in {@link System#nanoTime()} units.
+     */
+    private void admit(Socket socket, ConnectionTraffic traffic, long accepted) {
+        long started = System.nanoTime();
+        metrics.getHandshakeWaitTimes().record(started - accepted);
+
+        ConnectionProxy connection;
+        try {
+            /* The name must arrive within the timeout; the read loop of an admitted client waits as long as needed. */
+            socket.setSoTimeout((int) options.getHandshakeTimeoutMillis());
+            /* Clients without heartbeats that vanish are only found by TCP keepalive. */
+            socket.setKeepAlive(true);
+            connection = new ConnectionProxy(socket);
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            /* The handshake was malformed, cut off or too slow: count it and close the socket. */
+            if (e.getCause() instanceof SocketTimeoutException) {
+                metrics.handshakeTimedOut();
+            }
+            traffic.closed();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                /* The connection is given up either way. */
+            }
+            return;
+        }
+        long named = System.nanoTime();
+        metrics.getHandshakeTimes().record(named - started);
+
+        // Create a connection proxy for the client, with its own bounded outbound queue
+        connection.setTraffic(traffic);
+        connection.setOutboundQueue(options.newOutboundQueue());
+        connection.setMaxMessageBytes(options.getMaxMessageBytes());
+        connection.setReassemblyBudget(options.getReassemblyBudget());
+        /* The writer runs before the client is registered: once it is, rooms send to it from their shards, which must
+           only ever queue, never write to the socket themselves. */
+        connection.startWriter(connectionThreads);
+        boolean admitted;
+        try {
+            /* On a cluster node this may wait for the owner of the name, for at most the claim timeout. */
+            admitted = ServerApplication.admit(rooms, connection).join();
+        } catch (CompletionException e) {
+            System.out.println("Problem admitting client " + connection.getClientName() + ": " + e.getCause());
+            admitted = false;
+        }
+        if (admitted) {
+            /* However the read loop ends, the client is taken out of the rooms and its departure announced once. */
+            connection.setCloseListener(() -> rooms.disconnected(connection));
+            // Start the connection
+            connection.start(connectionThreads);
+        } else {
+            // Close the connection once the writer sent why it was turned away
+            connection.closeWhenWritten();
+        }
+        metrics.getAdmissionTimes().record(System.nanoTime() - named);
+    }
+
+    /**
+     * Stops the handshake threads; handshakes in progress are interrupted and their connections left to time out.
+     */
+    public void close() {
+        handshakes.shutdownNow();
+    }
+}
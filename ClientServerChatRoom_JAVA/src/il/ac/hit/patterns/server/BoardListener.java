@@ -0,0 +1,38 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+
+/**
+ * The BoardListener interface is told about what happens on a {@link MessageBoard}, so it can be relayed to other nodes
+ * (see {@link Cluster}) or kept (see {@link MessageJournal}).
+ * <p>
+ * Joins and leaves are reported while the board's roster lock is held, in the order of the roster versions. Messages
+ * are reported after they were routed, on the shard thread of the room.
+ */
+public interface BoardListener {
+
+    /**
+     * Called when a client joined the board.
+     *
+     * @param board      The board.
+     * @param connection The client that joined.
+     */
+    public void memberJoined(MessageBoard board, ClientConnection connection);
+
+    /**
+     * Called when a client left the board.
+     *
+     * @param board      The board.
+     * @param connection The client that left.
+     */
+    public void memberLeft(MessageBoard board, ClientConnection connection);
+
+    /**
+     * Called when a message was routed on the board.
+     *
+     * @param board   The board.
+     * @param record  The message, numbered and timestamped by the board.
+     * @param relayed Whether a client of another node sent the message, and its node relayed it here.
+     */
+    public void messageRouted(MessageBoard board, JournalRecord record, boolean relayed);
+}
@@ -0,0 +1,89 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The ChatCommand class is the parsed form of one message sent by a client: who sent it, who it is for, the room it
+ * is sent in, and the message itself.
+ * <p>
+ * It is immutable and created per message, so concurrent senders never share parse state.
+ */
+public final class ChatCommand {
+
+    /** The recipient of a message that is sent to every client. */
+    public static final String ALL = "All";
+
+    private final String sender; // The name of the sending client, empty if the message did not name one.
+    private final String recipient; // The name of the recipient, or ALL.
+    private final String message; // The message text.
+    private final String room; // The room the message is sent in, empty for the default room.
+
+    /**
+     * Constructs a ChatCommand object.
+     *
+     * @param sender    The name of the sending client, empty if unknown.
+     * @param recipient The name of the recipient, or {@link #ALL}.
+     * @param message   The message text.
+     */
+    public ChatCommand(String sender, String recipient, String message) {
+        this(sender, recipient, "", message);
+    }
+
+    /**
+     * Constructs a ChatCommand object for a message sent in a room.
+     *
+     * @param sender    The name of the sending client, empty if unknown.
+     * @param recipient The name of the recipient, or {@link #ALL} for every member of the room.
+     * @param room      The room, empty for the default room.
+     * @param message   The message text.
+     */
+    public ChatCommand(String sender, String recipient, String room, String message) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.message = message;
+    }
+
+    /**
+     * Retrieves the name of the sending client.
+     *
+     * @return The sender name, empty if the message did not name one.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Retrieves the name of the recipient.
+     *
+     * @return The recipient name, or {@link #ALL}.
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Retrieves the message text.
+     *
+     * @return The message text.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Retrieves the room the message is sent in.
+     *
+     * @return The room, empty for the default room.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Checks whether the message is sent to every client.
+     *
+     * @return {@code true} for a broadcast, {@code false} for a private message.
+     */
+    public boolean isBroadcast() {
+        return ALL.equals(recipient);
+    }
+}
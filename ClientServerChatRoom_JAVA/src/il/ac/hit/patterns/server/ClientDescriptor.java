@@ -1,18 +1,157 @@
 package il.ac.hit.patterns.server;
 
+import il.ac.hit.patterns.ClientConnection;
 import il.ac.hit.patterns.StringConsumer;
 import il.ac.hit.patterns.StringProducer;
 import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
 
-public class ClientDescriptor implements StringProducer, StringConsumer {
+/**
+ * The ClientDescriptor class is the server-side representative of one connected client. It passes the chat text the
+ * client sends on to its consumer (the message board), and control messages to the consumer's
+ * {@link ControlConsumer} side together with the connection they came from.
+ * <p>
+ * A chat message that arrives in a binary frame is handed to the consumer's {@link CommandConsumer} side as a
+ * {@link ChatCommand}. Its sender is always the name of this connection, whatever the frame says.
+ * <p>
+ * With an {@link OverloadGuard.Limiter} every message the client sends is first checked against the client's rate for
+ * its kind and against overload, and dropped if it is refused. The client's own entered and left messages, and the
+ * switch to frames, always go through.
+ * <p>
+ * A {@link ControlMessage#PONG} only shows that the client is alive, which its traffic counters already recorded, so
+ * it goes no further. The client's own leave message marks it as gone (see {@link ClientConnection#markDeparted()});
+ * if it was marked already, because the server found it dead first, its departure was announced and the leave message
+ * is dropped.
+ */
+public class ClientDescriptor implements StringProducer, StringConsumer, FrameConsumer {
 
+    private final ClientConnection connection; // The connection of the client this descriptor represents.
+    private final OverloadGuard.Limiter limiter; // Refuses messages sent too fast or during overload, null for none.
     private StringConsumer consumer;
 
+    /**
+     * Constructs a ClientDescriptor object.
+     *
+     * @param connection The connection of the client.
+     */
+    public ClientDescriptor(ClientConnection connection) {
+        this(connection, null);
+    }
+
+    /**
+     * Constructs a ClientDescriptor object that limits what the client sends.
+     *
+     * @param connection The connection of the client.
+     * @param limiter    The limiter of the connection, or {@code null} to let everything through.
+     */
+    public ClientDescriptor(ClientConnection connection, OverloadGuard.Limiter limiter) {
+        this.connection = connection;
+        this.limiter = limiter;
+    }
+
     @Override
     public void consume(String text) throws ChatException {
+        if (ControlMessage.isControl(text)) {
+            if (ControlMessage.PONG.equals(ControlMessage.typeOf(text))) {
+                return;
+            }
+            if (!ControlMessage.FRAMES.equals(ControlMessage.typeOf(text)) && !allow(OverloadGuard.Kind.CONTROL, "")) {
+                return;
+            }
+            if (this.consumer instanceof ControlConsumer) {
+                ((ControlConsumer) this.consumer).consumeControl(connection, text);
+            }
+            return;
+        }
+        if (!isPresence(text) && !allow(isPrivate(text) ? OverloadGuard.Kind.PRIVATE : OverloadGuard.Kind.BROADCAST, "")) {
+            return;
+        }
+        if (isLeave(text) && !connection.markDeparted()) {
+            return;
+        }
         this.consumer.consume(text);
     }
 
+    @Override
+    public void consumeFrame(Frame frame) throws ChatException {
+        if (frame.getType() == FrameType.CONTROL) {
+            consume(frame.getText());
+            return;
+        }
+        if (frame.getType() != FrameType.MESSAGE) {
+            return;
+        }
+        String recipient = frame.getRecipient().isEmpty() ? ChatCommand.ALL : frame.getRecipient();
+        OverloadGuard.Kind kind = ChatCommand.ALL.equals(recipient) ? OverloadGuard.Kind.BROADCAST : OverloadGuard.Kind.PRIVATE;
+        if (!isPresence(frame.getText()) && !allow(kind, frame.getRoom())) {
+            return;
+        }
+        if (frame.getRoom().isEmpty() && isLeave(frame.getText()) && !connection.markDeparted()) {
+            return;
+        }
+        ChatCommand command = new ChatCommand(connection.getClientName(), recipient, frame.getRoom(), frame.getText());
+        if (this.consumer instanceof CommandConsumer) {
+            ((CommandConsumer) this.consumer).consumeCommand(command);
+        } else {
+            this.consumer.consume(command.getSender() + " ##$$$### " + command.getRecipient() + " #$$$# " + command.getMessage());
+        }
+    }
+
+    /**
+     * Asks the limiter whether a message may go on.
+     *
+     * @param kind The kind of the message.
+     * @param room The room the message is for, empty for the lobby.
+     * @return {@code true} if there is no limiter or it lets the message through.
+     */
+    private boolean allow(OverloadGuard.Kind kind, String room) {
+        return limiter == null || limiter.allow(kind, room);
+    }
+
+    /**
+     * Checks whether a message is the client's own entered or left message, which are never limited.
+     *
+     * @param text The message.
+     * @return {@code true} for the entered and left messages of this client.
+     */
+    private boolean isPresence(String text) {
+        return text.startsWith(connection.getClientName() + " ->")
+                && (text.endsWith(MessageBoard.ENTERED_SUFFIX) || text.endsWith(MessageBoard.LEFT_SUFFIX));
+    }
+
+    /**
+     * Checks whether a message is the client's own leave message.
+     *
+     * @param text The message.
+     * @return {@code true} for the leave message of this client.
+     */
+    private boolean isLeave(String text) {
+        return text.length() == connection.getClientName().length() + MessageBoard.LEFT_SUFFIX.length()
+                && text.startsWith(connection.getClientName()) && text.endsWith(MessageBoard.LEFT_SUFFIX);
+    }
+
+    /**
+     * Checks whether a text message is addressed to one client, without parsing it the way the board does.
+     *
+     * @param text The message, {@code sender ##$$$### recipient #$$$# message} or plain text for everyone.
+     * @return {@code true} if it names a recipient other than {@link ChatCommand#ALL}.
+     */
+    private static boolean isPrivate(String text) {
+        int start = text.indexOf(" ##$$$### ");
+        if (start < 0) {
+            return false;
+        }
+        start += " ##$$$### ".length();
+        int end = text.indexOf(" #$$$# ", start);
+        if (end < 0) {
+            return false;
+        }
+        return end - start != ChatCommand.ALL.length() || !text.startsWith(ChatCommand.ALL, start);
+    }
+
     @Override
     public void addConsumer(StringConsumer consumer) {
         this.consumer = consumer;
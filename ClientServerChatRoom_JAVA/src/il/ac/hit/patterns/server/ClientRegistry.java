@@ -0,0 +1,210 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ClientRegistry class is the thread-safe index of the connected clients, keyed by client name.
+ * <p>
+ * Registration is an atomic check-and-insert, so two connections racing for the same name can never both get in.
+ * Lookups for private-message routing and name checks are O(1). The space separated roster of names (in join order)
+ * is cached and only rebuilt after the membership changed.
+ */
+public class ClientRegistry {
+
+    private final ConcurrentHashMap<String, Registration> clients; // The connected clients by name.
+    private final AtomicLong joinSequence; // Orders the clients by the time they joined.
+    private final AtomicLong version; // Incremented after every membership change.
+    private volatile Roster roster; // The last built roster and the version it was built from.
+
+    /**
+     * Constructs an empty ClientRegistry object.
+     */
+    public ClientRegistry() {
+        this.clients = new ConcurrentHashMap<>();
+        this.joinSequence = new AtomicLong();
+        this.version = new AtomicLong();
+        this.roster = new Roster(0, "", List.of());
+    }
+
+    /**
+     * Registers a connection under its client name, unless the name is already taken.
+     *
+     * @param connection The connection to register.
+     * @return {@code true} if the connection was registered, {@code false} if another client has the name.
+     */
+    public boolean register(ClientConnection connection) {
+        Registration registration = new Registration(connection, joinSequence.incrementAndGet());
+        if (clients.putIfAbsent(connection.getClientName(), registration) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a connection, if it is still the one registered under its client name.
+     *
+     * @param connection The connection to remove.
+     * @return {@code true} if the connection was removed, {@code false} if it was not registered.
+     */
+    public boolean unregister(ClientConnection connection) {
+        String clientName = connection.getClientName();
+        if (clientName == null) {
+            return false;
+        }
+        Registration registration = clients.get(clientName);
+        if (registration == null || registration.connection != connection || !clients.remove(clientName, registration)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Looks a connected client up by name.
+     *
+     * @param clientName The client name.
+     * @return The connection of the client, or {@code null} if no client has that name.
+     */
+    public ClientConnection lookup(String clientName) {
+        Registration registration = clients.get(clientName);
+        return registration == null ? null : registration.connection;
+    }
+
+    /**
+     * Checks if a client with the given name is connected.
+     *
+     * @param clientName The client name to check.
+     * @return {@code true} if the name is taken, {@code false} otherwise.
+     */
+    public boolean contains(String clientName) {
+        return clients.containsKey(clientName);
+    }
+
+    /**
+     * Retrieves a live view of the connected clients. Iteration is weakly consistent and never throws
+     * {@link java.util.ConcurrentModificationException}.
+     *
+     * @return The connected clients.
+     */
+    public Collection<ClientConnection> connections() {
+        return new ConnectionsView();
+    }
+
+    /**
+     * Retrieves the number of connected clients.
+     *
+     * @return The number of connected clients.
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Retrieves the names of the connected clients in join order.
+     *
+     * @return An immutable list of client names.
+     */
+    public List<String> names() {
+        return currentRoster().names;
+    }
+
+    /**
+     * Retrieves the names of the connected clients in join order, each preceded by a space (the roster prefix of the
+     * legacy message format).
+     *
+     * @return The roster text.
+     */
+    public String rosterText() {
+        return currentRoster().text;
+    }
+
+    /**
+     * Returns the cached roster, rebuilding it if the membership changed since it was built.
+     *
+     * @return The current roster.
+     */
+    private Roster currentRoster() {
+        Roster current = roster;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current;
+        }
+        List<Registration> registrations = new ArrayList<>(clients.values());
+        registrations.sort(Comparator.comparingLong(registration -> registration.joinSequence));
+        List<String> names = new ArrayList<>(registrations.size());
+        StringBuilder text = new StringBuilder();
+        for (Registration registration : registrations) {
+            String clientName = registration.connection.getClientName();
+            names.add(clientName);
+            text.append(" ").append(clientName);
+        }
+        current = new Roster(currentVersion, text.toString(), List.copyOf(names));
+        roster = current;
+        return current;
+    }
+
+    /**
+     * A registered connection and its position in the join order.
+     */
+    private static final class Registration {
+        private final ClientConnection connection;
+        private final long joinSequence;
+
+        private Registration(ClientConnection connection, long joinSequence) {
+            this.connection = connection;
+            this.joinSequence = joinSequence;
+        }
+    }
+
+    /**
+     * An immutable roster built from one version of the membership.
+     */
+    private static final class Roster {
+        private final long version;
+        private final String text;
+        private final List<String> names;
+
+        private Roster(long version, String text, List<String> names) {
+            this.version = version;
+            this.text = text;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A read-only collection view over the registered connections.
+     */
+    private final class ConnectionsView extends AbstractCollection<ClientConnection> {
+
+        @Override
+        public Iterator<ClientConnection> iterator() {
+            Iterator<Registration> registrations = clients.values().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return registrations.hasNext();
+                }
+
+                @Override
+                public ClientConnection next() {
+                    return registrations.next().connection;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return clients.size();
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Cluster class connects this server to the other nodes of a cluster, so the clients of every node share the
+ * rooms, the rosters and the name space.
+ * <p>
+ * Every node listens on its cluster port and opens a {@link PeerLink} to every address of its peer list, so the nodes
+ * form a full mesh of one-way links: a node sends on the link it opened and receives on the {@link PeerSession} the
+ * peer opened. Each node relays what happens to its own clients only: joins and leaves of every room, and every
+ * message one of them sent. A broadcast is relayed once to every peer and a private message once to the node of its
+ * recipient; a node never relays a message it received from a peer, so a message crosses between two nodes at most
+ * once. The clients of the other nodes are {@link RemoteMember}s on the local boards.
+ * <p>
+ * Client names are unique across the cluster. Each name is owned by one node, chosen by the hash of the name among the
+ * nodes this node has a link to, and a node registers a client only after the owner reserved the name for it
+ * ({@link ControlMessage#CLAIM}). The owner checks its lobby, which lists every client of the cluster, and the names it
+ * reserved but did not see registered yet. While links are still being set up, two nodes may disagree on the owner.
+ * <p>
+ * A private message to a client that is connected nowhere is kept in the {@link OfflineMailbox} of the sender's node.
+ * When the client connects to another node, its mail is forwarded there as private messages once its entered message
+ * is relayed here.
+ */
+public class Cluster implements BoardListener {
+
+    /** How long a node waits for the owner of a name to answer a claim, in milliseconds. */
+    public static final long CLAIM_TIMEOUT_MILLIS = 2000;
+
+    /** How long a reserved name is held for a node that did not register it yet, in milliseconds. */
+    public static final long CLAIM_TTL_MILLIS = 10_000;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(); // Used to number the cluster threads.
+
+    private final String nodeId; // The id of this node, unique in the cluster.
+    private final ServerOptions options; // The startup configuration.
+    private final RoomDirectory rooms; // The rooms of this node.
+    private final ConcurrentHashMap<String, PeerLink> links; // The links that are up, by peer node id.
+    private final ConcurrentHashMap<String, PeerSession> sessions; // The sessions peers opened to this node, by node id.
+    private final Map<String, Claim> claims; // Names this node reserved for a node, by name (guarded by itself).
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> pendingClaims; // Claims waiting for an answer, by request id.
+    private final AtomicLong claimIds; // Numbers the claims this node sends.
+    private final ThreadFactory threads; // Creates the daemon threads of the cluster.
+
+    /**
+     * Constructs a Cluster object.
+     *
+     * @param options The startup configuration: node id, cluster port and peer list.
+     * @param rooms   The rooms of this node.
+     */
+    public Cluster(ServerOptions options, RoomDirectory rooms) {
+        this.nodeId = options.getNodeId();
+        this.options = options;
+        this.rooms = rooms;
+        this.links = new ConcurrentHashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
+        this.claims = new HashMap<>();
+        this.pendingClaims = new ConcurrentHashMap<>();
+        this.claimIds = new AtomicLong();
+        this.threads = task -> {
+            Thread thread = new Thread(task, "cluster-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts listening for peers on the cluster port, attaches the cluster to the rooms and starts dialing the peers.
+     *
+     * @throws IOException If the cluster port cannot be opened.
+     */
+    public void start() throws IOException {
+        ServerSocket server = new ServerSocket(options.getClusterPort(), options.getBacklog());
+        rooms.setCluster(this);
+        threads.newThread(() -> acceptPeers(server)).start();
+        for (String address : options.getPeers()) {
+            threads.newThread(new PeerLink(this, address, threads)).start();
+        }
+        System.out.println("Node " + nodeId + " is waiting for peers on port " + options.getClusterPort());
+    }
+
+    /**
+     * Accepts the links of the peers until the cluster port fails.
+     *
+     * @param server The cluster server socket.
+     */
+    private void acceptPeers(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                accept(socket);
+            } catch (IOException e) {
+                System.out.println("Problem accepting a peer: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens a session for a link a peer opened: acknowledges its features and answers with the id of this node. A new
+     * link from a node replaces its previous one, whose clients are removed first.
+     *
+     * @param socket The socket of the link.
+     * @throws IOException If the handshake cannot be read.
+     */
+    private void accept(Socket socket) throws IOException {
+        ConnectionProxy proxy = new ConnectionProxy(socket);
+        proxy.setMaxMessageBytes(options.getMaxMessageBytes());
+        proxy.setReassemblyBudget(options.getReassemblyBudget());
+        try {
+            proxy.acknowledgeFeatures();
+            proxy.consumeFrame(Frame.control(ControlMessage.of(ControlMessage.NODE, nodeId)));
+        } catch (ChatException e) {
+            proxy.closeConnection();
+            return;
+        }
+        /* A link from this node itself only needed the answer to stop dialing. */
+        if (proxy.getClientName().equals(nodeId) || !proxy.getFeatures().contains(Handshake.FEATURE_FRAMES)) {
+            proxy.closeConnection();
+            return;
+        }
+        PeerSession session = new PeerSession(this, rooms, proxy);
+        PeerSession previous = sessions.put(session.getNodeId(), session);
+        if (previous != null) {
+            previous.close();
+        }
+        proxy.addConsumer(session);
+        proxy.setCloseListener(session::close);
+        proxy.start(threads);
+        System.out.println("Node " + session.getNodeId() + " joined the cluster");
+    }
+
+    /**
+     * Called by a link once the peer sent its id: starts relaying to the peer and sends it every client of this node,
+     * the lobby first. The link is used before the clients are sent, so a join or leave meanwhile reaches the peer
+     * either way.
+     *
+     * @param link The link.
+     */
+    void linkUp(PeerLink link) {
+        PeerLink previous = links.put(link.getPeerId(), link);
+        if (previous != null && previous != link) {
+            previous.close();
+        }
+        System.out.println("Linked to node " + link.getPeerId() + " at " + link.getAddress());
+        sendMembers(link, getLobbyBoard());
+        for (Room room : rooms.getRooms()) {
+            if (room != rooms.getLobby()) {
+                sendMembers(link, room.getBoard());
+            }
+        }
+    }
+
+    /**
+     * Sends the clients of this node that are members of a board to a peer.
+     *
+     * @param link  The link to the peer.
+     * @param board The board.
+     */
+    private void sendMembers(PeerLink link, MessageBoard board) {
+        board.forEachMember(member -> {
+            if (!member.isRemote()) {
+                link.send(memberMessage(board, "+ ", member));
+            }
+        });
+    }
+
+    /**
+     * Called by a link whose connection ended: stops relaying to the peer until the link is up again.
+     *
+     * @param link The link.
+     */
+    void linkDown(PeerLink link) {
+        if (links.remove(link.getPeerId(), link)) {
+            System.out.println("Lost the link to node " + link.getPeerId());
+        }
+    }
+
+    /**
+     * Called by a session that ended, after it removed the clients of its peer: forgets the names reserved for the
+     * peer.
+     *
+     * @param session The session.
+     */
+    void sessionClosed(PeerSession session) {
+        if (sessions.remove(session.getNodeId(), session)) {
+            synchronized (claims) {
+                claims.values().removeIf(claim -> claim.nodeId.equals(session.getNodeId()));
+            }
+            System.out.println("Node " + session.getNodeId() + " left the cluster");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Relays the join of a client of this node to every peer.
+     */
+    @Override
+    public void memberJoined(MessageBoard board, ClientConnection connection) {
+        if (!connection.isRemote()) {
+            relay(memberMessage(board, "+ ", connection));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Relays the leave of a client of this node to every peer.
+     */
+    @Override
+    public void memberLeft(MessageBoard board, ClientConnection connection) {
+        if (!connection.isRemote()) {
+            relay(memberMessage(board, "- ", connection));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Relays a broadcast of a client of this node to every peer, and a private message to the node of its recipient
+     * only. The frame is encoded once for all the peers. Relayed messages are not relayed again; the entered message
+     * of a client of another node makes this node forward the client's mail.
+     */
+    @Override
+    public void messageRouted(MessageBoard board, JournalRecord record, boolean relayed) {
+        if (relayed && board.isEntered(record)) {
+            forwardMail(board, record.getSender());
+        }
+        if (relayed || links.isEmpty()) {
+            return;
+        }
+        if (record.isBroadcast()) {
+            relay(OutboundMessage.of(Frame.message(record.getSender(), "", board.getRoom(), record.getMessage())));
+            return;
+        }
+        ClientConnection recipient = board.getRegistry().lookup(record.getRecipient());
+        if (recipient instanceof RemoteMember) {
+            PeerLink link = links.get(((RemoteMember) recipient).getNodeId());
+            if (link != null) {
+                link.send(OutboundMessage.of(Frame.message(record.getSender(), record.getRecipient(), board.getRoom(),
+                        record.getMessage())));
+            }
+        }
+    }
+
+    /**
+     * Forwards the private messages this node kept for a client that connected to another node, to that node, which
+     * delivers them as relayed messages. The senders are told that their messages were delivered.
+     *
+     * @param lobby      The board of the lobby.
+     * @param clientName The name of the client.
+     */
+    private void forwardMail(MessageBoard lobby, String clientName) {
+        OfflineMailbox mailbox = lobby.getMailbox();
+        if (mailbox == null || linkTo(lobby, clientName) == null) {
+            return;
+        }
+        lobby.whenMailTaken(mailbox.take(clientName), records -> {
+            /* Mail read back from disk may find the client gone again, and is kept for the next time. */
+            PeerLink link = linkTo(lobby, clientName);
+            if (link == null) {
+                mailbox.putBack(clientName, records);
+                return;
+            }
+            for (JournalRecord record : records) {
+                link.send(OutboundMessage.of(Frame.message(record.getSender(), record.getRecipient(), "", record.getMessage())));
+            }
+            lobby.receipts(records);
+        });
+    }
+
+    /**
+     * Finds the link to the node a client is connected to, if it is connected to another node.
+     *
+     * @param lobby      The board of the lobby.
+     * @param clientName The name of the client.
+     * @return The link, or {@code null} if the client is not connected to a node this node has a link to.
+     */
+    private PeerLink linkTo(MessageBoard lobby, String clientName) {
+        ClientConnection member = lobby.getRegistry().lookup(clientName);
+        return member instanceof RemoteMember ? links.get(((RemoteMember) member).getNodeId()) : null;
+    }
+
+    /**
+     * Sends a message to every peer.
+     *
+     * @param message The message.
+     */
+    private void relay(OutboundMessage message) {
+        for (PeerLink link : links.values()) {
+            link.send(message);
+        }
+    }
+
+    /**
+     * Builds the message that tells the peers a client of this node joined or left a room.
+     *
+     * @param board      The board of the room.
+     * @param change     {@code "+ "} for a join, {@code "- "} for a leave.
+     * @param connection The client.
+     * @return The MEMBER control message, in a frame that names the room.
+     */
+    private static OutboundMessage memberMessage(MessageBoard board, String change, ClientConnection connection) {
+        return OutboundMessage.of(Frame.control(board.getRoom(),
+                ControlMessage.of(ControlMessage.MEMBER, change + connection.getClientName())));
+    }
+
+    /**
+     * Registers a new client of this node in the lobby, once the owner of its name reserved the name for this node.
+     * Never waits for the owner: when another node owns the name, the client is registered on the thread that
+     * receives the answer.
+     *
+     * @param connection The connection of the client.
+     * @return Completed with {@code true} if the client was added, or {@code false} if its name is taken anywhere in
+     * the cluster or its owner did not answer in time.
+     */
+    public CompletableFuture<Boolean> register(ClientConnection connection) {
+        MessageBoard lobby = getLobbyBoard();
+        String name = connection.getClientName();
+        String owner = ownerOf(name);
+        if (owner.equals(nodeId)) {
+            if (!claim(name, nodeId)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            try {
+                return CompletableFuture.completedFuture(lobby.register(connection));
+            } finally {
+                releaseClaim(name, nodeId);
+            }
+        }
+        if (lobby.checkClientsNames(name)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return requestClaim(owner, name).thenApply(granted -> {
+            if (!granted) {
+                return false;
+            }
+            if (lobby.register(connection)) {
+                /* The owner forgets the reservation when the join reaches it. */
+                return true;
+            }
+            send(owner, ControlMessage.of(ControlMessage.RELEASE, name));
+            return false;
+        });
+    }
+
+    /**
+     * Asks the owner of a name to reserve it for this node.
+     *
+     * @param owner The node id of the owner.
+     * @param name  The client name.
+     * @return Completed with {@code true} if the owner reserved the name, or {@code false} if it refused or did not
+     * answer within {@link #CLAIM_TIMEOUT_MILLIS}.
+     */
+    private CompletableFuture<Boolean> requestClaim(String owner, String name) {
+        String id = Long.toString(claimIds.incrementAndGet());
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        pendingClaims.put(id, answer);
+        if (!send(owner, ControlMessage.of(ControlMessage.CLAIM, id + " " + name))) {
+            pendingClaims.remove(id);
+            return CompletableFuture.completedFuture(false);
+        }
+        return answer.orTimeout(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).handle((granted, e) -> {
+            pendingClaims.remove(id);
+            if (e instanceof TimeoutException) {
+                System.out.println("Node " + owner + " did not answer the claim for " + name);
+            }
+            return e == null && granted;
+        });
+    }
+
+    /**
+     * Answers the claim of a peer for a name this node owns.
+     *
+     * @param fromNode The node id of the peer.
+     * @param id       The request id.
+     * @param name     The client name.
+     */
+    void answerClaim(String fromNode, String id, String name) {
+        boolean granted = claim(name, fromNode);
+        send(fromNode, ControlMessage.of(granted ? ControlMessage.GRANT : ControlMessage.DENY, id));
+    }
+
+    /**
+     * Completes a claim this node sent.
+     *
+     * @param id      The request id.
+     * @param granted Whether the owner reserved the name.
+     */
+    void claimAnswered(String id, boolean granted) {
+        CompletableFuture<Boolean> answer = pendingClaims.get(id);
+        if (answer != null) {
+            answer.complete(granted);
+        }
+    }
+
+    /**
+     * Reserves a name for a node, unless a client of the cluster has it or it is reserved for someone else.
+     *
+     * @param name    The client name.
+     * @param forNode The node that registers the client.
+     * @return {@code true} if the name was reserved.
+     */
+    private boolean claim(String name, String forNode) {
+        long now = System.currentTimeMillis();
+        synchronized (claims) {
+            Claim claim = claims.get(name);
+            if (claim != null && claim.expiresAt > now) {
+                return false;
+            }
+            if (getLobbyBoard().checkClientsNames(name)) {
+                return false;
+            }
+            claims.put(name, new Claim(forNode, now + CLAIM_TTL_MILLIS));
+            return true;
+        }
+    }
+
+    /**
+     * Forgets the reservation of a name for a node, once the client joined the lobby or the node gave the name up.
+     *
+     * @param name    The client name.
+     * @param forNode The node the name was reserved for.
+     */
+    void releaseClaim(String name, String forNode) {
+        synchronized (claims) {
+            Claim claim = claims.get(name);
+            if (claim != null && claim.nodeId.equals(forNode)) {
+                claims.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Chooses the node that owns a name: the same node on every node that sees the same set of peers.
+     *
+     * @param name The client name.
+     * @return The node id of the owner.
+     */
+    private String ownerOf(String name) {
+        List<String> nodes = new ArrayList<>(links.keySet());
+        nodes.add(nodeId);
+        Collections.sort(nodes);
+        return nodes.get(Math.floorMod(name.hashCode(), nodes.size()));
+    }
+
+    /**
+     * Sends a control message to a peer.
+     *
+     * @param peerId The node id of the peer.
+     * @param text   The control message.
+     * @return {@code true} if there is a link to the peer.
+     */
+    private boolean send(String peerId, String text) {
+        PeerLink link = links.get(peerId);
+        if (link == null) {
+            return false;
+        }
+        link.send(OutboundMessage.of(Frame.control(text)));
+        return true;
+    }
+
+    /**
+     * Retrieves the board of the lobby, which lists every client of the cluster.
+     *
+     * @return The lobby board.
+     */
+    private MessageBoard getLobbyBoard() {
+        return rooms.getLobby().getBoard();
+    }
+
+    /**
+     * Retrieves the id of this node.
+     *
+     * @return The node id.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Retrieves the number of peers this node has a link to.
+     *
+     * @return The peer count.
+     */
+    public int getPeerCount() {
+        return links.size();
+    }
+
+    /**
+     * A name reserved for a node, and until when.
+     */
+    private static final class Claim {
+        private final String nodeId;
+        private final long expiresAt;
+
+        private Claim(String nodeId, long expiresAt) {
+            this.nodeId = nodeId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.client.ChatException;
+
+/**
+ * The CommandConsumer interface represents an entity that takes chat messages already split into their
+ * {@link ChatCommand} fields, as they arrive in binary frames, so the text does not need to be parsed again.
+ */
+public interface CommandConsumer {
+
+    /**
+     * Consumes a chat command.
+     *
+     * @param command The chat command, its sender set by the server from the connection it arrived on.
+     * @throws ChatException If an error occurs while handling the command.
+     */
+    public void consumeCommand(ChatCommand command) throws ChatException;
+
+}
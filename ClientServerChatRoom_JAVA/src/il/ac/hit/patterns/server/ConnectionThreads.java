@@ -0,0 +1,54 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.client.ChatException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ConnectionThreads class creates the thread factories the blocking server engines run their
+ * {@link il.ac.hit.patterns.ConnectionProxy} read loops on.
+ * <p>
+ * Virtual threads are looked up reflectively, so the project still compiles and runs on Java 17; the
+ * {@code virtual} engine simply reports that it needs a Java 21 runtime.
+ */
+public final class ConnectionThreads {
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * Creates a factory of platform threads, one OS thread per connection.
+     *
+     * @return The platform thread factory.
+     */
+    public static ThreadFactory platform() {
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(); // Handshake threads start connections at once.
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, "connection-" + counter.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Creates a factory of virtual threads ({@code Thread.ofVirtual().name("connection-", 1).factory()}).
+     *
+     * @return The virtual thread factory.
+     * @throws ChatException If the running JVM does not support virtual threads (Java 21 or later is required).
+     */
+    public static ThreadFactory virtual() throws ChatException {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "connection-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new ChatException("Virtual threads require Java 21 or later, running on " + Runtime.version(), e);
+        }
+    }
+}
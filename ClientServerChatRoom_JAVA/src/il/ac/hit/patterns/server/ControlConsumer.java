@@ -0,0 +1,24 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.client.ChatException;
+
+/**
+ * The ControlConsumer interface represents an entity that handles the control messages of the protocol (see
+ * {@link il.ac.hit.patterns.protocol.ControlMessage}).
+ * <p>
+ * Unlike chat text, a control message is about the connection that sent it (for example a roster resync request), so
+ * the sending connection is passed along.
+ */
+public interface ControlConsumer {
+
+    /**
+     * Consumes a control message.
+     *
+     * @param from The connection the control message arrived on.
+     * @param text The control message.
+     * @throws ChatException If an error occurs while handling the message.
+     */
+    public void consumeControl(ClientConnection from, String text) throws ChatException;
+
+}
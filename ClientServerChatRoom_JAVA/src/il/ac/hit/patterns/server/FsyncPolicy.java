@@ -0,0 +1,17 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The FsyncPolicy enum defines when the {@link MessageJournal} forces what it wrote to the disk.
+ */
+public enum FsyncPolicy {
+
+    /** After every message: nothing acknowledged is lost, at the price of a disk flush per message. */
+    ALWAYS,
+
+    /** Once per batch of messages the writer took from its queue (group commit). */
+    GROUP,
+
+    /** Never explicitly: the operating system writes the pages back, a crash of the machine may lose recent messages. */
+    OS
+
+}
@@ -0,0 +1,230 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ConnectionTraffic;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The HeartbeatMonitor class finds the clients that vanished without closing their connection, such as a laptop put
+ * to sleep or a pulled cable, which a blocked read would otherwise wait for forever.
+ * <p>
+ * Every admitted client that negotiated {@link Handshake#FEATURE_HEARTBEAT} is watched. Its liveness is read off its
+ * {@link ConnectionTraffic}: any message counts, so the read paths do no extra work. A client that has been quiet for
+ * {@code --heartbeat-interval-ms} is sent a {@link ControlMessage#PING}, which it answers with a
+ * {@link ControlMessage#PONG}; one still quiet after {@code --idle-timeout-ms} is disconnected, removed from every
+ * room and its departure announced (see {@link RoomDirectory#disconnected}). Quiet times are checked when a check is
+ * due, so a client is disconnected up to one heartbeat interval after its timeout, never before it.
+ * <p>
+ * The checks run on a {@link TimerWheel}: each watched connection has one pending check, rescheduled by the check
+ * itself, so a tick costs only the checks that are due and a large number of quiet connections costs nothing until
+ * their time comes. Clients that did not negotiate heartbeats cannot answer a PING; they are left to TCP keepalive.
+ * <p>
+ * The counters are registered with JMX as {@code il.ac.hit.patterns:type=HeartbeatMonitor,port=<port>}.
+ */
+public class HeartbeatMonitor implements HeartbeatMonitorMBean {
+
+    /** The tick of the timer wheel, in milliseconds. */
+    public static final long TICK_MILLIS = 100;
+
+    /** The number of buckets of the timer wheel; one turn covers 1024 ticks, a little over the default idle timeout. */
+    public static final int WHEEL_SLOTS = 1024;
+
+    private final ServerOptions options; // The heartbeat interval and idle timeout.
+    private final RoomDirectory rooms; // Where idle clients are removed from.
+    private final TimerWheel wheel; // Runs the checks.
+    private final AtomicInteger watched; // Connections with a pending check.
+    private final LongAdder pings; // PING messages sent.
+    private final LongAdder idleDisconnects; // Clients disconnected for being quiet too long.
+
+    /**
+     * Constructs a HeartbeatMonitor object. Use {@link #start()} to start the checks.
+     *
+     * @param options The startup configuration: heartbeat interval and idle timeout.
+     * @param rooms   The rooms of the server.
+     */
+    public HeartbeatMonitor(ServerOptions options, RoomDirectory rooms) {
+        this.options = options;
+        this.rooms = rooms;
+        this.wheel = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS, "heartbeat-wheel");
+        this.watched = new AtomicInteger();
+        this.pings = new LongAdder();
+        this.idleDisconnects = new LongAdder();
+    }
+
+    /**
+     * Starts the timer wheel.
+     */
+    public void start() {
+        wheel.start();
+    }
+
+    /**
+     * Registers the counters with an MBean server.
+     *
+     * @param server The MBean server.
+     * @throws JMException If the MBean cannot be registered, for example because its name is taken.
+     */
+    public void register(MBeanServer server) throws JMException {
+        server.registerMBean(this, new ObjectName("il.ac.hit.patterns:type=HeartbeatMonitor,port=" + options.getPort()));
+    }
+
+    /**
+     * Stops the timer wheel; no client is pinged or disconnected after this.
+     */
+    public void close() {
+        wheel.close();
+    }
+
+    /**
+     * Starts watching an admitted client, if it negotiated heartbeats and they are turned on.
+     *
+     * @param connection The connection of the client.
+     */
+    public void watch(ClientConnection connection) {
+        ConnectionTraffic traffic = connection.getTraffic();
+        if (traffic == null || !connection.getFeatures().contains(Handshake.FEATURE_HEARTBEAT)
+                || (options.getHeartbeatIntervalMillis() == 0 && options.getIdleTimeoutMillis() == 0)) {
+            return;
+        }
+        watched.incrementAndGet();
+        Heartbeat heartbeat = new Heartbeat(connection, traffic);
+        wheel.schedule(heartbeat, heartbeat.nextCheckNanos(System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWatchedConnections() {
+        return watched.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getPingsSent() {
+        return pings.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    /**
+     * Builds the one-line summary printed when the server stops.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("heartbeats: %d connections watched, %d pings sent, %d idle clients disconnected",
+                getWatchedConnections(), getPingsSent(), getIdleDisconnects());
+    }
+
+    /**
+     * The Heartbeat class is the pending check of one watched connection. It only runs on the wheel thread.
+     */
+    private final class Heartbeat implements Runnable {
+
+        private final ClientConnection connection; // The watched connection.
+        private final ConnectionTraffic traffic; // Its counters, read to tell whether it is alive.
+        private long messagesIn; // The inbound message count at the last check.
+        private long quietSince; // When the client was last seen sending, in System.nanoTime() units.
+        private boolean pinged; // Whether a PING was sent since the client last sent anything.
+
+        /**
+         * Constructs a Heartbeat object for a client that was just admitted.
+         *
+         * @param connection The watched connection.
+         * @param traffic    Its counters.
+         */
+        private Heartbeat(ClientConnection connection, ConnectionTraffic traffic) {
+            this.connection = connection;
+            this.traffic = traffic;
+            this.messagesIn = traffic.getMessagesIn();
+            this.quietSince = System.nanoTime();
+            this.pinged = false;
+        }
+
+        /**
+         * Checks the connection: notes any message that arrived, pings a quiet client, disconnects one quiet for too
+         * long, and schedules the next check.
+         */
+        @Override
+        public void run() {
+            if (traffic.isClosed()) {
+                watched.decrementAndGet();
+                return;
+            }
+            long now = System.nanoTime();
+            long in = traffic.getMessagesIn();
+            if (in != messagesIn) {
+                messagesIn = in;
+                quietSince = now;
+                pinged = false;
+            }
+            long quiet = now - quietSince;
+            long idleTimeout = TimeUnit.MILLISECONDS.toNanos(options.getIdleTimeoutMillis());
+            if (idleTimeout > 0 && quiet >= idleTimeout) {
+                idleDisconnects.increment();
+                watched.decrementAndGet();
+                System.out.println("Client " + connection.getClientName() + " was quiet for "
+                        + TimeUnit.NANOSECONDS.toMillis(quiet) + " ms and is disconnected");
+                rooms.disconnected(connection);
+                return;
+            }
+            long interval = TimeUnit.MILLISECONDS.toNanos(options.getHeartbeatIntervalMillis());
+            /* A client with messages queued has something to answer to already, and a PING never adds to a queue
+               that is still being written. */
+            if (interval > 0 && !pinged && quiet >= interval && connection.getQueueDepth() == 0) {
+                pinged = true;
+                try {
+                    connection.send(OutboundMessage.of(Frame.control(ControlMessage.of(ControlMessage.PING, ""))));
+                    pings.increment();
+                } catch (ChatException e) {
+                    /* The connection failed; the sender already closed it, the next check stops watching it. */
+                }
+            }
+            wheel.schedule(this, nextCheckNanos(now), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Works out when the next check is due: when the PING is due if none was sent, otherwise when the idle timeout
+         * runs out.
+         *
+         * @param now The current time, in {@link System#nanoTime()} units.
+         * @return The delay until the next check, in nanoseconds.
+         */
+        private long nextCheckNanos(long now) {
+            long interval = TimeUnit.MILLISECONDS.toNanos(options.getHeartbeatIntervalMillis());
+            long idleTimeout = TimeUnit.MILLISECONDS.toNanos(options.getIdleTimeoutMillis());
+            long due;
+            if (interval > 0 && !pinged && (idleTimeout == 0 || interval < idleTimeout)) {
+                due = quietSince + interval;
+            } else if (idleTimeout > 0) {
+                due = quietSince + idleTimeout;
+            } else {
+                /* Pinged with no idle timeout: check again after another interval, to ping again if still quiet. */
+                pinged = false;
+                due = now + interval;
+            }
+            return Math.max(0, due - now);
+        }
+    }
+}
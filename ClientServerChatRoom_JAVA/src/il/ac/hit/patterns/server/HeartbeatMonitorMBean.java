@@ -0,0 +1,28 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The HeartbeatMonitorMBean interface is the JMX view of the {@link HeartbeatMonitor} of a server.
+ */
+public interface HeartbeatMonitorMBean {
+
+    /**
+     * Retrieves the number of connections whose heartbeats are watched now.
+     *
+     * @return The watched connection count.
+     */
+    public int getWatchedConnections();
+
+    /**
+     * Retrieves the number of PING messages sent to quiet clients.
+     *
+     * @return The ping count.
+     */
+    public long getPingsSent();
+
+    /**
+     * Retrieves the number of clients disconnected because they stayed quiet past the idle timeout.
+     *
+     * @return The idle disconnect count.
+     */
+    public long getIdleDisconnects();
+}
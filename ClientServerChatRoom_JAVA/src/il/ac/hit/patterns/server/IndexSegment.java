@@ -0,0 +1,213 @@
+package il.ac.hit.patterns.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * The IndexSegment class is one immutable part of the {@link SearchIndex}: a batch of messages and, for every term
+ * they hold, the posting list of the messages that hold it.
+ * <p>
+ * The messages of a segment are numbered from 0 in the order they were indexed; a posting list is the ascending
+ * numbers of the messages that hold the term. The terms are kept sorted, so a term is found by binary search.
+ * Segments are never changed: new messages make a new segment, and small segments are merged into larger ones by
+ * {@link #merge}, which only shifts the numbers of the later segments' postings.
+ */
+final class IndexSegment {
+
+    private static final int[] NO_POSTINGS = new int[0];
+
+    private final JournalRecord[] documents; // The messages, in the order they were indexed.
+    private final String[] terms; // The terms, sorted.
+    private final int[][] postings; // The ascending message numbers of each term, in the order of the terms.
+
+    /**
+     * Constructs an IndexSegment object.
+     *
+     * @param documents The messages.
+     * @param terms     The terms, sorted.
+     * @param postings  The posting list of each term.
+     */
+    private IndexSegment(JournalRecord[] documents, String[] terms, int[][] postings) {
+        this.documents = documents;
+        this.terms = terms;
+        this.postings = postings;
+    }
+
+    /**
+     * Indexes a batch of messages. The text of a message is indexed without the {@code "sender ->"} prefix the chat
+     * clients put in front of it.
+     *
+     * @param records The messages, in the order they were routed.
+     * @return The segment.
+     */
+    static IndexSegment build(List<JournalRecord> records) {
+        Map<String, IntList> lists = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            for (String term : SearchQuery.terms(searchableText(records.get(i)))) {
+                lists.computeIfAbsent(term, key -> new IntList()).add(i);
+            }
+        }
+        String[] terms = lists.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        int[][] postings = new int[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            postings[i] = lists.get(terms[i]).toArray();
+        }
+        return new IndexSegment(records.toArray(new JournalRecord[0]), terms, postings);
+    }
+
+    /**
+     * Merges adjacent segments into one. The messages keep their order, so the posting lists of each term are only
+     * shifted and concatenated; no message is indexed again.
+     *
+     * @param segments The segments, oldest first.
+     * @return The merged segment.
+     */
+    static IndexSegment merge(List<IndexSegment> segments) {
+        int size = 0;
+        for (IndexSegment segment : segments) {
+            size += segment.size();
+        }
+        JournalRecord[] documents = new JournalRecord[size];
+        TreeMap<String, IntList> lists = new TreeMap<>();
+        int offset = 0;
+        for (IndexSegment segment : segments) {
+            System.arraycopy(segment.documents, 0, documents, offset, segment.size());
+            for (int i = 0; i < segment.terms.length; i++) {
+                IntList list = lists.computeIfAbsent(segment.terms[i], key -> new IntList());
+                for (int number : segment.postings[i]) {
+                    list.add(offset + number);
+                }
+            }
+            offset += segment.size();
+        }
+        String[] terms = new String[lists.size()];
+        int[][] postings = new int[lists.size()][];
+        int i = 0;
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            terms[i] = entry.getKey();
+            postings[i] = entry.getValue().toArray();
+            i++;
+        }
+        return new IndexSegment(documents, terms, postings);
+    }
+
+    /**
+     * Retrieves the text of a message that is indexed: the message without the {@code "sender ->"} prefix.
+     *
+     * @param record The message.
+     * @return The searchable text.
+     */
+    private static String searchableText(JournalRecord record) {
+        String prefix = record.getSender() + " ->";
+        String message = record.getMessage();
+        return !record.getSender().isEmpty() && message.startsWith(prefix) ? message.substring(prefix.length()) : message;
+    }
+
+    /**
+     * Calls an action for every message that holds all the terms, newest first.
+     *
+     * @param queryTerms The terms, every message if empty.
+     * @param action     Called with the number of each matching message.
+     */
+    void forEachMatch(List<String> queryTerms, IntConsumer action) {
+        if (queryTerms.isEmpty()) {
+            for (int i = documents.length - 1; i >= 0; i--) {
+                action.accept(i);
+            }
+            return;
+        }
+        List<int[]> lists = new ArrayList<>(queryTerms.size());
+        for (String term : queryTerms) {
+            int[] list = postings(term);
+            if (list.length == 0) {
+                return;
+            }
+            lists.add(list);
+        }
+        /* Intersect the shortest list with the others, so the work is bounded by the rarest term. */
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] positions = new int[lists.size()];
+        int[] shortest = lists.get(0);
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = lists.get(i).length - 1;
+        }
+        for (int k = shortest.length - 1; k >= 0; k--) {
+            int number = shortest[k];
+            boolean all = true;
+            for (int i = 1; i < positions.length && all; i++) {
+                int[] list = lists.get(i);
+                while (positions[i] >= 0 && list[positions[i]] > number) {
+                    positions[i]--;
+                }
+                all = positions[i] >= 0 && list[positions[i]] == number;
+            }
+            if (all) {
+                action.accept(number);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the posting list of a term.
+     *
+     * @param term The term.
+     * @return The ascending numbers of the messages that hold it, empty if none does.
+     */
+    int[] postings(String term) {
+        int index = Arrays.binarySearch(terms, term);
+        return index < 0 ? NO_POSTINGS : postings[index];
+    }
+
+    /**
+     * Retrieves a message of the segment.
+     *
+     * @param number The number of the message.
+     * @return The message.
+     */
+    JournalRecord document(int number) {
+        return documents[number];
+    }
+
+    /**
+     * Retrieves the number of messages in the segment.
+     *
+     * @return The message count.
+     */
+    int size() {
+        return documents.length;
+    }
+
+    /**
+     * Retrieves the number of distinct terms in the segment.
+     *
+     * @return The term count.
+     */
+    int termCount() {
+        return terms.length;
+    }
+
+    /**
+     * A growable list of ints, to build posting lists without boxing.
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The JournalRecord class is one routed message as the server keeps it, in the {@link MessageHistory} of its room and
+ * in the {@link MessageJournal}: its sequence number, when it was routed, and the room, sender, recipient and text of
+ * the message.
+ * <p>
+ * It is immutable.
+ */
+public final class JournalRecord {
+
+    private final long sequence; // The position of the message among all the messages of the server, from 1.
+    private final long timestamp; // When the message was routed, in milliseconds since the epoch.
+    private final String room; // The room, empty for the default room.
+    private final String sender; // The name of the sender, empty if the message did not name one.
+    private final String recipient; // The name of the recipient, empty for a broadcast.
+    private final String message; // The message text.
+
+    /**
+     * Constructs a JournalRecord object.
+     *
+     * @param sequence  The position of the message among all the messages of the server, from 1.
+     * @param timestamp When the message was routed, in milliseconds since the epoch.
+     * @param room      The room, empty for the default room.
+     * @param sender    The name of the sender, empty if unknown.
+     * @param recipient The name of the recipient, empty for a broadcast.
+     * @param message   The message text.
+     */
+    public JournalRecord(long sequence, long timestamp, String room, String sender, String recipient, String message) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+    /**
+     * Retrieves the position of the message among all the messages of the server.
+     *
+     * @return The sequence number, from 1.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Retrieves when the message was routed.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Retrieves the room the message was sent in.
+     *
+     * @return The room, empty for the default room.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Retrieves the name of the sender.
+     *
+     * @return The sender name, empty if the message did not name one.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Retrieves the name of the recipient.
+     *
+     * @return The recipient name, empty for a broadcast.
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Retrieves the message text.
+     *
+     * @return The message text.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Checks whether the message was sent to every member of its room.
+     *
+     * @return {@code true} for a broadcast.
+     */
+    public boolean isBroadcast() {
+        return recipient.isEmpty();
+    }
+}
@@ -0,0 +1,332 @@
+package il.ac.hit.patterns.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * The JournalSegment class is one file of the {@link MessageJournal}, mapped into memory and filled with records from
+ * its start.
+ * <p>
+ * The file is created at its full size, so the space after the last record reads as zeros. A record is
+ * {@code u32 body length, u32 CRC-32C of the body, body}, and the body is
+ * {@code u64 sequence, u64 timestamp, room, sender, recipient, text}, each string a {@code u32} length followed by
+ * UTF-8. A zero length marks the end of the records. When the segment is closed the file is cut to the records it
+ * holds.
+ * <p>
+ * A segment is only written by the journal's writer thread, and only the writer maps it; {@link #scan} reads segments
+ * with plain reads, so it is safe while the writer appends to or cuts the same file.
+ */
+public class JournalSegment {
+
+    /** The file name suffix of a segment; the name is the sequence number of its first record. */
+    public static final String SUFFIX = ".seg";
+
+    /** The bytes in front of every record body: its length and its checksum. */
+    public static final int HEADER_BYTES = 8;
+
+    /** How many bytes of a segment file {@link #scan} reads at a time. */
+    public static final int SCAN_BLOCK_BYTES = 64 * 1024;
+
+    private final Path path; // The file of the segment.
+    private final FileChannel channel; // The open file.
+    private final MappedByteBuffer buffer; // The whole file, mapped.
+    private final long createdAt; // When the segment was created, in milliseconds since the epoch.
+    private int position; // Where the next record goes.
+    private int forced; // How many bytes from the start were forced to the disk.
+    private int records; // The number of records in the segment.
+
+    private JournalSegment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates and maps a new segment file.
+     *
+     * @param directory     The journal directory.
+     * @param firstSequence The sequence number of the first record, which names the file.
+     * @param capacity      The size of the file in bytes.
+     * @return The empty segment.
+     * @throws IOException If the file exists already or cannot be created or mapped.
+     */
+    public static JournalSegment create(Path directory, long firstSequence, int capacity) throws IOException {
+        Path path = directory.resolve(fileName(firstSequence));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new JournalSegment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the file name of a segment, padded so that the names sort like the sequence numbers.
+     *
+     * @param firstSequence The sequence number of the first record.
+     * @return The file name.
+     */
+    public static String fileName(long firstSequence) {
+        return String.format("%020d", firstSequence) + SUFFIX;
+    }
+
+    /**
+     * Appends a record, unless the segment has no room left for it.
+     *
+     * @param body The encoded body, from its position to its limit.
+     * @param crc  The CRC-32C of the body.
+     * @return {@code true} if the record was appended, {@code false} if it does not fit.
+     */
+    public boolean append(ByteBuffer body, int crc) {
+        int length = body.remaining();
+        if ((long) position + HEADER_BYTES + length > buffer.capacity()) {
+            return false;
+        }
+        buffer.putInt(position, length);
+        buffer.putInt(position + 4, crc);
+        buffer.duplicate().position(position + HEADER_BYTES).put(body);
+        position += HEADER_BYTES + length;
+        records++;
+        return true;
+    }
+
+    /**
+     * Forces the records written since the last call to the disk.
+     */
+    public void force() {
+        if (forced < position) {
+            buffer.force(forced, position - forced);
+            forced = position;
+        }
+    }
+
+    /**
+     * Forces the records to the disk, cuts the file to the records it holds and closes it.
+     */
+    public void close() {
+        force();
+        try {
+            /* Readers scan with plain reads, so cutting the file under them only ends their scan early. */
+            channel.truncate(position);
+        } catch (IOException e) {
+            System.out.println("Problem trimming journal segment " + path.getFileName() + ": " + e.getMessage());
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Problem closing journal segment " + path.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the records of a segment file in order, up to the end marker, the end of the file, or the first record
+     * that is cut short or fails its checksum.
+     * <p>
+     * The file is read with plain reads of {@link #SCAN_BLOCK_BYTES} at a time, never mapped: the writer cuts a segment
+     * to its records when it rolls, and a mapping past the new end would fault, while a read just comes up short.
+     *
+     * @param path   The segment file.
+     * @param action Called for every valid record.
+     * @return The number of bytes from the start of the file that hold valid records.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int scan(Path path, Consumer<JournalRecord> action) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_BYTES).flip();
+            CRC32C crc = new CRC32C();
+            int position = 0;
+            while (fill(channel, buffer, HEADER_BYTES)) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > size - position - HEADER_BYTES) {
+                    break;
+                }
+                if (buffer.capacity() < HEADER_BYTES + length) {
+                    buffer = ByteBuffer.allocate(HEADER_BYTES + length).put(buffer).flip();
+                }
+                if (!fill(channel, buffer, HEADER_BYTES + length)) {
+                    break;
+                }
+                int checksum = buffer.getInt(buffer.position() + 4);
+                ByteBuffer body = buffer.slice(buffer.position() + HEADER_BYTES, length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                JournalRecord record = decodeBody(body);
+                if (record == null) {
+                    break;
+                }
+                action.accept(record);
+                buffer.position(buffer.position() + HEADER_BYTES + length);
+                position += HEADER_BYTES + length;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Reads more of a file into a buffer until it holds a number of unread bytes, or the file ends.
+     *
+     * @param channel The file.
+     * @param buffer  The buffer, with the unread bytes between its position and limit.
+     * @param needed  The unread bytes needed, at most the capacity of the buffer.
+     * @return {@code true} if the buffer holds them, {@code false} if the file ended first.
+     * @throws IOException If the file cannot be read.
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < needed) {
+                if (channel.read(buffer) == -1) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Computes the size of the body of a record.
+     *
+     * @param record The record.
+     * @return The body length in bytes.
+     */
+    static int bodyLength(JournalRecord record) {
+        return 16 + 16 + utf8Length(record.getRoom()) + utf8Length(record.getSender()) + utf8Length(record.getRecipient())
+                + utf8Length(record.getMessage());
+    }
+
+    /**
+     * Encodes the body of a record.
+     *
+     * @param record The record.
+     * @param buffer Where the body goes, with at least {@link #bodyLength} bytes remaining.
+     */
+    static void encodeBody(JournalRecord record, ByteBuffer buffer) {
+        buffer.putLong(record.getSequence()).putLong(record.getTimestamp());
+        for (String field : new String[]{record.getRoom(), record.getSender(), record.getRecipient(), record.getMessage()}) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Decodes a record body.
+     *
+     * @param body The body, from its position to its limit.
+     * @return The record, or {@code null} if the body does not hold one.
+     */
+    static JournalRecord decodeBody(ByteBuffer body) {
+        if (body.remaining() < 16) {
+            return null;
+        }
+        long sequence = body.getLong();
+        long timestamp = body.getLong();
+        String room = readString(body);
+        String sender = room == null ? null : readString(body);
+        String recipient = sender == null ? null : readString(body);
+        String message = recipient == null ? null : readString(body);
+        if (message == null || body.hasRemaining()) {
+            return null;
+        }
+        return new JournalRecord(sequence, timestamp, room, sender, recipient, message);
+    }
+
+    /**
+     * Computes the length of a string in UTF-8 without encoding it.
+     *
+     * @param value The string.
+     * @return The encoded length in bytes.
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // Encoded as '?'.
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads a string written as a {@code u32} length followed by UTF-8.
+     *
+     * @param body The body, positioned at the string.
+     * @return The string, or {@code null} if the body is too short for it.
+     */
+    private static String readString(ByteBuffer body) {
+        if (body.remaining() < 4) {
+            return null;
+        }
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Retrieves the file of the segment.
+     *
+     * @return The path.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Retrieves when the segment was created.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Retrieves the number of records in the segment.
+     *
+     * @return The record count.
+     */
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * Retrieves the number of bytes the records take.
+     *
+     * @return The used size.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -1,13 +1,30 @@
 package il.ac.hit.patterns.server;
 
-import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.BackPressure;
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.LatencyHistogram;
 import il.ac.hit.patterns.StringConsumer;
 import il.ac.hit.patterns.StringProducer;
 import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.HistoryCodec;
+import il.ac.hit.patterns.protocol.HistoryEntry;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+import il.ac.hit.patterns.protocol.RosterUpdate;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,20 +33,96 @@ import java.util.regex.Pattern;
  * The MessageBoard class represents a message board that acts as a mediator between clients.
  * <p>
  * It implements the StringConsumer and StringProducer interfaces.
+ * <p>
+ * The board is called concurrently by every connection that sends a message and by the accepting thread. Clients are
+ * kept in a thread-safe {@link ClientRegistry}, and every message is parsed into its own {@link ChatCommand}, so the
+ * board holds no per-message state.
+ * <p>
+ * Clients that negotiated the {@link Handshake#FEATURE_ROSTER} feature receive chat messages without the roster in
+ * front of them. They get one roster snapshot when they join and a versioned {@link RosterUpdate} delta for every join
+ * and leave instead. Legacy clients keep receiving the full roster before every message.
+ * <p>
+ * Messages from clients that negotiated binary frames arrive already split, through {@link #consumeCommand}, and are
+ * sent to such clients as MESSAGE frames with typed sender and recipient fields.
+ * <p>
+ * A message is encoded once per format for all its recipients (see {@link OutboundMessage}); every recipient queues
+ * the same bytes.
+ * <p>
+ * One board serves one room (see {@link RoomDirectory}): its registry holds the members of the room, roster versions
+ * count the room's own joins and leaves, and the messages and roster frames it sends name the room. The board of the
+ * default room, the lobby, holds every client and is the only one where the leave message ends the connection.
+ * <p>
+ * In a cluster the registry also holds the clients of the other nodes ({@link ClientConnection#isRemote()}), so names
+ * and rosters cover the whole cluster, but the board only sends to its own clients. Messages relayed from another node
+ * come in through {@link #consumeRelayed}.
+ * <p>
+ * {@link BoardListener}s are told about every join, leave and routed message, to relay them to the other nodes or to
+ * keep them (see {@link MessageJournal}).
+ * <p>
+ * Every routed message is numbered and kept in the room's {@link MessageHistory}. A client that negotiated
+ * {@link Handshake#FEATURE_HISTORY} gets the history of a named room when it joins it, and the history of the lobby right
+ * after its own "has entered the chat room!" message, which is when the client clears its chat.
+ * <p>
+ * The lobby keeps a private message to a client that is not connected in the {@link OfflineMailbox}, and hands the
+ * client its mail when it connects again under the same name: in one HISTORY frame after its entered message if it
+ * negotiated {@link Handshake#FEATURE_HISTORY}, otherwise message by message when it joins. A sender that negotiated
+ * {@link Handshake#FEATURE_RECEIPTS} is told what became of each of its private messages.
  */
-public class MessageBoard implements StringConsumer, StringProducer {
+public class MessageBoard implements StringConsumer, StringProducer, ControlConsumer, CommandConsumer {
+
+    /** The suffix of the message a client sends when it leaves the chat room. */
+    public static final String LEFT_SUFFIX = " -> has left the chat room!";
 
-    private final List<StringConsumer> proxies; // List of connected clients.
-    List<StringConsumer> proxiesToRemove; // List of proxies to be removed (to avoid concurrent modification).
+    /** The end of the message a client sends when it enters the chat room. */
+    public static final String ENTERED_SUFFIX = " has entered the chat room!";
+
+    private final String room; // The room this board serves, empty for the default room.
+    private final ClientRegistry registry; // The connected clients, by name.
 
     private final Pattern pattern; // Regular expression pattern for message format.
-    private final List<String> sendTo_MessageList; // List to store sender, recipient, and message.
 
+    private final Object rosterLock; // Orders membership changes, so every client sees roster versions in sequence.
+    private long rosterVersion; // The roster version, incremented on every join and leave (guarded by rosterLock).
+    private volatile Consumer<ClientConnection> departureListener; // Told about clients that left or failed, may be null.
+    private final List<BoardListener> boardListeners; // Told about joins, leaves and routed messages.
+    private final LongSupplier sequencer; // Numbers the routed messages, shared by the boards of a server.
+    private final MessageHistory history; // The last messages of the room (guarded by rosterLock).
+    private volatile boolean journaled; // Whether older messages than the history can be read from a journal.
+    private volatile OfflineMailbox mailbox; // Keeps private messages to clients that are not connected, may be null.
+    private volatile Executor roomMailbox; // Adds a task to the mailbox of the room, to run on its shard; may be null.
+    private volatile LatencyHistogram fanOutTimes; // How long handing a message to its recipients took, may be null.
+
+    /**
+     * Constructs a MessageBoard object for the default room.
+     */
     public MessageBoard() {
-        this.proxies = new ArrayList<>();
-        this.proxiesToRemove = new ArrayList<>();
+        this("");
+    }
+
+    /**
+     * Constructs a MessageBoard object for a room.
+     *
+     * @param room The room, empty for the default room.
+     */
+    public MessageBoard(String room) {
+        this(room, new AtomicLong()::incrementAndGet, 0);
+    }
+
+    /**
+     * Constructs a MessageBoard object for a room that keeps its last messages.
+     *
+     * @param room        The room, empty for the default room.
+     * @param sequencer   Numbers the routed messages, the same for every board of the server.
+     * @param historySize The most messages kept for clients that join, 0 for none.
+     */
+    public MessageBoard(String room, LongSupplier sequencer, int historySize) {
+        this.room = room;
+        this.sequencer = sequencer;
+        this.history = new MessageHistory(historySize);
+        this.registry = new ClientRegistry();
         this.pattern = Pattern.compile("^(.*?)\\s##\\$\\$\\$###\\s(.*?)\\s#\\$\\$\\$#\\s(.*)$");
-        this.sendTo_MessageList = new ArrayList<>();
+        this.rosterLock = new Object();
+        this.boardListeners = new CopyOnWriteArrayList<>();
     }
 
 
@@ -46,60 +139,567 @@ public class MessageBoard implements StringConsumer, StringProducer {
     @Override
     public void consume(String text) throws ChatException {
 
-        StringBuilder clients = new StringBuilder();  // String representation of connected clients.
-
         /* Separate sender, recipient, and message. () */
-        command(text);
+        ChatCommand command = command(text);
 
-        for (StringConsumer proxy : getProxies()) {
+        /* A client that left the chat room is closed and removed before the roster is taken. */
+        if (isLobby() && text.endsWith(LEFT_SUFFIX)) {
+            ClientConnection leaving = getRegistry().lookup(text.substring(0, text.length() - LEFT_SUFFIX.length()));
+            leave(leaving);
+        }
 
-            String clientName = ((ConnectionProxy) proxy).getClientName();
+        routed(route(command), false);
+    }
 
-            if (text.equals(clientName + " ->" + " has left the chat room!")) {
-                ((ConnectionProxy) proxy).closeConnection();
-                // Add the connection to the removal list.
-                getProxiesToRemove().add(proxy);
-            } else {
-                /* Concat the connected names into the clients list. */
-                clients.append(" ").append(clientName);
-            }
+    /**
+     * Consumes a message that arrived in a binary frame. A leave message counts only for its own sender, and only in
+     * the lobby.
+     *
+     * @param command The chat command, its sender set by the server.
+     */
+    @Override
+    public void consumeCommand(ChatCommand command) {
+        if (isLobby() && command.getMessage().equals(command.getSender() + LEFT_SUFFIX)) {
+            leave(getRegistry().lookup(command.getSender()));
+        }
+        routed(route(command), false);
+    }
 
+    /**
+     * Consumes a message that a client of another cluster node sent, and that its node relayed here. It is only
+     * delivered to the clients of this server, and not relayed again.
+     *
+     * @param command The chat command.
+     */
+    public void consumeRelayed(ChatCommand command) {
+        routed(route(command), true);
+    }
+
+    /**
+     * Tells the clients of the lobby that a client left without sending its leave message, with the message it would
+     * have sent. Called once the client was removed.
+     *
+     * @param clientName The name of the client.
+     */
+    public void announceDeparture(String clientName) {
+        routed(route(command(clientName + LEFT_SUFFIX)), false);
+    }
+
+    /**
+     * Closes and removes a client that left the chat room.
+     *
+     * @param leaving The connection of the client, ignored if {@code null}.
+     */
+    private void leave(ClientConnection leaving) {
+        if (leaving != null) {
+            leaving.closeConnection();
+            unregister(leaving);
+            departed(leaving);
         }
-        /* Remove all the ended connections. */
-        getProxies().removeAll(getProxiesToRemove());
+    }
+
+    /**
+     * Numbers a message, distributes it to its recipients and adds it to the history.
+     *
+     * @param command The chat command.
+     * @return The numbered message.
+     */
+    private JournalRecord route(ChatCommand command) {
+        ClientConnection from = getRegistry().lookup(command.getSender());
+        Delivery delivery = new Delivery(command, from == null ? null : from.getBackPressure());
+        List<ClientConnection> failed = new ArrayList<>(0);
+        List<JournalRecord> entered = null; // The history the entering sender gets, if this is its entered message.
+        boolean enteredEnd = false;
+        CompletableFuture<List<JournalRecord>> mail = null; // The private messages kept for the entering sender.
+        ClientConnection mailTo = null; // The entering sender the mail was taken for.
+        String status = null; // What became of a private message, for the sender's receipt.
+        JournalRecord record;
 
         /* Distribute the message to the appropriate recipients - 'All' to all the clients if we didn't find a match in the pattern for a privet message,
-        else we did found a specific client name to send to, so we go to the else block and send the message only to the client sending the message and his
-        recipient other. */
-        if (getSendTo_MessageList().get(1).equals("All")) {
-            for (StringConsumer proxy : getProxies()) {
-                try {
-                    proxy.consume(clients + " $$$ " + getSendTo_MessageList().get(2));
-                } catch (ChatException e) {
-                    throw new ChatException("Problem Sending data through writeUTF from serverSide MessageBoard.", e);
+        else we did found a specific client name to send to, and we send the message only to the client sending the message and his
+        recipient other. Delivering only enqueues the message on the recipient's connection; a recipient that fails is removed
+        without stopping the broadcast for everyone after it. The roster lock makes a client join either before the
+        message is delivered or after it is in the history. */
+        synchronized (rosterLock) {
+            String recipientName = command.isBroadcast() ? "" : command.getRecipient();
+            record = new JournalRecord(sequencer.getAsLong(), System.currentTimeMillis(), room, command.getSender(),
+                    recipientName, command.getMessage());
+            long fanOutStart = System.nanoTime();
+            if (command.isBroadcast()) {
+                for (ClientConnection proxy : getRegistry().connections()) {
+                    if (!proxy.isRemote()) {
+                        deliver(proxy, delivery, failed);
+                    }
+                }
+            } else {
+                ClientConnection sender = getRegistry().lookup(command.getSender());
+                ClientConnection recipient = getRegistry().lookup(command.getRecipient());
+                if (sender != null && !sender.isRemote()) {
+                    deliver(sender, delivery, failed);
                 }
+                if (recipient != null && recipient != sender && !recipient.isRemote()) {
+                    deliver(recipient, delivery, failed);
+                }
+                status = recipient != null ? ControlMessage.DELIVERED
+                        : keep(record) ? ControlMessage.QUEUED : ControlMessage.UNDELIVERED;
             }
-        } else {
-            for (StringConsumer proxy : getProxies()) {
-                try {
-                    if (getProxies().size() == 0) {
-                        clients = new StringBuilder();
+            LatencyHistogram times = fanOutTimes;
+            if (times != null) {
+                times.record(System.nanoTime() - fanOutStart);
+            }
+            if (isEntered(record)) {
+                entered = history.visibleTo(command.getSender(), Long.MAX_VALUE, history.getCapacity());
+                enteredEnd = isHistoryComplete();
+                ClientConnection sender = getRegistry().lookup(command.getSender());
+                if (sender != null && !sender.isRemote() && supportsHistory(sender)) {
+                    /* The kept messages come in the mail, not twice; mail read back from disk later leaves out what
+                     the history showed instead. */
+                    mail = takeMail(sender);
+                    mailTo = sender;
+                    if (mail.isDone()) {
+                        Set<Long> kept = sequences(mail.join());
+                        entered.removeIf(message -> kept.contains(message.getSequence()));
                     }
-                    /* found a specific client name to send to, so we go to the else block and send
-                    the message only to the client sending the message and his recipient other. */
+                }
+            }
+            history.add(record);
+        }
+        for (ClientConnection proxy : failed) {
+            drop(proxy, null);
+        }
+        if (entered != null) {
+            ClientConnection sender = getRegistry().lookup(command.getSender());
+            if (sender != null && !sender.isRemote() && supportsHistory(sender)) {
+                deliver(sender, historyMessage(entered, enteredEnd));
+            }
+        }
+        /* A sender dropped meanwhile finds its mail kept again. */
+        if (mail != null) {
+            deliverMail(mailTo, mail, sequences(entered));
+        }
+        if (status != null) {
+            receipt(record, status);
+        }
+        return record;
+    }
+
+    /**
+     * Keeps a private message whose recipient is not connected, if this is the lobby and the server keeps offline
+     * mail. In a named room the recipient may just not be a member, so nothing is kept there. Called with the roster
+     * lock held.
+     *
+     * @param record The private message.
+     * @return {@code true} if the message was kept.
+     */
+    private boolean keep(JournalRecord record) {
+        OfflineMailbox current = mailbox;
+        return current != null && isLobby() && current.store(record);
+    }
+
+    /**
+     * Takes the private messages kept for a client that connected.
+     *
+     * @param proxy The client.
+     * @return Completed with the messages, oldest first, empty if none were kept or the server keeps none; later if
+     * the mailbox has to read them back from disk.
+     */
+    private CompletableFuture<List<JournalRecord>> takeMail(ClientConnection proxy) {
+        OfflineMailbox current = mailbox;
+        return current == null ? CompletableFuture.completedFuture(List.of()) : current.take(proxy.getClientName());
+    }
+
+    /**
+     * Runs a task with mail taken from the mailbox: at once if the mail was in memory, otherwise in turn with the
+     * messages of the room once the mailbox read it back from disk, so the shard never waits for the disk.
+     *
+     * @param mail The mail, as {@link OfflineMailbox#take} hands it over.
+     * @param task What to do with the messages.
+     */
+    void whenMailTaken(CompletableFuture<List<JournalRecord>> mail, Consumer<List<JournalRecord>> task) {
+        if (mail.isDone()) {
+            task.accept(mail.join());
+        } else {
+            mail.thenAccept(records -> runInTurn(() -> task.accept(records)));
+        }
+    }
 
-                    if (getSendTo_MessageList().get(0).equals(((ConnectionProxy) proxy).getClientName()) ||
-                        getSendTo_MessageList().get(1).equals(((ConnectionProxy) proxy).getClientName())) {
-                        proxy.consume(clients + " $$$ " + getSendTo_MessageList().get(2));
+    /**
+     * Hands a client that connected the private messages kept for it, once the mailbox handed them over. Mail that
+     * finds its client gone is kept again for the next time it connects.
+     *
+     * @param proxy The client, a local member of the lobby.
+     * @param mail  The mail, as {@link OfflineMailbox#take} hands it over.
+     * @param shown The sequence numbers of the messages the client got in its history, which are not sent again.
+     */
+    private void deliverMail(ClientConnection proxy, CompletableFuture<List<JournalRecord>> mail, Set<Long> shown) {
+        whenMailTaken(mail, records -> {
+            synchronized (rosterLock) {
+                if (getRegistry().lookup(proxy.getClientName()) != proxy) {
+                    OfflineMailbox current = mailbox;
+                    if (current != null) {
+                        current.putBack(proxy.getClientName(), records);
                     }
+                    return;
+                }
+                List<JournalRecord> unseen = new ArrayList<>(records.size());
+                List<JournalRecord> seen = new ArrayList<>(0);
+                for (JournalRecord record : records) {
+                    (shown.contains(record.getSequence()) ? seen : unseen).add(record);
+                }
+                deliverMail(proxy, unseen);
+                receipts(seen);
+            }
+        });
+    }
+
+    /**
+     * Collects the sequence numbers of messages.
+     *
+     * @param records The messages.
+     * @return Their sequence numbers.
+     */
+    private static Set<Long> sequences(List<JournalRecord> records) {
+        Set<Long> numbers = new HashSet<>();
+        for (JournalRecord record : records) {
+            numbers.add(record.getSequence());
+        }
+        return numbers;
+    }
+
+    /**
+     * Runs a task in turn with the messages of the room, on its shard, or at once if the board is not in a room.
+     *
+     * @param task The task.
+     */
+    void runInTurn(Runnable task) {
+        Executor current = roomMailbox;
+        if (current == null) {
+            task.run();
+        } else {
+            current.execute(task);
+        }
+    }
+
+    /**
+     * Hands a client that connected the private messages kept for it: in HISTORY frames marked as mail if it
+     * negotiated the history feature, one by one otherwise. The senders are told that their messages were delivered.
+     *
+     * @param proxy   The client, a local member of the lobby.
+     * @param records The messages, oldest first.
+     */
+    private void deliverMail(ClientConnection proxy, List<JournalRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (supportsHistory(proxy)) {
+            for (Frame frame : HistoryCodec.mail(entries(records))) {
+                deliver(proxy, OutboundMessage.of(frame));
+            }
+        } else {
+            for (JournalRecord record : records) {
+                ChatCommand command = new ChatCommand(record.getSender(), record.getRecipient(), record.getMessage());
+                deliver(proxy, new Delivery(command, null).messageFor(proxy));
+            }
+        }
+        receipts(records);
+    }
+
+    /**
+     * Tells the senders of kept messages that were just handed over, if they are connected to this node, that their
+     * messages were delivered.
+     *
+     * @param records The messages.
+     */
+    void receipts(List<JournalRecord> records) {
+        for (JournalRecord record : records) {
+            receipt(record, ControlMessage.DELIVERED);
+        }
+    }
+
+    /**
+     * Tells the sender of a private message what became of it, if the sender is connected to this node and negotiated
+     * the receipts feature.
+     *
+     * @param record The private message.
+     * @param status {@link ControlMessage#DELIVERED}, {@link ControlMessage#QUEUED} or
+     *               {@link ControlMessage#UNDELIVERED}.
+     */
+    private void receipt(JournalRecord record, String status) {
+        ClientConnection sender = getRegistry().lookup(record.getSender());
+        if (sender != null && !sender.isRemote() && supportsReceipts(sender)) {
+            deliver(sender, OutboundMessage.of(Frame.control(room, ControlMessage.of(ControlMessage.STATUS,
+                    record.getSequence() + " " + status + " " + record.getRecipient()))));
+        }
+    }
+
+    /**
+     * Checks whether the history holds every message of the room there is. Called with the roster lock held.
+     *
+     * @return {@code true} if no message was overwritten in the ring, and there is no journal.
+     */
+    private boolean isHistoryComplete() {
+        return history.isComplete() && !journaled;
+    }
+
+    /**
+     * Checks whether a message is the one a client sends in the lobby when it enters the chat room.
+     *
+     * @param record The numbered message.
+     * @return {@code true} for the "has entered the chat room!" message of its sender.
+     */
+    boolean isEntered(JournalRecord record) {
+        return isLobby() && !record.getSender().isEmpty() && record.getMessage().startsWith(record.getSender() + " ->")
+                && record.getMessage().endsWith(ENTERED_SUFFIX);
+    }
+
+    /**
+     * Sends a client the messages of the room older than a sequence number, as far as the history holds them.
+     *
+     * @param proxy  The client, a member of the room.
+     * @param before The sequence number.
+     * @param count  The most messages sent.
+     */
+    public void sendHistory(ClientConnection proxy, long before, int count) {
+        List<JournalRecord> records;
+        boolean end;
+        synchronized (rosterLock) {
+            records = history.visibleTo(proxy.getClientName(), before, count);
+            end = records.size() < count && isHistoryComplete();
+        }
+        deliver(proxy, historyMessage(records, end));
+    }
+
+    /**
+     * Builds the message that carries earlier messages of this room.
+     *
+     * @param records The messages, oldest first.
+     * @param end     Whether there is nothing older.
+     * @return The HISTORY frame.
+     */
+    OutboundMessage historyMessage(List<JournalRecord> records, boolean end) {
+        return OutboundMessage.of(HistoryCodec.frame(room, entries(records), end));
+    }
+
+    /**
+     * Builds the message that carries the results of a search in this room.
+     *
+     * @param records The matching messages, oldest first.
+     * @param end     Whether no older message matches.
+     * @return The HISTORY frame, marked as search results.
+     */
+    OutboundMessage searchMessage(List<JournalRecord> records, boolean end) {
+        return OutboundMessage.of(HistoryCodec.results(room, entries(records), end));
+    }
+
+    /**
+     * Converts numbered messages to the entries of a HISTORY frame.
+     *
+     * @param records The messages.
+     * @return The entries, in the same order.
+     */
+    private static List<HistoryEntry> entries(List<JournalRecord> records) {
+        List<HistoryEntry> entries = new ArrayList<>(records.size());
+        for (JournalRecord record : records) {
+            entries.add(new HistoryEntry(record.getSequence(), record.getTimestamp(), record.getSender(),
+                    record.getRecipient(), record.getMessage()));
+        }
+        return entries;
+    }
+
+    /**
+     * Tells the board listeners that a message was routed.
+     *
+     * @param record  The numbered message.
+     * @param relayed Whether the message was relayed from another node.
+     */
+    private void routed(JournalRecord record, boolean relayed) {
+        for (BoardListener listener : boardListeners) {
+            listener.messageRouted(this, record, relayed);
+        }
+    }
+
+    /**
+     * Handles a control message sent by a client. A {@link ControlMessage#RESYNC} request is answered with a fresh
+     * roster snapshot.
+     *
+     * @param from The connection the control message arrived on.
+     * @param text The control message.
+     */
+    @Override
+    public void consumeControl(ClientConnection from, String text) {
+        if (ControlMessage.RESYNC.equals(ControlMessage.typeOf(text)) && supportsRoster(from)) {
+            synchronized (rosterLock) {
+                deliver(from, rosterMessage(snapshot()));
+            }
+        }
+    }
+
+    /**
+     * Hands a message that only one recipient gets. If the recipient cannot take it, it is closed and removed from the
+     * board.
+     *
+     * @param proxy   The recipient.
+     * @param message The message to deliver.
+     */
+    private void deliver(ClientConnection proxy, OutboundMessage message) {
+        try {
+            proxy.send(message);
+        } catch (ChatException e) {
+            drop(proxy, e);
+        }
+    }
+
+    /**
+     * Hands a chat message to one recipient, in the format the recipient negotiated. A recipient that cannot take it is
+     * noted, to be removed once the roster lock is released.
+     *
+     * @param proxy    The recipient.
+     * @param delivery The message.
+     * @param failed   The recipients that could not take the message.
+     */
+    private void deliver(ClientConnection proxy, Delivery delivery, List<ClientConnection> failed) {
+        try {
+            proxy.send(delivery.messageFor(proxy), delivery.sender);
+        } catch (ChatException e) {
+            System.out.println("Problem delivering to " + proxy.getClientName() + ": " + e.getMessage());
+            failed.add(proxy);
+        }
+    }
+
+    /**
+     * Closes and removes a recipient that could not take a message. The departure listener removes it from every
+     * board and announces its departure; without one it is only removed from this board.
+     *
+     * @param proxy The recipient.
+     * @param e     The delivery failure, {@code null} if it was reported already.
+     */
+    private void drop(ClientConnection proxy, ChatException e) {
+        if (e != null) {
+            System.out.println("Problem delivering to " + proxy.getClientName() + ": " + e.getMessage());
+        }
+        proxy.closeConnection();
+        if (!departed(proxy)) {
+            unregister(proxy);
+        }
+    }
+
+    /**
+     * Tells the departure listener that a client left the chat room or failed.
+     *
+     * @param proxy The client.
+     * @return {@code true} if there is a departure listener.
+     */
+    private boolean departed(ClientConnection proxy) {
+        Consumer<ClientConnection> listener = departureListener;
+        if (listener != null) {
+            listener.accept(proxy);
+        }
+        return listener != null;
+    }
+
+    /**
+     * Sends a roster update to every roster client, except the given one.
+     *
+     * @param update The roster update.
+     * @param except The client to skip, may be {@code null}. Called with the roster lock held.
+     */
+    private void announce(RosterUpdate update, ClientConnection except) {
+        OutboundMessage message = rosterMessage(update);
+        for (ClientConnection proxy : getRegistry().connections()) {
+            if (proxy != except && !proxy.isRemote() && supportsRoster(proxy)) {
+                try {
+                    proxy.send(message);
                 } catch (ChatException e) {
-                    throw new ChatException("Problem Sending data through writeUTF from serverSide MessageBoard.", e);
+                    drop(proxy, e);
                 }
             }
         }
+    }
+
+    /**
+     * Builds the message that carries a roster update of this room.
+     *
+     * @param update The roster update.
+     * @return The ROSTER control message, in a frame that names the room.
+     */
+    private OutboundMessage rosterMessage(RosterUpdate update) {
+        return OutboundMessage.of(Frame.control(room, update.toText()));
+    }
 
-        /* Clearing the List that store sender, recipient, and message (Preparing to get a new message to handle). */
-        getSendTo_MessageList().clear();
+    /**
+     * Builds a snapshot of the current roster. Called with the roster lock held.
+     *
+     * @return The roster snapshot.
+     */
+    private RosterUpdate snapshot() {
+        return new RosterUpdate(rosterVersion, RosterUpdate.Kind.SNAPSHOT, getRegistry().names());
+    }
+
+    /**
+     * Checks whether a client receives roster updates instead of the roster in front of every message.
+     *
+     * @param proxy The client.
+     * @return {@code true} if the client negotiated the roster feature.
+     */
+    private static boolean supportsRoster(ClientConnection proxy) {
+        return proxy.getFeatures().contains(Handshake.FEATURE_ROSTER);
+    }
+
+    /**
+     * Checks whether a client receives the history of the rooms it enters.
+     *
+     * @param proxy The client.
+     * @return {@code true} if the client negotiated the history feature.
+     */
+    private static boolean supportsHistory(ClientConnection proxy) {
+        return proxy.getFeatures().contains(Handshake.FEATURE_HISTORY);
+    }
+
+    /**
+     * Checks whether a client is told what became of its private messages.
+     *
+     * @param proxy The client.
+     * @return {@code true} if the client negotiated the receipts feature.
+     */
+    private static boolean supportsReceipts(ClientConnection proxy) {
+        return proxy.getFeatures().contains(Handshake.FEATURE_RECEIPTS);
+    }
+
+    /**
+     * The Delivery class holds one message in the variants its recipients need: the message alone for roster clients,
+     * and the roster followed by the message for the others. Each variant is built only once, and only if one of the
+     * recipients needs it; the variant then encodes itself once per wire format. It also carries the back-pressure of
+     * the sender, which a recipient's full queue holds under the BLOCK policy.
+     */
+    private final class Delivery {
+        private final ChatCommand command; // The message and its routing.
+        private final BackPressure sender; // The back-pressure of the local client that sent the message, may be null.
+        private OutboundMessage rosterMessage; // The variant for roster clients, built on first use.
+        private OutboundMessage legacyMessage; // The roster-prefixed variant, built on first use.
+
+        private Delivery(ChatCommand command, BackPressure sender) {
+            this.command = command;
+            this.sender = sender;
+        }
+
+        private OutboundMessage messageFor(ClientConnection proxy) {
+            if (supportsRoster(proxy)) {
+                if (rosterMessage == null) {
+                    rosterMessage = message(command.getMessage());
+                }
+                return rosterMessage;
+            }
+            if (legacyMessage == null) {
+                /* The connected names, each preceded by a space. */
+                legacyMessage = message(getRegistry().rosterText() + " $$$ " + command.getMessage());
+            }
+            return legacyMessage;
+        }
+
+        private OutboundMessage message(String text) {
+            String recipient = command.isBroadcast() ? "" : command.getRecipient();
+            return OutboundMessage.of(Frame.message(command.getSender(), recipient, room, text));
+        }
     }
 
     /**
@@ -112,77 +712,196 @@ public class MessageBoard implements StringConsumer, StringProducer {
     }
 
     /**
-     * Retrieves the list of proxies representing connected clients.
+     * Retrieves the room this board serves.
+     *
+     * @return The room, empty for the default room.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Checks whether this board serves the default room.
+     *
+     * @return {@code true} for the lobby.
+     */
+    public boolean isLobby() {
+        return getRoom().isEmpty();
+    }
+
+    /**
+     * Sets who is told about clients that left the chat room or were dropped after a failed delivery, so they can be
+     * removed from the other rooms as well. A dropped client is left to the listener to remove from this board too.
+     *
+     * @param departureListener The listener, or {@code null} for none.
+     */
+    public void setDepartureListener(Consumer<ClientConnection> departureListener) {
+        this.departureListener = departureListener;
+    }
+
+    /**
+     * Adds a listener that is told about the joins, leaves and messages of this board.
+     *
+     * @param boardListener The listener.
+     */
+    public void addBoardListener(BoardListener boardListener) {
+        boardListeners.add(boardListener);
+    }
+
+    /**
+     * Runs an action for every member of the board while nobody can join or leave it, so the action sees one version
+     * of the roster, and no join or leave reaches the board listener in between.
+     *
+     * @param action The action.
+     */
+    public void forEachMember(Consumer<ClientConnection> action) {
+        synchronized (rosterLock) {
+            getRegistry().connections().forEach(action);
+        }
+    }
+
+    /**
+     * Sets whether messages older than the history can be read from a journal, so a client is not told it has seen
+     * the oldest message when the ring is merely too small.
      *
-     * @return The list of proxies representing connected clients.
+     * @param journaled Whether a journal keeps the messages of the room.
      */
-    public List<StringConsumer> getProxies() {
-        return proxies;
+    void setJournaled(boolean journaled) {
+        this.journaled = journaled;
     }
 
     /**
-     * Retrieves the list of proxies to be removed.
+     * Sets where private messages to clients that are not connected are kept. Only the lobby keeps them.
      *
-     * @return The list of proxies to be removed.
+     * @param mailbox The mailboxes, or {@code null} to keep none.
      */
-    public List<StringConsumer> getProxiesToRemove() {
-        return proxiesToRemove;
+    void setMailbox(OfflineMailbox mailbox) {
+        this.mailbox = mailbox;
     }
 
     /**
-     * Retrieves the list that store the sender, recipient, and message to be sent.
+     * Sets where tasks that must run in turn with the messages of the room are added, such as handing over mail that
+     * was read back from disk.
      *
-     * @return The list that store the sender, recipient, and message to be sent.
+     * @param roomMailbox Adds a task to the mailbox of the room, or {@code null} to run such tasks at once.
      */
-    public List<String> getSendTo_MessageList() {
-        return sendTo_MessageList;
+    void setRoomMailbox(Executor roomMailbox) {
+        this.roomMailbox = roomMailbox;
+    }
+
+    /**
+     * Sets where the time it takes to hand each message to its recipients is recorded.
+     *
+     * @param fanOutTimes The histogram, or {@code null} to record nothing.
+     */
+    void setFanOutTimes(LatencyHistogram fanOutTimes) {
+        this.fanOutTimes = fanOutTimes;
+    }
+
+    /**
+     * Retrieves where private messages to clients that are not connected are kept.
+     *
+     * @return The mailboxes, or {@code null} if none are kept.
+     */
+    OfflineMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Retrieves the registry of the connected clients.
+     *
+     * @return The registry of the connected clients.
+     */
+    public ClientRegistry getRegistry() {
+        return registry;
     }
 
     /**
      * Adds a consumer (client) to the message board.
      *
-     * @param consumer The consumer to add.
+     * @param consumer The consumer to add, a {@link ClientConnection}.
      */
     @Override
     public void addConsumer(StringConsumer consumer) {
-        getProxies().add(consumer);
+        register((ClientConnection) consumer);
+    }
+
+    /**
+     * Registers a client under its name, unless the name is already taken. The check and the insert are atomic.
+     *
+     * @param connection The connection of the client.
+     * @return {@code true} if the client was added, {@code false} if its name is taken.
+     */
+    public boolean register(ClientConnection connection) {
+        synchronized (rosterLock) {
+            if (!getRegistry().register(connection)) {
+                return false;
+            }
+            rosterVersion++;
+            announce(new RosterUpdate(rosterVersion, RosterUpdate.Kind.JOIN, List.of(connection.getClientName())), connection);
+            if (!connection.isRemote() && supportsRoster(connection)) {
+                deliver(connection, rosterMessage(snapshot()));
+            }
+            /* The lobby's history follows the client's own entered message instead, see route(). */
+            if (!isLobby() && !connection.isRemote() && supportsHistory(connection)) {
+                deliver(connection, historyMessage(history.visibleTo(connection.getClientName(), Long.MAX_VALUE,
+                        history.getCapacity()), isHistoryComplete()));
+            }
+            /* Clients with the history feature get their mail after the lobby's history instead, see route(). */
+            if (isLobby() && !connection.isRemote() && !supportsHistory(connection)) {
+                deliverMail(connection, takeMail(connection), Set.of());
+            }
+            for (BoardListener listener : boardListeners) {
+                listener.memberJoined(this, connection);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes a client from the board and announces its departure to the roster clients.
+     *
+     * @param connection The connection of the client.
+     * @return {@code true} if the client was removed, {@code false} if it was not registered.
+     */
+    public boolean unregister(ClientConnection connection) {
+        synchronized (rosterLock) {
+            if (!getRegistry().unregister(connection)) {
+                return false;
+            }
+            rosterVersion++;
+            announce(new RosterUpdate(rosterVersion, RosterUpdate.Kind.LEAVE, List.of(connection.getClientName())), null);
+            for (BoardListener listener : boardListeners) {
+                listener.memberLeft(this, connection);
+            }
+            return true;
+        }
     }
 
     /**
      * Removes a consumer (client) from the message board.
      *
-     * @param consumer The consumer to remove.
+     * @param consumer The consumer to remove, a {@link ClientConnection}.
      */
     @Override
     public void removeConsumer(StringConsumer consumer) {
-        getProxies().remove(consumer);
+        unregister((ClientConnection) consumer);
     }
 
     /**
-     * Separates the sender, recipient, and message from the given text based on a predefined pattern
-     * and adding the separated parts into 'sentTo_MessageList' ArrayList.
+     * Separates the sender, recipient, and message from the given text based on a predefined pattern.
      *
      * @param text The text to separate.
+     * @return The parsed command; a text that does not match the pattern is a message to all clients.
      */
-    public void command(@NotNull String text) {
-        getSendTo_MessageList().clear();
+    public ChatCommand command(@NotNull String text) {
         Matcher matcher = getPattern().matcher(text);
         if (matcher.matches()) {
-            // Extract the sender and message using group indices
-            getSendTo_MessageList().add(matcher.group(1));
-            getSendTo_MessageList().add(matcher.group(2));
-            getSendTo_MessageList().add(matcher.group(3));
-
-            System.out.println("Sender: " + getSendTo_MessageList().get(0));
-            System.out.println("ToClient: " + getSendTo_MessageList().get(1));
-            System.out.println("Message: " + getSendTo_MessageList().get(2));
-        } else {
-            /* Did not found a pattern so recipient is All clients and message is 'text'. */
-            getSendTo_MessageList().add("");
-            getSendTo_MessageList().add("All");
-            getSendTo_MessageList().add(text);
-            System.out.println("Pattern did not match the input");
+            // Extract the sender, recipient and message using group indices
+            return new ChatCommand(matcher.group(1), matcher.group(2), matcher.group(3));
         }
+        /* Did not found a pattern so recipient is All clients and message is 'text'. */
+        return new ChatCommand("", ChatCommand.ALL, text);
     }
 
     /**
@@ -192,12 +911,6 @@ public class MessageBoard implements StringConsumer, StringProducer {
      * @return {@code true} if the client name already exists, {@code false} otherwise.
      */
     public boolean checkClientsNames(String clientName) {
-        for (StringConsumer proxy : getProxies()) {
-            if (((ConnectionProxy) proxy).getClientName().equals(clientName)) {
-                return true;
-            }
-        }
-        return false;
+        return getRegistry().contains(clientName);
     }
 }
-
@@ -0,0 +1,111 @@
+package il.ac.hit.patterns.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MessageHistory class keeps the last messages of one room in a ring buffer of fixed size, so that a client that
+ * joins the room sees what was said before it came.
+ * <p>
+ * The newest message overwrites the oldest once the ring is full; older messages can still be read from the
+ * {@link MessageJournal} if the server keeps one. A private message is only shown to its sender and its recipient.
+ * <p>
+ * The ring is not thread-safe: its board uses it under its roster lock, so that a client that joins sees every message
+ * either in the history or live, never both and never neither.
+ */
+public class MessageHistory {
+
+    private final JournalRecord[] ring; // The messages, the oldest at head once the ring is full.
+    private int head; // Where the next message goes.
+    private int size; // The number of messages in the ring.
+    private boolean overwritten; // Whether a message was ever overwritten.
+
+    /**
+     * Constructs a MessageHistory object.
+     *
+     * @param capacity The most messages kept, 0 to keep none.
+     */
+    public MessageHistory(int capacity) {
+        this.ring = new JournalRecord[capacity];
+    }
+
+    /**
+     * Adds a message, overwriting the oldest one if the ring is full.
+     *
+     * @param record The message.
+     */
+    public void add(JournalRecord record) {
+        if (ring.length == 0) {
+            overwritten = true;
+            return;
+        }
+        if (size == ring.length) {
+            overwritten = true;
+        } else {
+            size++;
+        }
+        ring[head] = record;
+        head = (head + 1) % ring.length;
+    }
+
+    /**
+     * Retrieves the newest messages a client may see that are older than a sequence number.
+     *
+     * @param clientName The name of the client.
+     * @param before     The sequence number, {@link Long#MAX_VALUE} for the newest messages.
+     * @param count      The most messages returned.
+     * @return The messages, oldest first.
+     */
+    public List<JournalRecord> visibleTo(String clientName, long before, int count) {
+        List<JournalRecord> newestFirst = new ArrayList<>(Math.min(count, size));
+        for (int i = 1; i <= size && newestFirst.size() < count; i++) {
+            JournalRecord record = ring[(head - i + ring.length) % ring.length];
+            if (record.getSequence() < before && isVisible(record, clientName)) {
+                newestFirst.add(record);
+            }
+        }
+        List<JournalRecord> oldestFirst = new ArrayList<>(newestFirst.size());
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            oldestFirst.add(newestFirst.get(i));
+        }
+        return oldestFirst;
+    }
+
+    /**
+     * Checks whether a client may see a message: every broadcast, and the private messages it sent or received.
+     *
+     * @param record     The message.
+     * @param clientName The name of the client.
+     * @return {@code true} if the client may see the message.
+     */
+    public static boolean isVisible(JournalRecord record, String clientName) {
+        return record.isBroadcast() || record.getSender().equals(clientName) || record.getRecipient().equals(clientName);
+    }
+
+    /**
+     * Checks whether the ring holds every message of the room, none having been overwritten.
+     *
+     * @return {@code true} if no message was lost to the ring size.
+     */
+    public boolean isComplete() {
+        return !overwritten;
+    }
+
+    /**
+     * Retrieves the most messages kept.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Retrieves the number of messages in the ring.
+     *
+     * @return The message count.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,452 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The MessageJournal class keeps every message routed on this server in an append-only journal on disk.
+ * <p>
+ * The journal is a directory of {@link JournalSegment} files, each memory-mapped and named after the sequence number
+ * of its first record. A new segment is started when a record does not fit in the current one, or when the current
+ * one is older than the roll time. When and how often the writes are forced to the disk is set by the
+ * {@link FsyncPolicy}.
+ * <p>
+ * The journal listens to every board (see {@link BoardListener}). A routed message is only put in a queue on the room's
+ * shard thread; one writer thread takes the messages in batches, encodes them, appends them and forces them to the
+ * disk, so no disk write or flush runs on the routing path. If the disk falls {@link #QUEUE_CAPACITY} messages
+ * behind, the shards wait for it.
+ * <p>
+ * The boards number the messages, so the messages of one room are written in order, but those of rooms on different
+ * shards may be a little out of order. The journal remembers the lowest and highest sequence number in each segment,
+ * and reads older messages of a room for clients that page back through its history on a reader thread of its own
+ * (see {@link #readBefore}).
+ * <p>
+ * On startup the segments are read back and every record is checked against its CRC. A record that was cut short or
+ * damaged by a crash ends its segment: the file is cut before it, and new records go to a new segment.
+ */
+public class MessageJournal implements BoardListener {
+
+    /** The most messages waiting for the writer. */
+    public static final int QUEUE_CAPACITY = 65_536;
+
+    /** The most messages the writer appends before it forces them to the disk under the GROUP policy. */
+    public static final int MAX_BATCH = 1024;
+
+    private static final long IDLE_CHECK_MILLIS = 1000; // How often an idle writer checks whether to roll.
+    private static final JournalRecord CLOSE = new JournalRecord(0, 0, "", "", "", ""); // Tells the writer to stop.
+
+    private final Path directory; // The directory of the segments.
+    private final int segmentBytes; // The size of a new segment.
+    private final long rollMillis; // The age at which a segment is closed.
+    private final FsyncPolicy fsyncPolicy; // When writes are forced to the disk.
+    private final BlockingQueue<JournalRecord> queue; // Messages waiting for the writer.
+    private final Thread writer; // Takes the messages from the queue and appends them.
+    private final ExecutorService reader; // Reads older messages for clients, off the shard threads.
+    private final List<SegmentRange> ranges; // The sequence numbers in each segment, oldest segment first.
+    private final CRC32C crc; // Checksums the records, writer thread only.
+    private ByteBuffer scratch; // Where a record body is encoded, writer thread only.
+    private JournalSegment current; // The segment being written, null until the next record (writer thread only).
+    private SegmentRange currentRange; // The sequence numbers in the current segment (writer thread only).
+    private long nextSequence; // The sequence number after the last recovered record.
+    private volatile boolean failed; // Whether a write failed and the journal stopped.
+    private volatile long appended; // The number of records appended since startup.
+    private volatile long appendedBytes; // The bytes appended since startup.
+    private volatile long forces; // The number of times the writes were forced to the disk.
+    private volatile int segmentsStarted; // The number of segments started since startup.
+
+    /**
+     * Constructs a MessageJournal object. Use {@link #open} to recover the journal and start the writer.
+     *
+     * @param directory    The directory of the segments.
+     * @param segmentBytes The size of a new segment.
+     * @param rollMillis   The age at which a segment is closed.
+     * @param fsyncPolicy  When writes are forced to the disk.
+     */
+    private MessageJournal(Path directory, int segmentBytes, long rollMillis, FsyncPolicy fsyncPolicy) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.rollMillis = rollMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.ranges = new CopyOnWriteArrayList<>();
+        this.crc = new CRC32C();
+        this.scratch = ByteBuffer.allocate(1024);
+        this.nextSequence = 1;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.reader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the journal in a directory, creating the directory if needed: recovers the segments on disk and starts the
+     * writer.
+     *
+     * @param options The startup configuration: journal directory, segment size, roll time and fsync policy.
+     * @return The journal.
+     * @throws IOException If the directory or its segments cannot be read.
+     */
+    public static MessageJournal open(ServerOptions options) throws IOException {
+        Path directory = Path.of(options.getJournalDirectory());
+        Files.createDirectories(directory);
+        MessageJournal journal = new MessageJournal(directory, options.getJournalSegmentBytes(),
+                options.getJournalRollMillis(), options.getJournalFsyncPolicy());
+        journal.recover();
+        journal.writer.start();
+        return journal;
+    }
+
+    /**
+     * Checks every segment on disk, cuts off what follows the last valid record of each, and notes the sequence
+     * numbers each one holds.
+     *
+     * @throws IOException If a segment cannot be read or cut.
+     */
+    private void recover() throws IOException {
+        long records = 0;
+        long cut = 0;
+        List<Path> files = segmentFiles();
+        for (Path file : files) {
+            SegmentRange range = new SegmentRange(file);
+            int valid = JournalSegment.scan(file, range::include);
+            long size = Files.size(file);
+            if (valid < size) {
+                /* A record cut short or damaged by a crash, or the zeros after the last record of an unclosed segment. */
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+                cut += size - valid;
+            }
+            ranges.add(range);
+            records += range.count;
+            nextSequence = Math.max(nextSequence, range.last + 1);
+        }
+        System.out.println("Journal " + directory + ": recovered " + records + " messages in " + files.size()
+                + " segments, " + cut + " bytes cut off, next sequence " + nextSequence);
+    }
+
+    /**
+     * Lists the segment files of the journal, oldest first.
+     *
+     * @return The segment files.
+     * @throws IOException If the directory cannot be listed.
+     */
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(JournalSegment.SUFFIX)).sorted().toList();
+        }
+    }
+
+    /**
+     * Reads every valid record of the journal, segment by segment. Records still being written may be missed.
+     *
+     * @param action Called for every record.
+     * @throws IOException If a segment cannot be read.
+     */
+    public void replay(Consumer<JournalRecord> action) throws IOException {
+        for (Path file : segmentFiles()) {
+            JournalSegment.scan(file, action);
+        }
+    }
+
+    /**
+     * Reads the newest messages of a room older than a sequence number, on the reader thread, and hands them to a
+     * callback there. Segments are read newest first, and only as far back as needed.
+     *
+     * @param room    The room, empty for the lobby.
+     * @param before  The sequence number.
+     * @param count   The most messages read.
+     * @param visible Which messages of the room to read, e.g. the ones a client may see.
+     * @param answer  Called with the messages, oldest first, or with an empty list if the journal cannot be read.
+     */
+    public void readBefore(String room, long before, int count, Predicate<JournalRecord> visible,
+                           Consumer<List<JournalRecord>> answer) {
+        reader.execute(() -> {
+            /* The newest messages found so far, the oldest of them on top. */
+            PriorityQueue<JournalRecord> found = new PriorityQueue<>(Comparator.comparingLong(JournalRecord::getSequence));
+            try {
+                for (int i = ranges.size() - 1; i >= 0; i--) {
+                    SegmentRange range = ranges.get(i);
+                    if (range.first >= before) {
+                        continue;
+                    }
+                    /* Every record here and in the segments before it is older than the oldest one found. */
+                    if (found.size() == count && range.last < found.peek().getSequence()) {
+                        break;
+                    }
+                    JournalSegment.scan(range.path, record -> {
+                        if (record.getSequence() < before && record.getRoom().equals(room) && visible.test(record)) {
+                            found.add(record);
+                            if (found.size() > count) {
+                                found.poll();
+                            }
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                System.out.println("Problem reading the journal: " + e.getMessage());
+                found.clear();
+            }
+            List<JournalRecord> records = new ArrayList<>(found.size());
+            while (!found.isEmpty()) {
+                records.add(found.poll());
+            }
+            answer.accept(records);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Membership changes are not journaled.
+     */
+    @Override
+    public void memberJoined(MessageBoard board, ClientConnection connection) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Membership changes are not journaled.
+     */
+    @Override
+    public void memberLeft(MessageBoard board, ClientConnection connection) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Queues the message for the writer, waiting if the writer is {@link #QUEUE_CAPACITY} messages behind.
+     */
+    @Override
+    public void messageRouted(MessageBoard board, JournalRecord record, boolean relayed) {
+        if (failed) {
+            return;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the writer thread: appends the queued messages in batches until the journal is closed.
+     */
+    private void writeLoop() {
+        List<JournalRecord> batch = new ArrayList<>(MAX_BATCH);
+        boolean closing = false;
+        try {
+            while (!closing) {
+                JournalRecord first = queue.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    rollIfOld();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (JournalRecord record : batch) {
+                    if (record == CLOSE) {
+                        closing = true;
+                    } else if (!failed) {
+                        write(record);
+                    }
+                }
+                batch.clear();
+                if (fsyncPolicy == FsyncPolicy.GROUP && current != null) {
+                    force();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Appends one message, starting a new segment if it does not fit or the current one is too old.
+     *
+     * @param record The message.
+     */
+    private void write(JournalRecord record) {
+        ByteBuffer body = encode(record);
+        crc.reset();
+        crc.update(body.duplicate());
+        int checksum = (int) crc.getValue();
+        try {
+            rollIfOld();
+            if (current == null || !current.append(body.duplicate(), checksum)) {
+                closeSegment();
+                current = JournalSegment.create(directory, record.getSequence(),
+                        Math.max(segmentBytes, JournalSegment.HEADER_BYTES + body.remaining()));
+                currentRange = new SegmentRange(current.getPath());
+                ranges.add(currentRange);
+                segmentsStarted++;
+                current.append(body.duplicate(), checksum);
+            }
+        } catch (IOException e) {
+            System.out.println("Problem writing the journal, journaling stopped: " + e.getMessage());
+            failed = true;
+            return;
+        }
+        currentRange.include(record);
+        appended++;
+        appendedBytes += JournalSegment.HEADER_BYTES + body.remaining();
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            force();
+        }
+    }
+
+    /**
+     * Encodes the body of a record into the scratch buffer.
+     *
+     * @param record The message.
+     * @return The scratch buffer, from the start of the body to its end.
+     */
+    private ByteBuffer encode(JournalRecord record) {
+        int length = JournalSegment.bodyLength(record);
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        JournalSegment.encodeBody(record, scratch);
+        return scratch.flip();
+    }
+
+    /**
+     * Forces the current segment to the disk.
+     */
+    private void force() {
+        current.force();
+        forces++;
+    }
+
+    /**
+     * Closes the current segment if it is older than the roll time. The next record starts a new one.
+     */
+    private void rollIfOld() {
+        if (current != null && System.currentTimeMillis() - current.getCreatedAt() >= rollMillis) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Closes the current segment, forcing it to the disk.
+     */
+    private void closeSegment() {
+        if (current != null) {
+            current.close();
+            current = null;
+            currentRange = null;
+        }
+    }
+
+    /**
+     * Stops the journal: the writer appends what is queued, forces it to the disk and closes the segment.
+     *
+     * @param timeoutMillis How long to wait for the writer.
+     */
+    public void close(long timeoutMillis) {
+        reader.shutdown();
+        try {
+            if (queue.offer(CLOSE, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                writer.join(timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Retrieves the sequence number that follows the last message recovered on startup. The boards number new
+     * messages from here, so numbers are not reused across restarts.
+     *
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Retrieves the number of messages waiting for the writer.
+     *
+     * @return The queue depth.
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Retrieves the number of messages appended since startup.
+     *
+     * @return The record count.
+     */
+    public long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Retrieves the number of times the writes were forced to the disk since startup.
+     *
+     * @return The fsync count.
+     */
+    public long getForces() {
+        return forces;
+    }
+
+    /**
+     * Summarizes the work of the journal since startup.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("journal: %d messages, %d bytes in %d segments, %d fsyncs (%s)", appended,
+                appendedBytes, segmentsStarted, forces, fsyncPolicy.name().toLowerCase());
+    }
+
+    /**
+     * The lowest and highest sequence number of the records in one segment, so that a read for older messages can
+     * skip the segments that cannot hold any. Updated by the writer thread, read by the reader thread.
+     */
+    private static final class SegmentRange {
+        private final Path path; // The segment file.
+        private volatile long first = Long.MAX_VALUE; // The lowest sequence number in the segment.
+        private volatile long last; // The highest sequence number in the segment.
+        private long count; // The number of records, counted on recovery and by the writer.
+
+        private SegmentRange(Path path) {
+            this.path = path;
+        }
+
+        private void include(JournalRecord record) {
+            first = Math.min(first, record.getSequence());
+            last = Math.max(last, record.getSequence());
+            count++;
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.BackPressure;
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ConnectionTraffic;
+import il.ac.hit.patterns.ModifiedUtf8;
+import il.ac.hit.patterns.OutboundQueue;
+import il.ac.hit.patterns.SlowConsumerPolicy;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ChunkAssembler;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameCodec;
+import il.ac.hit.patterns.protocol.FrameCompression;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The NioConnection class represents a client connection served by a {@link NioEventLoop}.
+ * <p>
+ * It speaks the same wire format as {@link il.ac.hit.patterns.ConnectionProxy} (writeUTF/readUTF frames), so existing
+ * clients connect to it unchanged. The first frame received is the client name, every following frame is passed to
+ * the consumer exactly like the blocking read loop does. A client that negotiated binary frames switches to them
+ * the same way it does with the blocking engine.
+ * <p>
+ * Large messages are queued as a stream of chunks, which the queue hands out only while no other message waits, and
+ * incoming chunks are put back together up to the size cap of the connection. Compressed frames are restored before
+ * they are passed on.
+ * <p>
+ * Outbound frames go through a bounded {@link OutboundQueue}, so the slow-consumer policy applies to this engine as
+ * well. Senders that run on an event loop or a room shard never wait for room, as waiting could deadlock the loop or
+ * stall every room of the shard. Under the BLOCK policy a full queue holds back the client whose message filled it
+ * instead (see {@link BackPressure}): the loop stops reading that client's channel until it is released.
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024; // Enough for ordinary chat lines.
+    private static final int MAX_GATHER = 16; // Most buffers handed to one gathering write.
+
+    private final SocketChannel channel; // The non-blocking channel of the client.
+    private final NioEventLoop loop; // The event loop that owns the channel.
+    private SelectionKey selectionKey; // The key of the channel on the loop selector.
+    private ByteBuffer readBuffer; // Accumulates incoming bytes until a whole frame arrived.
+    private final OutboundQueue<byte[]> writeQueue; // Encoded frames waiting to be written to the channel.
+    private final byte[][] drained; // Frames just taken off the queue, loop only.
+    private final ByteBuffer[] writeBatch; // Frames taken off the queue for the current gathering write, loop only.
+    private int writeBatchSize; // Number of frames in the write batch, loop only.
+    private final AtomicBoolean flushScheduled; // Whether a flush was already requested from the loop.
+    private final AtomicBoolean closed; // Whether the connection was closed.
+    private final AtomicBoolean departed; // Whether the client was marked as gone.
+    private final BackPressure backPressure; // Stops reading while the client's messages wait to be routed or in full queues.
+    private final Runnable resume; // Resumes reading on the loop once the client is no longer held back.
+    private volatile boolean closeAfterFlush; // Whether to close the connection once the write queue is drained.
+    private volatile StringConsumer consumer; // The consumer of the messages read from the client.
+    private volatile String clientName; // The client name received in the handshake.
+    private volatile Set<String> features = Set.of(); // The protocol features negotiated in the handshake.
+    private volatile boolean admitted; // Whether the server accepted the handshake, set on the loop thread.
+    private boolean admitting; // Whether the handshake arrived and the outcome did not; reads wait meanwhile, loop only.
+    private boolean framedInput; // Whether the client sends binary frames, only touched on the loop thread.
+    private volatile boolean framedOutput; // Whether frames are sent to the client, switched after the ACK.
+    private volatile boolean deflateOutput; // Whether frames are sent compressed, switched with framedOutput.
+    private final ChunkAssembler chunkAssembler; // Reassembles large messages, loop only.
+    private final ConnectionTraffic traffic; // Counts the traffic of the connection.
+    private final long opened; // When the channel was registered, in System.nanoTime() units.
+    private ScheduledFuture<?> handshakeTimeout; // Closes the connection if its name is late, loop only.
+
+    /**
+     * Constructs a NioConnection object for an accepted channel.
+     *
+     * @param channel The accepted channel, in non-blocking mode.
+     * @param loop       The event loop that serves the channel.
+     * @param writeQueue The bounded queue of frames waiting to be written.
+     * @param traffic    The counters the traffic of the connection is recorded in.
+     */
+    public NioConnection(SocketChannel channel, NioEventLoop loop, OutboundQueue<byte[]> writeQueue,
+                         ConnectionTraffic traffic) {
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        this.writeQueue = writeQueue;
+        this.drained = new byte[MAX_GATHER][];
+        this.writeBatch = new ByteBuffer[MAX_GATHER];
+        this.chunkAssembler = new ChunkAssembler(loop.getServer().getOptions().getMaxMessageBytes());
+        this.chunkAssembler.setBudget(loop.getServer().getOptions().getReassemblyBudget());
+        this.flushScheduled = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.departed = new AtomicBoolean();
+        this.backPressure = new BackPressure();
+        this.resume = () -> loop.execute(this::resumeReading);
+        this.traffic = traffic;
+        this.opened = System.nanoTime();
+    }
+
+    /**
+     * Sets the selection key of the channel, called by the loop once the channel is registered.
+     *
+     * @param selectionKey The selection key.
+     */
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Retrieves the event loop that serves this connection.
+     *
+     * @return The event loop.
+     */
+    NioEventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Sets the timeout that closes the connection if the client name does not arrive in time. Called by the loop.
+     *
+     * @param handshakeTimeout The scheduled timeout, cancelled when the name arrives.
+     */
+    void setHandshakeTimeout(ScheduledFuture<?> handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Closes the connection if the client has still not sent its name. Runs on the loop thread when the handshake
+     * timeout expires.
+     */
+    void handshakeTimedOut() {
+        if (clientName == null && !closed.get()) {
+            loop.getServer().getMetrics().handshakeTimedOut();
+            closeConnection();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConnectionTraffic getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean markDeparted() {
+        return departed.compareAndSet(false, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueueDepth() {
+        return writeQueue.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BackPressure getBackPressure() {
+        return writeQueue.getPolicy() == SlowConsumerPolicy.BLOCK ? backPressure : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Encodes the text and queues it for the event loop to write. The calling thread never blocks on the socket.
+     *
+     * @param text The text to send to the client.
+     * @throws ChatException If the connection is closed, the text cannot be encoded, or the slow-consumer policy
+     *                       disconnected the client.
+     */
+    @Override
+    public void consume(String text) throws ChatException {
+        send(OutboundMessage.of(text));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Encodes the frame in the format the client negotiated and queues it like {@link #consume(String)} does.
+     *
+     * @param frame The frame to send to the client.
+     * @throws ChatException If the connection is closed, the frame cannot be encoded, or the slow-consumer policy
+     *                       disconnected the client.
+     */
+    @Override
+    public void consumeFrame(Frame frame) throws ChatException {
+        send(OutboundMessage.of(frame));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Queues the shared encoded bytes by reference, or the shared chunks of a large message as one stream.
+     *
+     * @param message The message to send to the client.
+     * @throws ChatException If the connection is closed, the message cannot be encoded, or the slow-consumer policy
+     *                       disconnected the client.
+     */
+    @Override
+    public void send(OutboundMessage message) throws ChatException {
+        send(message, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Queues the message like {@link #send(OutboundMessage)} does.
+     *
+     * @param message The message to send to the client.
+     * @param sender  The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If the connection is closed, the message cannot be encoded, or the slow-consumer policy
+     *                       disconnected the client.
+     */
+    @Override
+    public void send(OutboundMessage message, BackPressure sender) throws ChatException {
+        if (closed.get()) {
+            throw new ChatException("Connection of " + getClientName() + " is closed");
+        }
+        try {
+            if (message.isChunked(framedOutput)) {
+                enqueue(message.encodedChunks(), sender);
+            } else {
+                enqueue(List.of(message.encoded(framedOutput, deflateOutput)), sender);
+            }
+        } catch (IOException e) {
+            throw new ChatException("Problem encoding a message for " + getClientName(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Runs on the loop thread during admission, before the client is registered, so nothing else is queued meanwhile.
+     */
+    @Override
+    public void acknowledgeFeatures() throws ChatException {
+        consume(Handshake.acknowledge(getFeatures()));
+        framedOutput = getFeatures().contains(Handshake.FEATURE_FRAMES);
+        deflateOutput = getFeatures().contains(Handshake.FEATURE_DEFLATE);
+    }
+
+    /**
+     * Queues encoded frames for the event loop to write, applying the slow-consumer policy. More than one frame is
+     * queued as a stream.
+     *
+     * @param frames The encoded frames of one message.
+     * @param sender The back-pressure of the client that sent the message, may be {@code null}.
+     * @throws ChatException If the policy disconnected the client or the connection is closed.
+     */
+    private void enqueue(List<byte[]> frames, BackPressure sender) throws ChatException {
+        boolean mayBlock = writeQueue.mayBlockHere();
+        boolean queued;
+        try {
+            queued = frames.size() == 1 ? writeQueue.offer(frames.get(0), mayBlock, sender)
+                    : writeQueue.offerStream(frames, mayBlock, sender);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChatException("Interrupted while queueing text for " + getClientName(), e);
+        }
+        if (!queued) {
+            boolean alreadyClosed = writeQueue.isClosed();
+            closeConnection();
+            throw new ChatException(alreadyClosed ? "Connection of " + getClientName() + " is closed"
+                    : "Client " + getClientName() + " is too slow and was disconnected");
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addConsumer(StringConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeConsumer(StringConsumer consumer) {
+        this.consumer = null;
+    }
+
+    /**
+     * Closes the connection as soon as every queued frame was written, used to deliver a final message.
+     */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Safe to call from any thread and more than once.
+     */
+    @Override
+    public void closeConnection() {
+        if (closed.compareAndSet(false, true)) {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writeQueue.close();
+            writeQueue.clear();
+            backPressure.close();
+            /* The assembler belongs to the loop; the bytes of unfinished messages go back to the budget there. */
+            if (loop.inEventLoop()) {
+                chunkAssembler.close();
+            } else {
+                loop.execute(chunkAssembler::close);
+            }
+            removeConsumer(this.consumer);
+            traffic.closed();
+            if (clientName == null) {
+                loop.getServer().getMetrics().handshakeEnded();
+            }
+            /* Whatever closed it, an admitted client is taken out of the rooms at once. */
+            if (admitted) {
+                loop.getServer().disconnected(this);
+            }
+        }
+    }
+
+    /**
+     * Reads whatever is available on the channel and dispatches every complete frame. While messages the client sent
+     * wait in full queues under the BLOCK policy, nothing is read: the channel is taken out of read interest until the
+     * client is released. Runs on the loop thread.
+     */
+    void onReadable() {
+        if (backPressure.whenReleased(resume)) {
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        try {
+            if (channel.read(readBuffer) == -1) {
+                closeConnection();
+                return;
+            }
+        } catch (IOException e) {
+            closeConnection();
+            return;
+        }
+        dispatchBuffered();
+    }
+
+    /**
+     * Dispatches every complete frame in the read buffer. Stops after the handshake until the client is admitted, as
+     * what the client sends next is meant for the rooms, and while the client is held back. Runs on the loop thread.
+     */
+    private void dispatchBuffered() {
+        readBuffer.flip();
+        while (!closed.get() && !admitting && !backPressure.isHeld()) {
+            /* The format may change after any message, so the prefix is checked again for every one. */
+            int prefix = prefixSize();
+            if (readBuffer.remaining() < prefix) {
+                break;
+            }
+            int start = readBuffer.position();
+            try {
+                int length = bodyLength(start);
+                if (readBuffer.remaining() < prefix + length) {
+                    break;
+                }
+                readBuffer.position(start + prefix + length);
+                traffic.received(prefix + length);
+                if (framedInput) {
+                    dispatch(FrameCodec.decode(ByteBuffer.wrap(readBuffer.array(), start + prefix, length)));
+                } else {
+                    dispatch(ModifiedUtf8.decode(readBuffer.array(), start + prefix, length));
+                }
+            } catch (IOException e) {
+                System.out.println("Protocol error from " + getClientName() + ": " + e.getMessage());
+                closeConnection();
+                return;
+            }
+        }
+        readBuffer.compact();
+        ensureReadCapacity();
+    }
+
+    /**
+     * Retrieves the size of the length prefix of the messages the client currently sends.
+     *
+     * @return The prefix size.
+     */
+    private int prefixSize() {
+        return framedInput ? FrameCodec.LENGTH_PREFIX_SIZE : ModifiedUtf8.LENGTH_PREFIX_SIZE;
+    }
+
+    /**
+     * Reads the length prefix of the message that starts at the given position of the read buffer.
+     *
+     * @param start The position of the message in the read buffer.
+     * @return The length of the message body.
+     * @throws IOException If the length is not valid.
+     */
+    private int bodyLength(int start) throws IOException {
+        if (!framedInput) {
+            return readBuffer.getShort(start) & 0xFFFF;
+        }
+        int length = readBuffer.getInt(start);
+        FrameCodec.checkLength(length);
+        return length;
+    }
+
+    /**
+     * Grows the read buffer when a frame larger than the buffer is partially received.
+     */
+    private void ensureReadCapacity() {
+        if (readBuffer.position() < prefixSize() || readBuffer.hasRemaining()) {
+            return;
+        }
+        int frameSize;
+        try {
+            frameSize = prefixSize() + bodyLength(0);
+        } catch (IOException e) {
+            closeConnection();
+            return;
+        }
+        if (frameSize > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(frameSize);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Handles one decoded frame: the first frame is the handshake, the rest go to the consumer.
+     *
+     * @param text The decoded frame.
+     */
+    private void dispatch(String text) {
+        if (clientName == null) {
+            // Here we read the client name (and the features it supports) arrived from the new connection of the client
+            Handshake handshake = Handshake.parse(text);
+            features = handshake.getAcceptedFeatures();
+            clientName = handshake.getClientName();
+            if (handshakeTimeout != null) {
+                handshakeTimeout.cancel(false);
+            }
+            ServerMetrics metrics = loop.getServer().getMetrics();
+            metrics.getHandshakeTimes().record(System.nanoTime() - opened);
+            metrics.handshakeEnded();
+            /* A cluster node may have to ask another node for the name, so the outcome arrives later. */
+            admitting = true;
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+            loop.getServer().admit(this);
+            return;
+        }
+        StringConsumer current = consumer;
+        if (!admitted || current == null) {
+            return;
+        }
+        /* From here on the client sends binary frames. */
+        if (ControlMessage.isControl(text) && ControlMessage.FRAMES.equals(ControlMessage.typeOf(text))
+                && getFeatures().contains(Handshake.FEATURE_FRAMES)) {
+            framedInput = true;
+            return;
+        }
+        try {
+            current.consume(text);
+        } catch (ChatException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Takes the outcome of the admission, started when the handshake arrived, and resumes reading if the client got
+     * in. Runs on the loop thread.
+     *
+     * @param admitted Whether the client was registered in the lobby.
+     */
+    void admissionEnded(boolean admitted) {
+        admitting = false;
+        this.admitted = admitted;
+        if (closed.get()) {
+            /* The connection closed while the name was being checked; a client that got in anyway is taken out. */
+            if (admitted) {
+                loop.getServer().disconnected(this);
+            }
+            return;
+        }
+        if (!admitted) {
+            return;
+        }
+        try {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            closeConnection();
+            return;
+        }
+        dispatchBuffered();
+    }
+
+    /**
+     * Puts the channel back into read interest once the client is no longer held back, and dispatches the frames that
+     * were read before it was. Runs on the loop thread.
+     */
+    private void resumeReading() {
+        if (closed.get() || admitting) {
+            return;
+        }
+        try {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            closeConnection();
+            return;
+        }
+        dispatchBuffered();
+    }
+
+    /**
+     * Handles one decoded binary frame, passing it to the consumer (or only its text to a text consumer). Chunks are
+     * passed on as one message once the last one arrived, and compressed frames are passed on restored.
+     *
+     * @param frame The decoded frame.
+     * @throws IOException If a chunk or a compressed frame is malformed, or a chunk breaks the size cap.
+     */
+    private void dispatch(Frame frame) throws IOException {
+        if (frame.getType() == FrameType.CHUNK) {
+            frame = chunkAssembler.accept(frame);
+            if (frame == null) {
+                return;
+            }
+        }
+        frame = FrameCompression.inflate(frame);
+        StringConsumer current = consumer;
+        if (!admitted || current == null) {
+            return;
+        }
+        try {
+            if (current instanceof FrameConsumer) {
+                ((FrameConsumer) current).consumeFrame(frame);
+            } else {
+                current.consume(frame.getText());
+            }
+        } catch (ChatException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Writes as much queued data as the socket accepts. Runs on the loop thread.
+     * <p>
+     * Up to {@link #MAX_GATHER} queued frames are taken off the queue and written with one gathering write. A frame
+     * leaves the queue before it is written, so the DROP_OLDEST policy can never drop a partly written frame. If the
+     * socket buffer fills up, write interest is registered and the rest is written when the channel becomes writable
+     * again.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get() || selectionKey == null) {
+            return;
+        }
+        try {
+            while (true) {
+                int count = writeQueue.drainTo(drained, writeBatchSize);
+                for (int i = writeBatchSize; i < writeBatchSize + count; i++) {
+                    writeBatch[i] = ByteBuffer.wrap(drained[i]);
+                    drained[i] = null;
+                }
+                writeBatchSize += count;
+                if (writeBatchSize == 0) {
+                    break;
+                }
+                long start = System.nanoTime();
+                long bytes = channel.write(writeBatch, 0, writeBatchSize);
+                long nanos = System.nanoTime() - start;
+                int written = 0;
+                while (written < writeBatchSize && !writeBatch[written].hasRemaining()) {
+                    written++;
+                }
+                traffic.sent(written, bytes, nanos);
+                System.arraycopy(writeBatch, written, writeBatch, 0, writeBatchSize - written);
+                Arrays.fill(writeBatch, writeBatchSize - written, writeBatchSize, null);
+                writeBatchSize -= written;
+                if (writeBatchSize > 0) {
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | CancelledKeyException e) {
+            closeConnection();
+            return;
+        }
+        if (closeAfterFlush) {
+            closeConnection();
+        }
+    }
+}
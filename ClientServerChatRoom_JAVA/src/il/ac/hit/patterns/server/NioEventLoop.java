@@ -0,0 +1,171 @@
+package il.ac.hit.patterns.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The NioEventLoop class is a single thread that owns a {@link Selector} and serves every connection registered on it.
+ * <p>
+ * All reads, handshakes and socket writes of its connections run on this thread. Other threads hand work over
+ * through the registration, write and task queues and wake the selector up.
+ */
+public class NioEventLoop extends Thread {
+
+    private final NioServer server; // The server that distributes accepted channels to this loop.
+    private final Selector selector; // The selector that multiplexes the connections of this loop.
+    private final Queue<SocketChannel> pendingRegistrations; // Accepted channels waiting to be registered.
+    private final Queue<NioConnection> pendingWrites; // Connections that have new outbound data to flush.
+    private final Queue<Runnable> pendingTasks; // Work other threads handed to the loop thread.
+
+    /**
+     * Constructs a NioEventLoop object.
+     *
+     * @param server The server that owns this loop.
+     * @param index  The index of the loop, used for the thread name.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public NioEventLoop(NioServer server, int index) throws IOException {
+        super("nio-event-loop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+        this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Retrieves the server that owns this loop.
+     *
+     * @return The owning server.
+     */
+    public NioServer getServer() {
+        return server;
+    }
+
+    /**
+     * Hands a newly accepted channel over to this loop. The channel is registered on the loop thread.
+     *
+     * @param channel The accepted channel, already in non-blocking mode.
+     */
+    public void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush the outbound data of the given connection.
+     * <p>
+     * When called on the loop thread itself the connection is flushed immediately.
+     *
+     * @param connection The connection that has outbound data.
+     */
+    public void requestWrite(NioConnection connection) {
+        if (inEventLoop()) {
+            connection.flush();
+        } else {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the loop thread, after the current select.
+     *
+     * @param task The task.
+     */
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Checks whether the calling thread is this event-loop thread.
+     *
+     * @return {@code true} if called from the loop thread, {@code false} otherwise.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Runs the select loop until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                flushPendingWrites();
+                runPendingTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        connection.closeConnection();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Problem selecting on " + getName());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Registers every channel handed over by the acceptor since the last select.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            NioConnection connection = new NioConnection(channel, this, server.getOptions().newOutboundQueue(),
+                    server.getTraffic().open());
+            server.getMetrics().handshakeStarted();
+            connection.setHandshakeTimeout(server.scheduleHandshakeTimeout(connection));
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setSelectionKey(key);
+            } catch (IOException e) {
+                connection.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Runs every task handed over by other threads since the last select.
+     */
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Flushes every connection that received outbound data from another thread since the last select.
+     */
+    private void flushPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.flush();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.TrafficMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The NioServer class is the non-blocking server engine.
+ * <p>
+ * Instead of a thread per connection it runs a fixed group of {@link NioEventLoop} threads (one per core by default).
+ * The accepting thread hands every new channel to the next loop in round-robin order, and from then on the
+ * connection is served entirely by that loop.
+ * <p>
+ * Handshakes never block the accept loop: the client name is read by the event loop as soon as it arrives, and a
+ * connection that has not sent it within {@code --handshake-timeout-ms} is closed. The time from registration to the
+ * name and the time admission takes are recorded in the {@link ServerMetrics}.
+ */
+public class NioServer {
+
+    private final ServerOptions options; // The startup configuration.
+    private final RoomDirectory rooms; // The rooms every admitted connection feeds into.
+    private final ServerMetrics metrics; // Counts the traffic of every connection and times their admission.
+    private final NioEventLoop[] loops; // The event loops that serve the connections.
+    private final ScheduledThreadPoolExecutor handshakeTimer; // Closes connections whose name does not arrive in time.
+    private int nextLoop; // The index of the loop that receives the next accepted channel.
+
+    /**
+     * Constructs a NioServer object.
+     *
+     * @param options The startup configuration.
+     * @param rooms   The rooms of the server.
+     * @param metrics The metrics the traffic and admission times of every connection are recorded in.
+     * @throws IOException If an event-loop selector cannot be opened.
+     */
+    public NioServer(ServerOptions options, RoomDirectory rooms, ServerMetrics metrics) throws IOException {
+        this.options = options;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.loops = new NioEventLoop[options.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, i);
+        }
+        this.handshakeTimer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "nio-handshake-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /* Most handshakes complete in time, so their timeouts are cancelled and should not linger in the queue. */
+        this.handshakeTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Retrieves the startup configuration.
+     *
+     * @return The startup configuration.
+     */
+    public ServerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Retrieves the metrics the traffic and admission times of every connection are recorded in.
+     *
+     * @return The server metrics.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the counters the traffic of every connection is recorded in.
+     *
+     * @return The traffic counters.
+     */
+    public TrafficMetrics getTraffic() {
+        return metrics.getTraffic();
+    }
+
+    /**
+     * Starts the event loops and runs the accept loop on the calling thread until it is interrupted.
+     *
+     * @throws IOException If the server channel cannot be opened or bound.
+     */
+    public void start() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(options.getPort()), options.getBacklog());
+            for (NioEventLoop loop : loops) {
+                loop.start();
+            }
+            System.out.println("NIO engine listening on port " + options.getPort() + " with " + loops.length + " event loops");
+
+            // Continuously accept client connections and distribute them across the event loops
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel channel = server.accept();
+                try {
+                    channel.configureBlocking(false);
+                    /* Clients without heartbeats that vanish are only found by TCP keepalive. */
+                    channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                } catch (IOException e) {
+                    channel.close();
+                    continue;
+                }
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.interrupt();
+            }
+            handshakeTimer.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the handshake timeout of a new connection. When it expires the connection's event loop closes the
+     * connection, unless its client name arrived meanwhile.
+     *
+     * @param connection The connection that was just registered.
+     * @return The scheduled timeout, to be cancelled when the client name arrives.
+     */
+    ScheduledFuture<?> scheduleHandshakeTimeout(NioConnection connection) {
+        return handshakeTimer.schedule(() -> connection.getLoop().execute(connection::handshakeTimedOut),
+                options.getHandshakeTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the client of a closed connection out of the rooms and announces its departure, unless it left by itself.
+     * Runs on whatever thread closed the connection.
+     *
+     * @param connection The connection, closed after its client was admitted.
+     */
+    void disconnected(NioConnection connection) {
+        rooms.disconnected(connection);
+    }
+
+    /**
+     * Admits a connection whose handshake just completed. Called on the connection's event-loop thread, which never
+     * waits for the outcome: when it is known, possibly later on another thread, the connection is told on its loop.
+     *
+     * @param connection The connection that sent its client name.
+     */
+    void admit(NioConnection connection) {
+        long started = System.nanoTime();
+        ServerApplication.admit(rooms, connection).whenComplete((registered, e) -> connection.getLoop().execute(() -> {
+            boolean admitted = e == null && registered;
+            connection.admissionEnded(admitted);
+            if (!admitted) {
+                // Let the rejection message reach the client before closing
+                connection.closeAfterFlush();
+            }
+            metrics.getAdmissionTimes().record(System.nanoTime() - started);
+        }));
+    }
+}
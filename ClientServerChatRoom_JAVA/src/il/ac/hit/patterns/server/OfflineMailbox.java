@@ -0,0 +1,445 @@
+package il.ac.hit.patterns.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The OfflineMailbox class keeps the private messages sent to clients that are not connected, and hands them over in
+ * one batch when a client with the same name connects again.
+ * <p>
+ * Each client has a mailbox of at most {@code --mailbox-size} messages; a message is thrown away when it is older
+ * than {@code --mailbox-ttl-ms}, and a message to a full mailbox is not kept. The messages are held in memory up to
+ * {@code --mailbox-memory-bytes}; above it, the largest mailbox in memory is appended to a file of its own in the
+ * mailbox directory (same record body as the {@link JournalSegment}s, behind a {@code u32} length), and read back when
+ * its client connects. The mailboxes only live as long as the server: the directory is emptied when the server starts.
+ * <p>
+ * Only the lobby keeps messages (see {@link MessageBoard}), so a message is kept exactly when its recipient is not a
+ * member of the lobby, which lists every client of the cluster. Messages are stored and taken on the lobby's shard
+ * thread, with the mailboxes' monitor held for work in memory only. Every file is read and written on a sweeper thread
+ * of its own, outside the monitor: it moves mailboxes to disk, throws away expired messages, and reads back the mail of
+ * a client whose mailbox went to disk, which {@link #take} hands over once it is read.
+ */
+public class OfflineMailbox {
+
+    /** How often expired messages are thrown away, in milliseconds. */
+    public static final long SWEEP_MILLIS = 60_000;
+
+    private static final String SUFFIX = ".mail"; // The extension of the mailbox files.
+
+    private final int capacity; // The most messages kept for one client.
+    private final long ttlMillis; // How long a message is kept.
+    private final long memoryBudget; // The bytes of messages held in memory before a mailbox is moved to disk.
+    private final Path directory; // Where the mailboxes that do not fit in memory go.
+    private final Map<String, Box> boxes; // The mailboxes by client name (guarded by this).
+    private final Set<String> loading; // Clients whose file is being read back (guarded by this).
+    private final ScheduledExecutorService sweeper; // Throws away expired messages and moves mailboxes to disk.
+    private long memoryBytes; // The bytes of messages held in memory (guarded by this).
+    private long stored; // The number of messages kept since startup (guarded by this).
+    private long delivered; // The number of kept messages handed over (guarded by this).
+    private long expired; // The number of kept messages thrown away unread (guarded by this).
+    private long rejected; // The number of messages not kept because the mailbox was full (guarded by this).
+    private long spilled; // The number of messages moved to disk (guarded by this).
+
+    /**
+     * Constructs an OfflineMailbox object. Use {@link #open} to prepare its directory and start the sweeper.
+     *
+     * @param capacity     The most messages kept for one client.
+     * @param ttlMillis    How long a message is kept.
+     * @param memoryBudget The bytes of messages held in memory before a mailbox is moved to disk.
+     * @param directory    Where the mailboxes that do not fit in memory go.
+     */
+    private OfflineMailbox(int capacity, long ttlMillis, long memoryBudget, Path directory) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+        this.boxes = new HashMap<>();
+        this.loading = new HashSet<>();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the mailboxes: creates the mailbox directory if needed, deletes the mailbox files an earlier run left in it,
+     * and starts the sweeper.
+     *
+     * @param options The startup configuration: mailbox size, time to live, memory budget and directory.
+     * @return The mailboxes, all empty.
+     * @throws IOException If the directory cannot be created or emptied.
+     */
+    public static OfflineMailbox open(ServerOptions options) throws IOException {
+        Path directory = Path.of(options.getMailboxDirectory());
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(SUFFIX)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        OfflineMailbox mailbox = new OfflineMailbox(options.getMailboxSize(), options.getMailboxTtlMillis(),
+                options.getMailboxMemoryBytes(), directory);
+        mailbox.sweeper.scheduleWithFixedDelay(mailbox::purge, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        return mailbox;
+    }
+
+    /**
+     * Keeps a private message for its recipient, unless the recipient's mailbox is full. Called by the lobby with its
+     * roster lock held, for a recipient that is not connected.
+     *
+     * @param record The private message.
+     * @return {@code true} if the message was kept.
+     */
+    public synchronized boolean store(JournalRecord record) {
+        Box box = boxes.computeIfAbsent(record.getRecipient(), name -> new Box());
+        if (box.size() >= capacity) {
+            rejected++;
+            return false;
+        }
+        int size = JournalSegment.bodyLength(record);
+        box.memory.add(record);
+        box.memoryBytes += size;
+        memoryBytes += size;
+        stored++;
+        if (memoryBytes > memoryBudget) {
+            sweeper.execute(this::spill);
+        }
+        return true;
+    }
+
+    /**
+     * Takes every message kept for a client that connected, oldest first, and empties its mailbox. Messages that
+     * expired are left out. Never touches the disk: a mailbox held in memory is handed over at once, and one that went
+     * to disk is read back on the sweeper thread and handed over from there.
+     *
+     * @param clientName The name of the client.
+     * @return Completed with the messages, empty if none was kept.
+     */
+    public synchronized CompletableFuture<List<JournalRecord>> take(String clientName) {
+        Box box = boxes.remove(clientName);
+        if (box == null) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        memoryBytes -= box.memoryBytes;
+        if (box.spilledCount == 0 && !box.writing) {
+            return CompletableFuture.completedFuture(handOver(new ArrayList<>(box.memory)));
+        }
+        /* Queued behind any write of the sweeper, so the file holds every message the mailbox moved to disk. */
+        loading.add(clientName);
+        CompletableFuture<List<JournalRecord>> mail = new CompletableFuture<>();
+        sweeper.execute(() -> mail.complete(load(clientName, box)));
+        return mail;
+    }
+
+    /**
+     * Keeps messages taken for a client again, because the client left before they could be handed over. They go in
+     * front of whatever was kept for it since, on the sweeper thread.
+     *
+     * @param clientName The name of the client.
+     * @param records    The messages, oldest first.
+     */
+    public void putBack(String clientName, List<JournalRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        sweeper.execute(() -> {
+            synchronized (this) {
+                Box box = boxes.computeIfAbsent(clientName, name -> new Box());
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    int size = JournalSegment.bodyLength(records.get(i));
+                    box.memory.addFirst(records.get(i));
+                    box.memoryBytes += size;
+                    memoryBytes += size;
+                }
+                delivered -= records.size();
+            }
+            spill();
+        });
+    }
+
+    /**
+     * Reads back a mailbox taken by {@link #take}, and adds the messages it still held in memory. Runs on the sweeper
+     * thread.
+     *
+     * @param clientName The name of the client.
+     * @param box        The mailbox, no longer in the map.
+     * @return The messages, oldest first, without the expired ones.
+     */
+    private List<JournalRecord> load(String clientName, Box box) {
+        int onDisk;
+        synchronized (this) {
+            onDisk = box.spilledCount;
+        }
+        List<JournalRecord> records = onDisk == 0 ? new ArrayList<>() : readSpilled(clientName);
+        if (onDisk > 0) {
+            deleteSpilled(clientName);
+        }
+        synchronized (this) {
+            loading.remove(clientName);
+            records.addAll(box.memory);
+            return handOver(records);
+        }
+    }
+
+    /**
+     * Puts taken messages in the order they were sent, leaves out the expired ones and counts them. Called with the
+     * monitor held.
+     *
+     * @param records The messages of one mailbox.
+     * @return The same list.
+     */
+    private List<JournalRecord> handOver(List<JournalRecord> records) {
+        /* Mail kept again after its client left goes in front of newer mail, which may be on disk already. */
+        records.sort(Comparator.comparingLong(JournalRecord::getSequence));
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        int before = records.size();
+        records.removeIf(record -> record.getTimestamp() < oldest);
+        expired += before - records.size();
+        delivered += records.size();
+        return records;
+    }
+
+    /**
+     * Throws away the messages that expired, and the mailboxes left empty. A mailbox on disk is rewritten only if its
+     * oldest message expired, outside the monitor. Runs on the sweeper thread.
+     */
+    void purge() {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        Map<String, Box> rewrite = new HashMap<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Box>> entries = boxes.entrySet().iterator(); entries.hasNext(); ) {
+                Map.Entry<String, Box> entry = entries.next();
+                Box box = entry.getValue();
+                if (box.spilledCount > 0 && box.spilledOldest < oldest && !loading.contains(entry.getKey())) {
+                    rewrite.put(entry.getKey(), box);
+                }
+                while (!box.memory.isEmpty() && box.memory.peekFirst().getTimestamp() < oldest) {
+                    int size = JournalSegment.bodyLength(box.memory.removeFirst());
+                    box.memoryBytes -= size;
+                    memoryBytes -= size;
+                    expired++;
+                }
+                if (box.size() == 0) {
+                    entries.remove();
+                }
+            }
+        }
+        for (Map.Entry<String, Box> entry : rewrite.entrySet()) {
+            String clientName = entry.getKey();
+            Box box = entry.getValue();
+            List<JournalRecord> kept = readSpilled(clientName);
+            deleteSpilled(clientName);
+            kept.removeIf(record -> record.getTimestamp() < oldest);
+            boolean written = kept.isEmpty() || writeSpilled(clientName, kept);
+            synchronized (this) {
+                int left = written ? kept.size() : 0;
+                expired += box.spilledCount - left;
+                box.spilledCount = left;
+                if (left > 0) {
+                    box.spilledOldest = kept.get(0).getTimestamp();
+                }
+                /* A mailbox taken meanwhile is read back after this, and finds the file as it is now. */
+                if (box.size() == 0 && boxes.get(clientName) == box) {
+                    boxes.remove(clientName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the largest mailboxes in memory to disk until the messages in memory fit in the memory budget again. The
+     * messages are copied under the monitor, written without it, and dropped from memory once they are on disk.
+     * Runs on the sweeper thread.
+     */
+    private void spill() {
+        while (true) {
+            String largest = null;
+            Box box = null;
+            List<JournalRecord> records;
+            synchronized (this) {
+                if (memoryBytes <= memoryBudget) {
+                    return;
+                }
+                for (Map.Entry<String, Box> entry : boxes.entrySet()) {
+                    if ((box == null || entry.getValue().memoryBytes > box.memoryBytes)
+                            && !loading.contains(entry.getKey())) {
+                        largest = entry.getKey();
+                        box = entry.getValue();
+                    }
+                }
+                if (box == null || box.memory.isEmpty()) {
+                    return;
+                }
+                records = new ArrayList<>(box.memory);
+                box.writing = true;
+            }
+            boolean written = writeSpilled(largest, records);
+            synchronized (this) {
+                box.writing = false;
+                if (!written) {
+                    return;
+                }
+                /* Only the sweeper takes messages off the front, so the first ones are still the ones written. */
+                long bytes = 0;
+                for (int i = 0; i < records.size(); i++) {
+                    bytes += JournalSegment.bodyLength(box.memory.removeFirst());
+                }
+                box.memoryBytes -= bytes;
+                /* A mailbox taken meanwhile no longer counts, and is read back after this. */
+                if (boxes.get(largest) == box) {
+                    memoryBytes -= bytes;
+                }
+                if (box.spilledCount == 0) {
+                    box.spilledOldest = records.get(0).getTimestamp();
+                }
+                box.spilledCount += records.size();
+                spilled += records.size();
+            }
+        }
+    }
+
+    /**
+     * Appends messages to the file of a mailbox. Runs on the sweeper thread, without the monitor.
+     *
+     * @param clientName The name of the client.
+     * @param records    The messages, oldest first.
+     * @return {@code true} if the messages were written.
+     */
+    private boolean writeSpilled(String clientName, List<JournalRecord> records) {
+        int length = 0;
+        for (JournalRecord record : records) {
+            length += 4 + JournalSegment.bodyLength(record);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (JournalRecord record : records) {
+            buffer.putInt(JournalSegment.bodyLength(record));
+            JournalSegment.encodeBody(record, buffer);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(fileOf(clientName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            System.out.println("Problem writing the mailbox of " + clientName + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the messages in the file of a mailbox. Runs on the sweeper thread, without the monitor.
+     *
+     * @param clientName The name of the client.
+     * @return The messages, oldest first; those that cannot be read are left out.
+     */
+    private List<JournalRecord> readSpilled(String clientName) {
+        List<JournalRecord> records = new ArrayList<>();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(fileOf(clientName)));
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                JournalRecord record = JournalSegment.decodeBody(body);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Problem reading the mailbox of " + clientName + ": " + e.getMessage());
+        }
+        return records;
+    }
+
+    /**
+     * Deletes the file of a mailbox.
+     *
+     * @param clientName The name of the client.
+     */
+    private void deleteSpilled(String clientName) {
+        try {
+            Files.deleteIfExists(fileOf(clientName));
+        } catch (IOException e) {
+            System.out.println("Problem deleting the mailbox of " + clientName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Names the file of a mailbox after the client, in hex so that any name makes a valid file name.
+     *
+     * @param clientName The name of the client.
+     * @return The path of the file.
+     */
+    private Path fileOf(String clientName) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : clientName.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(SUFFIX).toString());
+    }
+
+    /**
+     * Stops the sweeper. The mailbox files are left for the next start to delete.
+     */
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Describes what the mailboxes hold and did since startup.
+     *
+     * @return The statistics.
+     */
+    @Override
+    public synchronized String toString() {
+        int kept = 0;
+        for (Box box : boxes.values()) {
+            kept += box.size();
+        }
+        return String.format("mailbox: %d messages kept for %d clients (%d bytes in memory), %d stored, %d delivered, "
+                + "%d expired, %d rejected, %d spilled", kept, boxes.size(), memoryBytes, stored, delivered, expired,
+                rejected, spilled);
+    }
+
+    /**
+     * The messages kept for one client: the newer ones in memory, the older ones in its file.
+     */
+    private static final class Box {
+        private final ArrayDeque<JournalRecord> memory = new ArrayDeque<>(); // The messages in memory, oldest first.
+        private long memoryBytes; // The encoded size of the messages in memory.
+        private int spilledCount; // The number of messages in the file.
+        private long spilledOldest; // When the oldest message in the file was sent.
+        private boolean writing; // Whether the sweeper is moving messages of the memory to the file.
+
+        private int size() {
+            return memory.size() + spilledCount;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.LatencyHistogram;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The OverloadGuard class keeps clients from flooding the server. It works in two layers, both applied by the
+ * {@link ClientDescriptor} of each client before a message reaches a board:
+ * <ul>
+ *     <li>every connection gets a {@link Limiter} with a {@link TokenBucket} per kind of message, sized by the
+ *     {@code --broadcast-rate}, {@code --private-rate} and {@code --control-rate} options and their bursts;</li>
+ *     <li>a watcher thread looks at the server every {@link #CHECK_INTERVAL_MILLIS} and marks it overloaded while the
+ *     deepest outbound queue is over {@code --shed-queue-depth} or the 99th percentile of the recent fan-out times is
+ *     over {@code --shed-fanout-ms}. While it is, broadcasts, the messages that cost the most to route, are shed;
+ *     private and control messages only go through their buckets. The server counts as recovered once both figures
+ *     are back under half their thresholds.</li>
+ * </ul>
+ * A refused message is dropped and counted. A client that negotiated any feature understands control messages, so it
+ * is told with a {@link ControlMessage#SLOW_DOWN} when it starts being refused; a legacy client's messages are dropped
+ * silently.
+ * <p>
+ * The counters are registered with JMX as {@code il.ac.hit.patterns:type=OverloadGuard,port=<port>}.
+ */
+public class OverloadGuard implements OverloadGuardMBean {
+
+    /** How often the watcher looks at the queues and fan-out times, in milliseconds. */
+    public static final long CHECK_INTERVAL_MILLIS = 250;
+
+    /**
+     * The kinds of message a client sends, each limited by its own bucket.
+     */
+    public enum Kind {
+        /** A chat message to everyone in a room; its fan-out makes it the first to be shed. */
+        BROADCAST,
+        /** A chat message to one client. */
+        PRIVATE,
+        /** A control message: joining and leaving rooms, history and search requests. */
+        CONTROL
+    }
+
+    private final ServerOptions options; // The rates, bursts and shedding thresholds.
+    private final ServerMetrics metrics; // Where the queue depths and fan-out times are read.
+    private final long[] fanOutWindow; // The fan-out counts at the last check, watcher only.
+    private final LongAdder[] rateLimited; // Messages refused because their bucket was empty, by kind.
+    private final LongAdder shed; // Broadcasts refused while the server was overloaded.
+    private final LongAdder slowDowns; // SLOW_DOWN messages sent.
+    private final LongAdder overloads; // Times the server became overloaded.
+    private final ScheduledExecutorService watcher; // Runs the checks.
+    private volatile boolean overloaded; // Whether broadcasts are being shed.
+
+    /**
+     * Constructs an OverloadGuard object. Use {@link #start()} to start watching for overload.
+     *
+     * @param options The startup configuration: rates, bursts and shedding thresholds.
+     * @param metrics The metrics of the server.
+     */
+    public OverloadGuard(ServerOptions options, ServerMetrics metrics) {
+        this.options = options;
+        this.metrics = metrics;
+        this.fanOutWindow = metrics.getFanOutTimes().newWindow();
+        this.rateLimited = new LongAdder[Kind.values().length];
+        for (int i = 0; i < rateLimited.length; i++) {
+            rateLimited[i] = new LongAdder();
+        }
+        this.shed = new LongAdder();
+        this.slowDowns = new LongAdder();
+        this.overloads = new LongAdder();
+        this.watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "overload-guard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the watcher thread, unless shedding is turned off.
+     */
+    public void start() {
+        if (options.getShedQueueDepth() > 0 || options.getShedFanOutMillis() > 0) {
+            watcher.scheduleAtFixedRate(this::check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Registers the counters with an MBean server.
+     *
+     * @param server The MBean server.
+     * @throws JMException If the MBean cannot be registered, for example because its name is taken.
+     */
+    public void register(MBeanServer server) throws JMException {
+        server.registerMBean(this, new ObjectName("il.ac.hit.patterns:type=OverloadGuard,port=" + options.getPort()));
+    }
+
+    /**
+     * Stops the watcher thread.
+     */
+    public void close() {
+        watcher.shutdownNow();
+    }
+
+    /**
+     * Looks at the deepest outbound queue and the recent fan-out times, and starts or stops shedding. Runs on the
+     * watcher thread.
+     */
+    private void check() {
+        LatencyHistogram fanOutTimes = metrics.getFanOutTimes();
+        long fanOutNanos = fanOutTimes.getPercentileNanosSince(fanOutWindow, 0.99);
+        int depthLimit = options.getShedQueueDepth();
+        int depth = depthLimit > 0 ? metrics.getMaxQueueDepth() : 0;
+        long fanOutLimit = TimeUnit.MILLISECONDS.toNanos(options.getShedFanOutMillis());
+        boolean over = (depthLimit > 0 && depth > depthLimit) || (fanOutLimit > 0 && fanOutNanos > fanOutLimit);
+        boolean under = (depthLimit == 0 || depth <= depthLimit / 2)
+                && (fanOutLimit == 0 || fanOutNanos <= fanOutLimit / 2);
+        if (!overloaded && over) {
+            overloaded = true;
+            overloads.increment();
+        } else if (overloaded && under) {
+            overloaded = false;
+        }
+    }
+
+    /**
+     * Creates the limiter of a new connection, with full buckets.
+     *
+     * @param connection The connection.
+     * @return The limiter.
+     */
+    public Limiter newLimiter(ClientConnection connection) {
+        return new Limiter(connection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getOverloads() {
+        return overloads.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRateLimitedBroadcasts() {
+        return rateLimited[Kind.BROADCAST.ordinal()].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRateLimitedPrivateMessages() {
+        return rateLimited[Kind.PRIVATE.ordinal()].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRateLimitedControlMessages() {
+        return rateLimited[Kind.CONTROL.ordinal()].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getShedBroadcasts() {
+        return shed.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSlowDownsSent() {
+        return slowDowns.sum();
+    }
+
+    /**
+     * Builds the one-line summary printed when the server stops.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("overload: %s, %d overloads; rate limited %d broadcasts, %d private, %d control; "
+                        + "%d broadcasts shed; %d slow-downs sent", isOverloaded() ? "overloaded" : "normal",
+                getOverloads(), getRateLimitedBroadcasts(), getRateLimitedPrivateMessages(),
+                getRateLimitedControlMessages(), getShedBroadcasts(), getSlowDownsSent());
+    }
+
+    /**
+     * The Limiter class holds the buckets of one connection and decides whether each of its messages may go on. It
+     * is only used by the thread that reads the connection.
+     */
+    public final class Limiter {
+
+        private final ClientConnection connection; // The connection whose messages are limited.
+        private final TokenBucket[] buckets; // The bucket of each kind, null where the kind is not limited.
+        private boolean refusing; // Whether the last message was refused, so no new SLOW_DOWN is due.
+
+        /**
+         * Constructs a Limiter object with full buckets.
+         *
+         * @param connection The connection whose messages are limited.
+         */
+        private Limiter(ClientConnection connection) {
+            this.connection = connection;
+            this.buckets = new TokenBucket[Kind.values().length];
+            buckets[Kind.BROADCAST.ordinal()] = bucket(options.getBroadcastRate(), options.getBroadcastBurst());
+            buckets[Kind.PRIVATE.ordinal()] = bucket(options.getPrivateRate(), options.getPrivateBurst());
+            buckets[Kind.CONTROL.ordinal()] = bucket(options.getControlRate(), options.getControlBurst());
+        }
+
+        /**
+         * Creates a bucket, unless the kind is not limited.
+         *
+         * @param rate  The messages allowed per second, 0 for no limit.
+         * @param burst The messages allowed at once.
+         * @return The bucket, or {@code null} for no limit.
+         */
+        private TokenBucket bucket(int rate, int burst) {
+            return rate > 0 ? new TokenBucket(rate, burst) : null;
+        }
+
+        /**
+         * Decides whether a message may go on to the boards. A refused message is counted, and the client is told
+         * to slow down if this is the first message refused since one went through.
+         *
+         * @param kind The kind of the message.
+         * @param room The room the message is for, empty for the lobby.
+         * @return {@code true} if the message may go on, {@code false} if it must be dropped.
+         */
+        public boolean allow(Kind kind, String room) {
+            long now = System.nanoTime();
+            if (kind == Kind.BROADCAST && overloaded) {
+                shed.increment();
+                refuse(kind, room, ControlMessage.OVERLOAD, CHECK_INTERVAL_MILLIS);
+                return false;
+            }
+            TokenBucket bucket = buckets[kind.ordinal()];
+            if (bucket != null && !bucket.tryTake(now)) {
+                rateLimited[kind.ordinal()].increment();
+                refuse(kind, room, ControlMessage.RATE, TimeUnit.NANOSECONDS.toMillis(bucket.nanosUntilToken(now)) + 1);
+                return false;
+            }
+            refusing = false;
+            return true;
+        }
+
+        /**
+         * Tells the client to slow down, once per run of refused messages, if it understands control messages.
+         *
+         * @param kind       The kind of the refused message.
+         * @param room       The room the message was for.
+         * @param reason     Why it was refused.
+         * @param retryAfter How long the client should wait, in milliseconds.
+         */
+        private void refuse(Kind kind, String room, String reason, long retryAfter) {
+            if (refusing || connection.getFeatures().isEmpty()) {
+                return;
+            }
+            refusing = true;
+            String body = retryAfter + " " + kind.name().toLowerCase() + " " + reason;
+            try {
+                connection.send(OutboundMessage.of(Frame.control(room, ControlMessage.of(ControlMessage.SLOW_DOWN, body))));
+                slowDowns.increment();
+            } catch (ChatException e) {
+                /* The client is going away; its messages are dropped all the same. */
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The OverloadGuardMBean interface is the JMX view of the {@link OverloadGuard} of a server.
+ */
+public interface OverloadGuardMBean {
+
+    /**
+     * Checks whether the server is shedding broadcasts now.
+     *
+     * @return {@code true} while the server is overloaded.
+     */
+    public boolean isOverloaded();
+
+    /**
+     * Retrieves the number of times the server became overloaded.
+     *
+     * @return The overload count.
+     */
+    public long getOverloads();
+
+    /**
+     * Retrieves the number of broadcasts refused because their sender used up its rate.
+     *
+     * @return The rate limited broadcast count.
+     */
+    public long getRateLimitedBroadcasts();
+
+    /**
+     * Retrieves the number of private messages refused because their sender used up its rate.
+     *
+     * @return The rate limited private message count.
+     */
+    public long getRateLimitedPrivateMessages();
+
+    /**
+     * Retrieves the number of control messages refused because their sender used up its rate.
+     *
+     * @return The rate limited control message count.
+     */
+    public long getRateLimitedControlMessages();
+
+    /**
+     * Retrieves the number of broadcasts refused while the server was overloaded.
+     *
+     * @return The shed broadcast count.
+     */
+    public long getShedBroadcasts();
+
+    /**
+     * Retrieves the number of SLOW_DOWN messages sent to clients.
+     *
+     * @return The slow-down count.
+     */
+    public long getSlowDownsSent();
+}
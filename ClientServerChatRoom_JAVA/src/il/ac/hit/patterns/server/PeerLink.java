@@ -0,0 +1,161 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.OutboundQueue;
+import il.ac.hit.patterns.SlowConsumerPolicy;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Handshake;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The PeerLink class is the connection this node opens to one address of the peer list, and everything this node
+ * sends to that peer: relayed messages, membership changes and name claims. What the peer sends back arrives on the
+ * link the peer opened to this node (see {@link PeerSession}).
+ * <p>
+ * The link dials the peer's cluster port like a client, with the node id as its name, and negotiates frames and
+ * deflate, so relayed messages are compressed and large ones are sent as chunks. The peer answers with
+ * {@link ControlMessage#NODE} and its id, and from then on the link is up. If the connection fails or closes, the link
+ * dials again after {@link #RETRY_MILLIS}. A link that reaches this node itself stops.
+ * <p>
+ * Messages are queued and written by the link's own writer thread, so a slow peer never stalls the room shards. A peer
+ * that falls {@link #QUEUE_CAPACITY} messages behind is disconnected; both nodes then drop each other's clients and
+ * exchange their memberships again when the link is back.
+ */
+public class PeerLink implements Runnable, StringConsumer {
+
+    /** How long to wait before dialing a peer again, in milliseconds. */
+    public static final long RETRY_MILLIS = 1000;
+
+    /** The most messages queued for a peer before the link is closed. */
+    public static final int QUEUE_CAPACITY = 65_536;
+
+    private static final Set<String> FEATURES = Set.of(Handshake.FEATURE_FRAMES, Handshake.FEATURE_DEFLATE); // Asked for on every link.
+
+    private final Cluster cluster; // The cluster of this node.
+    private final String host; // The host of the peer.
+    private final int port; // The cluster port of the peer.
+    private final ThreadFactory threads; // Creates the read and writer threads of the connection.
+    private volatile ConnectionProxy proxy; // The current connection, null before the first one.
+    private volatile String peerId; // The node id the peer sent, null until the link is up.
+    private volatile boolean stopped; // Whether the link no longer dials.
+
+    /**
+     * Constructs a PeerLink object.
+     *
+     * @param cluster The cluster of this node.
+     * @param address The peer address, {@code host:port}.
+     * @param threads Creates the read and writer threads of the connection.
+     */
+    public PeerLink(Cluster cluster, String address, ThreadFactory threads) {
+        int colon = address.lastIndexOf(':');
+        this.cluster = cluster;
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.threads = threads;
+    }
+
+    /**
+     * Dials the peer, waits until the connection ends and dials again, until the link is stopped.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                ConnectionProxy connection = new ConnectionProxy(host, port, cluster.getNodeId(), FEATURES);
+                connection.setOutboundQueue(new OutboundQueue<>(QUEUE_CAPACITY, QUEUE_CAPACITY, SlowConsumerPolicy.DISCONNECT, 0));
+                CountDownLatch closed = new CountDownLatch(1);
+                connection.setCloseListener(closed::countDown);
+                connection.addConsumer(this);
+                proxy = connection;
+                connection.start(threads);
+                closed.await();
+                connection.closeConnection();
+                if (peerId != null) {
+                    cluster.linkDown(this);
+                    peerId = null;
+                }
+            } catch (ChatException e) {
+                /* The peer is not up (yet). */
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Consumes what the peer sends on this link: the ACK of the features, then its node id.
+     *
+     * @param text The received text.
+     */
+    @Override
+    public void consume(String text) {
+        if (!ControlMessage.isControl(text) || !ControlMessage.NODE.equals(ControlMessage.typeOf(text))) {
+            return;
+        }
+        String id = ControlMessage.bodyOf(text);
+        if (id.equals(cluster.getNodeId())) {
+            /* This address is this node itself, the peer list may name every node. */
+            stopped = true;
+            proxy.closeConnection();
+            return;
+        }
+        peerId = id;
+        cluster.linkUp(this);
+    }
+
+    /**
+     * Sends a message to the peer. A message that cannot be queued closes the link, which then dials again.
+     *
+     * @param message The message.
+     */
+    public void send(OutboundMessage message) {
+        ConnectionProxy connection = proxy;
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.send(message);
+        } catch (ChatException e) {
+            System.out.println("Problem relaying to node " + getPeerId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the current connection of the link; the link dials again.
+     */
+    public void close() {
+        ConnectionProxy connection = proxy;
+        if (connection != null) {
+            connection.closeConnection();
+        }
+    }
+
+    /**
+     * Retrieves the node id of the peer.
+     *
+     * @return The node id, or {@code null} while the link is down.
+     */
+    public String getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Retrieves the address the link dials.
+     *
+     * @return The address, {@code host:port}.
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,172 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.FrameConsumer;
+import il.ac.hit.patterns.protocol.FrameType;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The PeerSession class is the connection another node opened to this one (its {@link PeerLink}), and applies what
+ * that node sends: the membership changes of its clients, the messages they sent, and name claims.
+ * <p>
+ * Every client of the peer is a {@link RemoteMember} on the boards of the rooms it is in. The members are kept per
+ * session, so when the session ends, because the peer went down or opened a new link, exactly the clients it
+ * announced are removed.
+ * <p>
+ * Membership changes are applied on the read thread of the session, like the joins and leaves of local clients, and
+ * never while the session is being closed. Messages are handed to the room they were sent in and routed on its shard,
+ * to the clients of this node only.
+ */
+public class PeerSession implements StringConsumer, FrameConsumer {
+
+    private final Cluster cluster; // The cluster of this node.
+    private final RoomDirectory rooms; // The rooms the remote clients are registered in.
+    private final String nodeId; // The node id of the peer.
+    private final ConnectionProxy proxy; // The connection the peer opened.
+    private final ConcurrentHashMap<String, RemoteMember> members; // The clients of the peer, by name.
+    private final AtomicBoolean closed; // Whether the members of the session were removed.
+
+    /**
+     * Constructs a PeerSession object.
+     *
+     * @param cluster The cluster of this node.
+     * @param rooms   The rooms of this node.
+     * @param proxy   The connection the peer opened, named after the peer's node id.
+     */
+    public PeerSession(Cluster cluster, RoomDirectory rooms, ConnectionProxy proxy) {
+        this.cluster = cluster;
+        this.rooms = rooms;
+        this.nodeId = proxy.getClientName();
+        this.proxy = proxy;
+        this.members = new ConcurrentHashMap<>();
+        this.closed = new AtomicBoolean();
+    }
+
+    /**
+     * Applies a frame the peer sent: a message of one of its clients, or a control message.
+     *
+     * @param frame The received frame.
+     */
+    @Override
+    public void consumeFrame(Frame frame) {
+        if (frame.getType() == FrameType.MESSAGE) {
+            String recipient = frame.getRecipient().isEmpty() ? ChatCommand.ALL : frame.getRecipient();
+            rooms.consumeRelayed(new ChatCommand(frame.getSender(), recipient, frame.getRoom(), frame.getText()));
+        } else if (frame.getType() == FrameType.CONTROL) {
+            control(frame.getRoom(), frame.getText());
+        }
+    }
+
+    /**
+     * Applies a control message the peer sent as text. Peers send frames only, so this is never a membership change.
+     *
+     * @param text The received text.
+     */
+    @Override
+    public void consume(String text) {
+        control("", text);
+    }
+
+    /**
+     * Applies a control message of the peer.
+     *
+     * @param room The room named in the frame.
+     * @param text The control message.
+     */
+    private void control(String room, String text) {
+        if (!ControlMessage.isControl(text)) {
+            return;
+        }
+        String type = ControlMessage.typeOf(text);
+        String body = ControlMessage.bodyOf(text);
+        switch (type) {
+            case ControlMessage.MEMBER -> member(room, body);
+            case ControlMessage.CLAIM -> {
+                int space = body.indexOf(' ');
+                if (space != -1) {
+                    cluster.answerClaim(nodeId, body.substring(0, space), body.substring(space + 1));
+                }
+            }
+            case ControlMessage.GRANT -> cluster.claimAnswered(body, true);
+            case ControlMessage.DENY -> cluster.claimAnswered(body, false);
+            case ControlMessage.RELEASE -> cluster.releaseClaim(body, nodeId);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Applies a membership change: {@code + name} or {@code - name}. A client joins the lobby first and leaves it
+     * last, so leaving the lobby removes it from every room.
+     *
+     * @param room The room.
+     * @param body The change.
+     */
+    private synchronized void member(String room, String body) {
+        if (body.length() < 3 || closed.get()) {
+            return;
+        }
+        String name = body.substring(2);
+        if (body.charAt(0) == '+') {
+            RemoteMember member = members.computeIfAbsent(name, key -> new RemoteMember(key, nodeId));
+            if (room.isEmpty()) {
+                if (!rooms.getLobby().getBoard().register(member)
+                        && rooms.getLobby().getBoard().getRegistry().lookup(name) != member) {
+                    System.out.println("Client name " + name + " of node " + nodeId + " is already in use on this node");
+                }
+                cluster.releaseClaim(name, nodeId);
+            } else if (rooms.getLobby().getBoard().getRegistry().lookup(name) == member) {
+                rooms.join(member, room);
+            }
+        } else {
+            RemoteMember member = members.get(name);
+            if (member == null) {
+                return;
+            }
+            if (room.isEmpty()) {
+                members.remove(name, member);
+                rooms.depart(member);
+            } else {
+                rooms.part(member, room);
+            }
+        }
+    }
+
+    /**
+     * Ends the session: closes the connection and removes every client of the peer. Safe to call more than once.
+     */
+    public synchronized void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        proxy.closeConnection();
+        for (RemoteMember member : members.values()) {
+            rooms.depart(member);
+        }
+        members.clear();
+        cluster.sessionClosed(this);
+    }
+
+    /**
+     * Retrieves the node id of the peer.
+     *
+     * @return The node id.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Retrieves the number of clients of the peer known to this node.
+     *
+     * @return The member count.
+     */
+    public int getMemberCount() {
+        return members.size();
+    }
+}
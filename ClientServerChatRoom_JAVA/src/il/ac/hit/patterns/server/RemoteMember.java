@@ -0,0 +1,126 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.protocol.Frame;
+import il.ac.hit.patterns.protocol.OutboundMessage;
+
+import java.util.Set;
+
+/**
+ * The RemoteMember class stands for a client connected to another node of the cluster. It is registered on the boards
+ * of the rooms the client is in, so its name is taken and listed in their rosters on this node as well.
+ * <p>
+ * Nothing is ever sent through it: the boards skip remote clients, and the {@link Cluster} relays each message once
+ * to the node the client is connected to, which delivers it.
+ */
+public class RemoteMember implements ClientConnection {
+
+    private final String clientName; // The name of the client.
+    private final String nodeId; // The node the client is connected to.
+
+    /**
+     * Constructs a RemoteMember object.
+     *
+     * @param clientName The name of the client.
+     * @param nodeId     The node the client is connected to.
+     */
+    public RemoteMember(String clientName, String nodeId) {
+        this.clientName = clientName;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Retrieves the node the client is connected to.
+     *
+     * @return The node id.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The features of a remote client are only known to its own node.
+     */
+    @Override
+    public Set<String> getFeatures() {
+        return Set.of();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Does nothing, the node of the client acknowledged its features.
+     */
+    @Override
+    public void acknowledgeFeatures() {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Does nothing, the node of the client delivers its messages.
+     */
+    @Override
+    public void send(OutboundMessage message) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Does nothing, the node of the client delivers its messages.
+     */
+    @Override
+    public void consume(String text) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Does nothing, the node of the client delivers its messages.
+     */
+    @Override
+    public void consumeFrame(Frame frame) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Does nothing, the node of the client owns its connection.
+     */
+    @Override
+    public void closeConnection() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addConsumer(StringConsumer consumer) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeConsumer(StringConsumer consumer) {
+    }
+}
@@ -0,0 +1,146 @@
+package il.ac.hit.patterns.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Room class is one named room: its {@link MessageBoard} and the mailbox of messages waiting to be routed on the
+ * room's shard.
+ * <p>
+ * Connection threads only add tasks to the mailbox. The room runs on its shard thread whenever the mailbox is not
+ * empty, routing at most {@link #BATCH_SIZE} messages before it hands the thread to the next room of the shard, so the
+ * messages of a room are routed one at a time and in order without holding up the other rooms.
+ * <p>
+ * Joining and leaving go through the mailbox as well, so they are announced on the shard thread in order with the
+ * messages around them, and never on a client's own thread. They change the board under the room's monitor, so a room
+ * that lost its last member can be retired without racing a client that joins it.
+ */
+public class Room implements Runnable {
+
+    /** The most messages routed in one turn on the shard thread. */
+    public static final int BATCH_SIZE = 32;
+
+    /** The most messages waiting in the mailbox; a message sent to a full room is dropped. */
+    public static final int MAILBOX_CAPACITY = 65_536;
+
+    private final MessageBoard board; // The board of the room.
+    private final Executor shard; // The shard the room is pinned to.
+    private final Queue<Runnable> mailbox; // Messages waiting to be routed.
+    private final AtomicInteger pending; // The number of tasks in the mailbox.
+    private final AtomicBoolean scheduled; // Whether the room is queued or running on its shard.
+    private boolean closed; // Whether the room was retired after its last member left (guarded by this).
+
+    /**
+     * Constructs a Room object.
+     *
+     * @param board The board of the room.
+     * @param shard The shard the room is pinned to.
+     */
+    public Room(MessageBoard board, Executor shard) {
+        this.board = board;
+        this.shard = shard;
+        this.mailbox = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger();
+        this.scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Adds a task to the mailbox and schedules the room on its shard if it is idle.
+     *
+     * @param task The task, usually the routing of one message.
+     * @return {@code true} if the task was added, {@code false} if the mailbox is full.
+     */
+    public boolean submit(Runnable task) {
+        if (pending.incrementAndGet() > MAILBOX_CAPACITY) {
+            pending.decrementAndGet();
+            return false;
+        }
+        mailbox.add(task);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Adds a task to the mailbox even if the mailbox is full, and schedules the room on its shard if it is idle. Used
+     * for joins and leaves: losing one would leave a client in a room for good, or out of it.
+     *
+     * @param task The task.
+     */
+    public void submitAlways(Runnable task) {
+        pending.incrementAndGet();
+        mailbox.add(task);
+        schedule();
+    }
+
+    /**
+     * Queues the room on its shard, unless it is queued or running already.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            shard.execute(this);
+        }
+    }
+
+    /**
+     * Runs one turn on the shard thread: routes up to {@link #BATCH_SIZE} messages, then queues the room again if more
+     * are waiting.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = mailbox.poll();
+            if (task == null) {
+                break;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Problem routing a message in room '" + getBoard().getRoom() + "': " + e);
+            }
+        }
+        scheduled.set(false);
+        /* A task added after the last poll found the room still scheduled, so this turn must pick it up. */
+        if (!mailbox.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Retrieves the board of the room.
+     *
+     * @return The message board.
+     */
+    public MessageBoard getBoard() {
+        return board;
+    }
+
+    /**
+     * Checks whether the room was retired. A retired room is no longer listed by the {@link RoomDirectory}; a client
+     * joining it must look the room up again.
+     *
+     * @return {@code true} if the room was retired.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Retires the room. Called under the room's monitor once its last member left.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * Retrieves the number of messages waiting to be routed.
+     *
+     * @return The mailbox depth.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+}
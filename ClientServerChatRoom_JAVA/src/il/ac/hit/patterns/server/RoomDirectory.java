@@ -0,0 +1,603 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.BackPressure;
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.LatencyHistogram;
+import il.ac.hit.patterns.StringConsumer;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ControlMessage;
+import il.ac.hit.patterns.protocol.Handshake;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RoomDirectory class is what every {@link ClientDescriptor} feeds into: it keeps the rooms of the server and hands
+ * each message to the board of its room, on the shard the room is pinned to (see {@link RoomShards}).
+ * <p>
+ * Every client is a member of the lobby, the default room with the empty name, for as long as it is connected; the
+ * lobby's board is where names are checked and where legacy clients chat. Clients that negotiated
+ * {@link Handshake#FEATURE_ROOMS} also join and leave named rooms with {@link ControlMessage#JOIN} and
+ * {@link ControlMessage#PART}. A room is created by its first member and retired when its last member leaves.
+ * <p>
+ * Each room has its own board, registry and roster lock, so nothing is shared between rooms: a message in one room
+ * never waits for a lock or a fan-out of another.
+ * <p>
+ * When the server is a node of a {@link Cluster}, new clients are registered through the cluster, which makes sure
+ * their names are unique across the nodes, every board reports to it what must be relayed, and messages relayed by
+ * other nodes are routed through {@link #consumeRelayed}.
+ * <p>
+ * Every board keeps the last messages of its room (see {@link MessageHistory}), numbered from one sequence shared by
+ * all rooms. A client that asks for older messages with {@link ControlMessage#HISTORY} is answered from the
+ * {@link MessageJournal} if the server keeps one, on the journal's reader thread, and otherwise from the room's history.
+ * <p>
+ * With an {@link OfflineMailbox} the lobby keeps the private messages to clients that are not connected. With a
+ * {@link SearchIndex} clients search the messages of the rooms they are in with {@link ControlMessage#SEARCH}; the
+ * search runs on the index's own threads.
+ */
+public class RoomDirectory implements StringConsumer, ControlConsumer, CommandConsumer {
+
+    /** The most messages sent for one {@link ControlMessage#HISTORY} request. */
+    public static final int MAX_HISTORY_PAGE = 500;
+
+    private final RoomShards shards; // The threads the rooms are pinned to.
+    private final ConcurrentHashMap<String, Room> rooms; // The open rooms by name, the lobby included.
+    private final ConcurrentHashMap<ClientConnection, Set<String>> memberships; // The named rooms each client joined.
+    private final Room lobby; // The default room, never retired.
+    private volatile Cluster cluster; // The cluster this node belongs to, null for a single server.
+    private final List<BoardListener> boardListeners; // Added to the board of every room.
+    private final AtomicLong sequence; // The sequence number of the last message routed in any room.
+    private final int historySize; // The most messages each room keeps for clients that join.
+    private volatile MessageJournal journal; // Where older messages are read from, null if there is no journal.
+    private volatile SearchIndex searchIndex; // Where searches are run, null if messages are not indexed.
+    private volatile LatencyHistogram fanOutTimes; // Where every board records its fan-out times, may be null.
+    private volatile OverloadGuard overloadGuard; // Limits what clients send, null for no limits.
+    private volatile HeartbeatMonitor heartbeatMonitor; // Disconnects clients that stopped answering, may be null.
+
+    /**
+     * Constructs a RoomDirectory object with an empty lobby and rooms that keep no history.
+     *
+     * @param shards The threads the rooms are pinned to.
+     */
+    public RoomDirectory(RoomShards shards) {
+        this(shards, 0);
+    }
+
+    /**
+     * Constructs a RoomDirectory object with an empty lobby.
+     *
+     * @param shards      The threads the rooms are pinned to.
+     * @param historySize The most messages each room keeps for clients that join, 0 for none.
+     */
+    public RoomDirectory(RoomShards shards, int historySize) {
+        this.shards = shards;
+        this.rooms = new ConcurrentHashMap<>();
+        this.memberships = new ConcurrentHashMap<>();
+        this.boardListeners = new CopyOnWriteArrayList<>();
+        this.sequence = new AtomicLong();
+        this.historySize = historySize;
+        this.lobby = newRoom("");
+        rooms.put("", lobby);
+    }
+
+    /**
+     * Registers a new client in the lobby, unless its name is taken. A single server answers at once; a cluster node
+     * may have to ask another node first, see {@link Cluster#register}.
+     *
+     * @param connection The connection of the client.
+     * @return Completed with {@code true} if the client was added, or {@code false} if its name is taken.
+     */
+    public CompletableFuture<Boolean> register(ClientConnection connection) {
+        Cluster current = cluster;
+        return current == null ? CompletableFuture.completedFuture(getLobby().getBoard().register(connection))
+                : current.register(connection);
+    }
+
+    /**
+     * Makes this server a node of a cluster: new clients are registered through the cluster, and every board reports
+     * its joins, leaves and messages to it. Called once, before clients are accepted.
+     *
+     * @param cluster The cluster.
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        addBoardListener(cluster);
+    }
+
+    /**
+     * Makes the journal keep every message: every board reports its messages to it, message numbers continue after
+     * the last one it holds, and clients page back through it for messages older than a room's history. Called once,
+     * before clients are accepted.
+     *
+     * @param journal The journal.
+     */
+    public void setJournal(MessageJournal journal) {
+        sequence.set(journal.getNextSequence() - 1);
+        this.journal = journal;
+        for (Room room : rooms.values()) {
+            room.getBoard().setJournaled(true);
+        }
+        addBoardListener(journal);
+    }
+
+    /**
+     * Makes the search index keep every message, and lets clients search it. Called once, before clients are
+     * accepted.
+     *
+     * @param searchIndex The search index.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+        addBoardListener(searchIndex);
+    }
+
+    /**
+     * Makes the lobby keep private messages to clients that are not connected, and hand them over when the clients
+     * connect again. Called once, before clients are accepted.
+     *
+     * @param mailbox The mailboxes.
+     */
+    public void setMailbox(OfflineMailbox mailbox) {
+        getLobby().getBoard().setMailbox(mailbox);
+    }
+
+    /**
+     * Makes the board of every room, open now or later, record how long handing each message to its recipients
+     * takes. Called once, before clients are accepted.
+     *
+     * @param fanOutTimes The histogram.
+     */
+    public void setFanOutTimes(LatencyHistogram fanOutTimes) {
+        this.fanOutTimes = fanOutTimes;
+        for (Room room : rooms.values()) {
+            room.getBoard().setFanOutTimes(fanOutTimes);
+        }
+    }
+
+    /**
+     * Makes every client admitted from now on limited by an overload guard. Called once, before clients are accepted.
+     *
+     * @param overloadGuard The overload guard.
+     */
+    public void setOverloadGuard(OverloadGuard overloadGuard) {
+        this.overloadGuard = overloadGuard;
+    }
+
+    /**
+     * Retrieves the overload guard that limits what clients send.
+     *
+     * @return The overload guard, or {@code null} if clients are not limited.
+     */
+    public OverloadGuard getOverloadGuard() {
+        return overloadGuard;
+    }
+
+    /**
+     * Makes every client admitted from now on watched by a heartbeat monitor. Called once, before clients are accepted.
+     *
+     * @param heartbeatMonitor The heartbeat monitor.
+     */
+    public void setHeartbeatMonitor(HeartbeatMonitor heartbeatMonitor) {
+        this.heartbeatMonitor = heartbeatMonitor;
+    }
+
+    /**
+     * Retrieves the heartbeat monitor that disconnects clients which stopped answering.
+     *
+     * @return The heartbeat monitor, or {@code null} if clients are not watched.
+     */
+    public HeartbeatMonitor getHeartbeatMonitor() {
+        return heartbeatMonitor;
+    }
+
+    /**
+     * Adds a listener to the board of every room, open now or later. Called before clients are accepted.
+     *
+     * @param listener The listener.
+     */
+    public void addBoardListener(BoardListener listener) {
+        boardListeners.add(listener);
+        for (Room room : rooms.values()) {
+            room.getBoard().addBoardListener(listener);
+        }
+    }
+
+    /**
+     * Consumes a message from a text client, always sent in the lobby.
+     *
+     * @param text The received message.
+     */
+    @Override
+    public void consume(String text) {
+        String sender = getLobby().getBoard().command(text).getSender();
+        submit(getLobby(), sender, backPressureOf(sender), () -> {
+            try {
+                getLobby().getBoard().consume(text);
+            } catch (ChatException e) {
+                System.out.println("Problem routing a message in the lobby: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Consumes a message that arrived in a binary frame and routes it in the room the frame names. A message for a
+     * room the sender is not a member of is ignored.
+     *
+     * @param command The chat command.
+     */
+    @Override
+    public void consumeCommand(ChatCommand command) {
+        Room room = rooms.get(command.getRoom());
+        if (room == null) {
+            return;
+        }
+        submit(room, command.getSender(), backPressureOf(command.getSender()), () -> {
+            MessageBoard board = room.getBoard();
+            if (board.checkClientsNames(command.getSender())) {
+                board.consumeCommand(command);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the back-pressure of a local client, which counts its messages until they are routed.
+     *
+     * @param name The name of the client.
+     * @return The back-pressure, {@code null} for an unknown or remote client, or if the server holds no sender back.
+     */
+    private BackPressure backPressureOf(String name) {
+        ClientConnection connection = getLobby().getBoard().getRegistry().lookup(name);
+        return connection == null ? null : connection.getBackPressure();
+    }
+
+    /**
+     * Consumes a message that a client of another cluster node sent in a room, and routes it to the members of the
+     * room on this node. A message for a room that is not open here has no recipients here and is ignored.
+     *
+     * @param command The chat command.
+     */
+    public void consumeRelayed(ChatCommand command) {
+        Room room = rooms.get(command.getRoom());
+        if (room == null) {
+            return;
+        }
+        submit(room, command.getSender(), () -> room.getBoard().consumeRelayed(command));
+    }
+
+    /**
+     * Handles a control message: joining and leaving rooms, and roster resyncs, whose body names the room.
+     *
+     * @param from The connection the control message arrived on.
+     * @param text The control message.
+     */
+    @Override
+    public void consumeControl(ClientConnection from, String text) {
+        String type = ControlMessage.typeOf(text);
+        String name = ControlMessage.bodyOf(text);
+        boolean rooms = from.getFeatures().contains(Handshake.FEATURE_ROOMS);
+        if (ControlMessage.JOIN.equals(type) && rooms && ControlMessage.isRoomName(name)) {
+            join(from, name);
+        } else if (ControlMessage.PART.equals(type) && rooms && ControlMessage.isRoomName(name)) {
+            part(from, name);
+        } else if (ControlMessage.HISTORY.equals(type) && from.getFeatures().contains(Handshake.FEATURE_HISTORY)) {
+            history(from, name);
+        } else if (ControlMessage.SEARCH.equals(type) && from.getFeatures().contains(Handshake.FEATURE_SEARCH)) {
+            search(from, name);
+        } else if (ControlMessage.RESYNC.equals(type)) {
+            Room room = this.rooms.get(name);
+            if (room != null) {
+                submit(room, from.getClientName(), () -> room.getBoard().consumeControl(from, text));
+            }
+        } else {
+            getLobby().getBoard().consumeControl(from, text);
+        }
+    }
+
+    /**
+     * Answers a request for older messages of a room the client is a member of: {@code <before> <count> <room>}.
+     * Malformed requests are ignored.
+     *
+     * @param from The connection the request arrived on.
+     * @param body The body of the request.
+     */
+    private void history(ClientConnection from, String body) {
+        String[] parts = body.split(" ", 3);
+        long before;
+        int count;
+        try {
+            before = Long.parseLong(parts[0]);
+            count = Math.min(Integer.parseInt(parts[1]), MAX_HISTORY_PAGE);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        Room room = rooms.get(parts.length > 2 ? parts[2] : "");
+        if (room == null || count < 1 || room.getBoard().getRegistry().lookup(from.getClientName()) != from) {
+            return;
+        }
+        MessageBoard board = room.getBoard();
+        MessageJournal current = journal;
+        if (current == null) {
+            board.sendHistory(from, before, count);
+            return;
+        }
+        current.readBefore(board.getRoom(), before, count,
+                record -> MessageHistory.isVisible(record, from.getClientName()), records -> {
+                    try {
+                        from.send(board.historyMessage(records, records.size() < count));
+                    } catch (ChatException e) {
+                        System.out.println("Problem sending history to " + from.getClientName() + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Runs a search in a room the client is a member of, and sends the client the results. Malformed searches and
+     * searches on a server that indexes nothing are answered with no results.
+     *
+     * @param from The connection the request arrived on.
+     * @param body The body of the request, see {@link SearchQuery#parse}.
+     */
+    private void search(ClientConnection from, String body) {
+        SearchQuery query = SearchQuery.parse(body);
+        Room room = query == null ? null : rooms.get(query.getRoom());
+        if (room == null || room.getBoard().getRegistry().lookup(from.getClientName()) != from) {
+            return;
+        }
+        MessageBoard board = room.getBoard();
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            sendResults(from, board, List.of(), true);
+        } else if (!index.search(query, from.getClientName(), (results, end) -> sendResults(from, board, results, end))) {
+            System.out.println("Search threads are saturated, refused a search from " + from.getClientName());
+            sendResults(from, board, List.of(), false);
+        }
+    }
+
+    /**
+     * Sends a client the results of a search.
+     *
+     * @param to      The client.
+     * @param board   The board of the room searched.
+     * @param results The matching messages, oldest first.
+     * @param end     Whether no older message matches.
+     */
+    private static void sendResults(ClientConnection to, MessageBoard board, List<JournalRecord> results, boolean end) {
+        try {
+            to.send(board.searchMessage(results, end));
+        } catch (ChatException e) {
+            System.out.println("Problem sending search results to " + to.getClientName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist. The client is added on the room's shard, in
+     * order with the messages of the room, so its join is announced there and not on the calling thread.
+     *
+     * @param connection The connection of the client.
+     * @param name       The room name.
+     */
+    public void join(ClientConnection connection, String name) {
+        Room room = rooms.computeIfAbsent(name, this::newRoom);
+        room.submitAlways(() -> enter(room, connection, name));
+    }
+
+    /**
+     * Adds a client to a room. Runs on the room's shard.
+     *
+     * @param room       The room.
+     * @param connection The connection of the client.
+     * @param name       The room name.
+     */
+    private void enter(Room room, ClientConnection connection, String name) {
+        synchronized (room) {
+            /* Retired by its last member meanwhile, join the room that replaced it. */
+            if (room.isClosed()) {
+                join(connection, name);
+                return;
+            }
+            if (!isConnected(connection) || !room.getBoard().register(connection)) {
+                return;
+            }
+            memberships.computeIfAbsent(connection, key -> ConcurrentHashMap.newKeySet()).add(name);
+        }
+        /* The client left while it was being added, after depart() had looked for its rooms; this one is left too. */
+        if (!isConnected(connection)) {
+            leave(room, connection, name);
+            memberships.remove(connection, Set.of());
+        }
+    }
+
+    /**
+     * Checks whether a client is still in the lobby, that is whether it has not departed.
+     *
+     * @param connection The connection of the client.
+     * @return {@code true} if the client is registered in the lobby.
+     */
+    private boolean isConnected(ClientConnection connection) {
+        return getLobby().getBoard().getRegistry().lookup(connection.getClientName()) == connection;
+    }
+
+    /**
+     * Removes a client from a room, retiring the room if it was the last member. The client is removed on the room's
+     * shard, in order with the messages of the room, so its departure is announced there and not on the calling
+     * thread.
+     *
+     * @param connection The connection of the client.
+     * @param name       The room name.
+     */
+    public void part(ClientConnection connection, String name) {
+        Room room = rooms.get(name);
+        if (room == null || room == getLobby()) {
+            return;
+        }
+        room.submitAlways(() -> leave(room, connection, name));
+    }
+
+    /**
+     * Removes a client from a room, retiring the room if it was the last member. Runs on the room's shard.
+     *
+     * @param room       The room.
+     * @param connection The connection of the client.
+     * @param name       The room name.
+     */
+    private void leave(Room room, ClientConnection connection, String name) {
+        synchronized (room) {
+            /* Retired meanwhile, so a join that waited here went on to the room that replaced it; follow it there. */
+            if (room.isClosed()) {
+                part(connection, name);
+                return;
+            }
+            room.getBoard().unregister(connection);
+            Set<String> joined = memberships.get(connection);
+            if (joined != null) {
+                joined.remove(name);
+            }
+            if (room.getBoard().getRegistry().size() == 0) {
+                rooms.remove(name, room);
+                room.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection of a client whose read loop ended, because the client vanished, broke the protocol or
+     * stayed silent too long, and removes it as {@link #depart} does.
+     *
+     * @param connection The connection of the client.
+     */
+    void disconnected(ClientConnection connection) {
+        connection.closeConnection();
+        depart(connection);
+    }
+
+    /**
+     * Removes a client that left the chat room or failed from the lobby, at once, and from every room it joined, on
+     * the shards of those rooms. Called by the boards, on whatever thread noticed the departure, and for the clients
+     * of a cluster node that left or went down.
+     * <p>
+     * The departure of a local client that did not say goodbye is announced in the lobby with the leave message it
+     * would have sent. The first thread to notice the departure announces it, see
+     * {@link ClientConnection#markDeparted()}; a client that sent its leave message marked itself, and that message
+     * is the announcement.
+     *
+     * @param connection The connection of the client.
+     */
+    void depart(ClientConnection connection) {
+        boolean announce = connection.markDeparted() && !connection.isRemote();
+        boolean removed = getLobby().getBoard().unregister(connection);
+        Set<String> joined = memberships.remove(connection);
+        if (joined != null) {
+            for (String name : joined) {
+                part(connection, name);
+            }
+        }
+        /* A client that never got into the lobby, such as one whose name was taken, has no departure to announce. */
+        if (announce && removed) {
+            String name = connection.getClientName();
+            submit(getLobby(), name, () -> getLobby().getBoard().announceDeparture(name));
+        }
+    }
+
+    /**
+     * Adds the routing of a message to the mailbox of its room.
+     *
+     * @param room   The room.
+     * @param sender The name of the sender, for the log.
+     * @param task   The routing of the message.
+     */
+    private void submit(Room room, String sender, Runnable task) {
+        if (!room.submit(task)) {
+            System.out.println("Room '" + room.getBoard().getRoom() + "' is overloaded, dropped a message from " + sender);
+        }
+    }
+
+    /**
+     * Adds the routing of a client's message to the mailbox of its room, counted in the client's back-pressure until
+     * it was routed, so a client that sends faster than its messages are fanned out is held back.
+     *
+     * @param room     The room.
+     * @param sender   The name of the sender, for the log.
+     * @param pressure The back-pressure of the sender, {@code null} for none.
+     * @param task     The routing of the message.
+     */
+    private void submit(Room room, String sender, BackPressure pressure, Runnable task) {
+        if (pressure == null) {
+            submit(room, sender, task);
+            return;
+        }
+        pressure.sending();
+        boolean added = room.submit(() -> {
+            try {
+                task.run();
+            } finally {
+                pressure.routed();
+            }
+        });
+        if (!added) {
+            pressure.routed();
+            System.out.println("Room '" + room.getBoard().getRoom() + "' is overloaded, dropped a message from " + sender);
+        }
+    }
+
+    /**
+     * Creates a room pinned to its shard. Every board reports departures back to the directory, and adds the tasks
+     * that must run in turn with its messages to the mailbox of its room.
+     *
+     * @param name The room name.
+     * @return The room.
+     */
+    private Room newRoom(String name) {
+        MessageBoard board = new MessageBoard(name, sequence::incrementAndGet, historySize);
+        board.setDepartureListener(this::depart);
+        board.setJournaled(journal != null);
+        board.setFanOutTimes(fanOutTimes);
+        for (BoardListener listener : boardListeners) {
+            board.addBoardListener(listener);
+        }
+        Room room = new Room(board, shards.shardFor(name));
+        board.setRoomMailbox(task -> submit(room, "", task));
+        return room;
+    }
+
+    /**
+     * Retrieves the lobby, the default room every client is a member of.
+     *
+     * @return The lobby.
+     */
+    public Room getLobby() {
+        return lobby;
+    }
+
+    /**
+     * Looks an open room up by name.
+     *
+     * @param name The room name, empty for the lobby.
+     * @return The room, or {@code null} if it is not open.
+     */
+    public Room getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Retrieves the open rooms, the lobby included.
+     *
+     * @return A live view of the rooms.
+     */
+    public Collection<Room> getRooms() {
+        return rooms.values();
+    }
+
+    /**
+     * Retrieves the number of open rooms, the lobby included.
+     *
+     * @return The room count.
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+}
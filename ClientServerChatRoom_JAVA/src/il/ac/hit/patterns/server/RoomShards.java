@@ -0,0 +1,57 @@
+package il.ac.hit.patterns.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The RoomShards class is the fixed group of threads that route the messages of the rooms.
+ * <p>
+ * Every room is pinned to one shard by the hash of its name, so the messages of a room are always routed by the same
+ * thread, in the order they arrived, while different rooms run on different cores. Rooms that share a shard take
+ * turns in bounded batches (see {@link Room}), so a busy room delays a quiet one on the same shard by one batch at
+ * most.
+ */
+public class RoomShards {
+
+    private final ExecutorService[] shards; // One single-thread executor per shard.
+
+    /**
+     * Constructs a RoomShards object and starts its threads.
+     *
+     * @param count The number of shards, at least 1.
+     */
+    public RoomShards(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("room-shards must be at least 1");
+        }
+        this.shards = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "room-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Retrieves the shard a room is pinned to.
+     *
+     * @param room The room name, empty for the default room.
+     * @return The executor of the shard.
+     */
+    public Executor shardFor(String room) {
+        return shards[Math.floorMod(room.hashCode(), shards.length)];
+    }
+
+    /**
+     * Retrieves the number of shards.
+     *
+     * @return The shard count.
+     */
+    public int size() {
+        return shards.length;
+    }
+}
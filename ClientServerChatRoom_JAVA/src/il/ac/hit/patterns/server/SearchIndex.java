@@ -0,0 +1,399 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The SearchIndex class keeps an inverted index of the messages routed on this server, so clients can search the
+ * messages of a room by the words they hold (see {@link SearchQuery}).
+ * <p>
+ * The index listens to every board (see {@link BoardListener}). A routed message is only put in a queue on the room's
+ * shard thread; an indexer thread of its own collects the messages and, every {@link #REFRESH_MILLIS} or every
+ * {@link #MAX_BATCH} messages, turns them into a new immutable {@link IndexSegment}. A message is therefore found about
+ * a second after it was sent. If the indexer falls {@link #QUEUE_CAPACITY} messages behind, new messages are not
+ * indexed rather than slowing the rooms down.
+ * <p>
+ * Small segments are merged on a merge thread: whenever {@link #MERGE_FACTOR} adjacent segments have the same size
+ * class (a power of {@link #MERGE_FACTOR}), they are merged into one, so a search looks at a logarithmic number of
+ * segments. The oldest segments are dropped once the index holds more than {@code --search-max-messages} messages.
+ * <p>
+ * Searches run on a small pool of search threads with a bounded queue, never on a shard or connection thread, so a
+ * heavy query does not hold up the delivery of messages; when the pool is saturated, new searches are refused.
+ * Segments are replaced as a whole list, so a search sees one consistent set of segments without locking.
+ */
+public class SearchIndex implements BoardListener {
+
+    /** How long a message waits before the indexer makes it searchable, in milliseconds. */
+    public static final long REFRESH_MILLIS = 1000;
+
+    /** The most messages indexed into one new segment. */
+    public static final int MAX_BATCH = 4096;
+
+    /** The number of segments of one size class that are merged into one. */
+    public static final int MERGE_FACTOR = 8;
+
+    /** The most messages waiting for the indexer. */
+    public static final int QUEUE_CAPACITY = 65_536;
+
+    /** The most searches waiting for a search thread. */
+    public static final int SEARCH_QUEUE_CAPACITY = 64;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(); // Used to number the search threads.
+
+    private final int maxMessages; // The most messages kept in the index.
+    private final BlockingQueue<JournalRecord> queue; // Messages waiting for the indexer.
+    private final Thread indexer; // Takes the messages from the queue and indexes them.
+    private final ExecutorService merger; // Merges small segments into larger ones.
+    private final ThreadPoolExecutor searchers; // Runs the searches.
+    private final Object segmentsLock; // Orders the changes to the segment list.
+    private final AtomicBoolean mergeScheduled; // Whether a merge is waiting or running.
+    private final AtomicLong skipped; // The number of messages not indexed because the indexer fell behind.
+    private final AtomicLong searches; // The number of searches run since startup.
+    private final AtomicLong refused; // The number of searches refused because the search threads were saturated.
+    private volatile List<IndexSegment> segments; // The segments, oldest first, replaced on every change.
+    private volatile boolean closed; // Whether the indexer was told to stop.
+    private volatile long indexed; // The number of messages indexed since startup (indexer thread only).
+    private volatile long merges; // The number of merges since startup (merge thread only).
+
+    /**
+     * Constructs a SearchIndex object and starts its indexer.
+     *
+     * @param options The startup configuration: the most messages kept and the number of search threads.
+     */
+    public SearchIndex(ServerOptions options) {
+        this.maxMessages = options.getSearchMaxMessages();
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.segmentsLock = new Object();
+        this.mergeScheduled = new AtomicBoolean();
+        this.segments = List.of();
+        this.skipped = new AtomicLong();
+        this.searches = new AtomicLong();
+        this.refused = new AtomicLong();
+        ThreadFactory threads = runnable -> {
+            Thread thread = new Thread(runnable, "search-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.merger = Executors.newSingleThreadExecutor(threads);
+        this.searchers = new ThreadPoolExecutor(options.getSearchThreads(), options.getSearchThreads(), 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(SEARCH_QUEUE_CAPACITY), threads);
+        this.indexer = threads.newThread(this::indexLoop);
+        this.indexer.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Queues the message for the indexer. A message that does not fit in the queue is not indexed.
+     */
+    @Override
+    public void messageRouted(MessageBoard board, JournalRecord record, boolean relayed) {
+        if (!queue.offer(record)) {
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Joins are not indexed.
+     */
+    @Override
+    public void memberJoined(MessageBoard board, ClientConnection connection) {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Leaves are not indexed.
+     */
+    @Override
+    public void memberLeft(MessageBoard board, ClientConnection connection) {
+    }
+
+    /**
+     * Takes the queued messages and indexes them into a new segment every {@link #REFRESH_MILLIS}, or as soon as
+     * {@link #MAX_BATCH} are waiting.
+     */
+    private void indexLoop() {
+        List<JournalRecord> batch = new ArrayList<>(MAX_BATCH);
+        long deadline = 0;
+        while (!closed) {
+            try {
+                JournalRecord record = batch.isEmpty() ? queue.poll(REFRESH_MILLIS, TimeUnit.MILLISECONDS)
+                        : queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    if (batch.isEmpty()) {
+                        deadline = System.currentTimeMillis() + REFRESH_MILLIS;
+                    }
+                    batch.add(record);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+                if (!batch.isEmpty() && (batch.size() >= MAX_BATCH || System.currentTimeMillis() >= deadline)) {
+                    publish(IndexSegment.build(batch));
+                    indexed += batch.size();
+                    batch = new ArrayList<>(MAX_BATCH);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Problem indexing messages: " + e);
+                batch = new ArrayList<>(MAX_BATCH);
+            }
+        }
+    }
+
+    /**
+     * Adds a new segment after the others, drops the oldest segments the index has no room for, and schedules a
+     * merge if one is due.
+     *
+     * @param segment The new segment.
+     */
+    private void publish(IndexSegment segment) {
+        synchronized (segmentsLock) {
+            List<IndexSegment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = retain(next);
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * Drops the oldest segments while the others still hold at least the most messages kept. Called with the segments
+     * lock held.
+     *
+     * @param list The segments, oldest first.
+     * @return The segments kept.
+     */
+    private List<IndexSegment> retain(List<IndexSegment> list) {
+        long total = 0;
+        for (IndexSegment segment : list) {
+            total += segment.size();
+        }
+        int drop = 0;
+        while (drop < list.size() - 1 && total - list.get(drop).size() >= maxMessages) {
+            total -= list.get(drop).size();
+            drop++;
+        }
+        return List.copyOf(list.subList(drop, list.size()));
+    }
+
+    /**
+     * Schedules the merger, unless it is scheduled already.
+     */
+    private void scheduleMerge() {
+        if (findMerge(segments) >= 0 && mergeScheduled.compareAndSet(false, true)) {
+            try {
+                merger.execute(this::mergeAll);
+            } catch (RejectedExecutionException e) {
+                mergeScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Merges segments until no merge is due. The merged segment is built without the lock, and replaces its parts
+     * only if none of them was dropped meanwhile.
+     */
+    private void mergeAll() {
+        try {
+            while (!closed) {
+                List<IndexSegment> current = segments;
+                int from = findMerge(current);
+                if (from < 0) {
+                    return;
+                }
+                List<IndexSegment> parts = current.subList(from, from + MERGE_FACTOR);
+                IndexSegment merged = IndexSegment.merge(parts);
+                synchronized (segmentsLock) {
+                    List<IndexSegment> next = new ArrayList<>(segments);
+                    int at = next.indexOf(parts.get(0));
+                    if (at < 0 || at + MERGE_FACTOR > next.size()
+                            || !next.subList(at, at + MERGE_FACTOR).equals(parts)) {
+                        continue;
+                    }
+                    next.subList(at, at + MERGE_FACTOR).clear();
+                    next.add(at, merged);
+                    segments = retain(next);
+                }
+                merges++;
+            }
+        } finally {
+            mergeScheduled.set(false);
+        }
+    }
+
+    /**
+     * Finds the oldest run of {@link #MERGE_FACTOR} adjacent segments of the same size class whose merge would not be
+     * larger than a quarter of the index.
+     *
+     * @param list The segments, oldest first.
+     * @return The position of the first segment of the run, or -1 if no merge is due.
+     */
+    private int findMerge(List<IndexSegment> list) {
+        int runStart = 0;
+        long runSize = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (i > runStart && sizeClass(list.get(i)) != sizeClass(list.get(runStart))) {
+                runStart = i;
+                runSize = 0;
+            }
+            runSize += list.get(i).size();
+            if (i - runStart + 1 == MERGE_FACTOR) {
+                if (runSize <= Math.max(maxMessages / 4, MAX_BATCH)) {
+                    return runStart;
+                }
+                runSize -= list.get(runStart).size();
+                runStart++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the size class of a segment: the largest power of {@link #MERGE_FACTOR} not above its size.
+     *
+     * @param segment The segment.
+     * @return The exponent of the size class.
+     */
+    private static int sizeClass(IndexSegment segment) {
+        int sizeClass = 0;
+        for (long size = segment.size(); size >= MERGE_FACTOR; size /= MERGE_FACTOR) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Runs a search on a search thread and hands the results to a callback there.
+     *
+     * @param query      The search.
+     * @param clientName The name of the client that searches, which only finds the private messages it sent or
+     *                   received.
+     * @param answer     Called with the results, oldest first, and whether no older message matches.
+     * @return {@code false} if the search threads were saturated and the search was refused.
+     */
+    public boolean search(SearchQuery query, String clientName, SearchAnswer answer) {
+        try {
+            searchers.execute(() -> {
+                List<JournalRecord> results = new ArrayList<>(query.getCount() + 1);
+                find(query, clientName, results::add);
+                boolean end = results.size() <= query.getCount();
+                if (!end) {
+                    results.remove(0);
+                }
+                answer.accept(results, end);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            refused.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Finds the newest messages that match a query, one more than asked for so the caller can tell whether there are
+     * older ones. Sequence numbers of different rooms may be a little out of order across segments, so every
+     * segment is searched and the newest results are kept in a heap.
+     *
+     * @param query      The search.
+     * @param clientName The name of the client that searches.
+     * @param results    Called with the results, oldest first.
+     */
+    private void find(SearchQuery query, String clientName, Consumer<JournalRecord> results) {
+        searches.incrementAndGet();
+        int limit = query.getCount() + 1;
+        PriorityQueue<JournalRecord> newest = new PriorityQueue<>(limit + 1,
+                Comparator.comparingLong(JournalRecord::getSequence));
+        List<IndexSegment> current = segments;
+        for (int s = current.size() - 1; s >= 0; s--) {
+            IndexSegment segment = current.get(s);
+            segment.forEachMatch(query.getTerms(), number -> {
+                JournalRecord record = segment.document(number);
+                if ((newest.size() < limit || record.getSequence() > newest.peek().getSequence())
+                        && query.accepts(record, clientName)) {
+                    newest.add(record);
+                    if (newest.size() > limit) {
+                        newest.poll();
+                    }
+                }
+            });
+        }
+        while (!newest.isEmpty()) {
+            results.accept(newest.poll());
+        }
+    }
+
+    /**
+     * Stops the indexer, the merger and the search threads. Messages still queued are not indexed.
+     */
+    public void close() {
+        closed = true;
+        indexer.interrupt();
+        merger.shutdownNow();
+        searchers.shutdownNow();
+    }
+
+    /**
+     * Retrieves the number of messages the index holds.
+     *
+     * @return The message count.
+     */
+    public long size() {
+        long size = 0;
+        for (IndexSegment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Retrieves the number of segments of the index.
+     *
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Describes what the index holds and did since startup.
+     *
+     * @return The statistics.
+     */
+    @Override
+    public String toString() {
+        return String.format("search: %d messages in %d segments, %d indexed, %d skipped, %d merges, %d searches, "
+                + "%d refused", size(), getSegmentCount(), indexed, skipped.get(), merges, searches.get(), refused.get());
+    }
+
+    /**
+     * Receives the results of a search.
+     */
+    public interface SearchAnswer {
+
+        /**
+         * Called on a search thread with the results of a search.
+         *
+         * @param results The matching messages, oldest first.
+         * @param end     Whether no older message matches.
+         */
+        public void accept(List<JournalRecord> results, boolean end);
+    }
+}
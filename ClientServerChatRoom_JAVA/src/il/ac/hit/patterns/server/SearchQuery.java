@@ -0,0 +1,187 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.protocol.ControlMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The SearchQuery class is one search a client asked for with {@link ControlMessage#SEARCH}: the words every matching
+ * message must hold, the room searched, optional sender and time filters, and the page of results wanted.
+ * <p>
+ * Words are matched the way the {@link SearchIndex} splits messages into terms: case-insensitive, letters and digits
+ * only. A query without words matches every message that passes the filters.
+ * <p>
+ * It is immutable.
+ */
+public final class SearchQuery {
+
+    /** The most results sent for one search. */
+    public static final int MAX_PAGE = 100;
+
+    /** The longest term indexed; longer runs of letters and digits are not searchable. */
+    public static final int MAX_TERM_LENGTH = 64;
+
+    private final long before; // Only messages with a lower sequence number match.
+    private final int count; // The most results wanted.
+    private final String room; // The room searched, empty for the lobby.
+    private final String sender; // The sender every result has, null for any sender.
+    private final long since; // The earliest time a result was sent, in milliseconds since the epoch.
+    private final long until; // The latest time a result was sent, in milliseconds since the epoch.
+    private final List<String> terms; // The terms every result holds.
+
+    /**
+     * Constructs a SearchQuery object.
+     *
+     * @param before Only messages with a lower sequence number match, {@link Long#MAX_VALUE} for the newest.
+     * @param count  The most results wanted.
+     * @param room   The room searched, empty for the lobby.
+     * @param sender The sender every result has, null for any sender.
+     * @param since  The earliest time a result was sent.
+     * @param until  The latest time a result was sent.
+     * @param terms  The terms every result holds.
+     */
+    public SearchQuery(long before, int count, String room, String sender, long since, long until, List<String> terms) {
+        this.before = before;
+        this.count = count;
+        this.room = room;
+        this.sender = sender;
+        this.since = since;
+        this.until = until;
+        this.terms = Collections.unmodifiableList(new ArrayList<>(terms));
+    }
+
+    /**
+     * Parses the body of a {@link ControlMessage#SEARCH} message:
+     * {@code <before> <count> [room=<room>] [sender=<name>] [since=<ms>] [until=<ms>] <words>}.
+     *
+     * @param body The body.
+     * @return The query, or {@code null} if the body is malformed.
+     */
+    public static SearchQuery parse(String body) {
+        String[] parts = body.trim().split("\\s+");
+        if (parts.length < 2) {
+            return null;
+        }
+        long before;
+        int count;
+        String room = "";
+        String sender = null;
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        StringBuilder words = new StringBuilder();
+        try {
+            before = Long.parseLong(parts[0]);
+            count = Math.min(Integer.parseInt(parts[1]), MAX_PAGE);
+            for (int i = 2; i < parts.length; i++) {
+                String part = parts[i];
+                if (part.startsWith("room=")) {
+                    room = part.substring(5);
+                } else if (part.startsWith("sender=")) {
+                    sender = part.substring(7);
+                } else if (part.startsWith("since=")) {
+                    since = Long.parseLong(part.substring(6));
+                } else if (part.startsWith("until=")) {
+                    until = Long.parseLong(part.substring(6));
+                } else {
+                    words.append(part).append(' ');
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (count < 1) {
+            return null;
+        }
+        return new SearchQuery(before, count, room, sender, since, until, terms(words.toString()));
+    }
+
+    /**
+     * Splits a text into its terms: the runs of letters and digits, in lower case, of at most
+     * {@link #MAX_TERM_LENGTH} characters. Each term is listed once.
+     *
+     * @param text The text.
+     * @return The terms, in the order they first appear.
+     */
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+                    if (!terms.contains(term)) {
+                        terms.add(term);
+                    }
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Checks whether a message passes the filters of the query and may be shown to the client that searches. The
+     * terms are not checked here, the index finds the messages that hold them.
+     *
+     * @param record     The message.
+     * @param clientName The name of the client that searches.
+     * @return {@code true} if the message is a result.
+     */
+    public boolean accepts(JournalRecord record, String clientName) {
+        return record.getSequence() < before && record.getRoom().equals(room)
+                && (sender == null || record.getSender().equals(sender))
+                && record.getTimestamp() >= since && record.getTimestamp() <= until
+                && MessageHistory.isVisible(record, clientName);
+    }
+
+    /**
+     * Retrieves the sequence number below which messages match.
+     *
+     * @return The sequence number, {@link Long#MAX_VALUE} for the newest messages.
+     */
+    public long getBefore() {
+        return before;
+    }
+
+    /**
+     * Retrieves the most results wanted.
+     *
+     * @return The page size.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Retrieves the room searched.
+     *
+     * @return The room, empty for the lobby.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Retrieves the sender every result has.
+     *
+     * @return The sender, null for any sender.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Retrieves the terms every result holds.
+     *
+     * @return The terms, empty to match every message that passes the filters.
+     */
+    public List<String> getTerms() {
+        return terms;
+    }
+}
@@ -1,87 +1,247 @@
 package il.ac.hit.patterns.server;
 
-import il.ac.hit.patterns.ConnectionProxy;
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ConnectionTraffic;
 import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.FrameCompression;
 
+import javax.management.JMException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The ServerApplication class represents the main entry point for the server application.
  * <p>
  * It initializes the server socket, message board, and manages client connections.
+ * <p>
+ * The connection engine is chosen with the {@code --engine} option (see {@link ServerOptions}): {@code thread} runs a
+ * dedicated thread per connection, {@code virtual} runs the same blocking read loops on virtual threads and
+ * {@code nio} serves all connections from a small group of selector threads.
+ * <p>
+ * Whatever the engine, messages are routed by the {@link RoomDirectory}, on the room shard threads. With a
+ * {@code --cluster-port} the server is a node of a {@link Cluster} and shares its rooms with the other nodes. With a
+ * {@code --journal-dir} every routed message is also kept in a {@link MessageJournal}. Private messages to clients
+ * that are not connected are kept in an {@link OfflineMailbox} unless {@code --mailbox-size} is 0, and messages are
+ * indexed in a {@link SearchIndex} unless {@code --search-max-messages} is 0. The {@link ServerMetrics} of the server
+ * are registered with JMX and printed every {@code --stats-interval-ms}. What each client may send is limited by the
+ * {@link OverloadGuard}.
  */
 public class ServerApplication {
 
     /**
      * The main method is the entry point of the server application.
      *
-     * @param args The command-line arguments.
+     * @param args The command-line arguments, see {@link ServerOptions}.
      * @throws ChatException If an exception occurs in the chat application.
      */
     public static void main(String args[]) throws ChatException {
+        ServerOptions options = ServerOptions.parse(args);
+        /* Report what compression saved when the server is stopped. */
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(FrameCompression.getStats())));
+        // Create the rooms, starting with the lobby every client joins
+        RoomDirectory rooms = new RoomDirectory(new RoomShards(options.getRoomShards()), options.getHistorySize());
+        ServerMetrics metrics = ServerMetrics.open(options, rooms);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            metrics.close();
+            System.out.println(metrics);
+        }));
+
+        OverloadGuard overloadGuard = new OverloadGuard(options, metrics);
+        rooms.setOverloadGuard(overloadGuard);
+        try {
+            overloadGuard.register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            System.out.println("Problem registering the overload guard with JMX: " + e.getMessage());
+        }
+        overloadGuard.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            overloadGuard.close();
+            System.out.println(overloadGuard);
+        }));
+
+        HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(options, rooms);
+        rooms.setHeartbeatMonitor(heartbeatMonitor);
+        try {
+            heartbeatMonitor.register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            System.out.println("Problem registering the heartbeat monitor with JMX: " + e.getMessage());
+        }
+        heartbeatMonitor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            heartbeatMonitor.close();
+            System.out.println(heartbeatMonitor);
+        }));
+
+        if (options.isJournaled()) {
+            try {
+                MessageJournal journal = MessageJournal.open(options);
+                rooms.setJournal(journal);
+                /* Write out what is still queued when the server is stopped. */
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    journal.close(5000);
+                    System.out.println(journal);
+                }));
+            } catch (IOException e) {
+                System.out.println("Problem opening the message journal");
+                e.printStackTrace();
+                System.exit(1); // Terminate the program if server initialization fails
+            }
+        }
+
+        if (options.isMailboxEnabled()) {
+            try {
+                OfflineMailbox mailbox = OfflineMailbox.open(options);
+                rooms.setMailbox(mailbox);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    mailbox.close();
+                    System.out.println(mailbox);
+                }));
+            } catch (IOException e) {
+                System.out.println("Problem opening the offline mailbox directory");
+                e.printStackTrace();
+                System.exit(1); // Terminate the program if server initialization fails
+            }
+        }
+
+        if (options.isSearchEnabled()) {
+            SearchIndex searchIndex = new SearchIndex(options);
+            rooms.setSearchIndex(searchIndex);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                searchIndex.close();
+                System.out.println(searchIndex);
+            }));
+        }
+
+        if (options.isClustered()) {
+            try {
+                new Cluster(options, rooms).start();
+            } catch (IOException e) {
+                System.out.println("Problem opening the cluster port");
+                e.printStackTrace();
+                System.exit(1); // Terminate the program if server initialization fails
+            }
+        }
+
+        if (options.getEngine() == ServerOptions.Engine.NIO) {
+            try {
+                new NioServer(options, rooms, metrics).start();
+            } catch (IOException e) {
+                System.out.println("Problem running the NIO server engine");
+                e.printStackTrace();
+                System.exit(1); // Terminate the program if server initialization fails
+            }
+        } else if (options.getEngine() == ServerOptions.Engine.VIRTUAL) {
+            runThreadEngine(options, rooms, metrics, ConnectionThreads.virtual());
+        } else {
+            runThreadEngine(options, rooms, metrics, ConnectionThreads.platform());
+        }
+    }
+
+    /**
+     * Runs the blocking engine: accepts connections on the calling thread and hands them to an
+     * {@link AdmissionPipeline}, which reads their client names on handshake threads and starts a thread per
+     * admitted connection.
+     *
+     * @param options       The startup configuration.
+     * @param rooms         The rooms of the server.
+     * @param metrics       The metrics the traffic and admission times are recorded in.
+     * @param threadFactory The factory of the threads that run the connection read loops.
+     * @throws ChatException If an exception occurs in the chat application.
+     */
+    private static void runThreadEngine(ServerOptions options, RoomDirectory rooms, ServerMetrics metrics,
+                                        ThreadFactory threadFactory) throws ChatException {
         // Initialize the server socket
         ServerSocket server = null;
-        // Create a message board
-        MessageBoard mb = new MessageBoard();
         try {
-        /* Create a new server socket with the specified port number and backlog size. The server socket will
-         listen for incoming connections on port 1300 and allow up to 5 pending connections in the backlog.*/
-            server = new ServerSocket(1300, 5);
+        /* Create a new server socket with the configured port number and backlog size. The server socket will
+         listen for incoming connections on the port and allow up to 'backlog' pending connections.*/
+            server = new ServerSocket(options.getPort(), options.getBacklog());
         } catch (IOException e) {
             System.out.println("Problem creating serverSocket");
             e.printStackTrace();
             System.exit(1); // Terminate the program if server initialization fails
         }
 
-        Socket socket = null;
-
-        ClientDescriptor client = null;
-
-        ConnectionProxy connection = null;
+        AdmissionPipeline admission = new AdmissionPipeline(options, rooms, metrics, threadFactory);
 
-        // Continuously accept client connections and manage them
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                // Accept a client connection
-                socket = server.accept();
+        // Continuously accept client connections and hand them over, never waiting on a client's handshake
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                admission.awaitSlot();
+                Socket socket;
+                try {
+                    // Accept a client connection
+                    socket = server.accept();
+                } catch (IOException e) {
+                    admission.releaseSlot();
+                    throw new ChatException("Problem accepting a client connection", e);
+                }
+                admission.submit(socket);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            admission.close();
+        }
+    }
 
-                // Create a connection proxy for the client
-                connection = new ConnectionProxy(socket);
+    /**
+     * Wires a connection whose client name is known into the rooms, registering it in the lobby.
+     * <p>
+     * If the new connection is trying to connect with a taken username, the client is told so and the caller is
+     * expected to close the connection. On a cluster node the name may have to be reserved by another node first, so
+     * the outcome can arrive later, on another thread; the caller must not wait for it on an event loop.
+     *
+     * @param rooms      The rooms of the server.
+     * @param connection The connection to admit.
+     * @return Completed with {@code true} if the connection was added to the lobby, or {@code false} if its name is
+     * taken.
+     */
+    static CompletableFuture<Boolean> admit(RoomDirectory rooms, ClientConnection connection) {
+        // Create a client descriptor, limited by the overload guard if there is one
+        OverloadGuard guard = rooms.getOverloadGuard();
+        ClientDescriptor client = new ClientDescriptor(connection, guard == null ? null : guard.newLimiter(connection));
 
-                // Create a client descriptor
-                client = new ClientDescriptor();
+        // Add the rooms as a consumer to the client descriptor
+        client.addConsumer(rooms);
 
-                // Add the message board as a consumer to the client descriptor
-                client.addConsumer(mb);
+        // Add the client descriptor as a consumer to the connection
+        connection.addConsumer(client);
 
-                // Add the client descriptor as a consumer to the connection proxy
-                connection.addConsumer(client);
+        /* Tell a client that asked for protocol features which ones it got, before anything else is sent to it. */
+        if (!connection.getFeatures().isEmpty()) {
+            try {
+                connection.acknowledgeFeatures();
+            } catch (ChatException e) {
+                return CompletableFuture.completedFuture(false);
+            }
+        }
 
-                /* Checks if the new connection is trying to connect with a taken username, if so - we close the connection. */
-                if (mb.checkClientsNames(connection.getClientName())) {
+        /* Registering is an atomic check-and-insert, so two clients racing for the same name cannot both get in. */
+        return rooms.register(connection).thenApply(registered -> {
+            if (!registered) {
+                try {
                     // Send a message to the client that the username is already taken
                     connection.consume("Client name " + connection.getClientName() + " is already in the system, try a different user name.");
-                    // Close the connection
-                    connection.closeConnection();
-
-                } else {
-                    /* A valid connection with a unique username. */
-                    // Add the connection proxy as a consumer to the message board
-                    mb.addConsumer(connection);
-
-                    // Start the connection
-                    connection.start();
+                } catch (ChatException e) {
+                    System.out.println("Problem rejecting client " + connection.getClientName());
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new ChatException("Client name already in system", e);
+                return false;
             }
-        }
+            /* A valid connection with a unique username, now registered in the lobby. */
+            ConnectionTraffic traffic = connection.getTraffic();
+            if (traffic != null) {
+                traffic.admitted();
+            }
+            HeartbeatMonitor heartbeatMonitor = rooms.getHeartbeatMonitor();
+            if (heartbeatMonitor != null) {
+                heartbeatMonitor.watch(connection);
+            }
+            return true;
+        });
     }
 }
-
-
-
-
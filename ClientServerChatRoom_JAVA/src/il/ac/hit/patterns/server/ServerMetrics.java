@@ -0,0 +1,348 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.ClientConnection;
+import il.ac.hit.patterns.ConnectionTraffic;
+import il.ac.hit.patterns.LatencyHistogram;
+import il.ac.hit.patterns.TrafficMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ServerMetrics class gathers the instrumentation of a server: the {@link TrafficMetrics} every connection
+ * records in, how long each stage of admitting a connection takes, how long the boards take to hand a message to its
+ * recipients, and the depth of the outbound queues.
+ * <p>
+ * The metrics are registered with the platform MBean server, so they can be watched with JConsole or any JMX client:
+ * {@code il.ac.hit.patterns:type=ServerMetrics,port=<port>} for the counters, and
+ * {@code il.ac.hit.patterns:type=LatencyHistogram,port=<port>,name=FanOut}, {@code name=Write},
+ * {@code name=HandshakeWait}, {@code name=Handshake} and {@code name=Admission} for the histograms. Unless {@code --stats-interval-ms} is 0, a reporter thread also prints them as one line at that
+ * interval.
+ * <p>
+ * Counters and histograms are updated on the hot path without locking or allocating; the queue depths and open
+ * connections are only worked out when they are read, from the members of the lobby.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final String DOMAIN = "il.ac.hit.patterns"; // The JMX domain of the MBeans.
+
+    private final RoomDirectory rooms; // The rooms of the server, the lobby holds every connected client.
+    private final int port; // The port of the server, tells apart the MBeans of servers in one process.
+    private final TrafficMetrics traffic; // The traffic of every connection.
+    private final LatencyHistogram fanOutTimes; // How long handing a message to its recipients took.
+    private final LatencyHistogram handshakeWaitTimes; // How long accepted connections waited for a handshake thread.
+    private final LatencyHistogram handshakeTimes; // How long clients took to send their name.
+    private final LatencyHistogram admissionTimes; // How long checking the name and registering the client took.
+    private final LongAdder handshakeTimeouts; // Connections closed because their name did not arrive in time.
+    private final AtomicInteger handshakesInProgress; // Connections accepted and not yet admitted or closed.
+    private final ScheduledExecutorService reporter; // Prints the metrics line.
+
+    /**
+     * Constructs a ServerMetrics object. Use {@link #open} to wire it into the rooms and register it.
+     *
+     * @param rooms The rooms of the server.
+     * @param port  The port of the server.
+     */
+    public ServerMetrics(RoomDirectory rooms, int port) {
+        this.rooms = rooms;
+        this.port = port;
+        this.traffic = new TrafficMetrics();
+        this.fanOutTimes = new LatencyHistogram();
+        this.handshakeWaitTimes = new LatencyHistogram();
+        this.handshakeTimes = new LatencyHistogram();
+        this.admissionTimes = new LatencyHistogram();
+        this.handshakeTimeouts = new LongAdder();
+        this.handshakesInProgress = new AtomicInteger();
+        this.reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the metrics of a server: makes every board record its fan-out times, registers the MBeans, and starts
+     * printing the metrics line.
+     *
+     * @param options The startup configuration: port and stats interval.
+     * @param rooms   The rooms of the server.
+     * @return The metrics, all zero.
+     */
+    public static ServerMetrics open(ServerOptions options, RoomDirectory rooms) {
+        ServerMetrics metrics = new ServerMetrics(rooms, options.getPort());
+        rooms.setFanOutTimes(metrics.getFanOutTimes());
+        try {
+            metrics.register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            /* The metrics still work and are still printed, only not over JMX. */
+            System.out.println("Problem registering the server metrics with JMX: " + e.getMessage());
+        }
+        long interval = options.getStatsIntervalMillis();
+        if (interval > 0) {
+            metrics.reporter.scheduleAtFixedRate(() -> System.out.println(metrics), interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the counters and the histograms with an MBean server.
+     *
+     * @param server The MBean server.
+     * @throws JMException If an MBean cannot be registered, for example because its name is taken.
+     */
+    public void register(MBeanServer server) throws JMException {
+        server.registerMBean(this, new ObjectName(DOMAIN + ":type=ServerMetrics,port=" + port));
+        server.registerMBean(fanOutTimes, new ObjectName(DOMAIN + ":type=LatencyHistogram,port=" + port + ",name=FanOut"));
+        server.registerMBean(traffic.getWriteTimes(),
+                new ObjectName(DOMAIN + ":type=LatencyHistogram,port=" + port + ",name=Write"));
+        server.registerMBean(handshakeWaitTimes,
+                new ObjectName(DOMAIN + ":type=LatencyHistogram,port=" + port + ",name=HandshakeWait"));
+        server.registerMBean(handshakeTimes,
+                new ObjectName(DOMAIN + ":type=LatencyHistogram,port=" + port + ",name=Handshake"));
+        server.registerMBean(admissionTimes,
+                new ObjectName(DOMAIN + ":type=LatencyHistogram,port=" + port + ",name=Admission"));
+    }
+
+    /**
+     * Stops printing the metrics line.
+     */
+    public void close() {
+        reporter.shutdownNow();
+    }
+
+    /**
+     * Retrieves the counters every connection records its traffic in.
+     *
+     * @return The traffic counters.
+     */
+    public TrafficMetrics getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * Retrieves the histogram of how long the boards took to hand a message to its recipients.
+     *
+     * @return The fan-out time histogram.
+     */
+    public LatencyHistogram getFanOutTimes() {
+        return fanOutTimes;
+    }
+
+    /**
+     * Retrieves the histogram of how long accepted connections waited for a handshake thread.
+     *
+     * @return The handshake wait time histogram.
+     */
+    public LatencyHistogram getHandshakeWaitTimes() {
+        return handshakeWaitTimes;
+    }
+
+    /**
+     * Retrieves the histogram of how long clients took to send their name once a thread was reading it.
+     *
+     * @return The handshake time histogram.
+     */
+    public LatencyHistogram getHandshakeTimes() {
+        return handshakeTimes;
+    }
+
+    /**
+     * Retrieves the histogram of how long checking the client name and registering the client took.
+     *
+     * @return The admission time histogram.
+     */
+    public LatencyHistogram getAdmissionTimes() {
+        return admissionTimes;
+    }
+
+    /**
+     * Counts a connection that started its handshake.
+     */
+    void handshakeStarted() {
+        handshakesInProgress.incrementAndGet();
+    }
+
+    /**
+     * Counts a connection that was admitted or closed after its handshake started.
+     */
+    void handshakeEnded() {
+        handshakesInProgress.decrementAndGet();
+    }
+
+    /**
+     * Counts a connection closed because its client name did not arrive in time.
+     */
+    void handshakeTimedOut() {
+        handshakeTimeouts.increment();
+    }
+
+    /**
+     * Collects the clients connected to this server, the members of the lobby that are not connected to another node.
+     *
+     * @return The connections.
+     */
+    private List<ClientConnection> connections() {
+        List<ClientConnection> connections = new ArrayList<>();
+        rooms.getLobby().getBoard().forEachMember(connection -> {
+            if (!connection.isRemote()) {
+                connections.add(connection);
+            }
+        });
+        return connections;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getConnectionsAccepted() {
+        return traffic.getAccepted();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getConnectionsClosed() {
+        return traffic.getClosed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getConnectionsOpen() {
+        return connections().size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHandshakeFailures() {
+        return traffic.getHandshakeFailures();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHandshakesInProgress() {
+        return handshakesInProgress.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMessagesIn() {
+        return traffic.getMessagesIn();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMessagesOut() {
+        return traffic.getMessagesOut();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesIn() {
+        return traffic.getBytesIn();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesOut() {
+        return traffic.getBytesOut();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getQueuedMessages() {
+        long queued = 0;
+        for (ClientConnection connection : connections()) {
+            queued += connection.getQueueDepth();
+        }
+        return queued;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxQueueDepth() {
+        int deepest = 0;
+        for (ClientConnection connection : connections()) {
+            deepest = Math.max(deepest, connection.getQueueDepth());
+        }
+        return deepest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] listConnections() {
+        List<String> lines = new ArrayList<>();
+        for (ClientConnection connection : connections()) {
+            ConnectionTraffic counters = connection.getTraffic();
+            if (counters == null) {
+                continue;
+            }
+            lines.add(String.format("%s: in %d messages %d bytes, out %d messages %d bytes, queued %d",
+                    connection.getClientName(), counters.getMessagesIn(), counters.getBytesIn(),
+                    counters.getMessagesOut(), counters.getBytesOut(), connection.getQueueDepth()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Builds the one-line summary the reporter prints.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        List<ClientConnection> connections = connections();
+        long queued = 0;
+        int deepest = 0;
+        for (ClientConnection connection : connections) {
+            queued += connection.getQueueDepth();
+            deepest = Math.max(deepest, connection.getQueueDepth());
+        }
+        return String.format("metrics: %d open, %d accepted, %d closed, %d failed handshakes (%d timed out, %d in "
+                        + "progress); in %d messages %d bytes; out %d messages %d bytes; queued %d (deepest %d); "
+                        + "handshake wait %s; handshake %s; admission %s; fan-out %s; write %s",
+                connections.size(), getConnectionsAccepted(), getConnectionsClosed(), getHandshakeFailures(),
+                getHandshakeTimeouts(), getHandshakesInProgress(), getMessagesIn(), getBytesIn(), getMessagesOut(),
+                getBytesOut(), queued, deepest, handshakeWaitTimes, handshakeTimes, admissionTimes, fanOutTimes,
+                traffic.getWriteTimes());
+    }
+}
@@ -0,0 +1,100 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The ServerMetricsMBean interface is the JMX view of the {@link ServerMetrics} of a server. The admission, fan-out
+ * and write time histograms are registered as MBeans of their own.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * Retrieves the number of connections accepted since the server started.
+     *
+     * @return The accepted connection count.
+     */
+    public long getConnectionsAccepted();
+
+    /**
+     * Retrieves the number of connections closed since the server started, failed handshakes included.
+     *
+     * @return The closed connection count.
+     */
+    public long getConnectionsClosed();
+
+    /**
+     * Retrieves the number of clients connected to this server now.
+     *
+     * @return The connected client count.
+     */
+    public int getConnectionsOpen();
+
+    /**
+     * Retrieves the number of connections closed before their client was admitted.
+     *
+     * @return The failed handshake count.
+     */
+    public long getHandshakeFailures();
+
+    /**
+     * Retrieves the number of connections closed because their client name did not arrive within the handshake
+     * timeout. They are counted among the failed handshakes as well.
+     *
+     * @return The timed out handshake count.
+     */
+    public long getHandshakeTimeouts();
+
+    /**
+     * Retrieves the number of connections accepted and not yet admitted or closed.
+     *
+     * @return The handshakes in progress.
+     */
+    public int getHandshakesInProgress();
+
+    /**
+     * Retrieves the number of messages read from clients.
+     *
+     * @return The inbound message count.
+     */
+    public long getMessagesIn();
+
+    /**
+     * Retrieves the number of messages written to clients.
+     *
+     * @return The outbound message count.
+     */
+    public long getMessagesOut();
+
+    /**
+     * Retrieves the number of bytes read from clients.
+     *
+     * @return The inbound byte count.
+     */
+    public long getBytesIn();
+
+    /**
+     * Retrieves the number of bytes written to clients.
+     *
+     * @return The outbound byte count.
+     */
+    public long getBytesOut();
+
+    /**
+     * Retrieves the number of messages waiting in the outbound queues of all the connected clients.
+     *
+     * @return The queued message count.
+     */
+    public long getQueuedMessages();
+
+    /**
+     * Retrieves the depth of the fullest outbound queue.
+     *
+     * @return The largest queue depth.
+     */
+    public int getMaxQueueDepth();
+
+    /**
+     * Lists the traffic of every connected client, one line per client.
+     *
+     * @return The lines.
+     */
+    public String[] listConnections();
+}
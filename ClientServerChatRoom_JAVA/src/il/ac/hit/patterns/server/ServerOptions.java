@@ -0,0 +1,992 @@
+package il.ac.hit.patterns.server;
+
+import il.ac.hit.patterns.OutboundQueue;
+import il.ac.hit.patterns.SlowConsumerPolicy;
+import il.ac.hit.patterns.client.ChatException;
+import il.ac.hit.patterns.protocol.ChunkAssembler;
+import il.ac.hit.patterns.protocol.ReassemblyBudget;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ServerOptions class holds the startup configuration of the server application.
+ * <p>
+ * Options are passed on the command line in the form {@code --name=value}, for example:
+ * <p>
+ * {@code java il.ac.hit.patterns.server.ServerApplication --engine=nio --event-loops=4}
+ * <p>
+ * A node of a cluster also gets a cluster port and the cluster addresses of its peers, for example:
+ * <p>
+ * {@code --port=1301 --cluster-port=2301 --peers=127.0.0.1:2301,127.0.0.1:2302,127.0.0.1:2303}
+ * <p>
+ * With a journal directory every message is also kept on disk, for example:
+ * <p>
+ * {@code --journal-dir=journal --journal-fsync=group --journal-segment-bytes=67108864}
+ */
+public class ServerOptions {
+
+    /**
+     * The connection engines the server can run with.
+     */
+    public enum Engine {
+        /** A blocking accept loop with a dedicated platform thread per connection. */
+        THREAD,
+        /** The same blocking accept loop, with every connection read loop running on a virtual thread (Java 21+). */
+        VIRTUAL,
+        /** Selector based non-blocking connections served by a small group of event-loop threads. */
+        NIO
+    }
+
+    private int port = 1300; // The port the server listens on.
+    private int backlog = 128; // The maximum number of pending connections in the listen backlog.
+    private long handshakeTimeoutMillis = 5000; // How long a new connection may take to send its client name.
+    private int maxHandshakes = 64; // The most connections whose client name is being read at once.
+    private long heartbeatIntervalMillis = 30_000; // How long a heartbeat client may be quiet before it is pinged, 0 for never.
+    private long idleTimeoutMillis = 90_000; // How long a heartbeat client may be quiet before it is disconnected, 0 for never.
+    private Engine engine = Engine.THREAD; // The connection engine to run.
+    private int eventLoops = Runtime.getRuntime().availableProcessors(); // The number of NIO event-loop threads.
+    private int outboundCapacity = 1024; // The maximum number of messages queued for one client.
+    private int highWaterMark = 768; // The queue depth above which a client counts as slow.
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT; // What to do with slow clients.
+    private long slowConsumerTimeoutMillis = 5000; // How long a client may stay above the high-water mark.
+    private int maxMessageBytes = ChunkAssembler.DEFAULT_MAX_MESSAGE_BYTES; // The largest message a client may stream.
+    private long reassemblyBudgetBytes = 256L * 1024 * 1024; // The most bytes held for unfinished messages of all clients.
+    private ReassemblyBudget reassemblyBudget; // Shared by every connection, created on first use.
+    private int roomShards = Runtime.getRuntime().availableProcessors(); // The number of threads that route room messages.
+    private String nodeId; // The id of this node in a cluster, null for the default one.
+    private int clusterPort; // The port peers connect to, 0 for a single server.
+    private List<String> peers = List.of(); // The cluster addresses of the other nodes, host:port.
+    private int historySize = 100; // The most messages each room keeps for clients that join.
+    private String journalDirectory; // The directory of the message journal, null for no journal.
+    private int journalSegmentBytes = 64 * 1024 * 1024; // The size of a new journal segment.
+    private long journalRollMillis = 60 * 60 * 1000; // The age at which a journal segment is closed.
+    private FsyncPolicy journalFsyncPolicy = FsyncPolicy.GROUP; // When journal writes are forced to the disk.
+    private int mailboxSize = 100; // The most private messages kept for one offline client.
+    private long mailboxTtlMillis = 7L * 24 * 60 * 60 * 1000; // How long a private message is kept for an offline client.
+    private long mailboxMemoryBytes = 16 * 1024 * 1024; // The bytes of kept messages held in memory before spilling.
+    private String mailboxDirectory; // Where kept messages spill to, null for a directory in the temp directory.
+    private int searchMaxMessages = 200_000; // The most messages kept in the search index.
+    private int searchThreads = 2; // The number of threads that run searches.
+    private long statsIntervalMillis = 60_000; // How often the metrics line is printed, 0 for never.
+    private int broadcastRate = 10; // Broadcasts a client may send per second, 0 for no limit.
+    private int broadcastBurst = 20; // Broadcasts a client may send at once.
+    private int privateRate = 20; // Private messages a client may send per second, 0 for no limit.
+    private int privateBurst = 40; // Private messages a client may send at once.
+    private int controlRate = 20; // Control messages a client may send per second, 0 for no limit.
+    private int controlBurst = 40; // Control messages a client may send at once.
+    private int shedQueueDepth = 512; // The deepest outbound queue above which broadcasts are shed, 0 for never.
+    private long shedFanOutMillis = 100; // The recent p99 fan-out time above which broadcasts are shed, 0 for never.
+
+    /**
+     * Parses the command-line arguments into a ServerOptions object.
+     *
+     * @param args The command-line arguments.
+     * @return The parsed options.
+     * @throws ChatException If an argument is unknown or has an invalid value.
+     */
+    public static ServerOptions parse(String[] args) throws ChatException {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1) {
+                throw new ChatException("Invalid server option '" + arg + "', expected --name=value");
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            try {
+                switch (name) {
+                    case "port" -> options.setPort(Integer.parseInt(value));
+                    case "backlog" -> options.setBacklog(Integer.parseInt(value));
+                    case "handshake-timeout-ms" -> options.setHandshakeTimeoutMillis(Long.parseLong(value));
+                    case "max-handshakes" -> options.setMaxHandshakes(Integer.parseInt(value));
+                    case "heartbeat-interval-ms" -> options.setHeartbeatIntervalMillis(Long.parseLong(value));
+                    case "idle-timeout-ms" -> options.setIdleTimeoutMillis(Long.parseLong(value));
+                    case "engine" -> options.setEngine(Engine.valueOf(value.toUpperCase()));
+                    case "event-loops" -> options.setEventLoops(Integer.parseInt(value));
+                    case "outbound-capacity" -> options.setOutboundCapacity(Integer.parseInt(value));
+                    case "high-water-mark" -> options.setHighWaterMark(Integer.parseInt(value));
+                    case "slow-consumer-policy" -> options.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(value.toUpperCase()));
+                    case "slow-consumer-timeout-ms" -> options.setSlowConsumerTimeoutMillis(Long.parseLong(value));
+                    case "max-message-bytes" -> options.setMaxMessageBytes(Integer.parseInt(value));
+                    case "reassembly-budget-bytes" -> options.setReassemblyBudgetBytes(Long.parseLong(value));
+                    case "room-shards" -> options.setRoomShards(Integer.parseInt(value));
+                    case "node-id" -> options.setNodeId(value);
+                    case "cluster-port" -> options.setClusterPort(Integer.parseInt(value));
+                    case "peers" -> options.setPeers(Arrays.asList(value.split(",")));
+                    case "history-size" -> options.setHistorySize(Integer.parseInt(value));
+                    case "journal-dir" -> options.setJournalDirectory(value);
+                    case "journal-segment-bytes" -> options.setJournalSegmentBytes(Integer.parseInt(value));
+                    case "journal-roll-ms" -> options.setJournalRollMillis(Long.parseLong(value));
+                    case "journal-fsync" -> options.setJournalFsyncPolicy(FsyncPolicy.valueOf(value.toUpperCase()));
+                    case "mailbox-size" -> options.setMailboxSize(Integer.parseInt(value));
+                    case "mailbox-ttl-ms" -> options.setMailboxTtlMillis(Long.parseLong(value));
+                    case "mailbox-memory-bytes" -> options.setMailboxMemoryBytes(Long.parseLong(value));
+                    case "mailbox-dir" -> options.setMailboxDirectory(value);
+                    case "search-max-messages" -> options.setSearchMaxMessages(Integer.parseInt(value));
+                    case "search-threads" -> options.setSearchThreads(Integer.parseInt(value));
+                    case "stats-interval-ms" -> options.setStatsIntervalMillis(Long.parseLong(value));
+                    case "broadcast-rate" -> options.setBroadcastRate(Integer.parseInt(value));
+                    case "broadcast-burst" -> options.setBroadcastBurst(Integer.parseInt(value));
+                    case "private-rate" -> options.setPrivateRate(Integer.parseInt(value));
+                    case "private-burst" -> options.setPrivateBurst(Integer.parseInt(value));
+                    case "control-rate" -> options.setControlRate(Integer.parseInt(value));
+                    case "control-burst" -> options.setControlBurst(Integer.parseInt(value));
+                    case "shed-queue-depth" -> options.setShedQueueDepth(Integer.parseInt(value));
+                    case "shed-fanout-ms" -> options.setShedFanOutMillis(Long.parseLong(value));
+                    default -> throw new ChatException("Unknown server option '" + name + "'");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ChatException("Invalid value '" + value + "' for server option '" + name + "'", e);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Retrieves the port the server listens on.
+     *
+     * @return The listening port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port the server listens on.
+     *
+     * @param port The listening port.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Retrieves the size of the listen backlog.
+     *
+     * @return The listen backlog.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the size of the listen backlog.
+     *
+     * @param backlog The listen backlog.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Retrieves how long a new connection may take to send its client name.
+     *
+     * @return The handshake timeout in milliseconds.
+     */
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a new connection may take to send its client name before it is closed.
+     *
+     * @param handshakeTimeoutMillis The handshake timeout in milliseconds, at least 1.
+     */
+    public void setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis < 1 || handshakeTimeoutMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("handshake-timeout-ms must be between 1 and " + Integer.MAX_VALUE);
+        }
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    /**
+     * Retrieves the most connections whose client name is read at once.
+     *
+     * @return The handshake limit.
+     */
+    public int getMaxHandshakes() {
+        return maxHandshakes;
+    }
+
+    /**
+     * Sets the most connections whose client name is read at once. Further connections wait in the listen backlog.
+     *
+     * @param maxHandshakes The handshake limit, at least 1.
+     */
+    public void setMaxHandshakes(int maxHandshakes) {
+        if (maxHandshakes < 1) {
+            throw new IllegalArgumentException("max-handshakes must be at least 1");
+        }
+        this.maxHandshakes = maxHandshakes;
+    }
+
+    /**
+     * Retrieves how long a client that negotiated heartbeats may be quiet before it is pinged.
+     *
+     * @return The heartbeat interval in milliseconds, 0 if clients are never pinged.
+     */
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    /**
+     * Sets how long a client that negotiated heartbeats may be quiet before it is sent a PING.
+     *
+     * @param heartbeatIntervalMillis The heartbeat interval in milliseconds, 0 to never ping.
+     */
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        if (heartbeatIntervalMillis < 0) {
+            throw new IllegalArgumentException("heartbeat-interval-ms must not be negative");
+        }
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
+    /**
+     * Retrieves how long a client that negotiated heartbeats may be quiet before it is disconnected.
+     *
+     * @return The idle timeout in milliseconds, 0 if idle clients are kept.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a client that negotiated heartbeats may be quiet, PONGs included, before it is disconnected and its
+     * departure announced. Should be a few heartbeat intervals, so a live client gets to answer a PING.
+     *
+     * @param idleTimeoutMillis The idle timeout in milliseconds, 0 to keep idle clients.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("idle-timeout-ms must not be negative");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Retrieves the connection engine to run.
+     *
+     * @return The connection engine.
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the connection engine to run.
+     *
+     * @param engine The connection engine.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Retrieves the number of event-loop threads used by the NIO engine.
+     *
+     * @return The number of event-loop threads.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Sets the number of event-loop threads used by the NIO engine.
+     *
+     * @param eventLoops The number of event-loop threads, must be at least 1.
+     */
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("event-loops must be at least 1");
+        }
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Retrieves the maximum number of messages queued for one client.
+     *
+     * @return The outbound queue capacity.
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages queued for one client.
+     *
+     * @param outboundCapacity The outbound queue capacity.
+     */
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    /**
+     * Retrieves the queue depth above which a client counts as slow.
+     *
+     * @return The high-water mark.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Sets the queue depth above which a client counts as slow.
+     *
+     * @param highWaterMark The high-water mark.
+     */
+    public void setHighWaterMark(int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Retrieves what the server does with clients that read slower than messages arrive for them.
+     *
+     * @return The slow-consumer policy.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sets what the server does with clients that read slower than messages arrive for them.
+     *
+     * @param slowConsumerPolicy The slow-consumer policy.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Retrieves how long a client may stay above the high-water mark before the DISCONNECT policy drops it.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getSlowConsumerTimeoutMillis() {
+        return slowConsumerTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a client may stay above the high-water mark before the DISCONNECT policy drops it.
+     *
+     * @param slowConsumerTimeoutMillis The timeout in milliseconds.
+     */
+    public void setSlowConsumerTimeoutMillis(long slowConsumerTimeoutMillis) {
+        this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+    }
+
+    /**
+     * Retrieves the largest message a client may send as chunks, which is also the most bytes held for the unfinished
+     * chunked messages of one client.
+     *
+     * @return The size cap in bytes.
+     */
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Sets the largest message a client may send as chunks.
+     *
+     * @param maxMessageBytes The size cap in bytes, must be at least 1.
+     */
+    public void setMaxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes < 1) {
+            throw new IllegalArgumentException("max-message-bytes must be at least 1");
+        }
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Retrieves the most bytes held for the unfinished chunked messages of all clients together.
+     *
+     * @return The budget in bytes.
+     */
+    public long getReassemblyBudgetBytes() {
+        return reassemblyBudgetBytes;
+    }
+
+    /**
+     * Sets the most bytes held for the unfinished chunked messages of all clients together.
+     *
+     * @param reassemblyBudgetBytes The budget in bytes, must be at least 1.
+     */
+    public void setReassemblyBudgetBytes(long reassemblyBudgetBytes) {
+        if (reassemblyBudgetBytes < 1) {
+            throw new IllegalArgumentException("reassembly-budget-bytes must be at least 1");
+        }
+        this.reassemblyBudgetBytes = reassemblyBudgetBytes;
+    }
+
+    /**
+     * Retrieves the reassembly budget every connection of the server draws on, creating it with the configured size
+     * the first time. Called once the options are set.
+     *
+     * @return The shared budget.
+     */
+    public synchronized ReassemblyBudget getReassemblyBudget() {
+        if (reassemblyBudget == null) {
+            reassemblyBudget = new ReassemblyBudget(getReassemblyBudgetBytes());
+        }
+        return reassemblyBudget;
+    }
+
+    /**
+     * Retrieves the number of threads that route the messages of the rooms.
+     *
+     * @return The number of room shards.
+     */
+    public int getRoomShards() {
+        return roomShards;
+    }
+
+    /**
+     * Sets the number of threads that route the messages of the rooms.
+     *
+     * @param roomShards The number of room shards, must be at least 1.
+     */
+    public void setRoomShards(int roomShards) {
+        if (roomShards < 1) {
+            throw new IllegalArgumentException("room-shards must be at least 1");
+        }
+        this.roomShards = roomShards;
+    }
+
+    /**
+     * Retrieves the id of this node in a cluster.
+     *
+     * @return The node id, {@code node-<port>} unless one was set.
+     */
+    public String getNodeId() {
+        return nodeId == null ? "node-" + getPort() : nodeId;
+    }
+
+    /**
+     * Sets the id of this node in a cluster. Every node of a cluster needs its own.
+     *
+     * @param nodeId The node id, not empty and without spaces.
+     */
+    public void setNodeId(String nodeId) {
+        if (nodeId.isEmpty() || nodeId.contains(" ")) {
+            throw new IllegalArgumentException("node-id must not be empty or contain spaces");
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Retrieves the port the other nodes of the cluster connect to.
+     *
+     * @return The cluster port, 0 if this server is not a node of a cluster.
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Sets the port the other nodes of the cluster connect to.
+     *
+     * @param clusterPort The cluster port, 0 for a single server.
+     */
+    public void setClusterPort(int clusterPort) {
+        if (clusterPort < 0 || clusterPort > 65535) {
+            throw new IllegalArgumentException("cluster-port must be between 0 and 65535");
+        }
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * Retrieves the cluster addresses of the other nodes.
+     *
+     * @return The peer addresses, {@code host:port}.
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Sets the cluster addresses of the other nodes. The list may name this node as well, so every node of a cluster
+     * can be started with the same list.
+     *
+     * @param peers The peer addresses, {@code host:port}.
+     */
+    public void setPeers(List<String> peers) {
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("peers must be host:port");
+            }
+            Integer.parseInt(peer.substring(colon + 1));
+        }
+        this.peers = List.copyOf(peers);
+    }
+
+    /**
+     * Checks whether this server is a node of a cluster.
+     *
+     * @return {@code true} if a cluster port is set.
+     */
+    public boolean isClustered() {
+        return getClusterPort() > 0;
+    }
+
+    /**
+     * Retrieves the most messages each room keeps for clients that join it.
+     *
+     * @return The history size.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Sets the most messages each room keeps for clients that join it. Older messages can only be paged in from the
+     * journal.
+     *
+     * @param historySize The history size, 0 to keep none.
+     */
+    public void setHistorySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("history-size must not be negative");
+        }
+        this.historySize = historySize;
+    }
+
+    /**
+     * Retrieves the directory of the message journal.
+     *
+     * @return The journal directory, null if messages are not journaled.
+     */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Sets the directory of the message journal. It is created if it does not exist.
+     *
+     * @param journalDirectory The journal directory, not empty.
+     */
+    public void setJournalDirectory(String journalDirectory) {
+        if (journalDirectory.isEmpty()) {
+            throw new IllegalArgumentException("journal-dir must not be empty");
+        }
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Checks whether messages are kept in a journal.
+     *
+     * @return {@code true} if a journal directory is set.
+     */
+    public boolean isJournaled() {
+        return getJournalDirectory() != null;
+    }
+
+    /**
+     * Retrieves the size of a new journal segment.
+     *
+     * @return The segment size in bytes.
+     */
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    /**
+     * Sets the size of a new journal segment. A segment is closed when the next message does not fit.
+     *
+     * @param journalSegmentBytes The segment size in bytes, at least 4096.
+     */
+    public void setJournalSegmentBytes(int journalSegmentBytes) {
+        if (journalSegmentBytes < 4096) {
+            throw new IllegalArgumentException("journal-segment-bytes must be at least 4096");
+        }
+        this.journalSegmentBytes = journalSegmentBytes;
+    }
+
+    /**
+     * Retrieves the age at which a journal segment is closed.
+     *
+     * @return The roll time in milliseconds.
+     */
+    public long getJournalRollMillis() {
+        return journalRollMillis;
+    }
+
+    /**
+     * Sets the age at which a journal segment is closed, so that quiet servers still start a segment now and then.
+     *
+     * @param journalRollMillis The roll time in milliseconds, at least 1000.
+     */
+    public void setJournalRollMillis(long journalRollMillis) {
+        if (journalRollMillis < 1000) {
+            throw new IllegalArgumentException("journal-roll-ms must be at least 1000");
+        }
+        this.journalRollMillis = journalRollMillis;
+    }
+
+    /**
+     * Retrieves when journal writes are forced to the disk.
+     *
+     * @return The fsync policy.
+     */
+    public FsyncPolicy getJournalFsyncPolicy() {
+        return journalFsyncPolicy;
+    }
+
+    /**
+     * Sets when journal writes are forced to the disk.
+     *
+     * @param journalFsyncPolicy The fsync policy.
+     */
+    public void setJournalFsyncPolicy(FsyncPolicy journalFsyncPolicy) {
+        this.journalFsyncPolicy = journalFsyncPolicy;
+    }
+
+    /**
+     * Retrieves the most private messages kept for one offline client.
+     *
+     * @return The mailbox size, 0 if messages to offline clients are not kept.
+     */
+    public int getMailboxSize() {
+        return mailboxSize;
+    }
+
+    /**
+     * Sets the most private messages kept for one offline client. Messages beyond it are not delivered.
+     *
+     * @param mailboxSize The mailbox size, 0 to keep none.
+     */
+    public void setMailboxSize(int mailboxSize) {
+        if (mailboxSize < 0) {
+            throw new IllegalArgumentException("mailbox-size must not be negative");
+        }
+        this.mailboxSize = mailboxSize;
+    }
+
+    /**
+     * Checks whether private messages to offline clients are kept until they connect.
+     *
+     * @return {@code true} if the mailbox size is positive.
+     */
+    public boolean isMailboxEnabled() {
+        return getMailboxSize() > 0;
+    }
+
+    /**
+     * Retrieves how long a private message is kept for an offline client.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public long getMailboxTtlMillis() {
+        return mailboxTtlMillis;
+    }
+
+    /**
+     * Sets how long a private message is kept for an offline client before it is thrown away.
+     *
+     * @param mailboxTtlMillis The time to live in milliseconds, at least 1000.
+     */
+    public void setMailboxTtlMillis(long mailboxTtlMillis) {
+        if (mailboxTtlMillis < 1000) {
+            throw new IllegalArgumentException("mailbox-ttl-ms must be at least 1000");
+        }
+        this.mailboxTtlMillis = mailboxTtlMillis;
+    }
+
+    /**
+     * Retrieves how many bytes of kept messages are held in memory.
+     *
+     * @return The memory budget in bytes.
+     */
+    public long getMailboxMemoryBytes() {
+        return mailboxMemoryBytes;
+    }
+
+    /**
+     * Sets how many bytes of kept messages are held in memory; above it, the largest mailboxes are moved to disk.
+     *
+     * @param mailboxMemoryBytes The memory budget in bytes, not negative.
+     */
+    public void setMailboxMemoryBytes(long mailboxMemoryBytes) {
+        if (mailboxMemoryBytes < 0) {
+            throw new IllegalArgumentException("mailbox-memory-bytes must not be negative");
+        }
+        this.mailboxMemoryBytes = mailboxMemoryBytes;
+    }
+
+    /**
+     * Retrieves the directory kept messages are moved to when they do not fit in memory.
+     *
+     * @return The mailbox directory, by default {@code chat-mailbox-<port>} in the temp directory.
+     */
+    public String getMailboxDirectory() {
+        if (mailboxDirectory == null) {
+            return Path.of(System.getProperty("java.io.tmpdir"), "chat-mailbox-" + getPort()).toString();
+        }
+        return mailboxDirectory;
+    }
+
+    /**
+     * Sets the directory kept messages are moved to when they do not fit in memory. It is created if it does not
+     * exist, and emptied when the server starts.
+     *
+     * @param mailboxDirectory The mailbox directory, not empty.
+     */
+    public void setMailboxDirectory(String mailboxDirectory) {
+        if (mailboxDirectory.isEmpty()) {
+            throw new IllegalArgumentException("mailbox-dir must not be empty");
+        }
+        this.mailboxDirectory = mailboxDirectory;
+    }
+
+    /**
+     * Retrieves the most messages kept in the search index.
+     *
+     * @return The index size, 0 if messages are not indexed.
+     */
+    public int getSearchMaxMessages() {
+        return searchMaxMessages;
+    }
+
+    /**
+     * Sets the most messages kept in the search index; the oldest are dropped beyond it.
+     *
+     * @param searchMaxMessages The index size, 0 to index none.
+     */
+    public void setSearchMaxMessages(int searchMaxMessages) {
+        if (searchMaxMessages < 0) {
+            throw new IllegalArgumentException("search-max-messages must not be negative");
+        }
+        this.searchMaxMessages = searchMaxMessages;
+    }
+
+    /**
+     * Checks whether messages are indexed for clients to search.
+     *
+     * @return {@code true} if the search index may hold messages.
+     */
+    public boolean isSearchEnabled() {
+        return getSearchMaxMessages() > 0;
+    }
+
+    /**
+     * Retrieves the number of threads that run searches.
+     *
+     * @return The search thread count.
+     */
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    /**
+     * Sets the number of threads that run searches, apart from the threads that route messages.
+     *
+     * @param searchThreads The search thread count, at least 1.
+     */
+    public void setSearchThreads(int searchThreads) {
+        if (searchThreads < 1) {
+            throw new IllegalArgumentException("search-threads must be at least 1");
+        }
+        this.searchThreads = searchThreads;
+    }
+
+    /**
+     * Retrieves how often the server prints its metrics line.
+     *
+     * @return The interval in milliseconds, 0 if the line is never printed.
+     */
+    public long getStatsIntervalMillis() {
+        return statsIntervalMillis;
+    }
+
+    /**
+     * Sets how often the server prints its metrics line. The metrics are read over JMX either way.
+     *
+     * @param statsIntervalMillis The interval in milliseconds, 0 to never print it.
+     */
+    public void setStatsIntervalMillis(long statsIntervalMillis) {
+        if (statsIntervalMillis < 0) {
+            throw new IllegalArgumentException("stats-interval-ms must not be negative");
+        }
+        this.statsIntervalMillis = statsIntervalMillis;
+    }
+
+    /**
+     * Retrieves how many broadcasts a client may send per second.
+     *
+     * @return The rate, 0 if broadcasts are not limited.
+     */
+    public int getBroadcastRate() {
+        return broadcastRate;
+    }
+
+    /**
+     * Sets how many broadcasts a client may send per second; more are dropped.
+     *
+     * @param broadcastRate The rate, 0 for no limit.
+     */
+    public void setBroadcastRate(int broadcastRate) {
+        if (broadcastRate < 0) {
+            throw new IllegalArgumentException("broadcast-rate must not be negative");
+        }
+        this.broadcastRate = broadcastRate;
+    }
+
+    /**
+     * Retrieves how many broadcasts a client may send at once, above its rate.
+     *
+     * @return The burst.
+     */
+    public int getBroadcastBurst() {
+        return broadcastBurst;
+    }
+
+    /**
+     * Sets how many broadcasts a client may send at once before its rate applies.
+     *
+     * @param broadcastBurst The burst, at least 1.
+     */
+    public void setBroadcastBurst(int broadcastBurst) {
+        if (broadcastBurst < 1) {
+            throw new IllegalArgumentException("broadcast-burst must be at least 1");
+        }
+        this.broadcastBurst = broadcastBurst;
+    }
+
+    /**
+     * Retrieves how many private messages a client may send per second.
+     *
+     * @return The rate, 0 if private messages are not limited.
+     */
+    public int getPrivateRate() {
+        return privateRate;
+    }
+
+    /**
+     * Sets how many private messages a client may send per second; more are dropped.
+     *
+     * @param privateRate The rate, 0 for no limit.
+     */
+    public void setPrivateRate(int privateRate) {
+        if (privateRate < 0) {
+            throw new IllegalArgumentException("private-rate must not be negative");
+        }
+        this.privateRate = privateRate;
+    }
+
+    /**
+     * Retrieves how many private messages a client may send at once, above its rate.
+     *
+     * @return The burst.
+     */
+    public int getPrivateBurst() {
+        return privateBurst;
+    }
+
+    /**
+     * Sets how many private messages a client may send at once before its rate applies.
+     *
+     * @param privateBurst The burst, at least 1.
+     */
+    public void setPrivateBurst(int privateBurst) {
+        if (privateBurst < 1) {
+            throw new IllegalArgumentException("private-burst must be at least 1");
+        }
+        this.privateBurst = privateBurst;
+    }
+
+    /**
+     * Retrieves how many control messages a client may send per second.
+     *
+     * @return The rate, 0 if control messages are not limited.
+     */
+    public int getControlRate() {
+        return controlRate;
+    }
+
+    /**
+     * Sets how many control messages a client may send per second; more are dropped.
+     *
+     * @param controlRate The rate, 0 for no limit.
+     */
+    public void setControlRate(int controlRate) {
+        if (controlRate < 0) {
+            throw new IllegalArgumentException("control-rate must not be negative");
+        }
+        this.controlRate = controlRate;
+    }
+
+    /**
+     * Retrieves how many control messages a client may send at once, above its rate.
+     *
+     * @return The burst.
+     */
+    public int getControlBurst() {
+        return controlBurst;
+    }
+
+    /**
+     * Sets how many control messages a client may send at once before its rate applies.
+     *
+     * @param controlBurst The burst, at least 1.
+     */
+    public void setControlBurst(int controlBurst) {
+        if (controlBurst < 1) {
+            throw new IllegalArgumentException("control-burst must be at least 1");
+        }
+        this.controlBurst = controlBurst;
+    }
+
+    /**
+     * Retrieves the depth of the deepest outbound queue above which broadcasts are shed.
+     *
+     * @return The queue depth, 0 if queue depths never shed broadcasts.
+     */
+    public int getShedQueueDepth() {
+        return shedQueueDepth;
+    }
+
+    /**
+     * Sets the depth of the deepest outbound queue above which broadcasts are shed.
+     *
+     * @param shedQueueDepth The queue depth, 0 for never.
+     */
+    public void setShedQueueDepth(int shedQueueDepth) {
+        if (shedQueueDepth < 0) {
+            throw new IllegalArgumentException("shed-queue-depth must not be negative");
+        }
+        this.shedQueueDepth = shedQueueDepth;
+    }
+
+    /**
+     * Retrieves the 99th percentile of recent fan-out times above which broadcasts are shed.
+     *
+     * @return The time in milliseconds, 0 if fan-out times never shed broadcasts.
+     */
+    public long getShedFanOutMillis() {
+        return shedFanOutMillis;
+    }
+
+    /**
+     * Sets the 99th percentile of recent fan-out times above which broadcasts are shed.
+     *
+     * @param shedFanOutMillis The time in milliseconds, 0 for never.
+     */
+    public void setShedFanOutMillis(long shedFanOutMillis) {
+        if (shedFanOutMillis < 0) {
+            throw new IllegalArgumentException("shed-fanout-ms must not be negative");
+        }
+        this.shedFanOutMillis = shedFanOutMillis;
+    }
+
+    /**
+     * Creates an outbound queue for one client with the configured capacity and slow-consumer policy.
+     *
+     * @param <E> The type of the queued messages.
+     * @return A new outbound queue.
+     */
+    public <E> OutboundQueue<E> newOutboundQueue() {
+        return new OutboundQueue<>(getOutboundCapacity(), Math.min(getHighWaterMark(), getOutboundCapacity()),
+                getSlowConsumerPolicy(), getSlowConsumerTimeoutMillis());
+    }
+}
@@ -0,0 +1,158 @@
+package il.ac.hit.patterns.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The TimerWheel class runs delayed tasks for large numbers of connections at a fixed tick: a hashed timer wheel.
+ * <p>
+ * The wheel is a ring of buckets, one per tick. A task due in {@code n} ticks goes into the bucket {@code n} steps
+ * ahead of the current one, and on every tick the worker thread runs the due tasks of the next bucket. Scheduling is
+ * an append to a concurrent queue, and a tick only looks at the tasks of one bucket, so the cost of a tick does not
+ * grow with the number of tasks waiting in the others; a task due further away than one turn of the wheel stays in
+ * its bucket and is passed over once per turn. Tasks run up to one tick late, never early.
+ * <p>
+ * A scheduled task cannot be cancelled. Tasks run on the worker thread, one after the other, so they must be short;
+ * a task that no longer applies when it runs simply returns.
+ */
+public class TimerWheel {
+
+    private final long tickNanos; // The length of a tick.
+    private final Entry[] buckets; // The head of the task list of every bucket, worker only.
+    private final int mask; // Turns a tick number into a bucket index.
+    private final Queue<Entry> scheduled; // Tasks scheduled since the last tick, not yet in a bucket.
+    private final long start; // When tick 0 began, in System.nanoTime() units.
+    private final Thread worker; // Moves scheduled tasks into their buckets and runs the due ones.
+
+    /**
+     * Constructs a TimerWheel object. Use {@link #start()} to start the worker thread.
+     *
+     * @param tick       The length of a tick, in milliseconds.
+     * @param slots      The number of buckets, rounded up to a power of two; one turn of the wheel should cover the
+     *                   usual delays.
+     * @param threadName The name of the worker thread.
+     */
+    public TimerWheel(long tick, int slots, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.buckets = new Entry[size];
+        this.mask = size - 1;
+        this.scheduled = new ConcurrentLinkedQueue<>();
+        this.start = System.nanoTime();
+        this.worker = new Thread(this::run, threadName);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * Stops the worker thread; tasks not run yet are dropped.
+     */
+    public void close() {
+        worker.interrupt();
+    }
+
+    /**
+     * Schedules a task. Safe to call from any thread, including from a task.
+     *
+     * @param task  The task.
+     * @param delay How long from now the task is due.
+     * @param unit  The unit of the delay.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = System.nanoTime() - start + unit.toNanos(Math.max(0, delay));
+        scheduled.add(new Entry(task, due / tickNanos));
+    }
+
+    /**
+     * Runs the ticks until the worker is interrupted. Tick {@code n} is run once {@code n + 1} ticks have passed, so
+     * a task is never run before it is due.
+     */
+    private void run() {
+        long tick = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            long deadline = start + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            transfer(tick);
+            expire(tick);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves the tasks scheduled since the last tick into their buckets. A task whose tick already passed goes into
+     * the current bucket.
+     *
+     * @param tick The current tick.
+     */
+    private void transfer(long tick) {
+        Entry entry;
+        while ((entry = scheduled.poll()) != null) {
+            int index = (int) (Math.max(entry.tick, tick) & mask);
+            entry.next = buckets[index];
+            buckets[index] = entry;
+        }
+    }
+
+    /**
+     * Runs the due tasks of the bucket of a tick, and keeps the ones due in a later turn of the wheel.
+     *
+     * @param tick The current tick.
+     */
+    private void expire(long tick) {
+        int index = (int) (tick & mask);
+        Entry entry = buckets[index];
+        Entry kept = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.tick <= tick) {
+                try {
+                    entry.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Problem running a timer task: " + e);
+                }
+            } else {
+                entry.next = kept;
+                kept = entry;
+            }
+            entry = next;
+        }
+        /* What the tasks scheduled waits in the queue for the next tick, so the bucket only keeps the ones passed over. */
+        buckets[index] = kept;
+    }
+
+    /**
+     * The Entry class is a scheduled task in the list of its bucket.
+     */
+    private static final class Entry {
+
+        private final Runnable task; // The task to run.
+        private final long tick; // The tick the task is due in.
+        private Entry next; // The next task of the bucket, worker only.
+
+        /**
+         * Constructs an Entry object.
+         *
+         * @param task The task to run.
+         * @param tick The tick the task is due in.
+         */
+        private Entry(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+            this.next = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package il.ac.hit.patterns.server;
+
+/**
+ * The TokenBucket class lets through a steady rate of events with room for short bursts: the bucket holds up to
+ * {@code burst} tokens, gains {@code rate} tokens a second, and every event takes one.
+ * <p>
+ * Instead of a token count it keeps the theoretical arrival time of the next event, so refilling needs no timer and
+ * taking a token is a comparison and an addition. A bucket belongs to one connection and is only used by the thread
+ * that reads it, so it is not thread safe.
+ */
+public final class TokenBucket {
+
+    private final long interval; // Nanoseconds between two tokens.
+    private final long tolerance; // How far ahead of the steady rate a burst may run, in nanoseconds.
+    private long nextArrival; // When the next event would be due at the steady rate, in System.nanoTime() units.
+
+    /**
+     * Constructs a full TokenBucket object.
+     *
+     * @param rate  The tokens gained per second, more than 0.
+     * @param burst The most tokens the bucket holds, at least 1.
+     */
+    public TokenBucket(double rate, int burst) {
+        this.interval = Math.max(1, (long) (1_000_000_000L / rate));
+        this.tolerance = interval * (burst - 1);
+        this.nextArrival = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @param now The current time, in {@link System#nanoTime()} units.
+     * @return {@code true} if a token was taken, {@code false} if the bucket is empty.
+     */
+    public boolean tryTake(long now) {
+        if (now < nextArrival - tolerance) {
+            return false;
+        }
+        nextArrival = Math.max(nextArrival, now) + interval;
+        return true;
+    }
+
+    /**
+     * Works out how long until the bucket holds a token again.
+     *
+     * @param now The current time, in {@link System#nanoTime()} units.
+     * @return The wait in nanoseconds, 0 if there is a token now.
+     */
+    public long nanosUntilToken(long now) {
+        return Math.max(0, nextArrival - tolerance - now);
+    }
+}